@@ -0,0 +1,131 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Ages a filesystem the way long use does: fills it with a skewed mix of mostly small and a few
+// large files spread over a directory tree, then churns it with creates, deletes, appends and
+// truncates at a steady fill level. Free space ends up in many short runs and files in several
+// extents, which is the state allocation and lookup costs should be measured in.
+public class AgingWorkload {
+  private static final int DIRECTORIES = 16;
+
+  private final FileSystem fileSystem;
+  private final Random random;
+  private final List<Directory> directories = new ArrayList<>();
+  private final List<Directory> fileDirectories = new ArrayList<>(); // Parallel to fileNames
+  private final List<String> fileNames = new ArrayList<>();
+  private final int maxFileKB;
+  private double targetFill = 1; // Fill level churn holds the disk at, set by fill()
+  private int nextName;
+
+  public AgingWorkload(FileSystem fileSystem, long seed) {
+    this.fileSystem = fileSystem;
+    this.random = new Random(seed);
+    DiskGeometry geometry = fileSystem.getDisk().getGeometry();
+    this.maxFileKB = Math.max(1, geometry.getMaxFileBytes() / 1024);
+    Directory root = fileSystem.getRootDirectory();
+    directories.add(root);
+    for (int i = 1; i < DIRECTORIES; i++) {
+      // Each new directory hangs off a random existing one, so the tree gets some depth
+      Directory parent = directories.get(random.nextInt(directories.size()));
+      FsResult<Directory> created = fileSystem.createDirectory(parent, "d" + i);
+      if (created.isOk()) {
+        directories.add(created.getValue());
+      }
+    }
+  }
+
+  // Creates files until the disk is 'fill' full (0..1) or the inodes run out
+  public void fill(double fill) {
+    targetFill = fill;
+    int failures = 0;
+    while (usedFraction() < fill && failures < 100) {
+      failures = create() ? 0 : failures + 1;
+    }
+  }
+
+  // Runs 'operations' random changes. Above the fill level only deletes and truncates are chosen,
+  // below it only creates and appends, so the disk hovers around the level fill() set.
+  public void churn(int operations) {
+    for (int i = 0; i < operations; i++) {
+      boolean grow = usedFraction() < targetFill;
+      if (fileNames.isEmpty() || (grow && random.nextBoolean())) {
+        create();
+      } else if (!grow && random.nextBoolean()) {
+        delete(random.nextInt(fileNames.size()));
+      } else {
+        int file = random.nextInt(fileNames.size());
+        int deltaKB = 1 + random.nextInt(Math.max(1, maxFileKB / 4));
+        fileSystem.resizeFile(fileDirectories.get(file), fileNames.get(file), grow ? deltaKB : -deltaKB);
+      }
+    }
+  }
+
+  public List<Directory> getDirectories() {
+    return directories;
+  }
+
+  public int getFileCount() {
+    return fileNames.size();
+  }
+
+  public Directory getFileDirectory(int file) {
+    return fileDirectories.get(file);
+  }
+
+  public String getFileName(int file) {
+    return fileNames.get(file);
+  }
+
+  // Average number of extents per file, 1.0 means nothing is fragmented
+  public double averageExtents() {
+    long extents = 0;
+    List<FileInfo> files = fileSystem.listFiles();
+    for (FileInfo file : files) {
+      extents += file.getExtentCount();
+    }
+    return files.isEmpty() ? 0 : extents / (double) files.size();
+  }
+
+  // Mostly small files with a long tail of large ones
+  private int nextSizeKB() {
+    double roll = random.nextDouble();
+    if (roll < 0.7) {
+      return 1 + random.nextInt(Math.max(1, Math.min(4, maxFileKB)));
+    }
+    if (roll < 0.95) {
+      return 1 + random.nextInt(Math.max(1, maxFileKB / 4));
+    }
+    return 1 + random.nextInt(maxFileKB);
+  }
+
+  private boolean create() {
+    Directory directory = directories.get(random.nextInt(directories.size()));
+    String name = "a" + Integer.toString(nextName++, 36);
+    if (!fileSystem.createFile(directory, name, nextSizeKB()).isOk()) {
+      // Full disk or no inodes: make room so the churn keeps going
+      if (!fileNames.isEmpty()) {
+        delete(random.nextInt(fileNames.size()));
+      }
+      return false;
+    }
+    fileDirectories.add(directory);
+    fileNames.add(name);
+    return true;
+  }
+
+  private void delete(int file) {
+    fileSystem.deleteFile(fileDirectories.get(file), fileNames.get(file));
+    // Swap with the last entry so removal is O(1)
+    int last = fileNames.size() - 1;
+    fileDirectories.set(file, fileDirectories.get(last));
+    fileNames.set(file, fileNames.get(last));
+    fileDirectories.remove(last);
+    fileNames.remove(last);
+  }
+
+  private double usedFraction() {
+    SuperBlock superBlock = fileSystem.getDisk().getSuperBlock();
+    return 1 - superBlock.countFreeBlocks() / (double) superBlock.getTotalBlocks();
+  }
+}
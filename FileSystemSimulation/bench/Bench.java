@@ -0,0 +1,134 @@
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+// Minimal timing harness: warms each case up, then reports the mean over several measured rounds.
+// JMH cannot be used, it only accepts benchmarks in a named package and the classes under test are
+// in the default one, so the benchmarks run as plain main classes. measureTimed and fork follow
+// JMH's discipline for cases small enough that the JIT shapes the result.
+public class Bench {
+  public interface Op {
+    long run(); // The returned value is folded into a sink so the JIT cannot drop the work
+  }
+
+  private static final int WARMUP_ROUNDS = 5;
+  private static final int MEASURED_ROUNDS = 10;
+  // measureTimed settings, overridden with -Dbench.warmup, -Dbench.iterations and -Dbench.time (ms)
+  private static final int WARMUP_ITERATIONS = Integer.getInteger("bench.warmup", 5);
+  private static final int MEASURED_ITERATIONS = Integer.getInteger("bench.iterations", 10);
+  private static final long ITERATION_NANOS = TimeUnit.MILLISECONDS.toNanos(Long.getLong("bench.time", 500));
+  private static final long BATCH_NANOS = TimeUnit.MICROSECONDS.toNanos(10); // Between two clock reads
+  private static long sink;
+
+  public static void header(String title) {
+    System.out.println();
+    System.out.println("== " + title + " ==");
+    System.out.println(String.format(Locale.ROOT, "%-52s %14s", "case", "ns/op"));
+  }
+
+  // Runs 'op' opsPerRound times per round and prints the mean cost of one call
+  public static double measure(String name, int opsPerRound, Op op) {
+    for (int round = 0; round < WARMUP_ROUNDS; round++) {
+      for (int i = 0; i < opsPerRound; i++) {
+        sink += op.run();
+      }
+    }
+    long elapsed = 0;
+    for (int round = 0; round < MEASURED_ROUNDS; round++) {
+      long start = System.nanoTime();
+      for (int i = 0; i < opsPerRound; i++) {
+        sink += op.run();
+      }
+      elapsed += System.nanoTime() - start;
+    }
+    double nsPerOp = elapsed / (double) (MEASURED_ROUNDS * (long) opsPerRound);
+    System.out.println(String.format(Locale.ROOT, "%-52s %14.1f", name, nsPerOp));
+    return nsPerOp;
+  }
+
+  // Measures op as JMH does by default: time-boxed warmup iterations, then time-boxed measured
+  // iterations, each timing its own batches of calls. Prints the mean cost of one call over the
+  // measured iterations with their standard deviation. Call it once per JVM (see fork), so no other
+  // case has trained the JIT on op's call site first.
+  public static double measureTimed(String name, Op op) {
+    int batch = batchSize(op);
+    iterate(op, batch, WARMUP_ITERATIONS);
+    double[] nsPerOp = iterate(op, batch, MEASURED_ITERATIONS);
+    double mean = 0;
+    for (double value : nsPerOp) {
+      mean += value;
+    }
+    mean /= nsPerOp.length;
+    double variance = 0;
+    for (double value : nsPerOp) {
+      variance += (value - mean) * (value - mean);
+    }
+    double deviation = nsPerOp.length > 1 ? Math.sqrt(variance / (nsPerOp.length - 1)) : 0;
+    System.out.println(String.format(Locale.ROOT, "%-52s %14.1f +- %.1f", name, mean, deviation));
+    return mean;
+  }
+
+  // Calls per clock read, doubled until a batch takes long enough that reading the clock is noise
+  private static int batchSize(Op op) {
+    int batch = 1;
+    while (batch < 1 << 20) {
+      long start = System.nanoTime();
+      for (int i = 0; i < batch; i++) {
+        sink += op.run();
+      }
+      if (System.nanoTime() - start >= BATCH_NANOS) {
+        break;
+      }
+      batch *= 2;
+    }
+    return batch;
+  }
+
+  // Runs the given number of iterations and returns the mean cost of one call in each
+  private static double[] iterate(Op op, int batch, int iterations) {
+    double[] nsPerOp = new double[iterations];
+    for (int iteration = 0; iteration < iterations; iteration++) {
+      long calls = 0;
+      long start = System.nanoTime();
+      long elapsed;
+      do {
+        for (int i = 0; i < batch; i++) {
+          sink += op.run();
+        }
+        calls += batch;
+        elapsed = System.nanoTime() - start;
+      } while (elapsed < ITERATION_NANOS);
+      nsPerOp[iteration] = elapsed / (double) calls;
+    }
+    return nsPerOp;
+  }
+
+  // Runs main with the given arguments in a fresh JVM on the same class path, passing the bench.*
+  // settings on, and waits for it. Like a JMH fork, each case starts from a JIT that has seen no
+  // other case.
+  public static void fork(Class<?> main, String... args) throws IOException, InterruptedException {
+    List<String> command = new ArrayList<>();
+    command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+    for (String key : System.getProperties().stringPropertyNames()) {
+      if (key.startsWith("bench.")) {
+        command.add("-D" + key + "=" + System.getProperty(key));
+      }
+    }
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(main.getName());
+    command.addAll(Arrays.asList(args));
+    int exitCode = new ProcessBuilder(command).inheritIO().start().waitFor();
+    if (exitCode != 0) {
+      throw new IOException(main.getName() + " " + String.join(" ", args) + " exited with " + exitCode);
+    }
+  }
+
+  public static long sink() {
+    return sink;
+  }
+}
@@ -0,0 +1,161 @@
+import java.util.Random;
+
+// Compares the packed BlockBitmap and the best-fit ExtentAllocator against the boolean[] scans
+// SuperBlock used before them. Every case runs in its own JVM with time-boxed iterations (see
+// Bench.measureTimed), as the cheapest ones take only a few nanoseconds.
+// Run: mvn -Pbench test-compile exec:exec, or java -cp <classes> BitmapAllocatorBench [blocks fill case]
+public class BitmapAllocatorBench {
+  private static final int[] DISK_SIZES = { 128, 65536, 1 << 20 };
+  private static final double[] FILL_LEVELS = { 0.5, 0.9, 0.99 };
+  private static final int RUN_LENGTH = 8; // Blocks per contiguous request, one maximum-size file
+  private static final String[] CASES = {
+      "boolean[] allocateBlock + free",
+      "BlockBitmap allocate + free",
+      "boolean[] allocateBlocks(" + RUN_LENGTH + ") + free",
+      "BlockBitmap allocate(" + RUN_LENGTH + ") + free",
+      "ExtentAllocator best-fit allocate(" + RUN_LENGTH + ") + free",
+      "boolean[] countFreeBlocks",
+      "BlockBitmap countFree" };
+
+  // The original SuperBlock allocator, kept here as the baseline
+  static class BooleanBlockMap {
+    private final boolean[] blockUsage;
+
+    BooleanBlockMap(int totalBlocks) {
+      this.blockUsage = new boolean[totalBlocks];
+    }
+
+    int allocateBlock() {
+      for (int i = 0; i < blockUsage.length; i++) {
+        if (!blockUsage[i]) {
+          blockUsage[i] = true;
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    int allocateBlocks(int requiredBlocks) {
+      int firstFreeBlock = -1;
+      int consecutiveFree = 0;
+      for (int i = 0; i < blockUsage.length; i++) {
+        if (!blockUsage[i]) {
+          if (firstFreeBlock == -1)
+            firstFreeBlock = i;
+          if (++consecutiveFree == requiredBlocks) {
+            for (int j = firstFreeBlock; j < firstFreeBlock + requiredBlocks; j++) {
+              blockUsage[j] = true;
+            }
+            return firstFreeBlock;
+          }
+        } else {
+          firstFreeBlock = -1;
+          consecutiveFree = 0;
+        }
+      }
+      return -1;
+    }
+
+    void freeBlocks(int startingBlock, int numberOfBlocks) {
+      for (int i = startingBlock; i < startingBlock + numberOfBlocks; i++) {
+        blockUsage[i] = false;
+      }
+    }
+
+    void markUsed(int block) {
+      blockUsage[block] = true;
+    }
+
+    int countFreeBlocks() {
+      int count = 0;
+      for (boolean used : blockUsage) {
+        if (!used)
+          count++;
+      }
+      return count;
+    }
+  }
+
+  // Without arguments, forks a JVM for every disk size, fill level and case. With them, measures one case.
+  public static void main(String[] args) throws Exception {
+    if (args.length == 3) {
+      runCase(Integer.parseInt(args[0]), Double.parseDouble(args[1]), Integer.parseInt(args[2]));
+      return;
+    }
+    for (int totalBlocks : DISK_SIZES) {
+      for (double fill : FILL_LEVELS) {
+        Bench.header(totalBlocks + " blocks, " + (int) (fill * 100) + "% full");
+        for (int which = 0; which < CASES.length; which++) {
+          Bench.fork(BitmapAllocatorBench.class, String.valueOf(totalBlocks), String.valueOf(fill),
+              String.valueOf(which));
+        }
+      }
+    }
+  }
+
+  // Fills the map in a scattered pattern so free space is fragmented the same way for both maps.
+  // Free runs are left at the end so every contiguous request succeeds.
+  private static void runCase(int totalBlocks, double fill, int which) {
+    Random random = new Random(42);
+    BooleanBlockMap legacy = new BooleanBlockMap(totalBlocks);
+    BlockBitmap bitmap = new BlockBitmap(totalBlocks);
+    ExtentAllocator extents = new ExtentAllocator(totalBlocks, AllocationPolicy.BEST_FIT);
+    int reserved = Math.min(totalBlocks / 4, 4096); // Tail kept free for the contiguous requests
+    int scattered = totalBlocks - reserved;
+    for (int block = 0; block < scattered; block++) {
+      if (random.nextDouble() < fill) {
+        legacy.markUsed(block);
+        bitmap.markUsed(block, 1);
+        extents.markUsed(block, 1);
+      }
+    }
+
+    Bench.Op op;
+    switch (which) {
+      case 0:
+        op = () -> {
+          int block = legacy.allocateBlock();
+          legacy.freeBlocks(block, 1);
+          return block;
+        };
+        break;
+      case 1:
+        op = () -> {
+          int block = bitmap.allocate();
+          bitmap.free(block, 1);
+          return block;
+        };
+        break;
+      case 2:
+        op = () -> {
+          int start = legacy.allocateBlocks(RUN_LENGTH);
+          legacy.freeBlocks(start, RUN_LENGTH);
+          return start;
+        };
+        break;
+      case 3:
+        op = () -> {
+          int start = bitmap.allocate(RUN_LENGTH);
+          bitmap.free(start, RUN_LENGTH);
+          return start;
+        };
+        break;
+      case 4:
+        op = () -> {
+          int start = extents.allocate(RUN_LENGTH);
+          extents.free(start, RUN_LENGTH);
+          return start;
+        };
+        break;
+      case 5:
+        op = legacy::countFreeBlocks;
+        break;
+      case 6:
+        op = bitmap::countFree;
+        break;
+      default:
+        throw new IllegalArgumentException("No case " + which);
+    }
+    Bench.measureTimed(CASES[which], op);
+  }
+}
@@ -0,0 +1,197 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+// Closed-loop load generator for FileServer. Each connection keeps 'depth' requests in flight
+// (70% 4KB reads, 20% 4KB writes, 10% stats over a set of files) and the latency of every request
+// is taken from when it was queued to when its response arrived. Without an address it serves an
+// in-memory disk itself on a free local port.
+// Run: javac -d out src/*.java bench/*.java && java -cp out FileServerLoad [connections] [depth] [seconds] [host:port]
+public class FileServerLoad {
+  private static final int FILES = 16;
+  private static final int FILE_BYTES = 256 * 1024;
+  private static final int IO_BYTES = 4096;
+  private static final int WARMUP_SECONDS = 1;
+  private static final String DIRECTORY = "/load";
+
+  public static void main(String[] args) throws Exception {
+    int connections = args.length > 0 ? Integer.parseInt(args[0]) : 8;
+    int depth = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+    int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+    FileServer server = null;
+    FileSystem fileSystem = null;
+    String host = "localhost";
+    int port;
+    if (args.length > 3) {
+      int colon = args[3].lastIndexOf(':');
+      host = args[3].substring(0, colon);
+      port = Integer.parseInt(args[3].substring(colon + 1));
+    } else {
+      fileSystem = new FileSystem(new Disk(new DiskGeometry(4096, 65536, 1024, FILE_BYTES / 4096)));
+      server = new FileServer(fileSystem, new InetSocketAddress(host, 0));
+      server.start();
+      port = server.getPort();
+    }
+
+    setUp(host, port);
+    Worker[] workers = new Worker[connections];
+    long measureFrom = System.nanoTime() + WARMUP_SECONDS * 1_000_000_000L;
+    long stopAt = measureFrom + seconds * 1_000_000_000L;
+    for (int i = 0; i < connections; i++) {
+      workers[i] = new Worker(host, port, depth, i, measureFrom, stopAt);
+      workers[i].start();
+    }
+    long[] latencies = new long[0];
+    long errors = 0;
+    for (Worker worker : workers) {
+      worker.join();
+      if (worker.failure != null) {
+        throw worker.failure;
+      }
+      latencies = merge(latencies, worker.latencies, worker.count);
+      errors += worker.errors;
+    }
+    if (server != null) {
+      server.close();
+      fileSystem.close();
+    }
+
+    Arrays.sort(latencies);
+    System.out.println(String.format(Locale.ROOT, "%d connections x %d in flight, %d s%s", connections, depth,
+        seconds, server == null ? "" : server.usesVirtualThreads() ? ", virtual threads" : ", thread pool"));
+    System.out.println(String.format(Locale.ROOT, "%d requests (%d failed), %.0f requests/s", latencies.length,
+        errors, latencies.length / (double) seconds));
+    System.out.println(String.format(Locale.ROOT, "latency us: p50 %.1f  p90 %.1f  p99 %.1f  p99.9 %.1f  max %.1f",
+        percentile(latencies, 0.50), percentile(latencies, 0.90), percentile(latencies, 0.99),
+        percentile(latencies, 0.999), latencies.length == 0 ? 0.0 : latencies[latencies.length - 1] / 1000.0));
+  }
+
+  // Creates the files every worker reads and writes
+  private static void setUp(String host, int port) throws IOException {
+    try (FileClient client = new FileClient(host, port)) {
+      client.call(client.sendMkdir(DIRECTORY)); // Already there on a reused server
+      ByteBuffer data = ByteBuffer.allocate(64 * 1024);
+      for (int file = 0; file < FILES; file++) {
+        FileClient.Response opened = client.call(client.sendOpen(path(file), true));
+        if (!opened.isOk()) {
+          throw new IOException("Cannot create " + path(file) + ": " + opened.getMessage());
+        }
+        int handle = opened.getPayload().getInt();
+        for (int position = 0; position < FILE_BYTES; position += data.capacity()) {
+          data.clear();
+          FileClient.Response written = client.call(client.sendWrite(handle, position, data));
+          if (!written.isOk()) {
+            throw new IOException("Cannot fill " + path(file) + ": " + written.getMessage());
+          }
+        }
+        client.call(client.sendClose(handle));
+      }
+    }
+  }
+
+  private static String path(int file) {
+    return DIRECTORY + "/file" + file;
+  }
+
+  private static long[] merge(long[] all, long[] more, int count) {
+    long[] merged = Arrays.copyOf(all, all.length + count);
+    System.arraycopy(more, 0, merged, all.length, count);
+    return merged;
+  }
+
+  private static double percentile(long[] sorted, double fraction) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int index = (int) Math.min(sorted.length - 1, Math.ceil(fraction * sorted.length) - 1);
+    return sorted[Math.max(0, index)] / 1000.0;
+  }
+
+  // One connection. Ids are consecutive and at most 'depth' are outstanding, so id % depth is a
+  // free slot for the send time.
+  private static final class Worker extends Thread {
+    private final String host;
+    private final int port;
+    private final int depth;
+    private final long measureFrom;
+    private final long stopAt;
+    private final Random random;
+    private final ByteBuffer data = ByteBuffer.allocate(IO_BYTES);
+    private final int[] handles = new int[FILES];
+    private final long[] sentAt;
+    private long[] latencies = new long[1 << 16];
+    private int count;
+    private long errors;
+    private Exception failure;
+
+    Worker(String host, int port, int depth, int index, long measureFrom, long stopAt) {
+      super("load-" + index);
+      this.host = host;
+      this.port = port;
+      this.depth = depth;
+      this.measureFrom = measureFrom;
+      this.stopAt = stopAt;
+      this.random = new Random(index);
+      this.sentAt = new long[depth];
+      Arrays.fill(data.array(), (byte) index);
+    }
+
+    @Override
+    public void run() {
+      try (FileClient client = new FileClient(host, port)) {
+        for (int file = 0; file < FILES; file++) {
+          handles[file] = client.call(client.sendOpen(path(file), false)).getPayload().getInt();
+        }
+        for (int i = 0; i < depth; i++) {
+          send(client);
+        }
+        int outstanding = depth;
+        while (outstanding > 0) {
+          FileClient.Response response = client.receive();
+          long now = System.nanoTime();
+          if (!response.isOk()) {
+            errors++;
+          }
+          long sent = sentAt[response.getId() % depth];
+          if (sent >= measureFrom && now < stopAt) {
+            record(now - sent);
+          }
+          if (now < stopAt) {
+            send(client);
+          } else {
+            outstanding--;
+          }
+        }
+      } catch (Exception e) {
+        failure = e;
+      }
+    }
+
+    private void send(FileClient client) throws IOException {
+      int handle = handles[random.nextInt(FILES)];
+      long position = (long) random.nextInt(FILE_BYTES / IO_BYTES) * IO_BYTES;
+      int kind = random.nextInt(10);
+      long now = System.nanoTime();
+      int id;
+      if (kind < 7) {
+        id = client.sendRead(handle, position, IO_BYTES);
+      } else if (kind < 9) {
+        data.clear();
+        id = client.sendWrite(handle, position, data);
+      } else {
+        id = client.sendStat(path(random.nextInt(FILES)));
+      }
+      sentAt[id % depth] = now;
+    }
+
+    private void record(long nanos) {
+      if (count == latencies.length) {
+        latencies = Arrays.copyOf(latencies, count * 2);
+      }
+      latencies[count++] = nanos;
+    }
+  }
+}
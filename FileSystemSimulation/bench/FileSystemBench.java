@@ -0,0 +1,97 @@
+import java.util.Locale;
+import java.util.Random;
+
+// Costs of the core metadata operations on fresh and aged disks of several sizes: contiguous
+// allocation, inode lookup, free space counting, path resolution, the name probing done by
+// copyFile and grow/shrink cycles. Disks are aged with AgingWorkload, so free space is fragmented.
+// Run: javac -d out src/*.java bench/*.java && java -cp out FileSystemBench
+public class FileSystemBench {
+  private static final int BLOCK_SIZE = 512;
+  private static final int[] DISK_SIZES = { 4096, 65536, 262144 };
+  private static final int MAX_FILE_BLOCKS = 64;
+  private static final int RUN_LENGTH = 8; // Blocks per allocateBlocks request
+  private static final int PATH_DEPTH = 8;
+  private static final int[] EXISTING_COPIES = { 0, 16, 256 };
+
+  public static void main(String[] args) {
+    for (int totalBlocks : DISK_SIZES) {
+      runCase(totalBlocks, 0.5, 0);
+      runCase(totalBlocks, 0.8, 4);
+    }
+    System.out.println("(sink " + Bench.sink() + ")");
+  }
+
+  // Fills a new disk to 'fill', then churns it churnFactor times its file count
+  private static void runCase(int totalBlocks, double fill, int churnFactor) {
+    // One inode per block, so aging is limited by space rather than by the file count
+    DiskGeometry geometry = new DiskGeometry(BLOCK_SIZE, totalBlocks, totalBlocks, MAX_FILE_BLOCKS);
+    FileSystem fileSystem = new FileSystem(new Disk(geometry));
+    SuperBlock superBlock = fileSystem.getDisk().getSuperBlock();
+    AgingWorkload aging = new AgingWorkload(fileSystem, 42);
+    aging.fill(fill);
+    aging.churn(aging.getFileCount() * churnFactor);
+    aging.fill(fill); // Churn drifts the fill level a little, bring it back
+
+    int ops = Math.max(200, 2_000_000 / totalBlocks);
+    Bench.header(String.format(Locale.ROOT, "%d blocks, %d%% full, %s (%.2f extents/file, largest free run %d)",
+        totalBlocks, (int) (fill * 100), churnFactor == 0 ? "fresh" : "aged", aging.averageExtents(),
+        superBlock.largestFreeRun()));
+
+    Bench.measure("allocateBlocks(" + RUN_LENGTH + ") + freeBlocks", ops, () -> {
+      int start = superBlock.allocateBlocks(RUN_LENGTH);
+      if (start >= 0) {
+        superBlock.freeBlocks(start, RUN_LENGTH);
+      }
+      return start;
+    });
+
+    Random random = new Random(7);
+    int files = aging.getFileCount();
+    Bench.measure("findInode (hit)", ops * 10, () -> {
+      int file = random.nextInt(files);
+      return superBlock.findInode(aging.getFileDirectory(file).getId(), aging.getFileName(file)).getNumber();
+    });
+    Bench.measure("findInode (miss)", ops * 10, () -> {
+      int file = random.nextInt(files);
+      return superBlock.findInode(aging.getFileDirectory(file).getId(), "missing") == null ? 0 : 1;
+    });
+    Bench.measure("countFreeBlocks", ops, superBlock::countFreeBlocks);
+
+    Directory root = fileSystem.getRootDirectory();
+    StringBuilder path = new StringBuilder();
+    Directory deepest = root;
+    for (int depth = 0; depth < PATH_DEPTH; depth++) {
+      deepest = fileSystem.createDirectory(deepest, "p" + depth).getValue();
+      path.append("/p").append(depth);
+    }
+    String deepPath = path.toString();
+    Bench.measure("findDirectory (depth " + PATH_DEPTH + ")", ops * 10,
+        () -> root.findDirectory(deepPath, root, root).getId());
+
+    Directory source = fileSystem.createDirectory(root, "src").getValue();
+    fileSystem.createFile(source, "f", 1);
+    for (int copies : EXISTING_COPIES) {
+      Directory dest = fileSystem.createDirectory(root, "copies" + copies).getValue();
+      for (int i = 0; i < copies; i++) {
+        fileSystem.copyFile(source, "f", "/copies" + copies);
+      }
+      String destPath = "/copies" + copies;
+      Bench.measure("copyFile + deleteFile (" + copies + " copies exist)", ops, () -> {
+        FsResult<FileInfo> copy = fileSystem.copyFile(source, "f", destPath);
+        if (!copy.isOk()) {
+          return 0;
+        }
+        fileSystem.deleteFile(dest, copy.getValue().getName());
+        return copy.getValue().getInodeNumber();
+      });
+    }
+
+    int growKB = MAX_FILE_BLOCKS * BLOCK_SIZE / 1024 / 2;
+    fileSystem.createFile(root, "grow", 1);
+    Bench.measure("resizeFile +" + growKB + "KB / -" + growKB + "KB", ops, () -> {
+      FsResult<Integer> grown = fileSystem.resizeFile(root, "grow", growKB);
+      fileSystem.resizeFile(root, "grow", -growKB);
+      return grown.isOk() ? grown.getValue() : -1;
+    });
+  }
+}
@@ -0,0 +1,13 @@
+public enum AllocationPolicy {
+  FIRST_FIT, // Lowest free run that fits, backed by the packed bitmap
+  BEST_FIT, // Smallest free extent that fits
+  NEXT_FIT; // First extent that fits at or after the previous allocation, wrapping around
+
+  public static AllocationPolicy parse(String name) {
+    return valueOf(name.trim().toUpperCase().replace('-', '_'));
+  }
+
+  public BlockAllocator create(int totalBlocks) {
+    return this == FIRST_FIT ? new BlockBitmap(totalBlocks) : new ExtentAllocator(totalBlocks, this);
+  }
+}
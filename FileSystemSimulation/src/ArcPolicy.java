@@ -0,0 +1,104 @@
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+// Adaptive Replacement Cache (Megiddo and Modha). T1 holds blocks seen once recently, T2 blocks seen
+// at least twice. B1 and B2 remember blocks recently evicted from T1 and T2; a miss that hits one of
+// them shifts the target size of T1 (p) towards the list that would have kept the block.
+public class ArcPolicy implements EvictionPolicy {
+  private final int capacity;
+  private final LinkedHashSet<Integer> t1 = new LinkedHashSet<>(); // Each list is ordered LRU first
+  private final LinkedHashSet<Integer> t2 = new LinkedHashSet<>();
+  private final LinkedHashSet<Integer> b1 = new LinkedHashSet<>();
+  private final LinkedHashSet<Integer> b2 = new LinkedHashSet<>();
+  private int p; // Target size of T1
+
+  public ArcPolicy(int capacity) {
+    this.capacity = capacity;
+    this.p = 0;
+  }
+
+  @Override
+  public void onHit(int block) {
+    t1.remove(block);
+    t2.remove(block);
+    t2.add(block);
+  }
+
+  @Override
+  public int onMiss(int block, boolean cacheFull) {
+    int victim = -1;
+    if (b1.contains(block)) {
+      p = Math.min(capacity, p + Math.max(b2.size() / b1.size(), 1));
+      b1.remove(block);
+      if (cacheFull) {
+        victim = replace(false);
+      }
+      t2.add(block);
+      return victim;
+    }
+    if (b2.contains(block)) {
+      p = Math.max(0, p - Math.max(b1.size() / b2.size(), 1));
+      b2.remove(block);
+      if (cacheFull) {
+        victim = replace(true);
+      }
+      t2.add(block);
+      return victim;
+    }
+
+    int l1 = t1.size() + b1.size();
+    int total = l1 + t2.size() + b2.size();
+    if (l1 >= capacity) {
+      if (t1.size() < capacity) {
+        removeEldest(b1);
+        if (cacheFull) {
+          victim = replace(false);
+        }
+      } else {
+        victim = removeEldest(t1); // T1 fills the whole cache, drop its LRU block without a ghost
+      }
+    } else if (total >= capacity) {
+      if (total >= 2 * capacity) {
+        removeEldest(b2);
+      }
+      if (cacheFull) {
+        victim = replace(false);
+      }
+    }
+    t1.add(block);
+    return victim;
+  }
+
+  // Evicts from T1 when it is above its target (or at it, for a block coming back from B2),
+  // otherwise from T2. The evicted block is remembered in the matching ghost list.
+  private int replace(boolean fromB2) {
+    if (!t1.isEmpty() && (t1.size() > p || (fromB2 && t1.size() == p) || t2.isEmpty())) {
+      int victim = removeEldest(t1);
+      b1.add(victim);
+      return victim;
+    }
+    int victim = removeEldest(t2);
+    b2.add(victim);
+    return victim;
+  }
+
+  private static int removeEldest(LinkedHashSet<Integer> list) {
+    Iterator<Integer> eldest = list.iterator();
+    int block = eldest.next();
+    eldest.remove();
+    return block;
+  }
+
+  // Target size of T1: 0 favours blocks seen twice, the capacity blocks seen once
+  int getTarget() {
+    return p;
+  }
+
+  @Override
+  public void onRemove(int block) {
+    t1.remove(block);
+    t2.remove(block);
+    b1.remove(block);
+    b2.remove(block);
+  }
+}
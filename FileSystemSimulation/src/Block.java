@@ -1,36 +1,66 @@
-import java.util.*;
+import java.nio.ByteBuffer;
 
 public class Block {
   public static final int BLOCK_SIZE = 1024; // Block size in bytes
 
-  private byte[] data;
+  private final ByteBuffer buffer; // Backing store shared by every block of the disk
+  private final int offset; // Position of this block inside the backing store
+  private final int length;
 
+  // Standalone block with its own backing array
   public Block() {
-    this.data = new byte[BLOCK_SIZE];
+    this(ByteBuffer.allocate(BLOCK_SIZE), 0, BLOCK_SIZE);
+  }
+
+  // View over a region of a larger buffer (heap or memory-mapped)
+  public Block(ByteBuffer buffer, int offset, int length) {
+    this.buffer = buffer;
+    this.offset = offset;
+    this.length = length;
   }
 
   // Gets the data from this block
   public byte[] getData() {
-    return data.clone(); // Returns a copy to avoid external modifications
+    byte[] copy = new byte[length]; // Returns a copy to avoid external modifications
+    ByteBuffer view = buffer.duplicate();
+    view.position(offset);
+    view.get(copy, 0, length);
+    return copy;
   }
 
-  // Sets the data for this block. If data exceeds BLOCK_SIZE, it will be
+  // Sets the data for this block. If data exceeds the block size, it will be
   // truncated.
   public void setData(byte[] data) {
-    int length = Math.min(data.length, BLOCK_SIZE);
-    System.arraycopy(data, 0, this.data, 0, length);
-    if (data.length < BLOCK_SIZE) {
-      // If provided data is smaller than BLOCK_SIZE, fill the rest with zeros
-      Arrays.fill(this.data, data.length, BLOCK_SIZE, (byte) 0);
+    int copied = Math.min(data.length, length);
+    ByteBuffer view = buffer.duplicate();
+    view.position(offset);
+    view.put(data, 0, copied);
+    if (copied < length) {
+      // If provided data is smaller than the block, fill the rest with zeros
+      fill(offset + copied, offset + length);
     }
   }
 
+  // Zero-copy view of this block's bytes, positioned at 0 with the limit at the block size
+  public ByteBuffer asByteBuffer() {
+    ByteBuffer view = buffer.duplicate();
+    view.limit(offset + length);
+    view.position(offset);
+    return view.slice();
+  }
+
   public int geBlockSize() {
-    return BLOCK_SIZE;
+    return length;
   }
 
   // Utility method to clear the data in this block
   public void clearData() {
-    Arrays.fill(this.data, (byte) 0);
+    fill(offset, offset + length);
+  }
+
+  private void fill(int from, int to) {
+    for (int i = from; i < to; i++) {
+      buffer.put(i, (byte) 0);
+    }
   }
 }
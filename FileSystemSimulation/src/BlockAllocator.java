@@ -0,0 +1,37 @@
+// Free-space manager used by the SuperBlock. Every block of the disk is either free or in use, and
+// there is exactly one allocator per disk.
+public interface BlockAllocator {
+  int getTotalBlocks();
+
+  int countFree();
+
+  boolean isUsed(int block);
+
+  // Allocates a single block, returns -1 when the disk is full
+  int allocate();
+
+  // Allocates a contiguous run of blocks, returns the starting block or -1
+  int allocate(int count);
+
+  // Allocates the lowest-addressed free run of count blocks whatever the policy, used to pack files
+  // toward the start of the disk. Returns the starting block or -1.
+  int allocateLowest(int count);
+
+  // Allocates exactly the given range if every block in it is free, used to grow files in place
+  boolean allocateAt(int start, int count);
+
+  void free(int start, int count);
+
+  // Marks a known range as used, e.g. when rebuilding the map from inodes
+  void markUsed(int start, int count);
+
+  // Length of the longest contiguous free run
+  int largestFreeRun();
+
+  // Number of separate free runs, 1 when all free space is contiguous
+  int countFreeRuns();
+
+  // How much the last allocate, allocateLowest or allocateAt call examined: bitmap words for the
+  // bitmap, free extents for the extent tree
+  int lastScanLength();
+}
@@ -0,0 +1,256 @@
+public class BlockBitmap implements BlockAllocator {
+  private static final int WORD_BITS = 64;
+  private static final long ALL_USED = -1L;
+
+  private final int totalBlocks;
+  private final long[] words; // One bit per block, 1 means in use
+  private final long[] fullWords; // One bit per entry of 'words', 1 means that word has no free block
+  private int freeCount; // Running count so callers never rescan the map
+  private int scanLength; // Words the last search examined, summary words included
+
+  public BlockBitmap(int totalBlocks) {
+    this.totalBlocks = totalBlocks;
+    this.words = new long[(totalBlocks + WORD_BITS - 1) / WORD_BITS];
+    this.fullWords = new long[(words.length + WORD_BITS - 1) / WORD_BITS];
+    this.freeCount = totalBlocks;
+    int tailBits = totalBlocks % WORD_BITS;
+    if (tailBits != 0) {
+      // Bits past the end of the disk are permanently marked used so scans never return them
+      words[words.length - 1] = ALL_USED << tailBits;
+    }
+  }
+
+  @Override
+  public int getTotalBlocks() {
+    return totalBlocks;
+  }
+
+  @Override
+  public int countFree() {
+    return freeCount;
+  }
+
+  @Override
+  public boolean isUsed(int block) {
+    return (words[block >>> 6] & (1L << block)) != 0;
+  }
+
+  // Allocates a single block, returns -1 when the disk is full
+  @Override
+  public int allocate() {
+    scanLength = 0;
+    int word = nextNonFullWord(0);
+    if (word < 0) {
+      return -1;
+    }
+    int bit = Long.numberOfTrailingZeros(~words[word]);
+    int block = word * WORD_BITS + bit;
+    setRange(block, 1);
+    return block;
+  }
+
+  // First-fit search for a contiguous run, returns the starting block or -1
+  @Override
+  public int allocate(int count) {
+    int start = findRun(count);
+    if (start >= 0) {
+      setRange(start, count);
+    }
+    return start;
+  }
+
+  // The bitmap is first-fit already
+  @Override
+  public int allocateLowest(int count) {
+    return allocate(count);
+  }
+
+  @Override
+  public boolean allocateAt(int start, int count) {
+    scanLength = 0;
+    if (count <= 0 || start < 0 || start + count > totalBlocks || !isRangeFree(start, count)) {
+      return false;
+    }
+    setRange(start, count);
+    return true;
+  }
+
+  private boolean isRangeFree(int start, int count) {
+    int end = start + count; // Exclusive
+    while (start < end) {
+      int bitsInWord = Math.min(end - start, WORD_BITS - (start & 63));
+      long mask = (bitsInWord == WORD_BITS ? ALL_USED : ((1L << bitsInWord) - 1)) << start;
+      scanLength++;
+      if ((words[start >>> 6] & mask) != 0) {
+        return false;
+      }
+      start += bitsInWord;
+    }
+    return true;
+  }
+
+  @Override
+  public void free(int start, int count) {
+    clearRange(start, count);
+  }
+
+  // Marks a known range as used, e.g. when rebuilding the map from inodes
+  @Override
+  public void markUsed(int start, int count) {
+    setRange(start, count);
+  }
+
+  // Returns the first block of a free run of the requested length, or -1.
+  // Each word is examined as a whole: free bits at its bottom extend the run carried over from the
+  // previous word, runs inside the word are found with shifted ANDs, and free bits at its top start
+  // a new run that may continue into the next word.
+  public int findRun(int count) {
+    scanLength = 0;
+    if (count <= 0 || count > freeCount) {
+      return -1;
+    }
+    int runStart = -1;
+    int runLength = 0;
+    int word = 0;
+    while (word < words.length) {
+      if (runLength == 0) {
+        // Nothing to extend, so whole regions of full words can be skipped via the summary
+        word = nextNonFullWord(word);
+        if (word < 0) {
+          return -1;
+        }
+      }
+      long used = words[word];
+      int base = word * WORD_BITS;
+      scanLength++;
+      if (used == 0) {
+        if (runLength == 0) {
+          runStart = base;
+        }
+        runLength += WORD_BITS;
+        if (runLength >= count) {
+          return runStart;
+        }
+        word++;
+        continue;
+      }
+      if (runLength > 0 && runLength + Long.numberOfTrailingZeros(used) >= count) {
+        return runStart;
+      }
+      if (count <= WORD_BITS) {
+        long starts = runStarts(~used, count);
+        if (starts != 0) {
+          return base + Long.numberOfTrailingZeros(starts);
+        }
+      }
+      runLength = Long.numberOfLeadingZeros(used);
+      runStart = base + WORD_BITS - runLength;
+      word++;
+    }
+    return -1;
+  }
+
+  // Bit i of the result is set when bits i .. i+count-1 of 'free' are all set
+  private static long runStarts(long free, int count) {
+    long starts = free;
+    int covered = 1;
+    while (covered < count && starts != 0) {
+      int shift = Math.min(covered, count - covered);
+      starts &= starts >>> shift;
+      covered += shift;
+    }
+    return starts;
+  }
+
+  // A run starts at each free block whose predecessor is used, found a word at a time
+  @Override
+  public int countFreeRuns() {
+    int runs = 0;
+    long previousFree = 0; // 1 if the last block of the previous word was free
+    for (long used : words) {
+      long free = ~used;
+      runs += Long.bitCount(free & ~((free << 1) | previousFree));
+      previousFree = free >>> 63;
+    }
+    return runs;
+  }
+
+  // Length of the longest free run, used for fragmentation reporting
+  @Override
+  public int largestFreeRun() {
+    int best = 0;
+    int run = 0;
+    for (long used : words) {
+      if (used == 0) {
+        run += WORD_BITS;
+        continue;
+      }
+      if (used == ALL_USED) {
+        best = Math.max(best, run);
+        run = 0;
+        continue;
+      }
+      for (int bit = 0; bit < WORD_BITS; bit++) {
+        if ((used & (1L << bit)) == 0) {
+          run++;
+        } else {
+          best = Math.max(best, run);
+          run = 0;
+        }
+      }
+    }
+    return Math.max(best, run);
+  }
+
+  @Override
+  public int lastScanLength() {
+    return scanLength;
+  }
+
+  // Index of the first word at or after 'from' with at least one free bit, or -1
+  private int nextNonFullWord(int from) {
+    int summary = from >>> 6;
+    if (summary >= fullWords.length) {
+      return -1;
+    }
+    long notFull = ~fullWords[summary] & (ALL_USED << from);
+    while (true) {
+      scanLength++;
+      if (notFull != 0) {
+        int word = summary * WORD_BITS + Long.numberOfTrailingZeros(notFull);
+        return word < words.length ? word : -1;
+      }
+      if (++summary == fullWords.length) {
+        return -1;
+      }
+      notFull = ~fullWords[summary];
+    }
+  }
+
+  private void setRange(int start, int count) {
+    applyRange(start, count, true);
+  }
+
+  private void clearRange(int start, int count) {
+    applyRange(start, count, false);
+  }
+
+  private void applyRange(int start, int count, boolean used) {
+    int end = start + count; // Exclusive
+    while (start < end) {
+      int word = start >>> 6;
+      int bitsInWord = Math.min(end - start, WORD_BITS - (start & 63));
+      long mask = (bitsInWord == WORD_BITS ? ALL_USED : ((1L << bitsInWord) - 1)) << start;
+      long before = words[word];
+      long after = used ? before | mask : before & ~mask;
+      freeCount -= Long.bitCount(after) - Long.bitCount(before);
+      words[word] = after;
+      if (after == ALL_USED) {
+        fullWords[word >>> 6] |= 1L << word;
+      } else {
+        fullWords[word >>> 6] &= ~(1L << word);
+      }
+      start += bitsInWord;
+    }
+  }
+}
@@ -0,0 +1,143 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Owner counts of data blocks shared between files by copy-on-write copies. Only shared blocks are
+// recorded, as ranges of blocks with the same count, so a disk without copies costs nothing and a
+// copy of a file costs one range per extent whatever its size. A block that is not in any range has
+// a single owner (or none, if it is free).
+//
+// Ranges are added by share and dropped again once release brings their count back to one. Methods
+// synchronize on this object, except that lookups skip the lock while nothing is shared at all.
+// Callers hold the lock of the inode whose extents they pass in.
+public class BlockRefCounts {
+  private final TreeMap<Integer, int[]> ranges = new TreeMap<>(); // Start block -> { end block (exclusive), owners }
+  private volatile boolean empty = true; // Lets the common no-copies case skip the lock
+
+  // Adds an owner to every block of the range, which is in use by at least one file
+  public synchronized void share(int start, int length) {
+    int end = start + length;
+    split(start);
+    split(end);
+    int cursor = start;
+    for (Map.Entry<Integer, int[]> range : new ArrayList<>(ranges.subMap(start, end).entrySet())) {
+      if (range.getKey() > cursor) {
+        ranges.put(cursor, new int[] { range.getKey(), 2 }); // Had one owner
+      }
+      range.getValue()[1]++;
+      cursor = range.getValue()[0];
+    }
+    if (cursor < end) {
+      ranges.put(cursor, new int[] { end, 2 });
+    }
+    empty = false;
+  }
+
+  // Removes an owner from every block of the range and returns, as (start, length) pairs, the parts
+  // that had only that owner. The caller frees those; the rest stays with the other owners.
+  public List<int[]> release(int start, int length) {
+    List<int[]> unowned = new ArrayList<>();
+    if (empty) {
+      unowned.add(new int[] { start, length });
+      return unowned;
+    }
+    synchronized (this) {
+      int end = start + length;
+      split(start);
+      split(end);
+      int cursor = start;
+      for (Map.Entry<Integer, int[]> range : new ArrayList<>(ranges.subMap(start, end).entrySet())) {
+        if (range.getKey() > cursor) {
+          unowned.add(new int[] { cursor, range.getKey() - cursor });
+        }
+        int[] value = range.getValue();
+        if (--value[1] == 1) {
+          ranges.remove(range.getKey());
+        }
+        cursor = value[0];
+      }
+      if (cursor < end) {
+        unowned.add(new int[] { cursor, end - cursor });
+      }
+      empty = ranges.isEmpty();
+    }
+    return unowned;
+  }
+
+  // True if any block of the range has more than one owner
+  public boolean isShared(int start, int length) {
+    if (empty) {
+      return false;
+    }
+    synchronized (this) {
+      Map.Entry<Integer, int[]> range = ranges.floorEntry(start);
+      if (range != null && range.getValue()[0] > start) {
+        return true;
+      }
+      Integer next = ranges.higherKey(start);
+      return next != null && next < start + length;
+    }
+  }
+
+  // The shared parts of the range as (start, length) pairs, in block order
+  public synchronized List<int[]> sharedRuns(int start, int length) {
+    List<int[]> runs = new ArrayList<>();
+    int end = start + length;
+    Map.Entry<Integer, int[]> first = ranges.floorEntry(start);
+    int from = first != null && first.getValue()[0] > start ? first.getKey() : start;
+    for (Map.Entry<Integer, int[]> range : ranges.subMap(from, end).entrySet()) {
+      int runStart = Math.max(start, range.getKey());
+      int runEnd = Math.min(end, range.getValue()[0]);
+      if (!runs.isEmpty() && runs.get(runs.size() - 1)[0] + runs.get(runs.size() - 1)[1] == runStart) {
+        runs.get(runs.size() - 1)[1] += runEnd - runStart; // Neighbouring ranges with different counts
+      } else {
+        runs.add(new int[] { runStart, runEnd - runStart });
+      }
+    }
+    return runs;
+  }
+
+  // Blocks with more than one owner
+  public synchronized int countSharedBlocks() {
+    int shared = 0;
+    for (Map.Entry<Integer, int[]> range : ranges.entrySet()) {
+      shared += range.getValue()[0] - range.getKey();
+    }
+    return shared;
+  }
+
+  // Rebuilds the counts from every file's extents as (start, length) pairs, after journal replay
+  public synchronized void restore(List<int[]> extents) {
+    ranges.clear();
+    // Sweep the extent ends in block order, counting how many extents cover each stretch
+    long[] events = new long[2 * extents.size()];
+    int count = 0;
+    for (int[] extent : extents) {
+      events[count++] = (long) extent[0] << 1 | 1; // Start, sorts after an end at the same block
+      events[count++] = (long) (extent[0] + extent[1]) << 1;
+    }
+    Arrays.sort(events);
+    int owners = 0;
+    int previous = 0;
+    for (long event : events) {
+      int block = (int) (event >>> 1);
+      if (owners > 1 && block > previous) {
+        ranges.put(previous, new int[] { block, owners });
+      }
+      owners += (event & 1) != 0 ? 1 : -1;
+      previous = block;
+    }
+    empty = ranges.isEmpty();
+  }
+
+  // Splits the range covering the block, if any, so that one range starts at it
+  private void split(int block) {
+    Map.Entry<Integer, int[]> range = ranges.lowerEntry(block);
+    if (range != null && range.getValue()[0] > block) {
+      ranges.put(block, new int[] { range.getValue()[0], range.getValue()[1] });
+      range.getValue()[0] = block;
+    }
+  }
+}
@@ -0,0 +1,168 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+public class BlockStore {
+  private static final long MAX_SEGMENT_BYTES = 1L << 30; // A single mapping is capped well below 2GB
+  private static final long IMAGE_MAGIC = 0x4653534D494D4731L; // "FSSMIMG1"
+  private static final int HEADER_BYTES = 28; // Magic followed by the five geometry fields
+
+  private final DiskGeometry geometry;
+  private final int blockSize;
+  private final int totalBlocks;
+  private final int blocksPerSegment;
+  private final AtomicReferenceArray<ByteBuffer> segments; // Whole block space, split into segments of whole blocks
+  private final RandomAccessFile imageFile; // Null when the store lives on the heap
+  private final String imagePath;
+
+  // Heap-backed store, contents are lost when the process exits
+  public BlockStore(DiskGeometry geometry) {
+    this.geometry = geometry;
+    this.blockSize = geometry.getBlockSize();
+    this.totalBlocks = geometry.getTotalBlocks();
+    this.blocksPerSegment = segmentBlocks(blockSize, totalBlocks);
+    this.segments = new AtomicReferenceArray<>(segmentCount(totalBlocks, blocksPerSegment)); // Allocated on first use
+    this.imageFile = null;
+    this.imagePath = null;
+  }
+
+  // File-backed store. The image starts with one block holding the geometry header,
+  // followed by the data blocks.
+  private BlockStore(RandomAccessFile imageFile, String imagePath, DiskGeometry geometry) throws IOException {
+    this.geometry = geometry;
+    this.blockSize = geometry.getBlockSize();
+    this.totalBlocks = geometry.getTotalBlocks();
+    this.blocksPerSegment = segmentBlocks(blockSize, totalBlocks);
+    this.segments = new AtomicReferenceArray<>(segmentCount(totalBlocks, blocksPerSegment));
+    this.imagePath = imagePath;
+    this.imageFile = imageFile;
+    FileChannel channel = imageFile.getChannel();
+    for (int i = 0; i < segments.length(); i++) {
+      long offset = blockSize + (long) i * blocksPerSegment * blockSize;
+      segments.set(i, channel.map(FileChannel.MapMode.READ_WRITE, offset, (long) segmentBlocksAt(i) * blockSize));
+    }
+  }
+
+  // Creates a new, zero filled image with the given geometry
+  public static BlockStore format(String imagePath, DiskGeometry geometry) throws IOException {
+    RandomAccessFile imageFile = new RandomAccessFile(new File(imagePath), "rw");
+    try {
+      imageFile.setLength(0);
+      imageFile.setLength(geometry.getBlockSize() + geometry.getDiskSizeBytes());
+      imageFile.seek(0);
+      imageFile.writeLong(IMAGE_MAGIC);
+      imageFile.writeInt(geometry.getBlockSize());
+      imageFile.writeInt(geometry.getTotalBlocks());
+      imageFile.writeInt(geometry.getMaxFiles());
+      imageFile.writeInt(geometry.getMaxFileBlocks());
+      imageFile.writeInt(geometry.getInlineDataBytes());
+      return new BlockStore(imageFile, imagePath, geometry);
+    } catch (IOException e) {
+      imageFile.close();
+      throw e;
+    }
+  }
+
+  // Opens an existing image, the geometry is read back from its header. Images formatted before
+  // inline data existed hold zeros after the fourth field, so they keep all data in blocks.
+  public static BlockStore open(String imagePath) throws IOException {
+    RandomAccessFile imageFile = new RandomAccessFile(new File(imagePath), "rw");
+    try {
+      if (imageFile.length() < HEADER_BYTES || imageFile.readLong() != IMAGE_MAGIC) {
+        throw new IOException("Not a disk image: " + imagePath);
+      }
+      DiskGeometry geometry = new DiskGeometry(imageFile.readInt(), imageFile.readInt(), imageFile.readInt(),
+          imageFile.readInt(), imageFile.readInt());
+      if (imageFile.length() < geometry.getBlockSize() + geometry.getDiskSizeBytes()) {
+        throw new IOException("Disk image is truncated: " + imagePath);
+      }
+      return new BlockStore(imageFile, imagePath, geometry);
+    } catch (IOException | IllegalArgumentException e) {
+      imageFile.close();
+      throw e instanceof IOException ? (IOException) e : new IOException(e.getMessage(), e);
+    }
+  }
+
+  private static int segmentBlocks(int blockSize, int totalBlocks) {
+    return (int) Math.min(totalBlocks, MAX_SEGMENT_BYTES / blockSize);
+  }
+
+  private static int segmentCount(int totalBlocks, int blocksPerSegment) {
+    return (totalBlocks + blocksPerSegment - 1) / blocksPerSegment;
+  }
+
+  private int segmentBlocksAt(int segment) {
+    return Math.min(blocksPerSegment, totalBlocks - segment * blocksPerSegment);
+  }
+
+  // Returns a view of the given block, no data is copied
+  public Block getBlock(int blockNumber) {
+    if (blockNumber < 0 || blockNumber >= totalBlocks) {
+      throw new IndexOutOfBoundsException("Block " + blockNumber + " is outside the disk.");
+    }
+    int index = blockNumber / blocksPerSegment;
+    ByteBuffer segment = segments.get(index);
+    if (segment == null) {
+      segment = allocateSegment(index);
+    }
+    return new Block(segment, (blockNumber % blocksPerSegment) * blockSize, blockSize);
+  }
+
+  private synchronized ByteBuffer allocateSegment(int index) {
+    ByteBuffer segment = segments.get(index);
+    if (segment == null) {
+      segment = ByteBuffer.allocate(segmentBlocksAt(index) * blockSize);
+      segments.set(index, segment); // Published only once fully built, getBlock reads without the lock
+    }
+    return segment;
+  }
+
+  public DiskGeometry getGeometry() {
+    return geometry;
+  }
+
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  public int getTotalBlocks() {
+    return totalBlocks;
+  }
+
+  public boolean isPersistent() {
+    return imageFile != null;
+  }
+
+  public String getImagePath() {
+    return imagePath;
+  }
+
+  // Forces mapped pages back to the image file
+  public void flush() {
+    if (totalBlocks > 0) {
+      force(0, totalBlocks);
+    }
+  }
+
+  // Forces the mapped pages of count blocks from start back to the image file. Whole segments are
+  // forced, only their dirty pages are actually written.
+  public void force(int start, int count) {
+    if (imageFile == null || count <= 0) {
+      return;
+    }
+    for (int i = start / blocksPerSegment; i <= (start + count - 1) / blocksPerSegment; i++) {
+      ((MappedByteBuffer) segments.get(i)).force();
+    }
+  }
+
+  public void close() throws IOException {
+    if (imageFile != null) {
+      flush();
+      imageFile.close();
+    }
+  }
+}
@@ -0,0 +1,333 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// Write-back cache of whole blocks between file I/O and the block store. The number of frames is
+// fixed by a memory budget; when the cache is full, the eviction policy picks a block to drop and a
+// dirty block is written back to the store first. A budget smaller than one block turns the cache
+// into a pass-through.
+//
+// Large caches are split into segments by block number, each with its own frames, eviction policy
+// and lock, so threads working on different blocks rarely wait for each other.
+public class BufferCache {
+  private static final int MAX_SEGMENTS = 16;
+  private static final int MIN_SEGMENT_FRAMES = 256; // Smaller segments would make eviction too coarse
+
+  private static final class Frame {
+    final byte[] data;
+    boolean dirty;
+
+    Frame(int blockSize) {
+      this.data = new byte[blockSize];
+    }
+  }
+
+  private final BlockStore blockStore;
+  private final CachePolicy policyType;
+  private final int blockSize;
+  private final int capacity; // Frames the budget allows
+  private final Segment[] segments;
+  private final int segmentMask;
+
+  public BufferCache(BlockStore blockStore, long budgetBytes, CachePolicy policyType) {
+    this.blockStore = blockStore;
+    this.policyType = policyType;
+    this.blockSize = blockStore.getBlockSize();
+    this.capacity = (int) Math.min(blockStore.getTotalBlocks(), budgetBytes / blockSize);
+    int count = Integer.highestOneBit(Math.max(1, Math.min(MAX_SEGMENTS, capacity / MIN_SEGMENT_FRAMES)));
+    this.segments = new Segment[count];
+    for (int i = 0; i < count; i++) {
+      // Blocks are spread round-robin, so the capacity is too
+      segments[i] = new Segment(capacity / count + (i < capacity % count ? 1 : 0));
+    }
+    this.segmentMask = count - 1;
+  }
+
+  private Segment segmentFor(int block) {
+    return segments[block & segmentMask];
+  }
+
+  // Copies length bytes of the block, starting at offset, into dst
+  public void read(int block, int offset, ByteBuffer dst, int length) {
+    if (capacity == 0) {
+      ByteBuffer view = blockStore.getBlock(block).asByteBuffer();
+      view.position(offset).limit(offset + length);
+      dst.put(view);
+      return;
+    }
+    Segment segment = segmentFor(block);
+    synchronized (segment) {
+      dst.put(segment.lookup(block, true).data, offset, length);
+    }
+  }
+
+  // Copies length bytes from src into the block at offset. The block is written back on eviction or flush.
+  public void write(int block, int offset, ByteBuffer src, int length) {
+    if (capacity == 0) {
+      ByteBuffer view = blockStore.getBlock(block).asByteBuffer();
+      view.position(offset);
+      ByteBuffer slice = src.duplicate();
+      slice.limit(slice.position() + length);
+      view.put(slice);
+      src.position(src.position() + length);
+      return;
+    }
+    Segment segment = segmentFor(block);
+    synchronized (segment) {
+      // A write covering the whole block does not need the old contents
+      Frame frame = segment.lookup(block, offset != 0 || length != blockSize);
+      src.get(frame.data, offset, length);
+      frame.dirty = true;
+    }
+  }
+
+  public int readInt(int block, int offset) {
+    if (capacity == 0) {
+      return blockStore.getBlock(block).asByteBuffer().getInt(offset);
+    }
+    Segment segment = segmentFor(block);
+    synchronized (segment) {
+      return ByteBuffer.wrap(segment.lookup(block, true).data).getInt(offset);
+    }
+  }
+
+  // Fills the block with zeros without reading it first
+  public void zero(int block) {
+    if (capacity == 0) {
+      blockStore.getBlock(block).clearData();
+      return;
+    }
+    Segment segment = segmentFor(block);
+    synchronized (segment) {
+      Frame frame = segment.lookup(block, false);
+      Arrays.fill(frame.data, (byte) 0);
+      frame.dirty = true;
+    }
+  }
+
+  // Writes the block back if it is dirty and drops it, so the store can be accessed directly
+  public void evict(int block) {
+    Segment segment = segmentFor(block);
+    synchronized (segment) {
+      segment.remove(block, true);
+    }
+  }
+
+  // The block was freed: its contents no longer matter, so it is dropped without a write-back
+  public void discard(int block) {
+    Segment segment = segmentFor(block);
+    synchronized (segment) {
+      segment.remove(block, false);
+    }
+  }
+
+  // Discards a freed range, walking whichever is smaller in each segment: the range or the resident blocks
+  public void discard(int start, int count) {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        segment.discard(start, count);
+      }
+    }
+  }
+
+  // Writes count blocks from start back if they are dirty and forces them to stable storage. The
+  // blocks stay cached. Used for blocks that must be durable before a logged inode points at them.
+  public void sync(int start, int count) {
+    if (capacity > 0) {
+      for (Segment segment : segments) {
+        synchronized (segment) {
+          segment.writeBack(start, count);
+        }
+      }
+    }
+    blockStore.force(start, count);
+  }
+
+  // Writes every dirty block back to the store
+  public void flush() {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        for (Map.Entry<Integer, Frame> entry : segment.frames.entrySet()) {
+          segment.writeBack(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+  }
+
+  public CachePolicy getPolicy() {
+    return policyType;
+  }
+
+  public int getCapacity() {
+    return capacity;
+  }
+
+  public int getSegmentCount() {
+    return segments.length;
+  }
+
+  public int getResidentBlocks() {
+    int resident = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        resident += segment.frames.size();
+      }
+    }
+    return resident;
+  }
+
+  public int getDirtyBlocks() {
+    int dirty = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        for (Frame frame : segment.frames.values()) {
+          if (frame.dirty)
+            dirty++;
+        }
+      }
+    }
+    return dirty;
+  }
+
+  public long getHits() {
+    long hits = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        hits += segment.hits;
+      }
+    }
+    return hits;
+  }
+
+  public long getMisses() {
+    long misses = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        misses += segment.misses;
+      }
+    }
+    return misses;
+  }
+
+  public long getEvictions() {
+    long evictions = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        evictions += segment.evictions;
+      }
+    }
+    return evictions;
+  }
+
+  public long getWriteBacks() {
+    long writeBacks = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        writeBacks += segment.writeBacks;
+      }
+    }
+    return writeBacks;
+  }
+
+  // One independently locked part of the cache. Every method is called with the segment's monitor held.
+  private final class Segment {
+    private final int capacity;
+    private final EvictionPolicy policy;
+    private final Map<Integer, Frame> frames; // Resident blocks
+    private final ArrayDeque<Frame> spareFrames; // Evicted frames kept for reuse
+    private long hits;
+    private long misses;
+    private long evictions;
+    private long writeBacks;
+
+    Segment(int capacity) {
+      this.capacity = capacity;
+      this.policy = policyType.create(Math.max(capacity, 1));
+      this.frames = new HashMap<>();
+      this.spareFrames = new ArrayDeque<>();
+    }
+
+    Frame lookup(int block, boolean load) {
+      Frame frame = frames.get(block);
+      if (frame != null) {
+        hits++;
+        policy.onHit(block);
+        return frame;
+      }
+      misses++;
+      int victim = policy.onMiss(block, frames.size() >= capacity);
+      if (victim != -1) {
+        Frame evicted = frames.remove(victim);
+        writeBack(victim, evicted);
+        evictions++;
+        spareFrames.push(evicted);
+      }
+      frame = spareFrames.isEmpty() ? new Frame(blockSize) : spareFrames.pop();
+      frame.dirty = false;
+      if (load) {
+        blockStore.getBlock(block).asByteBuffer().get(frame.data);
+      }
+      frames.put(block, frame);
+      return frame;
+    }
+
+    void remove(int block, boolean writeBack) {
+      Frame frame = frames.remove(block);
+      if (frame != null) {
+        if (writeBack) {
+          writeBack(block, frame);
+        }
+        policy.onRemove(block);
+        spareFrames.push(frame);
+      }
+    }
+
+    void discard(int start, int count) {
+      if (frames.isEmpty()) {
+        return;
+      }
+      if (count <= frames.size()) {
+        for (int block = start; block < start + count; block++) {
+          if (segmentFor(block) == this) {
+            remove(block, false);
+          }
+        }
+        return;
+      }
+      Integer[] resident = frames.keySet().toArray(new Integer[0]);
+      for (int block : resident) {
+        if (block >= start && block < start + count) {
+          remove(block, false);
+        }
+      }
+    }
+
+    // Writes back the dirty blocks of a range, walking the range or the resident blocks as in discard
+    void writeBack(int start, int count) {
+      if (count <= frames.size()) {
+        for (int block = start; block < start + count; block++) {
+          Frame frame = segmentFor(block) == this ? frames.get(block) : null;
+          if (frame != null) {
+            writeBack(block, frame);
+          }
+        }
+        return;
+      }
+      for (Map.Entry<Integer, Frame> entry : frames.entrySet()) {
+        if (entry.getKey() >= start && entry.getKey() < start + count) {
+          writeBack(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+
+    void writeBack(int block, Frame frame) {
+      if (frame.dirty) {
+        blockStore.getBlock(block).asByteBuffer().put(frame.data);
+        frame.dirty = false;
+        writeBacks++;
+      }
+    }
+  }
+}
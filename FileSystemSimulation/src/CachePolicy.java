@@ -0,0 +1,20 @@
+public enum CachePolicy {
+  LRU, // Least recently used block goes first
+  CLOCK, // Second-chance sweep over a ring of frames, approximates LRU without reordering on hits
+  ARC; // Adaptive replacement: balances recency and frequency using ghost lists of evicted blocks
+
+  public static CachePolicy parse(String name) {
+    return valueOf(name.trim().toUpperCase());
+  }
+
+  public EvictionPolicy create(int capacity) {
+    switch (this) {
+      case CLOCK:
+        return new ClockPolicy(capacity);
+      case ARC:
+        return new ArcPolicy(capacity);
+      default:
+        return new LruPolicy();
+    }
+  }
+}
@@ -0,0 +1,64 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+public class ClockPolicy implements EvictionPolicy {
+  private final int[] slots; // Block held by each slot of the ring, -1 when empty
+  private final boolean[] referenced; // Second-chance bit per slot
+  private final Map<Integer, Integer> slotOf = new HashMap<>();
+  private int hand; // Next slot the sweep looks at
+
+  public ClockPolicy(int capacity) {
+    this.slots = new int[capacity];
+    this.referenced = new boolean[capacity];
+    Arrays.fill(slots, -1);
+    this.hand = 0;
+  }
+
+  @Override
+  public void onHit(int block) {
+    referenced[slotOf.get(block)] = true;
+  }
+
+  @Override
+  public int onMiss(int block, boolean cacheFull) {
+    int victim = -1;
+    int slot;
+    if (cacheFull) {
+      // Clear reference bits until a slot without one comes round
+      while (referenced[hand]) {
+        referenced[hand] = false;
+        hand = (hand + 1) % slots.length;
+      }
+      slot = hand;
+      victim = slots[slot];
+      slotOf.remove(victim);
+      hand = (hand + 1) % slots.length;
+    } else {
+      slot = freeSlot();
+    }
+    slots[slot] = block;
+    referenced[slot] = false;
+    slotOf.put(block, slot);
+    return victim;
+  }
+
+  private int freeSlot() {
+    for (int i = 0; i < slots.length; i++) {
+      int slot = (hand + i) % slots.length;
+      if (slots[slot] == -1) {
+        return slot;
+      }
+    }
+    throw new IllegalStateException("Clock ring is full.");
+  }
+
+  @Override
+  public void onRemove(int block) {
+    Integer slot = slotOf.remove(block);
+    if (slot != null) {
+      slots[slot] = -1;
+      referenced[slot] = false;
+    }
+  }
+}
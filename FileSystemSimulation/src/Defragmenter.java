@@ -0,0 +1,304 @@
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// Online compactor for the block space. Each pass visits the files from the end of the disk backwards
+// and moves every file it can into the lowest free run that holds it whole (see
+// SuperBlock.relocateInode). Files become single extents, holes near the start of the disk are filled
+// from the top, and the free space left behind merges into one long run at the end.
+//
+// Work is done one file at a time under that file's write lock, taken with tryLock: a file in use by
+// a foreground operation is skipped and picked up by a later pass, so the compactor never makes a
+// foreground operation wait for more than one file's copy. Moved data is charged against an I/O
+// budget (a read and a write per block); once it is spent the compactor sleeps until it is earned back.
+//
+// It runs either on its own daemon thread (start/stop) or one pass at a time on the caller's thread
+// (runPass). The thread is woken for stop() rather than interrupted, since an interrupt would close
+// the journal's channel if it arrived during a write.
+public class Defragmenter {
+  public static final long DEFAULT_BUDGET_KB = 1024; // Per second
+  private static final long IDLE_MILLIS = 1000; // Pause after a pass that moved nothing
+
+  private final SuperBlock superBlock;
+  private final long budgetBytesPerSecond; // 0 means unthrottled
+  private final Object passLock = new Object(); // One pass at a time, background or not
+  private Thread thread; // Guarded by this
+  private volatile boolean running;
+  private volatile int position; // Files the current pass has visited
+  private volatile int passFiles; // Files the current pass will visit, 0 between passes
+  private double credit; // Bytes of budget left, negative while in debt; guarded by passLock
+  private long lastRefill; // Guarded by passLock
+
+  private final LongAdder passes = new LongAdder();
+  private final LongAdder filesMoved = new LongAdder();
+  private final LongAdder blocksMoved = new LongAdder();
+  private final LongAdder busySkips = new LongAdder();
+
+  public Defragmenter(SuperBlock superBlock, long budgetKB) {
+    if (budgetKB < 0) {
+      throw new IllegalArgumentException("Defragmenter budget cannot be negative.");
+    }
+    this.superBlock = superBlock;
+    this.budgetBytesPerSecond = budgetKB * 1024;
+  }
+
+  // Starts the background thread, which makes passes until stopped. Does nothing if it is running.
+  public synchronized void start() {
+    if (thread != null) {
+      return;
+    }
+    running = true;
+    thread = new Thread(this::runLoop, "defragmenter");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  // Stops the background thread after the file it is moving, and waits for it
+  public void stop() {
+    Thread stopping;
+    synchronized (this) {
+      stopping = thread;
+      if (stopping == null) {
+        return;
+      }
+      running = false;
+      notifyAll();
+    }
+    boolean interrupted = false;
+    while (true) {
+      try {
+        stopping.join();
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    synchronized (this) {
+      thread = null;
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  public synchronized boolean isRunning() {
+    return thread != null;
+  }
+
+  private void runLoop() {
+    while (running) {
+      if (runPass(true) == 0) {
+        pause(IDLE_MILLIS);
+      }
+    }
+  }
+
+  // Makes one pass over the inode table and returns the number of blocks moved. An unthrottled pass
+  // ignores the budget, for an explicit "defrag now" request.
+  public int runPass(boolean throttled) {
+    synchronized (passLock) {
+      int moved = 0;
+      lastRefill = System.nanoTime();
+      credit = 0;
+      int[] files = filesFromTheEnd();
+      passFiles = files.length;
+      for (int i = 0; i < files.length; i++) {
+        if (throttled && !running) {
+          break;
+        }
+        position = i;
+        int blocks = relocate(superBlock.getInode(files[i]));
+        if (blocks > 0) {
+          moved += blocks;
+          filesMoved.increment();
+          blocksMoved.add(blocks);
+          if (throttled) {
+            charge(2L * blocks * superBlock.getGeometry().getBlockSize());
+          }
+        }
+      }
+      position = 0;
+      passFiles = 0;
+      passes.increment();
+      return moved;
+    }
+  }
+
+  // Numbers of the files holding blocks, ordered by their first block, highest first. The order is
+  // only a plan: files may change before they are visited, and relocateInode checks again.
+  private int[] filesFromTheEnd() {
+    long[] keys = new long[superBlock.countUsedInodes()];
+    int count = 0;
+    for (int number = 0; number < superBlock.getMaxFiles() && count < keys.length; number++) {
+      Inode inode = superBlock.getInode(number);
+      ReentrantReadWriteLock.ReadLock lock = superBlock.inodeLock(inode).readLock();
+      lock.lock();
+      try {
+        if (inode.isUsed() && inode.getExtentCount() > 0) {
+          keys[count++] = (long) inode.getExtentStart(0) << 32 | number;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    Arrays.sort(keys, 0, count);
+    int[] files = new int[count];
+    for (int i = 0; i < count; i++) {
+      files[i] = (int) keys[count - 1 - i];
+    }
+    return files;
+  }
+
+  private int relocate(Inode inode) {
+    if (!inode.isUsed()) {
+      return 0; // Read without the lock, only to skip free inodes cheaply; checked again below
+    }
+    ReentrantReadWriteLock.WriteLock lock = superBlock.inodeLock(inode).writeLock();
+    if (!lock.tryLock()) {
+      busySkips.increment();
+      return 0;
+    }
+    try {
+      return inode.isUsed() ? superBlock.relocateInode(inode) : 0; // Commits the move itself
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  // Takes the cost out of the budget, which refills at budgetBytesPerSecond up to one second's worth,
+  // and sleeps off any debt. A file costing more than a second's budget is moved whole and paid for after.
+  private void charge(long bytes) {
+    if (budgetBytesPerSecond == 0) {
+      return;
+    }
+    long now = System.nanoTime();
+    credit = Math.min(budgetBytesPerSecond, credit + (now - lastRefill) / 1e9 * budgetBytesPerSecond);
+    lastRefill = now;
+    credit -= bytes;
+    if (credit < 0) {
+      pause((long) Math.ceil(-credit * 1000 / budgetBytesPerSecond));
+    }
+  }
+
+  // Sleeps, returning early when stop() is called
+  private synchronized void pause(long millis) {
+    long deadline = System.currentTimeMillis() + millis;
+    long left = millis;
+    while (running && left > 0) {
+      try {
+        wait(left);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+      left = deadline - System.currentTimeMillis();
+    }
+  }
+
+  public long getBudgetKB() {
+    return budgetBytesPerSecond / 1024;
+  }
+
+  // Files the pass in progress has visited so far
+  public int getPosition() {
+    return position;
+  }
+
+  // Files the pass in progress will visit, 0 between passes
+  public int getPassFiles() {
+    return passFiles;
+  }
+
+  public long getPasses() {
+    return passes.sum();
+  }
+
+  public long getFilesMoved() {
+    return filesMoved.sum();
+  }
+
+  public long getBlocksMoved() {
+    return blocksMoved.sum();
+  }
+
+  // Files passed over because a foreground operation held their lock
+  public long getBusySkips() {
+    return busySkips.sum();
+  }
+
+  // Current fragmentation of the disk, both of the free space and of the files
+  public Report measure() {
+    int files = 0;
+    int fragmentedFiles = 0;
+    long extents = 0;
+    for (int number = 0; number < superBlock.getMaxFiles(); number++) {
+      Inode inode = superBlock.getInode(number);
+      ReentrantReadWriteLock.ReadLock lock = superBlock.inodeLock(inode).readLock();
+      lock.lock();
+      try {
+        if (inode.isUsed() && inode.getExtentCount() > 0) {
+          files++;
+          extents += inode.getExtentCount();
+          if (inode.getExtentCount() > 1) {
+            fragmentedFiles++;
+          }
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    return new Report(superBlock.countFreeBlocks(), superBlock.countFreeRuns(), superBlock.largestFreeRun(), files,
+        fragmentedFiles, extents);
+  }
+
+  // Fragmentation figures at one point in time. The free-space figures are read one after another,
+  // so they may disagree slightly while files are being changed.
+  public static final class Report {
+    private final int freeBlocks;
+    private final int freeRuns;
+    private final int largestFreeRun;
+    private final int files;
+    private final int fragmentedFiles;
+    private final long extents;
+
+    Report(int freeBlocks, int freeRuns, int largestFreeRun, int files, int fragmentedFiles, long extents) {
+      this.freeBlocks = freeBlocks;
+      this.freeRuns = freeRuns;
+      this.largestFreeRun = largestFreeRun;
+      this.files = files;
+      this.fragmentedFiles = fragmentedFiles;
+      this.extents = extents;
+    }
+
+    public int getFreeBlocks() {
+      return freeBlocks;
+    }
+
+    public int getFreeRuns() {
+      return freeRuns;
+    }
+
+    public int getLargestFreeRun() {
+      return largestFreeRun;
+    }
+
+    // Share of the free space outside the largest free run: 0 when it is all in one piece
+    public int getFreeSpaceFragmentationPercent() {
+      return freeBlocks == 0 ? 0 : (int) (100 - 100L * Math.min(largestFreeRun, freeBlocks) / freeBlocks);
+    }
+
+    // Files holding at least one block
+    public int getFiles() {
+      return files;
+    }
+
+    // Files in more than one extent
+    public int getFragmentedFiles() {
+      return fragmentedFiles;
+    }
+
+    public double getAverageExtents() {
+      return files == 0 ? 0 : (double) extents / files;
+    }
+  }
+}
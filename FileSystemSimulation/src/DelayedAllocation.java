@@ -0,0 +1,159 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Growth of files that has not been given disk blocks yet. When a file grows past its last block,
+// the SuperBlock only reserves the extra blocks with the allocator and records the growth here;
+// data written to those blocks is kept in memory, one page per block. The blocks are allocated
+// later, all of a file's at once: when a handle on the file is closed or synced, when the disk is
+// flushed, before a snapshot is taken or the file is copied, and when the buffered data outgrows
+// the budget. Many small appends thus become one request for a contiguous run.
+//
+// The journal only sees the size a file had before its delayed growth, so after a crash the file
+// is back to that size, as if the appended data had never been written back.
+//
+// A growth is guarded by its inode's lock. The set of files with delayed growth only changes while
+// the snapshot gate is held shared.
+public class DelayedAllocation {
+  public static final long DEFAULT_BUDGET_BYTES = 512 * 1024;
+  static final int INDIRECT_SLACK = 1; // Blocks reserved on top of a growth for new indirect blocks
+
+  // The delayed growth of one file
+  static final class Growth {
+    final int committedSize; // File size before the growth, which is what the journal knows
+    int blocks; // Blocks of the file past its allocated ones
+    byte[][] pages = new byte[0][]; // Data of those blocks, in file order; null reads as zeros
+
+    Growth(int committedSize) {
+      this.committedSize = committedSize;
+    }
+
+    // Blocks reserved with the allocator for this growth
+    int reserved() {
+      return blocks + INDIRECT_SLACK;
+    }
+  }
+
+  private final int blockSize;
+  private final long budgetBytes; // Buffered data that makes writers allocate, 0 disables delaying
+  private final Map<Integer, Growth> growths = new ConcurrentHashMap<>(); // By inode number
+  private final AtomicLong bufferedBytes = new AtomicLong();
+  private final AtomicLong allocations = new AtomicLong(); // Growths turned into blocks
+
+  public DelayedAllocation(int blockSize, long budgetBytes) {
+    if (budgetBytes < 0) {
+      throw new IllegalArgumentException("Delayed allocation budget cannot be negative.");
+    }
+    this.blockSize = blockSize;
+    this.budgetBytes = budgetBytes;
+  }
+
+  public boolean isEnabled() {
+    return budgetBytes > 0;
+  }
+
+  public long getBudgetBytes() {
+    return budgetBytes;
+  }
+
+  Growth get(Inode inode) {
+    return growths.get(inode.getNumber());
+  }
+
+  Growth start(Inode inode) {
+    Growth growth = new Growth(inode.getSize());
+    growths.put(inode.getNumber(), growth);
+    return growth;
+  }
+
+  // Forgets the growth once its blocks are allocated or the file no longer needs them. The caller
+  // gives the reservation back.
+  void remove(Inode inode, boolean allocated) {
+    Growth growth = growths.remove(inode.getNumber());
+    if (growth != null) {
+      resize(growth, 0);
+      if (allocated) {
+        allocations.incrementAndGet();
+      }
+    }
+  }
+
+  // Sets the number of delayed blocks, dropping the pages of blocks cut off
+  void resize(Growth growth, int blocks) {
+    long freed = 0;
+    for (int i = blocks; i < Math.min(growth.blocks, growth.pages.length); i++) {
+      if (growth.pages[i] != null) {
+        freed += blockSize;
+      }
+    }
+    if (blocks < growth.pages.length) {
+      growth.pages = Arrays.copyOf(growth.pages, blocks);
+    }
+    growth.blocks = blocks;
+    bufferedBytes.addAndGet(-freed);
+  }
+
+  // Copies length bytes from src into delayed block index (counted from the first unallocated block)
+  void write(Growth growth, int index, int offset, ByteBuffer src, int length) {
+    if (index >= growth.pages.length) {
+      growth.pages = Arrays.copyOf(growth.pages, Math.min(growth.blocks, Math.max(index + 1, 2 * growth.pages.length)));
+    }
+    if (growth.pages[index] == null) {
+      growth.pages[index] = new byte[blockSize];
+      bufferedBytes.addAndGet(blockSize);
+    }
+    src.get(growth.pages[index], offset, length);
+  }
+
+  void read(Growth growth, int index, int offset, ByteBuffer dst, int length) {
+    byte[] page = index < growth.pages.length ? growth.pages[index] : null;
+    if (page == null) {
+      for (int i = 0; i < length; i++) {
+        dst.put((byte) 0);
+      }
+    } else {
+      dst.put(page, offset, length);
+    }
+  }
+
+  // Zeroes a delayed block from offset on, so a file cut back and grown again reads zeros there
+  void zero(Growth growth, int index, int offset) {
+    if (index < growth.pages.length && growth.pages[index] != null) {
+      Arrays.fill(growth.pages[index], offset, blockSize, (byte) 0);
+    }
+  }
+
+  // The buffered data of a delayed block, or null if it is all zeros
+  byte[] page(Growth growth, int index) {
+    return index < growth.pages.length ? growth.pages[index] : null;
+  }
+
+  public boolean isOverBudget() {
+    return bufferedBytes.get() > budgetBytes;
+  }
+
+  boolean isEmpty() {
+    return growths.isEmpty();
+  }
+
+  // Files with delayed growth, by inode number
+  List<Integer> inodeNumbers() {
+    return new ArrayList<>(growths.keySet());
+  }
+
+  public int countFiles() {
+    return growths.size();
+  }
+
+  public long getBufferedBytes() {
+    return bufferedBytes.get();
+  }
+
+  public long getAllocations() {
+    return allocations.get();
+  }
+}
@@ -0,0 +1,297 @@
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// Maps normalized absolute directory paths ("/", "/a/b") to directories, remembering misses too,
+// so resolving a path already seen is one hash lookup instead of a walk from the root. The cache
+// is bounded and split into segments by hash, each an LRU map behind its own lock.
+//
+// Creating a directory only drops the negative entry for its own path: the new directory is empty,
+// so misses cached for paths below it are still misses. Deleting one drops every entry at or below
+// its path. A walk that raced with such a change could otherwise cache what it saw before the
+// change, so each change bumps a generation number and a walk only stores its result if the
+// generation did not move.
+//
+// Keys are folded lexically, which is only right while every component a ".." undoes exists.
+// Components of the current directory do; a ".." undoing a component named in the path itself
+// ("missing/../x") is resolved by walking the path step by step instead, without the cache.
+//
+// Lookups parse the path into a key buffer owned by the calling thread, and keys compare by their
+// characters, so a hit allocates nothing; only a miss copies the key to store it.
+public class DentryCache {
+  public static final int DEFAULT_CAPACITY = 4096;
+  private static final int SEGMENTS = 16;
+  private static final Object MISSING = new Object(); // Cached negative entry
+
+  private final Segment[] segments = new Segment[SEGMENTS];
+  private final AtomicInteger generation = new AtomicInteger();
+  private final LongAdder hits = new LongAdder();
+  private final LongAdder misses = new LongAdder();
+  private final ThreadLocal<PathKey> probes = ThreadLocal.withInitial(PathKey::new); // Reused lookup keys
+
+  public DentryCache(int capacity) {
+    for (int i = 0; i < SEGMENTS; i++) {
+      segments[i] = new Segment(Math.max(1, capacity / SEGMENTS));
+    }
+  }
+
+  // Resolves a path relative to cwd, or to root if it starts with '/'. Returns null if a
+  // component does not exist. ".." above the root stays at the root.
+  public Directory resolve(String path, Directory root, Directory cwd) {
+    PathKey key = probes.get();
+    if (!key.parse(path, cwd)) {
+      misses.increment();
+      return walk(path, root, cwd);
+    }
+    Segment segment = segmentFor(key);
+    int seen = generation.get();
+    Object cached;
+    synchronized (segment) {
+      cached = segment.get(key);
+    }
+    if (cached == MISSING) {
+      hits.increment();
+      return null;
+    }
+    if (cached != null && !((Directory) cached).isRemoved()) {
+      hits.increment();
+      return (Directory) cached;
+    }
+    misses.increment();
+    Directory found = walk(key, root);
+    synchronized (segment) {
+      if (generation.get() == seen) {
+        segment.put(key.copy(), found == null ? MISSING : found);
+      }
+    }
+    return found;
+  }
+
+  // Drops the negative entry for the path, if any. Called after a directory was created there.
+  public void created(String path) {
+    PathKey key = probes.get();
+    key.parse(path, null);
+    Segment segment = segmentFor(key);
+    generation.incrementAndGet();
+    synchronized (segment) {
+      segment.remove(key);
+    }
+  }
+
+  // Drops the entries for the path and everything below it. Called after the directory at that
+  // path was deleted, and the entry point for anything else that changes a whole subtree.
+  public void invalidate(String path) {
+    generation.incrementAndGet();
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        Iterator<PathKey> keys = segment.keySet().iterator();
+        while (keys.hasNext()) {
+          if (keys.next().isAtOrBelow(path)) {
+            keys.remove();
+          }
+        }
+      }
+    }
+  }
+
+  public void clear() {
+    generation.incrementAndGet();
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        segment.clear();
+      }
+    }
+  }
+
+  public long getHits() {
+    return hits.sum();
+  }
+
+  public long getMisses() {
+    return misses.sum();
+  }
+
+  public int size() {
+    int size = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        size += segment.size();
+      }
+    }
+    return size;
+  }
+
+  // Follows a normalized absolute path down from the root
+  private static Directory walk(PathKey key, Directory root) {
+    Directory current = root;
+    int start = 1;
+    while (start < key.length && current != null) {
+      int end = start;
+      while (end < key.length && key.chars[end] != '/') {
+        end++;
+      }
+      current = current.getSubDirectories().get(new String(key.chars, start, end - start));
+      start = end + 1;
+    }
+    return current;
+  }
+
+  // Follows the path one component at a time, ".." going to the parent, as the walk before the
+  // cache did
+  private static Directory walk(String path, Directory root, Directory cwd) {
+    Directory current = path.startsWith("/") ? root : cwd;
+    for (String part : path.split("/")) {
+      if (part.isEmpty() || part.equals(".")) {
+        continue;
+      }
+      if (part.equals("..")) {
+        current = current == root ? root : current.getParentDirectory();
+      } else {
+        current = current.getSubDirectories().get(part);
+        if (current == null) {
+          return null;
+        }
+      }
+    }
+    return current;
+  }
+
+  private Segment segmentFor(PathKey key) {
+    int hash = key.hash;
+    return segments[(hash ^ (hash >>> 16)) & (SEGMENTS - 1)];
+  }
+
+  // A normalized absolute path ("/", "/a/b"): the path with empty, "." and ".." components folded
+  // away. Hashes like the equivalent String. A thread's lookup key is parsed into again for every
+  // lookup; stored keys are copies that are never changed.
+  static final class PathKey {
+    private char[] chars = new char[64];
+    private int length;
+    private int hash;
+
+    // Makes this the normalized form of path, taken relative to cwd unless it starts with '/'.
+    // ".." above the root stays at the root. Returns false if a ".." undid a component named in
+    // path, whose existence the key no longer shows.
+    boolean parse(String path, Directory cwd) {
+      length = 0;
+      boolean absolute = path.startsWith("/");
+      if (!absolute && cwd.getPath().length() > 1) {
+        append(cwd.getPath(), 0, cwd.getPath().length());
+      }
+      int known = length; // Components up to here are the current directory's
+      boolean folded = false;
+      int pathLength = path.length();
+      int start = 0;
+      while (start <= pathLength) {
+        int end = path.indexOf('/', start);
+        if (end < 0) {
+          end = pathLength;
+        }
+        int segmentLength = end - start;
+        if (segmentLength == 2 && path.charAt(start) == '.' && path.charAt(start + 1) == '.') {
+          folded |= length > known;
+          length = Math.max(0, lastSlash()); // Up one level, or stay at the root
+          known = Math.min(known, length);
+        } else if (segmentLength > 0 && !(segmentLength == 1 && path.charAt(start) == '.')) {
+          append("/", 0, 1);
+          append(path, start, end);
+        }
+        start = end + 1;
+      }
+      if (length == 0) {
+        append("/", 0, 1);
+      }
+      int h = 0;
+      for (int i = 0; i < length; i++) {
+        h = 31 * h + chars[i];
+      }
+      hash = h;
+      return !folded;
+    }
+
+    private int lastSlash() {
+      for (int i = length - 1; i >= 0; i--) {
+        if (chars[i] == '/') {
+          return i;
+        }
+      }
+      return -1;
+    }
+
+    private void append(String source, int from, int to) {
+      if (length + to - from > chars.length) {
+        chars = Arrays.copyOf(chars, Math.max(2 * chars.length, length + to - from));
+      }
+      source.getChars(from, to, chars, length);
+      length += to - from;
+    }
+
+    PathKey copy() {
+      PathKey copy = new PathKey();
+      copy.chars = Arrays.copyOf(chars, length);
+      copy.length = length;
+      copy.hash = hash;
+      return copy;
+    }
+
+    // True if this is path itself or a path below it
+    boolean isAtOrBelow(String path) {
+      int pathLength = path.length();
+      if (length < pathLength || length > pathLength && chars[pathLength] != '/') {
+        return false;
+      }
+      for (int i = 0; i < pathLength; i++) {
+        if (chars[i] != path.charAt(i)) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof PathKey)) {
+        return false;
+      }
+      PathKey key = (PathKey) other;
+      if (key.length != length || key.hash != hash) {
+        return false;
+      }
+      for (int i = 0; i < length; i++) {
+        if (key.chars[i] != chars[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public String toString() {
+      return new String(chars, 0, length);
+    }
+  }
+
+  // One LRU part of the cache. Used only with the segment's monitor held.
+  private static final class Segment extends LinkedHashMap<PathKey, Object> {
+    private static final long serialVersionUID = 1L;
+    private final int capacity;
+
+    Segment(int capacity) {
+      super(16, 0.75f, true); // Access order, so the eldest entry is the least recently used
+      this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<PathKey, Object> eldest) {
+      return size() > capacity;
+    }
+  }
+}
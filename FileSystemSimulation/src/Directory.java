@@ -1,16 +1,64 @@
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+// A directory's read/write lock guards its list of files, its subdirectory map and the names in
+// both: listing takes the read lock, creating, deleting or moving a child takes the write lock.
+// Path walks read the subdirectory maps without locking and are cached by the SuperBlock's
+// DentryCache, which creating or deleting a directory updates. When an operation needs two directories
+// they are locked lowest id first; a subdirectory always has a higher id than its parent. Recursive
+// deletes (see TreeWalker) hold one directory's lock at a time.
 public class Directory {
+  private final int id; // Unique id, files record the id of the directory that holds them
   private String name;
   private SuperBlock superBlock; // Reference to the SuperBlock for inode management
   private Map<String, Directory> subDirectories;
+  private Set<Integer> fileInodes; // Inode numbers of the files in this directory, in creation order
   private Directory parentDirectory; // Parent directory reference
+  private final String path; // Absolute path, "/" for the root
+  private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+  private volatile boolean removed; // Set once the directory is deleted, under the write lock
 
   public Directory(String name, SuperBlock superBlock, Directory parent) {
+    this(name, superBlock, parent, -1);
+  }
+
+  // Recreates a directory under the id it had before the disk was closed, or takes a new id if -1
+  public Directory(String name, SuperBlock superBlock, Directory parent, int id) {
     this.name = name;
     this.superBlock = superBlock;
     this.parentDirectory = parent; // Set parent directory
-    this.subDirectories = new HashMap<>();
+    this.path = parent == null ? "/" : parent.childPath(name);
+    this.subDirectories = new ConcurrentHashMap<>();
+    this.fileInodes = new LinkedHashSet<>();
+    this.id = id < 0 ? superBlock.registerDirectory(this) : superBlock.registerDirectory(this, id);
+  }
+
+  public ReentrantReadWriteLock getLock() {
+    return lock;
+  }
+
+  // True once the directory has been deleted. A thread that found the directory by path before
+  // the delete sees this after taking the lock and must not add anything to it.
+  public boolean isRemoved() {
+    return removed;
+  }
+
+  // Write-locks two directories (or one, if they are the same) in id order
+  private static void lockBoth(Directory first, Directory second) {
+    Directory lower = first.id <= second.id ? first : second;
+    Directory higher = lower == first ? second : first;
+    lower.lock.writeLock().lock();
+    if (higher != lower) {
+      higher.lock.writeLock().lock();
+    }
+  }
+
+  private static void unlockBoth(Directory first, Directory second) {
+    if (first != second) {
+      second.lock.writeLock().unlock();
+    }
+    first.lock.writeLock().unlock();
   }
 
   public SuperBlock getSuperBlock() {
@@ -25,163 +73,205 @@ public class Directory {
     return name;
   }
 
-  public void createDirectory(String dirName) {
-    if (subDirectories.containsKey(dirName)) {
-      System.out.println("Error: Directory '" + dirName + "' already exists.");
-    } else {
-      subDirectories.put(dirName, new Directory(dirName, superBlock, this)); // Pass 'this' as the parent
-      System.out.println("Directory '" + dirName + "' created.");
-    }
+  public Directory getParentDirectory() {
+    return parentDirectory;
   }
 
-  public void deleteDirectory(String dirName) {
-    Directory dir = subDirectories.get(dirName);
-    if (dir == null) {
-      System.out.println("Error: Directory '" + dirName + "' does not exist.");
-    } else {
-      dir.deleteAllContents();
-      subDirectories.remove(dirName);
-      System.out.println("Directory '" + dirName + "' deleted.");
-    }
+  public int getId() {
+    return id;
   }
 
-  private void deleteAllContents() {
-    for (Directory subDir : subDirectories.values()) {
-      subDir.deleteAllContents();
-    }
-    subDirectories.clear();
-    deleteAllFiles();
+  public String getPath() {
+    return path;
   }
 
-  private void deleteAllFiles() {
-    for (Inode inode : superBlock.getInodes()) {
-      if (inode.isUsed() && inode.getDirectoryName().equals(this.name)) {
-        superBlock.releaseInode(inode.getName());
-      }
-    }
+  private String childPath(String childName) {
+    return parentDirectory == null ? "/" + childName : path + "/" + childName;
   }
 
-  public void moveFile(String sourcePath, String destPath, String newFileName, Directory rootDirectory,
-      Directory currentDirectory) {
-    String sourceDirName = sourcePath.substring(0, sourcePath.lastIndexOf('/'));
-    String sourceFileName = sourcePath.substring(sourcePath.lastIndexOf('/') + 1);
-    Directory sourceDir = findDirectory(sourceDirName, rootDirectory, currentDirectory);
-    Directory destDir = findDirectory(destPath, rootDirectory, currentDirectory);
+  // The caller holds at least the read lock while using the returned set
+  public Set<Integer> getFileInodes() {
+    return Collections.unmodifiableSet(fileInodes);
+  }
 
-    if (sourceDir == null || destDir == null) {
-      System.out.println("Source or destination directory does not exist.");
-      return;
-    }
+  // Kept in sync by the SuperBlock whenever a file is created, removed or moved
+  public void addFile(int inodeNumber) {
+    fileInodes.add(inodeNumber);
+  }
 
-    Inode sourceInode = sourceDir.getSuperBlock().findInode(sourceFileName);
-    if (sourceInode == null) {
-      System.out.println("Source file does not exist: " + sourceFileName);
-      return;
+  public void removeFile(int inodeNumber) {
+    fileInodes.remove(inodeNumber);
+  }
+
+  public FsResult<Directory> createDirectory(String dirName) {
+    Directory dir;
+    lock.writeLock().lock();
+    try {
+      if (removed) {
+        return FsResult.error(FsError.DIRECTORY_NOT_FOUND);
+      }
+      if (subDirectories.containsKey(dirName)) {
+        return FsResult.error(FsError.DIRECTORY_EXISTS);
+      }
+      dir = new Directory(dirName, superBlock, this); // Pass 'this' as the parent
+      subDirectories.put(dirName, dir);
+      superBlock.getDentryCache().created(dir.getPath()); // Drops a cached miss for the new path
+    } finally {
+      lock.writeLock().unlock();
     }
+    superBlock.commit();
+    return FsResult.ok(dir);
+  }
 
-    superBlock.moveInode(sourceInode, newFileName, destDir.getName());
-    System.out.println("File '" + sourceFileName + "' moved to '" + newFileName + "' in directory '" + destPath + "'.");
+  // Deletes the subdirectory and everything below it. It is detached first, so it cannot be reached
+  // by path while its subtree is deleted in parallel.
+  public FsResult<Void> deleteDirectory(String dirName) {
+    Directory dir;
+    lock.writeLock().lock();
+    try {
+      dir = subDirectories.remove(dirName);
+      if (dir == null) {
+        return FsResult.error(FsError.DIRECTORY_NOT_FOUND);
+      }
+      superBlock.getDentryCache().invalidate(dir.getPath());
+    } finally {
+      lock.writeLock().unlock();
+    }
+    TreeWalker.delete(dir);
+    superBlock.commit();
+    return FsResult.ok();
   }
 
-  public Directory findDirectory(String path, Directory rootDirectory, Directory currentDirectory) {
-    Directory current = path.startsWith("/") ? rootDirectory : currentDirectory;
-    String[] parts = path.split("/");
-    for (String part : parts) {
-      if (part.isEmpty() || part.equals("."))
-        continue;
-      if (part.equals("..")) {
-        if (current == rootDirectory) {
-          // Stay at root if already there and trying to go up
-          return rootDirectory;
-        } else {
-          // Move up to parent directory by finding this directory's parent
-          // We need a method to get parent, assuming we have 'parentDirectory' field in
-          // Directory
-          return current.parentDirectory;
-        }
-      } else {
-        current = current.getSubDirectories().get(part);
-        if (current == null) {
-          System.out.println("Directory not found: " + part);
-          return null;
+  // First step of deleting this directory during a recursive delete: marks it removed, so nothing
+  // can be created in or moved into it any more, deletes its files batchSize at a time and detaches
+  // its subdirectories, which are returned for the caller to delete.
+  List<Directory> deleteFiles(int batchSize) {
+    lock.writeLock().lock();
+    try {
+      removed = true;
+      List<Directory> children = new ArrayList<>(subDirectories.values());
+      subDirectories.clear();
+      Integer[] files = fileInodes.toArray(new Integer[0]); // Releasing an inode removes it from the set
+      List<Inode> batch = new ArrayList<>(Math.min(batchSize, files.length));
+      for (int inodeNumber : files) {
+        batch.add(superBlock.getInode(inodeNumber));
+        if (batch.size() == batchSize) {
+          superBlock.releaseInodes(batch);
+          batch.clear();
         }
       }
+      superBlock.releaseInodes(batch);
+      return children;
+    } finally {
+      lock.writeLock().unlock();
     }
-    return current;
   }
 
-  public void createFile(String fileName, int size) {
-    if (superBlock.findInode(fileName) != null) {
-      System.out.println("Error: File '" + fileName + "' already exists.");
-      return;
-    }
-    Inode inode = superBlock.allocateInode(fileName, size);
-    if (inode == null) {
-      System.out.println("Error: Could not create file '" + fileName + "'.");
-      return;
-    }
-    inode.setDirectoryName(this.name);
-    System.out.println("File '" + fileName + "' created with size " + size + "KB.");
+  // Last step, once the subdirectories are gone
+  void finishDelete() {
+    superBlock.unregisterDirectory(this);
   }
 
-  public void deleteFile(String fileName) {
-    boolean success = superBlock.releaseInode(fileName);
-    if (!success) {
-      System.out.println("Error: Could not delete file '" + fileName + "'. File may not exist.");
-      return;
+  // Moves a file of this directory into destDir under a new name; destDir may be this directory
+  public FsResult<Inode> moveFile(String sourceFileName, Directory destDir, String newFileName) {
+    FsResult<Inode> result;
+    lockBoth(this, destDir);
+    try {
+      Inode sourceInode = superBlock.findInode(id, sourceFileName);
+      if (sourceInode == null) {
+        return FsResult.error(FsError.FILE_NOT_FOUND);
+      }
+      if (destDir.removed) {
+        return FsResult.error(FsError.DIRECTORY_NOT_FOUND);
+      }
+      result = superBlock.moveInode(sourceInode, newFileName, destDir.getId());
+    } finally {
+      unlockBoth(this, destDir);
     }
-    System.out.println("File '" + fileName + "' deleted.");
+    superBlock.commit();
+    return result;
   }
 
-  public void listContents() {
-    System.out.println("Contents of directory '" + name + "':");
-    for (String dirName : subDirectories.keySet()) {
-      System.out.println("[Dir] " + dirName);
-    }
-    superBlock.listInodes(this.name);
+  // Resolves a path relative to currentDirectory, or to rootDirectory if it starts with '/'.
+  // Returns null if a component does not exist.
+  public Directory findDirectory(String path, Directory rootDirectory, Directory currentDirectory) {
+    FsMetrics metrics = superBlock.getMetrics();
+    long start = metrics.start(FsMetrics.Operation.PATH_RESOLVE);
+    Directory found = superBlock.getDentryCache().resolve(path, rootDirectory, currentDirectory);
+    metrics.record(FsMetrics.Operation.PATH_RESOLVE, start, found != null);
+    return found;
   }
 
-  public void copyFile(String sourceFileName, String destPath, Disk disk) {
-    Directory rootDirectory = disk.getRootDirectory(); // Access root directory
-    Directory destDir = findDirectory(destPath, rootDirectory, this);
-    if (destDir == null) {
-      System.out.println("Destination directory does not exist.");
-      return;
+  public FsResult<Inode> createFile(String fileName, int size) {
+    FsResult<Inode> result;
+    lock.writeLock().lock();
+    try {
+      if (removed) {
+        return FsResult.error(FsError.DIRECTORY_NOT_FOUND);
+      }
+      if (superBlock.findInode(id, fileName) != null) {
+        return FsResult.error(FsError.FILE_EXISTS);
+      }
+      result = superBlock.allocateInode(id, fileName, size);
+    } finally {
+      lock.writeLock().unlock();
     }
+    superBlock.commit();
+    return result;
+  }
 
-    Inode sourceInode = superBlock.findInode(sourceFileName);
-    if (sourceInode == null) {
-      System.out.println("Source file '" + sourceFileName + "' does not exist.");
-      return;
+  public FsResult<Void> deleteFile(String fileName) {
+    boolean success;
+    lock.writeLock().lock();
+    try {
+      success = superBlock.releaseInode(id, fileName);
+    } finally {
+      lock.writeLock().unlock();
     }
+    superBlock.commit();
+    return success ? FsResult.ok() : FsResult.<Void>error(FsError.FILE_NOT_FOUND);
+  }
 
-    // Adjusted to handle file naming by appending numbers to manage copies without
-    // spaces
-    String baseName = sourceFileName.replaceAll("\\(\\d+\\)$", "");
-    int i = 1;
-    String newFileName = baseName + "(" + i + ")";
-    while (superBlock.findInode(newFileName) != null) {
-      i++;
-      newFileName = baseName + "(" + i + ")";
+  public DirectoryListing list() {
+    lock.readLock().lock();
+    try {
+      return new DirectoryListing(name, new ArrayList<>(subDirectories.keySet()), superBlock.listFiles(this));
+    } finally {
+      lock.readLock().unlock();
     }
+  }
 
-    // Check if enough blocks are available before attempting to allocate
-    int requiredBlocks = (int) Math.ceil(sourceInode.getSize() / (double) Block.BLOCK_SIZE);
-    if (requiredBlocks > disk.getSuperBlock().countFreeBlocks()) {
-      System.out.println("Error: Not enough disk space to copy the file.");
-      return;
-    }
+  // Copies a file of this directory into destDir as "name(n)", with the first n that is free there.
+  // The copy is copy-on-write: it costs an inode whatever the size of the file.
+  public FsResult<Inode> copyFile(String sourceFileName, Directory destDir) {
+    FsResult<Inode> result;
+    lockBoth(this, destDir);
+    try {
+      Inode sourceInode = superBlock.findInode(id, sourceFileName);
+      if (sourceInode == null) {
+        return FsResult.error(FsError.FILE_NOT_FOUND);
+      }
+      if (destDir.removed) {
+        return FsResult.error(FsError.DIRECTORY_NOT_FOUND);
+      }
 
-    // Create the inode for the new file
-    Inode newInode = superBlock.allocateInode(newFileName, sourceInode.getSize() / 1024); // Size needs to be in KB
-    if (newInode == null) {
-      System.out.println("Error: Could not create a copy of the file.");
-      return;
-    }
-    newInode.setDirectoryName(destDir.getName());
+      // Adjusted to handle file naming by appending numbers to manage copies without
+      // spaces
+      String baseName = sourceFileName.replaceAll("\\(\\d+\\)$", "");
+      int i = 1;
+      String newFileName = baseName + "(" + i + ")";
+      while (superBlock.findInode(destDir.getId(), newFileName) != null) { // One hash lookup per probe
+        i++;
+        newFileName = baseName + "(" + i + ")";
+      }
 
-    System.out
-        .println("File '" + sourceFileName + "' copied to '" + newFileName + "' in directory '" + destPath + "'.");
+      // The copy shares the source's blocks until one of the two files writes them
+      result = superBlock.cloneInode(sourceInode, destDir.getId(), newFileName);
+    } finally {
+      unlockBoth(this, destDir);
+    }
+    superBlock.commit();
+    return result;
   }
 
 }
@@ -0,0 +1,27 @@
+import java.util.Collections;
+import java.util.List;
+
+// Contents of a directory as seen at one moment: its subdirectory names and its files in creation order
+public final class DirectoryListing {
+  private final String name;
+  private final List<String> subDirectories;
+  private final List<FileInfo> files;
+
+  public DirectoryListing(String name, List<String> subDirectories, List<FileInfo> files) {
+    this.name = name;
+    this.subDirectories = Collections.unmodifiableList(subDirectories);
+    this.files = Collections.unmodifiableList(files);
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public List<String> getSubDirectories() {
+    return subDirectories;
+  }
+
+  public List<FileInfo> getFiles() {
+    return files;
+  }
+}
@@ -1,227 +1,254 @@
-import java.util.Arrays;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
 
 public class Disk {
-  private static final int BLOCK_SIZE = 1024;
-  private static final int DISK_SIZE_BYTE = 128 * BLOCK_SIZE;
-  private static final int TOTAL_BLOCKS = (DISK_SIZE_BYTE / BLOCK_SIZE);
-  private Block[] blocks;
+  private DiskGeometry geometry;
+  private BlockStore blockStore; // Heap or memory-mapped storage for every block
+  private BufferCache cache; // Block cache all file data and metadata I/O goes through
   private SuperBlock superBlock;
   private Directory rootDirectory;
-  private boolean[] blocksUsed;
+  private Journal journal; // Metadata log, only for image-backed disks
+  private Defragmenter defragmenter; // Background compactor, idle until started
 
   public Disk() {
-    this.blocks = new Block[TOTAL_BLOCKS];
-    for (int i = 0; i < TOTAL_BLOCKS; i++) {
-      blocks[i] = new Block();
-    }
-    this.superBlock = new SuperBlock();
-    this.rootDirectory = new Directory("root", this.superBlock, null); // Pass null as the parent for root
-    this.blocksUsed = new boolean[TOTAL_BLOCKS];
-    Arrays.fill(this.blocksUsed, false);
+    this(DiskGeometry.DEFAULT);
   }
 
-  public int allocateBlocks(int size) {
-    for (int i = 0; i <= TOTAL_BLOCKS - size; i++) {
-      if (areBlocksFree(i, size)) {
-        markBlocksUsed(i, size, true);
-        return i;
-      }
-    }
-    return -1;
+  // In-memory disk with the given block size, block count and inode count
+  public Disk(DiskGeometry geometry) {
+    this(geometry, new DiskOptions());
   }
 
-  private void markBlocksUsed(int start, int size, boolean used) {
-    for (int i = start; i < start + size; i++) {
-      blocksUsed[i] = used;
-    }
+  public Disk(DiskGeometry geometry, DiskOptions options) {
+    this(new BlockStore(geometry), options);
   }
 
-  private boolean areBlocksFree(int start, int size) {
-    for (int i = start; i < start + size; i++) {
-      if (blocksUsed[i]) {
-        return false;
-      }
-    }
-    return true;
+  // Disk whose blocks live in a memory-mapped image file, so files survive restarts.
+  // An existing image keeps its own geometry, a missing one is formatted with the default geometry.
+  public Disk(String imagePath) throws IOException {
+    this(imagePath, new File(imagePath).exists());
   }
 
-  public void freeBlocks(int start, int size) {
-    markBlocksUsed(start, size, false);
+  private Disk(String imagePath, boolean exists) throws IOException {
+    this(exists ? BlockStore.open(imagePath) : BlockStore.format(imagePath, DiskGeometry.DEFAULT),
+        new DiskOptions(), !exists);
   }
 
-  public SuperBlock getSuperBlock() {
-    return this.superBlock;
+  private Disk(BlockStore blockStore, DiskOptions options) {
+    this.geometry = blockStore.getGeometry();
+    this.blockStore = blockStore;
+    this.cache = new BufferCache(blockStore, options.getCacheBytes(), options.getCachePolicy());
+    this.superBlock = new SuperBlock(geometry, options.getAllocationPolicy(), cache,
+        options.getDelayedAllocationBytes());
+    this.rootDirectory = new Directory("root", this.superBlock, null); // Pass null as the parent for root
+    this.defragmenter = new Defragmenter(superBlock, options.getDefragBudgetKB());
   }
 
-  public boolean writeFile(String command) {
-    String[] parts = command.split(" ");
-    if (parts.length != 4) {
-      System.out.println("Error: Invalid command format.");
-      return false;
-    }
-
-    String option = parts[1]; // "-a" (append) or "-r" (reduce)
-    String filename = parts[2];
-    int sizeChangeKB = Integer.parseInt(parts[3]); // Size to change in KB
+  // Image-backed disk. The metadata is read back from the image's checkpoint and journal files,
+  // or starts out empty for a freshly formatted image.
+  private Disk(BlockStore blockStore, DiskOptions options, boolean formatted) throws IOException {
+    this(blockStore, options);
+    try {
+      String imagePath = blockStore.getImagePath();
+      this.journal = formatted ? Journal.create(imagePath, superBlock, options.getJournalLimit())
+          : Journal.recover(imagePath, superBlock, options.getJournalLimit());
+    } catch (IOException e) {
+      blockStore.close();
+      throw e;
+    }
+    superBlock.attachJournal(journal);
+  }
 
-    Inode inode = superBlock.findInode(filename); // Assuming superBlock is accessible here
+  // Creates (or overwrites) an image file with the given geometry
+  public static Disk format(String imagePath, DiskGeometry geometry, DiskOptions options) throws IOException {
+    return new Disk(BlockStore.format(imagePath, geometry), options, true);
+  }
 
-    if (inode == null) {
-      System.out.println("Error: File not found.");
-      return false;
-    }
+  // Opens an existing image file using the geometry recorded in its header
+  public static Disk open(String imagePath, DiskOptions options) throws IOException {
+    return new Disk(BlockStore.open(imagePath), options, false);
+  }
 
-    int currentSizeKB = inode.getSize() / 1024;
-    int newSizeKB;
+  public DiskGeometry getGeometry() {
+    return geometry;
+  }
 
-    if (option.equals("-a")) {
-      newSizeKB = currentSizeKB + sizeChangeKB;
-      if (newSizeKB > 8) { // Max total size check (8 KB)
-        System.out.println("Error: File size cannot exceed 8 KB.");
-        return false;
-      }
-    } else if (option.equals("-r")) {
-      newSizeKB = currentSizeKB - sizeChangeKB;
-      if (newSizeKB < 0) { // Min size check
-        System.out.println("Error: File size cannot be negative.");
-        return false;
-      }
-    } else {
-      System.out.println("Error: Invalid option. Use '-a' to append or '-r' to reduce.");
-      return false;
-    }
+  public SuperBlock getSuperBlock() {
+    return this.superBlock;
+  }
 
-    // Calculate the new number of blocks needed
-    int newBlocksNeeded = (int) Math.ceil(newSizeKB / (1024.0 / Block.BLOCK_SIZE));
-    int currentBlocksAllocated = inode.getBlocksAllocated();
+  // Returns a view of the block, reads and writes go straight to the backing store.
+  // Any cached copy is written back and dropped first so the view sees the latest data.
+  public Block getBlock(int blockNumber) {
+    cache.evict(blockNumber);
+    return blockStore.getBlock(blockNumber);
+  }
 
-    if (newBlocksNeeded == currentBlocksAllocated) {
-      inode.setSize(newSizeKB * 1024); // Update size without changing blocks
-      System.out.println("File size updated without reallocating blocks.");
-      return true;
-    }
+  public BufferCache getCache() {
+    return cache;
+  }
 
-    // Free current blocks
-    superBlock.freeBlocks(inode.getStartingBlock(), inode.getBlocksAllocated());
+  // Allocates delayed growth, writes dirty cached blocks back and forces the image and metadata log
+  // (if any) to stable storage
+  public void flush() {
+    superBlock.allocateDelayed();
+    cache.flush();
+    blockStore.flush();
+    superBlock.commit();
+  }
 
-    // Allocate new blocks
-    int newStartingBlock = superBlock.allocateBlocks(newBlocksNeeded);
-    if (newStartingBlock == -1) {
-      System.out.println("Error: Insufficient free blocks.");
-      inode.allocateBlocks(inode.getStartingBlock(), inode.getBlocksAllocated()); // Reallocate old blocks to roll back
-      return false;
+  // Opens a file for positional reads and writes, returns null if it does not exist
+  public FileHandle open(Directory directory, String fileName) {
+    Inode inode = superBlock.findInode(directory.getId(), fileName);
+    if (inode == null) {
+      return null;
     }
-
-    // Update inode information
-    inode.allocateBlocks(newStartingBlock, newBlocksNeeded);
-    inode.setSize(newSizeKB * 1024); // Update the size in bytes
-
-    // Output the correct amount of KB allocated or deallocated
-    if (option.equals("-a")) {
-      System.out.println("File '" + filename + "' updated: " + sizeChangeKB + " KB allocated.");
-    } else {
-      System.out.println("File '" + filename + "' updated: " + sizeChangeKB + " KB deallocated.");
+    Lock lock = superBlock.inodeLock(inode).readLock();
+    lock.lock();
+    try {
+      return isFile(inode, directory, fileName) ? new FileHandle(superBlock, cache, inode) : null;
+    } finally {
+      lock.unlock();
     }
+  }
 
-    return true;
+  public boolean isPersistent() {
+    return blockStore.isPersistent();
   }
 
-  public void deleteFile(String fileName) {
-    Inode inode = superBlock.findInode(fileName);
-    if (inode != null && inode.isUsed()) {
-      freeBlocks(inode.getStartingBlock(), inode.getBlocksAllocated());
-      superBlock.releaseInode(fileName);
-      System.out.println("File \"" + fileName + "\" has been successfully deleted.");
-    } else {
-      System.out.println("Error: File not found or already deleted.");
-    }
+  // Flushes the image (if any) and releases the backing files. The metadata is checkpointed so the
+  // next open does not have to replay the journal. Snapshots are not kept. Delayed growth is
+  // allocated first; growth that finds no room for its extent pointers is lost, as in a crash.
+  public void close() throws IOException {
+    defragmenter.stop();
+    superBlock.getSnapshots().close();
+    superBlock.getMetrics().unregister();
+    superBlock.allocateDelayed();
+    cache.flush();
+    if (journal != null) {
+      journal.checkpoint();
+      journal.close();
+    }
+    blockStore.close();
   }
 
-  public void readFile(String fileName) {
-    Inode inode = superBlock.findInode(fileName);
-    if (inode == null || !inode.isUsed()) {
-      System.out.println("Error: File not found.");
-      return;
+  // Grows (positive delta) or shrinks (negative delta) a file by whole kilobytes. Only the
+  // difference is allocated or freed, the blocks the file already has stay where they are.
+  // Returns the change in the file's blocks, counting those of delayed growth.
+  public FsResult<Integer> resizeFile(Directory directory, String fileName, int deltaKB) {
+    Inode inode = superBlock.findInode(directory.getId(), fileName);
+    if (inode == null) {
+      return FsResult.error(FsError.FILE_NOT_FOUND);
     }
 
-    System.out.println("Reading file: " + fileName);
-    System.out.println("File size: " + inode.getSize() + " bytes");
-
-    // Since we're now using a starting block and blocks allocated approach,
-    // construct the array of blocks used dynamically based on these values
-    StringBuilder blocksUsedStr = new StringBuilder("[");
-    for (int i = 0; i < inode.getBlocksAllocated(); i++) {
-      if (i > 0)
-        blocksUsedStr.append(", ");
-      blocksUsedStr.append(inode.getStartingBlock() + i);
+    int blockDelta;
+    Lock lock = superBlock.inodeLock(inode).writeLock();
+    lock.lock();
+    try {
+      if (!isFile(inode, directory, fileName)) { // Deleted or moved before the lock was taken
+        return FsResult.error(FsError.FILE_NOT_FOUND);
+      }
+      long newSize = inode.getSize() + deltaKB * 1024L; // Sizes written through handles need not be whole KB
+      if (newSize < 0) {
+        return FsResult.error(FsError.NEGATIVE_SIZE);
+      }
+      if (newSize > geometry.getMaxFileBytes()) {
+        return FsResult.error(FsError.FILE_TOO_LARGE);
+      }
+      int blocksBefore = countBlocks(inode);
+      if (!superBlock.resizeInode(inode, newSize)) {
+        return FsResult.error(FsError.NO_SPACE);
+      }
+      blockDelta = countBlocks(inode) - blocksBefore;
+    } finally {
+      lock.unlock();
     }
-    blocksUsedStr.append("]");
+    superBlock.commit();
+    return FsResult.ok(blockDelta);
+  }
+
+  // Data blocks the file has or has reserved; none if its data is inline
+  private int countBlocks(Inode inode) {
+    return inode.isInline() ? 0 : geometry.blocksForBytes(inode.getSize());
+  }
 
-    System.out.println("Blocks used: " + blocksUsedStr.toString());
+  // True when the inode still holds the named file, checked again once the inode's lock is held
+  private static boolean isFile(Inode inode, Directory directory, String fileName) {
+    return inode.isUsed() && inode.getDirectoryId() == directory.getId() && inode.getName().equals(fileName);
   }
 
-  public void listFiles() {
-    System.out.println("Listing files:");
-    boolean found = false;
-    for (Inode inode : superBlock.getInodes()) {
-      if (inode.isUsed()) {
-        System.out.println(inode.getName() + " - Size: " + inode.getSize() + " bytes");
-        found = true;
+  public FsResult<Void> deleteFile(Directory directory, String fileName) {
+    boolean deleted = false;
+    directory.getLock().writeLock().lock();
+    try {
+      Inode inode = superBlock.findInode(directory.getId(), fileName);
+      if (inode != null && inode.isUsed()) {
+        superBlock.releaseInode(inode); // Releasing the inode also frees its blocks
+        deleted = true;
       }
+    } finally {
+      directory.getLock().writeLock().unlock();
     }
-    if (!found) {
-      System.out.println("No files found.");
-    }
+    superBlock.commit();
+    return deleted ? FsResult.ok() : FsResult.<Void>error(FsError.FILE_NOT_FOUND);
   }
 
-  public void printFileInfo(String fileName) {
-    Inode inode = superBlock.findInode(fileName);
-    if (inode == null || !inode.isUsed()) {
-      System.out.println("File information not found for: " + fileName);
-      return;
+  // Snapshot of a file's metadata
+  public FsResult<FileInfo> stat(Directory directory, String fileName) {
+    Inode inode = superBlock.findInode(directory.getId(), fileName);
+    if (inode == null) {
+      return FsResult.error(FsError.FILE_NOT_FOUND);
     }
 
-    System.out.println("File Information for '" + fileName + "':");
-    System.out.println("File size: " + inode.getSize() + " bytes");
-
-    StringBuilder blocksUsedStr = new StringBuilder("[");
-    for (int i = 0; i < inode.getBlocksAllocated(); i++) {
-      if (i > 0)
-        blocksUsedStr.append(", ");
-      blocksUsedStr.append(inode.getStartingBlock() + i);
+    Lock lock = superBlock.inodeLock(inode).readLock();
+    lock.lock();
+    try {
+      if (!isFile(inode, directory, fileName)) {
+        return FsResult.error(FsError.FILE_NOT_FOUND);
+      }
+      return FsResult.ok(FileInfo.of(superBlock, inode));
+    } finally {
+      lock.unlock();
     }
-    blocksUsedStr.append("]");
-
-    System.out.println("Blocks used: " + blocksUsedStr);
-    System.out.println("Last Modified Time: " + inode.getLastModifiedTime());
-    System.out.println("Used: " + (inode.isUsed() ? "Yes" : "No"));
   }
 
-  public void displayDiskInfo() {
-    // Accesses SuperBlock methods to count free and used blocks.
-    int freeBlocks = superBlock.countFreeBlocks();
-    int usedBlocks = TOTAL_BLOCKS - freeBlocks; // Assumes TOTAL_BLOCKS is accurate for the disk.
+  // Snapshots of every file on the disk, in inode order
+  public List<FileInfo> listFiles() {
+    List<FileInfo> files = new ArrayList<>();
+    for (int number = 0; number < superBlock.getMaxFiles(); number++) {
+      Inode inode = superBlock.getInode(number);
+      Lock lock = superBlock.inodeLock(inode).readLock();
+      lock.lock();
+      try {
+        if (inode.isUsed()) {
+          files.add(FileInfo.of(superBlock, inode));
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+    return files;
+  }
 
-    System.out.println("Disk Information:");
-    System.out.println("Total Disk Space: " + DISK_SIZE_BYTE + " Bytes");
-    System.out.println("Used Disk Space: " + usedBlocks * BLOCK_SIZE + " Bytes");
-    System.out.println("Remaining Disk Space: " + (DISK_SIZE_BYTE - (usedBlocks * BLOCK_SIZE)) + " Bytes");
-    System.out.println("Total Blocks: " + TOTAL_BLOCKS);
-    System.out.println("Free Blocks: " + freeBlocks);
-    System.out.println("Used Blocks: " + usedBlocks);
+  public Defragmenter getDefragmenter() {
+    return defragmenter;
+  }
 
-    int usedInodes = superBlock.countUsedInodes();
-    System.out.println("Total Inodes: " + SuperBlock.MAX_FILES);
-    System.out.println("Used Inodes: " + usedInodes);
-    System.out.println("Free Inodes: " + (SuperBlock.MAX_FILES - usedInodes));
+  // Null for in-memory disks, which keep no metadata log
+  public Journal getJournal() {
+    return journal;
   }
 
   public Directory getRootDirectory() {
     return this.rootDirectory;
   }
 
-  public void listFileSystem() {
-    System.out.println(superBlock.listFileSystem());
+  // Block usage as a grid of 1s and 0s, 16 blocks per row
+  public String listFileSystem() {
+    return superBlock.listFileSystem();
   }
 
 }
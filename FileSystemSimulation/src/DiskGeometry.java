@@ -0,0 +1,79 @@
+public class DiskGeometry {
+  public static final int DEFAULT_BLOCK_SIZE = 1024; // Block size in bytes
+  public static final int DEFAULT_TOTAL_BLOCKS = 128;
+  public static final int DEFAULT_MAX_FILES = 16;
+  public static final int DEFAULT_MAX_FILE_BLOCKS = 8; // Maximum number of blocks a single file can occupy
+  public static final int DEFAULT_INLINE_DATA_BYTES = 64; // Files up to this size keep their data in the inode
+
+  public static final DiskGeometry DEFAULT = new DiskGeometry(DEFAULT_BLOCK_SIZE, DEFAULT_TOTAL_BLOCKS,
+      DEFAULT_MAX_FILES, DEFAULT_MAX_FILE_BLOCKS, DEFAULT_INLINE_DATA_BYTES);
+
+  private final int blockSize;
+  private final int totalBlocks;
+  private final int maxFiles;
+  private final int maxFileBlocks;
+  private final int inlineDataBytes; // 0 keeps every file's data in blocks
+
+  public DiskGeometry(int blockSize, int totalBlocks, int maxFiles, int maxFileBlocks) {
+    this(blockSize, totalBlocks, maxFiles, maxFileBlocks, DEFAULT_INLINE_DATA_BYTES);
+  }
+
+  public DiskGeometry(int blockSize, int totalBlocks, int maxFiles, int maxFileBlocks, int inlineDataBytes) {
+    if (blockSize < 64 || Integer.bitCount(blockSize) != 1) {
+      throw new IllegalArgumentException("Block size must be a power of two of at least 64 bytes.");
+    }
+    if (totalBlocks <= 0 || maxFiles <= 0 || maxFileBlocks <= 0) {
+      throw new IllegalArgumentException("Block count, inode count and file size must be positive.");
+    }
+    if ((long) maxFileBlocks * blockSize > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("Maximum file size must fit in 2GB.");
+    }
+    if (inlineDataBytes < 0 || inlineDataBytes > blockSize) {
+      throw new IllegalArgumentException("Inline data size must be between 0 and the block size.");
+    }
+    this.blockSize = blockSize;
+    this.totalBlocks = totalBlocks;
+    this.maxFiles = maxFiles;
+    this.maxFileBlocks = Math.min(maxFileBlocks, totalBlocks);
+    this.inlineDataBytes = inlineDataBytes;
+  }
+
+  public int getBlockSize() {
+    return blockSize;
+  }
+
+  public int getTotalBlocks() {
+    return totalBlocks;
+  }
+
+  public int getMaxFiles() {
+    return maxFiles;
+  }
+
+  public int getMaxFileBlocks() {
+    return maxFileBlocks;
+  }
+
+  public int getInlineDataBytes() {
+    return inlineDataBytes;
+  }
+
+  public long getDiskSizeBytes() {
+    return (long) totalBlocks * blockSize;
+  }
+
+  public int getMaxFileBytes() {
+    return maxFileBlocks * blockSize;
+  }
+
+  // Number of blocks needed to hold the given number of bytes
+  public int blocksForBytes(long bytes) {
+    return (int) ((bytes + blockSize - 1) / blockSize);
+  }
+
+  @Override
+  public String toString() {
+    return totalBlocks + " blocks of " + blockSize + " bytes, " + maxFiles + " inodes, max file "
+        + maxFileBlocks + " blocks, inline data up to " + inlineDataBytes + " bytes";
+  }
+}
@@ -0,0 +1,80 @@
+// Runtime settings for a Disk that are not part of its on-disk geometry
+public class DiskOptions {
+  public static final long DEFAULT_CACHE_BYTES = 1024 * 1024;
+  public static final long DEFAULT_JOURNAL_LIMIT = 1024 * 1024;
+
+  private AllocationPolicy allocationPolicy = AllocationPolicy.BEST_FIT;
+  private long cacheBytes = DEFAULT_CACHE_BYTES; // Memory budget of the buffer cache, 0 disables it
+  private CachePolicy cachePolicy = CachePolicy.LRU;
+  private long journalLimit = DEFAULT_JOURNAL_LIMIT; // Journal size in bytes that triggers a checkpoint
+  private long defragBudgetKB = Defragmenter.DEFAULT_BUDGET_KB; // Data the defragmenter may move per second, 0 is unlimited
+  private long delayedAllocationBytes = DelayedAllocation.DEFAULT_BUDGET_BYTES; // Buffered growth, 0 allocates at once
+
+  public AllocationPolicy getAllocationPolicy() {
+    return allocationPolicy;
+  }
+
+  public DiskOptions setAllocationPolicy(AllocationPolicy allocationPolicy) {
+    this.allocationPolicy = allocationPolicy;
+    return this;
+  }
+
+  public long getCacheBytes() {
+    return cacheBytes;
+  }
+
+  public DiskOptions setCacheBytes(long cacheBytes) {
+    if (cacheBytes < 0) {
+      throw new IllegalArgumentException("Cache size cannot be negative.");
+    }
+    this.cacheBytes = cacheBytes;
+    return this;
+  }
+
+  public CachePolicy getCachePolicy() {
+    return cachePolicy;
+  }
+
+  public DiskOptions setCachePolicy(CachePolicy cachePolicy) {
+    this.cachePolicy = cachePolicy;
+    return this;
+  }
+
+  public long getJournalLimit() {
+    return journalLimit;
+  }
+
+  public DiskOptions setJournalLimit(long journalLimit) {
+    if (journalLimit <= 0) {
+      throw new IllegalArgumentException("Journal limit must be positive.");
+    }
+    this.journalLimit = journalLimit;
+    return this;
+  }
+
+  public long getDefragBudgetKB() {
+    return defragBudgetKB;
+  }
+
+  public DiskOptions setDefragBudgetKB(long defragBudgetKB) {
+    if (defragBudgetKB < 0) {
+      throw new IllegalArgumentException("Defragmenter budget cannot be negative.");
+    }
+    this.defragBudgetKB = defragBudgetKB;
+    return this;
+  }
+
+  public long getDelayedAllocationBytes() {
+    return delayedAllocationBytes;
+  }
+
+  // Memory for data written past the allocated blocks of growing files before writers have to
+  // allocate them. 0 turns delayed allocation off: files get their blocks as soon as they grow.
+  public DiskOptions setDelayedAllocationBytes(long delayedAllocationBytes) {
+    if (delayedAllocationBytes < 0) {
+      throw new IllegalArgumentException("Delayed allocation budget cannot be negative.");
+    }
+    this.delayedAllocationBytes = delayedAllocationBytes;
+    return this;
+  }
+}
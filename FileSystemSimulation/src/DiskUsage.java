@@ -0,0 +1,46 @@
+import java.util.Collections;
+import java.util.List;
+
+// Space used by a directory and everything below it, with the same figures for each subdirectory.
+// Blocks a file shares with a copy or a snapshot are counted for every file that holds them.
+public final class DiskUsage {
+  private final String path;
+  private final long files;
+  private final long directories; // Subdirectories at any depth
+  private final long bytes; // Sum of the file sizes
+  private final long blocks; // Data blocks of the files
+  private final List<DiskUsage> children; // One per subdirectory, by name
+
+  public DiskUsage(String path, long files, long directories, long bytes, long blocks, List<DiskUsage> children) {
+    this.path = path;
+    this.files = files;
+    this.directories = directories;
+    this.bytes = bytes;
+    this.blocks = blocks;
+    this.children = Collections.unmodifiableList(children);
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public long getFiles() {
+    return files;
+  }
+
+  public long getDirectories() {
+    return directories;
+  }
+
+  public long getBytes() {
+    return bytes;
+  }
+
+  public long getBlocks() {
+    return blocks;
+  }
+
+  public List<DiskUsage> getChildren() {
+    return children;
+  }
+}
@@ -0,0 +1,12 @@
+// Decides which cached block leaves the buffer cache when a new one has to be loaded
+public interface EvictionPolicy {
+  // A resident block was accessed
+  void onHit(int block);
+
+  // A block is about to be loaded. Returns the resident block to evict first, or -1 when the
+  // cache still has a free frame.
+  int onMiss(int block, boolean cacheFull);
+
+  // The cache dropped a block on its own (e.g. the block was freed), forget everything about it
+  void onRemove(int block);
+}
@@ -0,0 +1,220 @@
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+public class ExtentAllocator implements BlockAllocator {
+  private final int totalBlocks;
+  private final AllocationPolicy policy;
+  private final TreeMap<Integer, Integer> freeByStart; // Start block -> length of each free extent
+  private final TreeSet<Long> freeByLength; // (length << 32 | start) of each free extent, smallest first
+  private int freeCount;
+  private int nextFitCursor; // Where the next-fit search resumes
+  private int scanLength; // Free extents the last search examined
+
+  public ExtentAllocator(int totalBlocks, AllocationPolicy policy) {
+    if (policy == AllocationPolicy.FIRST_FIT) {
+      throw new IllegalArgumentException("First-fit allocation is served by BlockBitmap.");
+    }
+    this.totalBlocks = totalBlocks;
+    this.policy = policy;
+    this.freeByStart = new TreeMap<>();
+    this.freeByLength = new TreeSet<>();
+    this.freeCount = 0;
+    this.nextFitCursor = 0;
+    addExtent(0, totalBlocks); // The whole disk starts out as one free extent
+  }
+
+  @Override
+  public int getTotalBlocks() {
+    return totalBlocks;
+  }
+
+  @Override
+  public int countFree() {
+    return freeCount;
+  }
+
+  public AllocationPolicy getPolicy() {
+    return policy;
+  }
+
+  public int countFreeExtents() {
+    return freeByStart.size();
+  }
+
+  @Override
+  public int countFreeRuns() {
+    return freeByStart.size(); // Adjacent free extents are always merged
+  }
+
+  @Override
+  public boolean isUsed(int block) {
+    Map.Entry<Integer, Integer> extent = freeByStart.floorEntry(block);
+    return extent == null || block >= extent.getKey() + extent.getValue();
+  }
+
+  @Override
+  public int allocate() {
+    return allocate(1);
+  }
+
+  @Override
+  public int allocate(int count) {
+    scanLength = 0;
+    if (count <= 0 || count > freeCount) {
+      return -1;
+    }
+    int start = policy == AllocationPolicy.NEXT_FIT ? findNextFit(count) : findBestFit(count);
+    if (start < 0) {
+      return -1;
+    }
+    int length = freeByStart.get(start);
+    removeExtent(start, length);
+    if (length > count) {
+      addExtent(start + count, length - count); // Keep the unused tail of the extent
+    }
+    nextFitCursor = start + count;
+    return start;
+  }
+
+  // Smallest extent that is long enough, ties broken by lowest start
+  private int findBestFit(int count) {
+    scanLength = 1; // One tree descent
+    Long fit = freeByLength.ceiling(key(count, 0));
+    return fit == null ? -1 : startOf(fit);
+  }
+
+  // First extent at or after the cursor that is long enough, wrapping to the start of the disk
+  private int findNextFit(int count) {
+    if (largestFreeRun() < count) {
+      return -1;
+    }
+    for (Map.Entry<Integer, Integer> extent : freeByStart.tailMap(nextFitCursor, true).entrySet()) {
+      scanLength++;
+      if (extent.getValue() >= count) {
+        return extent.getKey();
+      }
+    }
+    for (Map.Entry<Integer, Integer> extent : freeByStart.headMap(nextFitCursor, false).entrySet()) {
+      scanLength++;
+      if (extent.getValue() >= count) {
+        return extent.getKey();
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public int allocateLowest(int count) {
+    scanLength = 0;
+    if (count <= 0 || count > largestFreeRun()) {
+      return -1;
+    }
+    for (Map.Entry<Integer, Integer> extent : freeByStart.entrySet()) {
+      scanLength++;
+      if (extent.getValue() >= count) {
+        int start = extent.getKey(); // Read first, the entry is not valid once the map changes
+        markUsed(start, count);
+        return start;
+      }
+    }
+    return -1;
+  }
+
+  @Override
+  public boolean allocateAt(int start, int count) {
+    scanLength = 1;
+    if (count <= 0) {
+      return false;
+    }
+    Map.Entry<Integer, Integer> extent = freeByStart.floorEntry(start);
+    if (extent == null || extent.getKey() + extent.getValue() < start + count) {
+      return false;
+    }
+    markUsed(start, count);
+    return true;
+  }
+
+  // Returns the range to the free set, merging it with free neighbours on either side
+  @Override
+  public void free(int start, int count) {
+    if (count <= 0) {
+      return;
+    }
+    int end = start + count;
+    Map.Entry<Integer, Integer> before = freeByStart.floorEntry(start);
+    if (before != null && before.getKey() + before.getValue() > start) {
+      throw new IllegalStateException("Block " + start + " is already free.");
+    }
+    Integer afterLength = freeByStart.get(end);
+    Map.Entry<Integer, Integer> next = freeByStart.higherEntry(start);
+    if (next != null && next.getKey() < end) {
+      throw new IllegalStateException("Block " + next.getKey() + " is already free.");
+    }
+    if (before != null && before.getKey() + before.getValue() == start) {
+      start = before.getKey();
+      removeExtent(before.getKey(), before.getValue());
+    }
+    if (afterLength != null) {
+      removeExtent(end, afterLength);
+      end += afterLength;
+    }
+    addExtent(start, end - start);
+  }
+
+  // Carves the range out of whatever free extents cover it
+  @Override
+  public void markUsed(int start, int count) {
+    int end = start + count;
+    Map.Entry<Integer, Integer> extent = freeByStart.floorEntry(start);
+    if (extent == null || extent.getKey() + extent.getValue() <= start) {
+      extent = freeByStart.higherEntry(start);
+    }
+    while (extent != null && extent.getKey() < end) {
+      int extentStart = extent.getKey();
+      int extentEnd = extentStart + extent.getValue();
+      removeExtent(extentStart, extent.getValue());
+      if (extentStart < start) {
+        addExtent(extentStart, start - extentStart);
+      }
+      if (extentEnd > end) {
+        addExtent(end, extentEnd - end);
+      }
+      extent = freeByStart.higherEntry(extentStart);
+    }
+  }
+
+  @Override
+  public int largestFreeRun() {
+    return freeByLength.isEmpty() ? 0 : lengthOf(freeByLength.last());
+  }
+
+  @Override
+  public int lastScanLength() {
+    return scanLength;
+  }
+
+  private void addExtent(int start, int length) {
+    freeByStart.put(start, length);
+    freeByLength.add(key(length, start));
+    freeCount += length;
+  }
+
+  private void removeExtent(int start, int length) {
+    freeByStart.remove(start);
+    freeByLength.remove(key(length, start));
+    freeCount -= length;
+  }
+
+  private static long key(int length, int start) {
+    return ((long) length << 32) | start;
+  }
+
+  private static int lengthOf(long key) {
+    return (int) (key >>> 32);
+  }
+
+  private static int startOf(long key) {
+    return (int) key;
+  }
+}
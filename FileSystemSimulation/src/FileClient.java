@@ -0,0 +1,200 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+// Client side of FileProtocol over one connection. Requests are queued with the send methods, each
+// returning the request id, and go out on flush() (or when the send buffer fills); responses are
+// taken with receive() in the order the requests were sent. Keeping several requests in flight
+// this way hides the round trip; call() is the one-at-a-time form.
+//
+// A client is used by one thread at a time. Keep the bytes in flight below the socket buffers
+// (a few hundred KB): the server stops reading while a response it is writing is not being read.
+public class FileClient implements AutoCloseable {
+  private static final int BUFFER_BYTES = 64 * 1024;
+
+  private final SocketChannel channel;
+  private ByteBuffer out = ByteBuffer.allocate(BUFFER_BYTES);
+  private ByteBuffer in = ByteBuffer.allocate(BUFFER_BYTES);
+  private int nextId;
+
+  public FileClient(String host, int port) throws IOException {
+    channel = SocketChannel.open(new InetSocketAddress(host, port));
+    channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+    in.flip(); // Starts out empty, in read mode
+  }
+
+  // A decoded response. Its payload is a view of the client's receive buffer and is only valid
+  // until the next receive().
+  public static final class Response {
+    private final int id;
+    private final byte status;
+    private final ByteBuffer payload;
+
+    Response(int id, byte status, ByteBuffer payload) {
+      this.id = id;
+      this.status = status;
+      this.payload = payload;
+    }
+
+    public int getId() {
+      return id;
+    }
+
+    public boolean isOk() {
+      return status == FileProtocol.OK;
+    }
+
+    public byte getStatus() {
+      return status;
+    }
+
+    // The filesystem error of a FS_ERROR response, null otherwise
+    public FsError getError() {
+      return status == FileProtocol.FS_ERROR ? FsError.values()[payload.get(payload.position())] : null;
+    }
+
+    // What went wrong, for any non-OK response
+    public String getMessage() {
+      if (status == FileProtocol.FS_ERROR) {
+        return getError().getMessage();
+      }
+      return status == FileProtocol.OK ? "OK" : FileProtocol.getString(payload.duplicate());
+    }
+
+    public ByteBuffer getPayload() {
+      return payload;
+    }
+  }
+
+  public int sendOpen(String path, boolean create) throws IOException {
+    ByteBuffer request = begin(FileProtocol.OPEN, 1 + FileProtocol.stringBytes(path));
+    request.put(create ? FileProtocol.OPEN_CREATE : 0);
+    FileProtocol.putString(request, path);
+    return queued();
+  }
+
+  public int sendClose(int handle) throws IOException {
+    begin(FileProtocol.CLOSE, 4).putInt(handle);
+    return queued();
+  }
+
+  public int sendRead(int handle, long position, int length) throws IOException {
+    begin(FileProtocol.READ, 16).putInt(handle).putLong(position).putInt(length);
+    return queued();
+  }
+
+  // Sends the remaining bytes of data
+  public int sendWrite(int handle, long position, ByteBuffer data) throws IOException {
+    if (data.remaining() > FileProtocol.MAX_IO) {
+      throw new IllegalArgumentException("Write larger than " + FileProtocol.MAX_IO + " bytes");
+    }
+    begin(FileProtocol.WRITE, 12 + data.remaining()).putInt(handle).putLong(position).put(data);
+    return queued();
+  }
+
+  public int sendStat(String path) throws IOException {
+    return sendPath(FileProtocol.STAT, path);
+  }
+
+  public int sendMkdir(String path) throws IOException {
+    return sendPath(FileProtocol.MKDIR, path);
+  }
+
+  public int sendList(String path) throws IOException {
+    return sendPath(FileProtocol.LIST, path);
+  }
+
+  public int sendRename(String from, String to) throws IOException {
+    ByteBuffer request = begin(FileProtocol.RENAME, FileProtocol.stringBytes(from) + FileProtocol.stringBytes(to));
+    FileProtocol.putString(request, from);
+    FileProtocol.putString(request, to);
+    return queued();
+  }
+
+  private int sendPath(byte opcode, String path) throws IOException {
+    ByteBuffer request = begin(opcode, FileProtocol.stringBytes(path));
+    FileProtocol.putString(request, path);
+    return queued();
+  }
+
+  // Starts a request frame with room for a payload of the given size
+  private ByteBuffer begin(byte opcode, int payloadBytes) throws IOException {
+    int frame = FileProtocol.HEADER_BYTES + payloadBytes;
+    if (out.remaining() < frame) {
+      flush();
+      if (out.capacity() < frame) {
+        out = ByteBuffer.allocate(frame);
+      }
+    }
+    return out.putInt(frame - 4).putInt(nextId).put(opcode);
+  }
+
+  // Finishes the request begun last and hands out its id
+  private int queued() {
+    return nextId++;
+  }
+
+  // Writes out the queued requests
+  public void flush() throws IOException {
+    out.flip();
+    while (out.hasRemaining()) {
+      channel.write(out);
+    }
+    out.clear();
+  }
+
+  // Waits for the next response. Queued requests are flushed first, so a response can be waiting.
+  public Response receive() throws IOException {
+    if (out.position() > 0) {
+      flush();
+    }
+    while (true) {
+      if (in.remaining() >= 4) {
+        int length = in.getInt(in.position());
+        if (length < FileProtocol.HEADER_BYTES - 4) {
+          throw new IOException("Bad response frame of " + length + " bytes");
+        }
+        if (in.remaining() >= 4 + length) {
+          int start = in.position();
+          int id = in.getInt(start + 4);
+          byte status = in.get(start + 8);
+          ByteBuffer payload = in.duplicate();
+          payload.position(start + FileProtocol.HEADER_BYTES);
+          payload.limit(start + 4 + length);
+          in.position(start + 4 + length);
+          return new Response(id, status, payload.slice());
+        }
+        if (in.capacity() < 4 + length) {
+          ByteBuffer larger = ByteBuffer.allocate(4 + length);
+          larger.put(in);
+          larger.flip();
+          in = larger;
+        }
+      }
+      in.compact();
+      int read = channel.read(in);
+      in.flip();
+      if (read < 0) {
+        throw new EOFException("Server closed the connection");
+      }
+    }
+  }
+
+  // Sends the request queued last and waits for its response. Any requests queued before it must
+  // have been answered already.
+  public Response call(int id) throws IOException {
+    Response response = receive();
+    if (response.getId() != id) {
+      throw new IOException("Response " + response.getId() + " arrived while waiting for " + id);
+    }
+    return response;
+  }
+
+  @Override
+  public void close() throws IOException {
+    channel.close();
+  }
+}
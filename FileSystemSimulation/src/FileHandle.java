@@ -0,0 +1,225 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+
+// An open file. Offsets are translated to disk blocks through the inode's extents, and data is
+// copied straight between the caller's buffer and the buffer cache without intermediate arrays.
+// Reads share the inode's lock, writes and truncates hold it exclusively, so several handles (or
+// threads sharing one handle) can use the same file. Blocks past the file's allocated ones are
+// read from and written to its delayed growth (see DelayedAllocation) until close or sync gives
+// them disk blocks. A small file's data may live in its inode instead (see Inode.isInline).
+public class FileHandle {
+  private final SuperBlock superBlock;
+  private final BufferCache cache;
+  private final DelayedAllocation delayed;
+  private final Inode inode;
+  private final ReadWriteLock lock;
+  private final int generation; // The inode's generation when opened, it changes if the file is deleted and the inode reused
+  private final int blockSize;
+  private volatile boolean open;
+
+  public FileHandle(SuperBlock superBlock, BufferCache cache, Inode inode) {
+    this.superBlock = superBlock;
+    this.cache = cache;
+    this.delayed = superBlock.getDelayedAllocation();
+    this.inode = inode;
+    this.lock = superBlock.inodeLock(inode);
+    this.generation = inode.getGeneration();
+    this.blockSize = superBlock.getGeometry().getBlockSize();
+    this.open = true;
+  }
+
+  public Inode getInode() {
+    return inode;
+  }
+
+  public long size() {
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      ensureOpen();
+      return inode.getSize();
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  // Reads into dst starting at the given file offset. Returns the number of bytes read,
+  // or -1 if the position is at or past the end of the file.
+  public int read(ByteBuffer dst, long position) {
+    Lock readLock = lock.readLock();
+    readLock.lock();
+    try {
+      ensureOpen();
+      int read = readLocked(dst, position);
+      inode.markAccessed(FsClock.now());
+      return read;
+    } finally {
+      readLock.unlock();
+    }
+  }
+
+  private int readLocked(ByteBuffer dst, long position) {
+    long size = inode.getSize();
+    if (position >= size) {
+      return -1;
+    }
+    int toRead = (int) Math.min(dst.remaining(), size - position);
+    if (inode.isInline()) {
+      inode.readInline((int) position, dst, toRead);
+      return toRead;
+    }
+    int done = 0;
+    while (done < toRead) {
+      long offset = position + done;
+      int inBlock = (int) (offset % blockSize);
+      int chunk = Math.min(toRead - done, blockSize - inBlock);
+      int fileBlock = (int) (offset / blockSize);
+      int block = inode.mapBlock(fileBlock);
+      if (block >= 0) {
+        cache.read(block, inBlock, dst, chunk);
+      } else {
+        delayed.read(delayed.get(inode), fileBlock - inode.getBlocksAllocated(), inBlock, dst, chunk);
+      }
+      done += chunk;
+    }
+    return done;
+  }
+
+  // Writes the remaining bytes of src at the given file offset, growing the file as needed.
+  // Returns the number of bytes written.
+  public int write(ByteBuffer src, long position) throws IOException {
+    if (position < 0) {
+      throw new IllegalArgumentException("Negative position: " + position);
+    }
+    FsMetrics metrics = superBlock.getMetrics();
+    long start = metrics.start(FsMetrics.Operation.WRITE);
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    Lock gate = superBlock.updateGate(); // A snapshot sees the write whole or not at all
+    gate.lock();
+    int written = -1;
+    try {
+      ensureOpen();
+      written = writeLocked(src, position);
+    } finally {
+      gate.unlock();
+      try {
+        if (written > 0 && delayed.isOverBudget()) {
+          superBlock.allocateDelayed(inode); // Buffered data beyond the budget: this writer pays
+        }
+      } finally {
+        writeLock.unlock();
+        metrics.record(FsMetrics.Operation.WRITE, start, written >= 0);
+      }
+    }
+    superBlock.commit(); // Only has work to do if the file grew
+    return written;
+  }
+
+  private int writeLocked(ByteBuffer src, long position) throws IOException {
+    int toWrite = src.remaining();
+    if (toWrite == 0) {
+      return 0; // As for pwrite, writing nothing past the end does not extend the file
+    }
+    long end = position + toWrite;
+    boolean grows = end > inode.getSize(); // Growing stamps the modify time along with the new size
+    // Blocks still shared with a copy or a snapshot get their own copy first, so the other owner
+    // keeps its contents. A snapshot that has not recorded the file yet takes its blocks now.
+    long firstBlock = position / blockSize;
+    superBlock.getSnapshots().preserveInode(inode);
+    if (firstBlock < inode.getBlocksAllocated()
+        && !superBlock.unshareBlocks(inode, (int) firstBlock, (int) ((end - 1) / blockSize - firstBlock + 1))) {
+      throw new IOException("No space left on disk");
+    }
+    if (grows && !superBlock.resizeInode(inode, end)) {
+      throw new IOException(end > superBlock.getGeometry().getMaxFileBytes() ? "File size limit exceeded"
+          : "No space left on disk");
+    }
+    if (!grows) {
+      inode.markModified(FsClock.now()); // Writes inside the file still count as a modification
+    }
+    if (inode.isInline()) { // Still small enough after the resize
+      superBlock.writeInline(inode, (int) position, src, toWrite);
+      return toWrite;
+    }
+    DelayedAllocation.Growth growth = delayed.get(inode);
+    int done = 0;
+    while (done < toWrite) {
+      long offset = position + done;
+      int inBlock = (int) (offset % blockSize);
+      int chunk = Math.min(toWrite - done, blockSize - inBlock);
+      int fileBlock = (int) (offset / blockSize);
+      int block = inode.mapBlock(fileBlock);
+      if (block >= 0) {
+        cache.write(block, inBlock, src, chunk);
+      } else {
+        delayed.write(growth, fileBlock - inode.getBlocksAllocated(), inBlock, src, chunk);
+      }
+      done += chunk;
+    }
+    return done;
+  }
+
+  // Cuts the file down (or extends it with zeros) to the given size
+  public void truncate(long size) throws IOException {
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      ensureOpen();
+      if (!superBlock.resizeInode(inode, size)) {
+        throw new IOException("Cannot resize file to " + size + " bytes");
+      }
+    } finally {
+      writeLock.unlock();
+    }
+    superBlock.commit();
+  }
+
+  public boolean isOpen() {
+    return open;
+  }
+
+  // Gives the file's delayed growth its blocks and makes its metadata durable. Throws if the disk
+  // has no room for the extent pointers; the data then stays buffered.
+  public void sync() throws IOException {
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      ensureOpen();
+      if (!superBlock.allocateDelayed(inode)) {
+        throw new IOException("No space left on disk");
+      }
+    } finally {
+      writeLock.unlock();
+    }
+    superBlock.commit();
+  }
+
+  // Closing allocates the file's delayed growth like sync, but a failure is not reported: the
+  // growth stays buffered until the next sync, flush or close.
+  public void close() {
+    Lock writeLock = lock.writeLock();
+    writeLock.lock();
+    try {
+      if (open && inode.isUsed() && inode.getGeneration() == generation) {
+        superBlock.allocateDelayed(inode);
+      }
+      open = false;
+    } finally {
+      writeLock.unlock();
+    }
+    superBlock.commit();
+  }
+
+  // Called with the inode's lock held
+  private void ensureOpen() {
+    if (!open) {
+      throw new IllegalStateException("File handle is closed.");
+    }
+    if (!inode.isUsed() || inode.getGeneration() != generation) {
+      throw new IllegalStateException("File has been deleted.");
+    }
+  }
+}
@@ -0,0 +1,140 @@
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+
+// Snapshot of a file's metadata, taken under the inode's lock so it stays consistent after the
+// file changes
+public final class FileInfo {
+  private final int inodeNumber;
+  private final int directoryId;
+  private final String name;
+  private final int size;
+  private final int blocksAllocated;
+  private final int[] extents; // (start block, length) pairs in file order
+  private final List<Integer> indirectBlocks;
+  private final byte[] inlineData; // The file's data if it is kept in the inode, otherwise null
+  private final long accessTime; // Epoch nanoseconds, see FsClock
+  private final long modifyTime;
+  private final long changeTime;
+
+  private FileInfo(Inode inode, List<Integer> indirectBlocks) {
+    this.inodeNumber = inode.getNumber();
+    this.directoryId = inode.getDirectoryId();
+    this.name = inode.getName();
+    this.size = inode.getSize();
+    this.blocksAllocated = inode.getBlocksAllocated();
+    this.extents = new int[2 * inode.getExtentCount()];
+    for (int i = 0; i < inode.getExtentCount(); i++) {
+      extents[2 * i] = inode.getExtentStart(i);
+      extents[2 * i + 1] = inode.getExtentLength(i);
+    }
+    this.indirectBlocks = Collections.unmodifiableList(indirectBlocks);
+    this.inlineData = inode.isInline() ? new byte[size] : null;
+    if (inlineData != null) {
+      inode.readInline(0, ByteBuffer.wrap(inlineData), size);
+    }
+    this.accessTime = inode.getAccessTime();
+    this.modifyTime = inode.getModifyTime();
+    this.changeTime = inode.getChangeTime();
+  }
+
+  // A file as a snapshot recorded it. Snapshots keep the extents themselves, so there are no indirect blocks.
+  private FileInfo(int inodeNumber, Snapshot.InodeImage image) {
+    this.inodeNumber = inodeNumber;
+    this.directoryId = image.directoryId;
+    this.name = image.name;
+    this.size = image.size;
+    this.extents = image.extents.clone();
+    int blocks = 0;
+    for (int i = 1; i < extents.length; i += 2) {
+      blocks += extents[i];
+    }
+    this.blocksAllocated = blocks;
+    this.indirectBlocks = Collections.emptyList();
+    this.inlineData = image.inlineData;
+    this.accessTime = image.accessTime;
+    this.modifyTime = image.modifyTime;
+    this.changeTime = image.changeTime;
+  }
+
+  // The caller holds the inode's lock
+  public static FileInfo of(SuperBlock superBlock, Inode inode) {
+    List<Integer> chain = inode.getIndirectBlock() == -1 ? Collections.<Integer>emptyList()
+        : superBlock.getIndirectBlocks(inode);
+    return new FileInfo(inode, chain);
+  }
+
+  static FileInfo of(int inodeNumber, Snapshot.InodeImage image) {
+    return new FileInfo(inodeNumber, image);
+  }
+
+  public int getInodeNumber() {
+    return inodeNumber;
+  }
+
+  public int getDirectoryId() {
+    return directoryId;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getSize() {
+    return size;
+  }
+
+  public int getBlocksAllocated() {
+    return blocksAllocated;
+  }
+
+  public int getExtentCount() {
+    return extents.length / 2;
+  }
+
+  public int getExtentStart(int extent) {
+    return extents[2 * extent];
+  }
+
+  public int getExtentLength(int extent) {
+    return extents[2 * extent + 1];
+  }
+
+  // Every data block of the file in file order, expanded from the extents
+  public int[] getBlocks() {
+    int[] blocks = new int[blocksAllocated];
+    int next = 0;
+    for (int i = 0; i < extents.length; i += 2) {
+      for (int block = extents[i]; block < extents[i] + extents[i + 1]; block++) {
+        blocks[next++] = block;
+      }
+    }
+    return blocks;
+  }
+
+  // True if the file's data is kept in its inode, it then has no blocks
+  public boolean isInline() {
+    return inlineData != null;
+  }
+
+  // Copies length bytes of inline data from offset into dst
+  void readInline(int offset, ByteBuffer dst, int length) {
+    dst.put(inlineData, offset, length);
+  }
+
+  public List<Integer> getIndirectBlocks() {
+    return indirectBlocks;
+  }
+
+  public long getAccessTime() {
+    return accessTime;
+  }
+
+  public long getModifyTime() {
+    return modifyTime;
+  }
+
+  public long getChangeTime() {
+    return changeTime;
+  }
+}
@@ -0,0 +1,68 @@
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+// Wire format shared by FileServer and FileClient. Every message is a frame:
+//   int length (of the rest of the frame), int request id, byte opcode or status, payload
+// Numbers are big-endian. A client may send any number of requests without waiting; the server
+// answers each connection's requests in the order they arrived, echoing the request id.
+//
+// Request payloads (strings are a short byte count followed by UTF-8, paths are absolute):
+//   OPEN    byte flags, string path          -> int handle, long size
+//   CLOSE   int handle                       -> (empty)
+//   READ    int handle, long position, int n -> int count (-1 at end of file), count bytes
+//   WRITE   int handle, long position, bytes -> int written
+//   STAT    string path                      -> long size, int blocks, int extents, long atime, mtime, ctime
+//   MKDIR   string path                      -> (empty)
+//   LIST    string path                      -> int dirs, dirs x string, int files, files x (string, long size, long mtime)
+//   RENAME  string from, string to           -> (empty)
+// A failed request is answered with a non-OK status: FS_ERROR carries the FsError ordinal as a
+// byte, IO_ERROR and BAD_REQUEST carry a message string.
+public final class FileProtocol {
+  public static final byte OPEN = 1;
+  public static final byte CLOSE = 2;
+  public static final byte READ = 3;
+  public static final byte WRITE = 4;
+  public static final byte STAT = 5;
+  public static final byte MKDIR = 6;
+  public static final byte LIST = 7;
+  public static final byte RENAME = 8;
+
+  public static final byte OPEN_CREATE = 1; // OPEN flag: create an empty file if there is none
+
+  public static final byte OK = 0;
+  public static final byte FS_ERROR = 1;
+  public static final byte IO_ERROR = 2;
+  public static final byte BAD_REQUEST = 3;
+
+  public static final int HEADER_BYTES = 9; // Length, request id and opcode or status
+  public static final int MAX_FRAME = 1024 * 1024 + 64; // Largest frame either side accepts, after the length
+  public static final int MAX_IO = 1024 * 1024; // Largest READ or WRITE, in bytes
+
+  private FileProtocol() {
+  }
+
+  public static void putString(ByteBuffer buffer, String value) {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length > Short.MAX_VALUE) {
+      throw new IllegalArgumentException("String too long: " + bytes.length + " bytes");
+    }
+    buffer.putShort((short) bytes.length);
+    buffer.put(bytes);
+  }
+
+  public static String getString(ByteBuffer buffer) {
+    int length = buffer.getShort();
+    if (length < 0 || length > buffer.remaining()) {
+      throw new BufferUnderflowException();
+    }
+    byte[] bytes = new byte[length];
+    buffer.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // Bytes a string takes on the wire
+  public static int stringBytes(String value) {
+    return 2 + value.getBytes(StandardCharsets.UTF_8).length;
+  }
+}
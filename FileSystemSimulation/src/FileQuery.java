@@ -0,0 +1,52 @@
+import java.util.regex.Pattern;
+
+// What find looks for. Every condition that is set must hold; an empty query matches every file.
+public class FileQuery {
+  private Pattern namePattern; // Null matches any name
+  private long minSize = 0;
+  private long maxSize = Long.MAX_VALUE;
+  private long modifiedAfter = Long.MIN_VALUE; // Epoch nanoseconds, see FsClock
+  private long modifiedBefore = Long.MAX_VALUE;
+
+  // Shell-style pattern matched against the whole name: '*' is any run of characters, '?' any one
+  public FileQuery setNamePattern(String glob) {
+    StringBuilder regex = new StringBuilder();
+    for (char c : glob.toCharArray()) {
+      if (c == '*') {
+        regex.append(".*");
+      } else if (c == '?') {
+        regex.append('.');
+      } else {
+        regex.append(Pattern.quote(String.valueOf(c)));
+      }
+    }
+    this.namePattern = Pattern.compile(regex.toString());
+    return this;
+  }
+
+  public FileQuery setMinSize(long minSize) {
+    this.minSize = minSize;
+    return this;
+  }
+
+  public FileQuery setMaxSize(long maxSize) {
+    this.maxSize = maxSize;
+    return this;
+  }
+
+  public FileQuery setModifiedAfter(long modifiedAfter) {
+    this.modifiedAfter = modifiedAfter;
+    return this;
+  }
+
+  public FileQuery setModifiedBefore(long modifiedBefore) {
+    this.modifiedBefore = modifiedBefore;
+    return this;
+  }
+
+  // Sizes are in bytes, bounds inclusive
+  public boolean matches(String name, long size, long modifyTime) {
+    return size >= minSize && size <= maxSize && modifyTime >= modifiedAfter && modifyTime <= modifiedBefore
+        && (namePattern == null || namePattern.matcher(name).matches());
+  }
+}
@@ -0,0 +1,439 @@
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+// TCP front end to a FileSystem, speaking FileProtocol. Each connection is served by its own thread
+// doing blocking NIO reads and writes: a virtual thread when the runtime has them (Java 21 and
+// later, looked up reflectively so the sources still build on older JDKs), otherwise a thread from
+// a cached pool. Blocking code on a virtual thread costs no more than an event loop, and keeps the
+// calls into the filesystem core plain method calls.
+//
+// Requests are pipelined: a connection reads whatever has arrived, answers every complete request
+// in it into one output buffer, and writes that buffer out before it blocks for more input. A
+// client that sends a batch of requests gets its responses back in as few writes.
+//
+// Connection threads are never interrupted, since an interrupt during a journal write would close
+// the journal's channel. close() closes the sockets instead, which ends their blocking reads.
+public class FileServer {
+  private static final int BUFFER_BYTES = 64 * 1024; // Initial input and output buffer per connection
+  private static final int HEADER_BODY = FileProtocol.HEADER_BYTES - 4; // Request id and opcode
+  private static final int RESPONSE_BYTES = 256; // Room reserved for any response but a read's data or a listing
+  private static final int MAX_MESSAGE = 80; // Characters of an error message sent back
+
+  private final FileSystem fileSystem;
+  private final InetSocketAddress address;
+  private final Set<SocketChannel> connections = ConcurrentHashMap.newKeySet();
+  private final AtomicInteger threadNumber = new AtomicInteger();
+  private ServerSocketChannel serverChannel;
+  private ExecutorService executor;
+  private boolean virtualThreads;
+  private Thread acceptor;
+  private volatile boolean running;
+
+  private final LongAdder accepted = new LongAdder();
+  private final LongAdder requests = new LongAdder();
+
+  public FileServer(FileSystem fileSystem, InetSocketAddress address) {
+    this.fileSystem = fileSystem;
+    this.address = address;
+  }
+
+  // Binds the port and starts accepting connections
+  public synchronized void start() throws IOException {
+    if (running) {
+      return;
+    }
+    serverChannel = ServerSocketChannel.open();
+    serverChannel.bind(address);
+    executor = newConnectionExecutor();
+    running = true;
+    acceptor = new Thread(this::acceptLoop, "file-server-acceptor");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  // One virtual thread per task if the runtime has them, otherwise a cached pool of daemon threads
+  private ExecutorService newConnectionExecutor() {
+    try {
+      Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+      ExecutorService virtual = (ExecutorService) factory.invoke(null);
+      virtualThreads = true;
+      return virtual;
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      virtualThreads = false; // Before Java 21, or a preview runtime without --enable-preview
+      return Executors.newCachedThreadPool(task -> {
+        Thread thread = new Thread(task, "file-server-" + threadNumber.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+  }
+
+  // The port actually bound, useful when the server was asked for port 0
+  public synchronized int getPort() throws IOException {
+    return ((InetSocketAddress) serverChannel.getLocalAddress()).getPort();
+  }
+
+  public synchronized boolean usesVirtualThreads() {
+    return virtualThreads;
+  }
+
+  public long getAcceptedConnections() {
+    return accepted.sum();
+  }
+
+  public int getOpenConnections() {
+    return connections.size();
+  }
+
+  public long getRequests() {
+    return requests.sum();
+  }
+
+  // Stops accepting, closes every connection and waits for their threads to finish the request
+  // they are on
+  public void close() throws IOException {
+    Thread stopping;
+    synchronized (this) {
+      if (!running) {
+        return;
+      }
+      running = false;
+      serverChannel.close(); // Ends the acceptor's accept()
+      stopping = acceptor;
+    }
+    for (SocketChannel connection : connections) {
+      connection.close(); // Ends the connection's blocking read
+    }
+    executor.shutdown();
+    boolean interrupted = false;
+    while (true) {
+      try {
+        stopping.join();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        break;
+      } catch (InterruptedException e) {
+        interrupted = true;
+      }
+    }
+    if (interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void acceptLoop() {
+    while (running) {
+      SocketChannel connection;
+      try {
+        connection = serverChannel.accept();
+      } catch (IOException e) {
+        return; // Closed by close(), or the listening socket failed
+      }
+      accepted.increment();
+      connections.add(connection);
+      if (!running) {
+        closeQuietly(connection); // close() may have run past it already
+        continue;
+      }
+      executor.execute(() -> serve(connection));
+    }
+  }
+
+  private void serve(SocketChannel channel) {
+    Map<Integer, FileHandle> handles = new HashMap<>();
+    try {
+      channel.setOption(StandardSocketOptions.TCP_NODELAY, true); // Responses are flushed deliberately
+      ByteBuffer in = ByteBuffer.allocate(BUFFER_BYTES);
+      ByteBuffer[] out = { ByteBuffer.allocate(BUFFER_BYTES) }; // Replaced when a response needs more room
+      int[] nextHandle = { 1 };
+      while (true) {
+        if (channel.read(in) < 0) {
+          return;
+        }
+        in.flip();
+        while (in.remaining() >= 4) {
+          int length = in.getInt(in.position());
+          if (length < HEADER_BODY || length > FileProtocol.MAX_FRAME) {
+            return; // Not our protocol, drop the connection
+          }
+          if (in.remaining() < 4 + length) {
+            if (in.capacity() < 4 + length) {
+              ByteBuffer larger = ByteBuffer.allocate(4 + length);
+              larger.put(in);
+              larger.flip();
+              in = larger;
+            }
+            break;
+          }
+          ByteBuffer request = in.duplicate();
+          request.position(in.position() + 4);
+          request.limit(in.position() + 4 + length);
+          in.position(in.position() + 4 + length);
+          handle(channel, request, out, handles, nextHandle);
+          requests.increment();
+        }
+        in.compact();
+        flush(channel, out[0]); // Nothing more has arrived, answer before blocking on the next read
+      }
+    } catch (ClosedChannelException e) {
+      // Closed by close() or by the client
+    } catch (IOException e) {
+      // The client went away mid-frame
+    } finally {
+      for (FileHandle handle : handles.values()) {
+        handle.close();
+      }
+      connections.remove(channel);
+      closeQuietly(channel);
+    }
+  }
+
+  // Answers one request into the output buffer. Failures of the request become error responses;
+  // only a failing connection throws.
+  private void handle(SocketChannel channel, ByteBuffer request, ByteBuffer[] out, Map<Integer, FileHandle> handles,
+      int[] nextHandle) throws IOException {
+    int id = request.getInt();
+    byte opcode = request.get();
+    // Room for the largest answer the request can get, other than a listing which grows as it goes
+    int room = FileProtocol.HEADER_BYTES + RESPONSE_BYTES + (opcode == FileProtocol.READ && request.remaining() >= 16
+        ? Math.max(0, Math.min(request.getInt(request.position() + 12), FileProtocol.MAX_IO)) : 0);
+    ByteBuffer response = reserve(channel, out, room);
+    int start = response.position();
+    response.putInt(0).putInt(id).put(FileProtocol.OK);
+    try {
+      switch (opcode) {
+        case FileProtocol.OPEN:
+          open(request, response, start, handles, nextHandle);
+          break;
+        case FileProtocol.CLOSE: {
+          FileHandle handle = handles.remove(request.getInt());
+          if (handle == null) {
+            error(response, start, FsError.FILE_NOT_FOUND);
+          } else {
+            handle.close();
+          }
+          break;
+        }
+        case FileProtocol.READ: {
+          FileHandle handle = handles.get(request.getInt());
+          long position = request.getLong();
+          int length = request.getInt();
+          if (handle == null) {
+            error(response, start, FsError.FILE_NOT_FOUND);
+          } else if (length < 0 || length > FileProtocol.MAX_IO || position < 0) {
+            fail(response, start, FileProtocol.BAD_REQUEST, "Bad read range");
+          } else {
+            int countAt = response.position();
+            response.putInt(0);
+            int limit = response.limit();
+            response.limit(response.position() + length);
+            try {
+              response.putInt(countAt, handle.read(response, position)); // Straight from the buffer cache
+            } finally {
+              response.limit(limit);
+            }
+          }
+          break;
+        }
+        case FileProtocol.WRITE: {
+          FileHandle handle = handles.get(request.getInt());
+          long position = request.getLong();
+          if (handle == null) {
+            error(response, start, FsError.FILE_NOT_FOUND);
+          } else {
+            response.putInt(handle.write(request, position)); // Straight from the request into the buffer cache
+          }
+          break;
+        }
+        case FileProtocol.STAT:
+          stat(request, response, start);
+          break;
+        case FileProtocol.MKDIR:
+          mkdir(request, response, start);
+          break;
+        case FileProtocol.LIST:
+          response = list(channel, request, out, start);
+          break;
+        case FileProtocol.RENAME:
+          rename(request, response, start);
+          break;
+        default:
+          fail(response, start, FileProtocol.BAD_REQUEST, "Unknown opcode " + opcode);
+      }
+    } catch (BufferUnderflowException | IllegalArgumentException e) {
+      fail(response, start, FileProtocol.BAD_REQUEST, "Malformed request");
+    } catch (IllegalStateException e) {
+      error(response, start, FsError.FILE_NOT_FOUND); // The handle's file was deleted
+    } catch (IOException e) {
+      fail(response, start, FileProtocol.IO_ERROR, e.getMessage());
+    }
+    response.putInt(start, response.position() - start - 4);
+  }
+
+  private void open(ByteBuffer request, ByteBuffer response, int start, Map<Integer, FileHandle> handles,
+      int[] nextHandle) {
+    byte flags = request.get();
+    String path = FileProtocol.getString(request);
+    FsResult<Directory> directory = fileSystem.resolveDirectory(fileSystem.getRootDirectory(), parentOf(path));
+    if (!directory.isOk()) {
+      error(response, start, directory.getError());
+      return;
+    }
+    String name = nameOf(path);
+    FsResult<FileHandle> opened = fileSystem.open(directory.getValue(), name);
+    if (!opened.isOk() && (flags & FileProtocol.OPEN_CREATE) != 0) {
+      FsResult<FileInfo> created = fileSystem.createFile(directory.getValue(), name, 0);
+      if (!created.isOk() && created.getError() != FsError.FILE_EXISTS) { // Someone else may have just created it
+        error(response, start, created.getError());
+        return;
+      }
+      opened = fileSystem.open(directory.getValue(), name);
+    }
+    if (!opened.isOk()) {
+      error(response, start, opened.getError());
+      return;
+    }
+    int handle = nextHandle[0]++;
+    handles.put(handle, opened.getValue());
+    response.putInt(handle).putLong(opened.getValue().size());
+  }
+
+  private void stat(ByteBuffer request, ByteBuffer response, int start) {
+    String path = FileProtocol.getString(request);
+    FsResult<Directory> directory = fileSystem.resolveDirectory(fileSystem.getRootDirectory(), parentOf(path));
+    FsResult<FileInfo> info = directory.isOk() ? fileSystem.stat(directory.getValue(), nameOf(path))
+        : FsResult.<FileInfo>error(directory.getError());
+    if (!info.isOk()) {
+      error(response, start, info.getError());
+      return;
+    }
+    FileInfo file = info.getValue();
+    response.putLong(file.getSize()).putInt(file.getBlocksAllocated()).putInt(file.getExtentCount())
+        .putLong(file.getAccessTime()).putLong(file.getModifyTime()).putLong(file.getChangeTime());
+  }
+
+  private void mkdir(ByteBuffer request, ByteBuffer response, int start) {
+    String path = FileProtocol.getString(request);
+    FsResult<Directory> parent = fileSystem.resolveDirectory(fileSystem.getRootDirectory(), parentOf(path));
+    FsResult<Directory> made = parent.isOk() ? fileSystem.createDirectory(parent.getValue(), nameOf(path))
+        : parent;
+    if (!made.isOk()) {
+      error(response, start, made.getError());
+    }
+  }
+
+  private void rename(ByteBuffer request, ByteBuffer response, int start) {
+    String from = FileProtocol.getString(request);
+    String to = FileProtocol.getString(request);
+    FsResult<FileInfo> moved = fileSystem.moveFile(fileSystem.getRootDirectory(), from, parentOf(to), nameOf(to));
+    if (!moved.isOk()) {
+      error(response, start, moved.getError());
+    }
+  }
+
+  // A listing can be any size, so it makes room entry by entry. Returns the buffer it ended up in.
+  private ByteBuffer list(SocketChannel channel, ByteBuffer request, ByteBuffer[] out, int start) throws IOException {
+    String path = FileProtocol.getString(request);
+    ByteBuffer response = out[0];
+    FsResult<Directory> directory = fileSystem.resolveDirectory(fileSystem.getRootDirectory(), path);
+    if (!directory.isOk()) {
+      error(response, start, directory.getError());
+      return response;
+    }
+    DirectoryListing listing = fileSystem.list(directory.getValue());
+    int needed = 8;
+    for (String name : listing.getSubDirectories()) {
+      needed += FileProtocol.stringBytes(name);
+    }
+    for (FileInfo file : listing.getFiles()) {
+      needed += FileProtocol.stringBytes(file.getName()) + 16;
+    }
+    if (response.remaining() < needed) {
+      // Grow in place: the response started earlier in this buffer and must stay in one piece
+      ByteBuffer larger = ByteBuffer.allocate(response.position() + needed);
+      response.flip();
+      larger.put(response);
+      out[0] = larger;
+      response = larger;
+    }
+    response.putInt(listing.getSubDirectories().size());
+    for (String name : listing.getSubDirectories()) {
+      FileProtocol.putString(response, name);
+    }
+    response.putInt(listing.getFiles().size());
+    for (FileInfo file : listing.getFiles()) {
+      FileProtocol.putString(response, file.getName());
+      response.putLong(file.getSize()).putLong(file.getModifyTime());
+    }
+    return response;
+  }
+
+  // Rewrites the response begun at start as a filesystem error
+  private static void error(ByteBuffer response, int start, FsError error) {
+    response.position(start + FileProtocol.HEADER_BYTES - 1);
+    response.put(FileProtocol.FS_ERROR).put((byte) error.ordinal());
+  }
+
+  private static void fail(ByteBuffer response, int start, byte status, String message) {
+    response.position(start + FileProtocol.HEADER_BYTES - 1);
+    response.put(status);
+    String text = message == null ? "" : message;
+    FileProtocol.putString(response, text.length() > MAX_MESSAGE ? text.substring(0, MAX_MESSAGE) : text);
+  }
+
+  // Makes room for a response of up to 'bytes' bytes, writing out what is buffered or switching to a
+  // larger buffer
+  private static ByteBuffer reserve(SocketChannel channel, ByteBuffer[] out, int bytes) throws IOException {
+    if (out[0].remaining() < bytes) {
+      flush(channel, out[0]);
+      if (out[0].capacity() < bytes) {
+        out[0] = ByteBuffer.allocate(bytes);
+      }
+    }
+    return out[0];
+  }
+
+  private static void flush(SocketChannel channel, ByteBuffer out) throws IOException {
+    out.flip();
+    while (out.hasRemaining()) {
+      channel.write(out);
+    }
+    out.clear();
+  }
+
+  private static String parentOf(String path) {
+    int slash = path.lastIndexOf('/');
+    return slash <= 0 ? "/" : path.substring(0, slash);
+  }
+
+  private static String nameOf(String path) {
+    String name = path.substring(path.lastIndexOf('/') + 1);
+    if (name.isEmpty()) {
+      throw new IllegalArgumentException("Path names no file or directory: " + path);
+    }
+    return name;
+  }
+
+  private static void closeQuietly(SocketChannel channel) {
+    try {
+      channel.close();
+    } catch (IOException e) {
+      // Nothing left to release
+    }
+  }
+}
@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.concurrent.locks.Lock;
+
+// Programmatic front end to a Disk. Every operation returns its outcome as an FsResult instead of
+// printing it, so the filesystem can be embedded without any console output; FileSystemCLI is one
+// renderer on top of it. Paths are resolved against the working directory passed to each call,
+// which keeps the facade stateless and safe to share between threads.
+public class FileSystem {
+  private final Disk disk;
+
+  public FileSystem(Disk disk) {
+    this.disk = disk;
+  }
+
+  public Disk getDisk() {
+    return disk;
+  }
+
+  public Directory getRootDirectory() {
+    return disk.getRootDirectory();
+  }
+
+  // Resolves a path relative to the working directory, or to the root if it starts with '/'
+  public FsResult<Directory> resolveDirectory(Directory cwd, String path) {
+    Directory directory = cwd.findDirectory(path, disk.getRootDirectory(), cwd);
+    return directory == null ? FsResult.<Directory>error(FsError.DIRECTORY_NOT_FOUND) : FsResult.ok(directory);
+  }
+
+  public FsResult<Directory> createDirectory(Directory cwd, String name) {
+    return cwd.createDirectory(name);
+  }
+
+  // Deletes the directory and its whole subtree, subtrees in parallel (see TreeWalker)
+  public FsResult<Void> deleteDirectory(Directory cwd, String name) {
+    return cwd.deleteDirectory(name);
+  }
+
+  // Space used below the directory at path, per subdirectory
+  public FsResult<DiskUsage> diskUsage(Directory cwd, String path) {
+    FsResult<Directory> directory = resolveDirectory(cwd, path);
+    return directory.isOk() ? FsResult.ok(TreeWalker.usage(directory.getValue()))
+        : FsResult.<DiskUsage>error(directory.getError());
+  }
+
+  // Files below the directory at path that match the query, by absolute path
+  public FsResult<SortedMap<String, FileInfo>> find(Directory cwd, String path, FileQuery query) {
+    FsResult<Directory> directory = resolveDirectory(cwd, path);
+    return directory.isOk() ? FsResult.ok(TreeWalker.find(directory.getValue(), query))
+        : FsResult.<SortedMap<String, FileInfo>>error(directory.getError());
+  }
+
+  public FsResult<FileInfo> createFile(Directory cwd, String name, int sizeKB) {
+    return toFileInfo(cwd.createFile(name, sizeKB));
+  }
+
+  public FsResult<Void> deleteFile(Directory cwd, String name) {
+    return cwd.deleteFile(name);
+  }
+
+  // Copies a file of the working directory into destPath; the copy is named "name(n)"
+  public FsResult<FileInfo> copyFile(Directory cwd, String sourceName, String destPath) {
+    FsResult<Directory> dest = resolveDirectory(cwd, destPath);
+    if (!dest.isOk()) {
+      return FsResult.error(dest.getError());
+    }
+    return toFileInfo(cwd.copyFile(sourceName, dest.getValue()));
+  }
+
+  // Moves the file at sourcePath into destPath under newName. A source without a '/' is a file of
+  // the working directory.
+  public FsResult<FileInfo> moveFile(Directory cwd, String sourcePath, String destPath, String newName) {
+    int slash = sourcePath.lastIndexOf('/');
+    Directory sourceDir = cwd;
+    if (slash >= 0) {
+      FsResult<Directory> source = resolveDirectory(cwd, slash == 0 ? "/" : sourcePath.substring(0, slash));
+      if (!source.isOk()) {
+        return FsResult.error(source.getError());
+      }
+      sourceDir = source.getValue();
+    }
+    FsResult<Directory> dest = resolveDirectory(cwd, destPath);
+    if (!dest.isOk()) {
+      return FsResult.error(dest.getError());
+    }
+    return toFileInfo(sourceDir.moveFile(sourcePath.substring(slash + 1), dest.getValue(), newName));
+  }
+
+  // Grows or shrinks a file by whole kilobytes, returning the change in allocated blocks
+  public FsResult<Integer> resizeFile(Directory cwd, String name, int deltaKB) {
+    return disk.resizeFile(cwd, name, deltaKB);
+  }
+
+  public FsResult<FileInfo> stat(Directory cwd, String name) {
+    return disk.stat(cwd, name);
+  }
+
+  public DirectoryListing list(Directory cwd) {
+    return cwd.list();
+  }
+
+  // Every file on the disk, in inode order
+  public List<FileInfo> listFiles() {
+    return disk.listFiles();
+  }
+
+  public FsResult<FileHandle> open(Directory cwd, String name) {
+    FileHandle handle = disk.open(cwd, name);
+    return handle == null ? FsResult.<FileHandle>error(FsError.FILE_NOT_FOUND) : FsResult.ok(handle);
+  }
+
+  // Snapshots of the whole tree; see SnapshotManager. Taking one copies nothing.
+  public FsResult<Snapshot> createSnapshot(String name) {
+    return disk.getSuperBlock().createSnapshot(name);
+  }
+
+  // The snapshot's space is given back in the background
+  public FsResult<Void> deleteSnapshot(String name) {
+    return disk.getSuperBlock().getSnapshots().delete(name);
+  }
+
+  // Snapshots in the order they were taken
+  public List<Snapshot> listSnapshots() {
+    return disk.getSuperBlock().getSnapshots().list();
+  }
+
+  // Read-only view of a snapshot; the snapshot cannot be deleted until the view is unmounted
+  public FsResult<SnapshotMount> mountSnapshot(String name) {
+    return disk.getSuperBlock().getSnapshots().mount(name);
+  }
+
+  public void flush() {
+    disk.flush();
+  }
+
+  public void close() throws IOException {
+    disk.close();
+  }
+
+  // Turns a created, copied or moved inode into a FileInfo, a copy of its metadata the caller can keep
+  private FsResult<FileInfo> toFileInfo(FsResult<Inode> result) {
+    if (!result.isOk()) {
+      return FsResult.error(result.getError());
+    }
+    SuperBlock superBlock = disk.getSuperBlock();
+    Inode inode = result.getValue();
+    Lock lock = superBlock.inodeLock(inode).readLock();
+    lock.lock();
+    try {
+      return FsResult.ok(FileInfo.of(superBlock, inode));
+    } finally {
+      lock.unlock();
+    }
+  }
+}
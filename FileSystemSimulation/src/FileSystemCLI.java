@@ -1,29 +1,67 @@
-import java.util.ArrayList;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import javax.management.JMException;
 
 public class FileSystemCLI {
+  private static final int BATCH_OUTPUT_BUFFER = 64 * 1024;
+  // Commands refused while a snapshot is mounted, since the mount is read-only
+  private static final Set<String> WRITE_COMMANDS = new HashSet<>(
+      Arrays.asList("mkfile", "rmfile", "mkdir", "rmdir", "cpfile", "mvfile", "writefile", "writetext"));
+
   private Disk disk;
+  private FileSystem fileSystem; // Every command goes through the facade, this class only renders results
   private Directory currentDirectory;
-  private List<String> path = new ArrayList<>(); // Track the path for 'pwd'
+  private PrintStream out = System.out; // Where command output is rendered
+  private SnapshotMount mount; // Mounted snapshot that ls, cd, pwd, fileinfo and readtext work on, if any
+  private String mountDirectory; // Working directory within the mount
 
   public FileSystemCLI() {
-    this.disk = new Disk(); // This initializes the Disk, which in turn initializes the SuperBlock and root
-                            // Directory
+    this(new Disk()); // This initializes the Disk, which in turn initializes the SuperBlock and root
+                      // Directory
+  }
+
+  public FileSystemCLI(Disk disk) {
+    this.disk = disk;
+    this.fileSystem = new FileSystem(disk);
     this.currentDirectory = this.disk.getRootDirectory(); // Ensures correct initialization
-    this.path = new ArrayList<>();
-    this.path.add(currentDirectory.getName()); // Start with the root directory name
+    try {
+      disk.getSuperBlock().getMetrics().register(); // Lets JConsole watch the session
+    } catch (JMException e) {
+      out.println("Warning: Metrics are not available over JMX: " + e.getMessage());
+    }
   }
 
   public void start() {
     Scanner scanner = new Scanner(System.in);
-    System.out.println("Welcome to the Filesystem Simulator. Type 'help' for a list of commands.");
+    out.println("Welcome to the Filesystem Simulator. Type 'help' for a list of commands.");
 
     while (true) {
-      System.out.print("Enter command: ");
+      out.print("Enter command: ");
       String inputLine = scanner.nextLine();
       if ("exit".equalsIgnoreCase(inputLine.trim())) {
-        System.out.println("Exiting simulator.");
+        out.println("Exiting simulator.");
+        closeDisk();
         break;
       }
       processInput(inputLine);
@@ -31,15 +69,90 @@ public class FileSystemCLI {
     scanner.close();
   }
 
+  // Timing of one command name over a batch run
+  private static final class CommandStats {
+    long count;
+    long totalNanos;
+    long maxNanos;
+
+    void record(long nanos) {
+      count++;
+      totalNanos += nanos;
+      maxNanos = Math.max(maxNanos, nanos);
+    }
+  }
+
+  // Runs every command of a script without prompts. Blank lines and lines starting with '#' are
+  // skipped, and 'exit' ends the script early. Command output goes to 'batchOut', which is only
+  // written when its buffer fills; the timing report goes to 'report' once the script is done.
+  public void runBatch(BufferedReader script, PrintStream batchOut, PrintStream report) throws IOException {
+    Map<String, CommandStats> stats = new TreeMap<>();
+    long commands = 0;
+    PrintStream console = out;
+    out = batchOut;
+    long started = System.nanoTime();
+    try {
+      String line;
+      while ((line = script.readLine()) != null) {
+        String trimmed = line.trim();
+        if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+          continue;
+        }
+        int space = trimmed.indexOf(' ');
+        String command = (space < 0 ? trimmed : trimmed.substring(0, space)).toLowerCase();
+        if (command.equals("exit")) {
+          break;
+        }
+        long start = System.nanoTime();
+        try {
+          processInput(trimmed);
+        } catch (NumberFormatException e) {
+          out.println("Error: Invalid number in '" + trimmed + "'.");
+        }
+        CommandStats commandStats = stats.get(command);
+        if (commandStats == null) {
+          commandStats = new CommandStats();
+          stats.put(command, commandStats);
+        }
+        commandStats.record(System.nanoTime() - start);
+        commands++;
+      }
+    } finally {
+      batchOut.flush();
+      out = console;
+    }
+    long elapsed = System.nanoTime() - started;
+    printBatchReport(report, stats, commands, elapsed);
+  }
+
+  private static void printBatchReport(PrintStream report, Map<String, CommandStats> stats, long commands,
+      long elapsedNanos) {
+    double seconds = elapsedNanos / 1e9;
+    report.printf("Batch complete: %d commands in %.1f ms (%.0f commands/s)%n", commands, elapsedNanos / 1e6,
+        seconds > 0 ? commands / seconds : 0.0);
+    report.printf("%-12s %10s %12s %10s %10s%n", "Command", "Count", "Total ms", "Avg us", "Max us");
+    for (Map.Entry<String, CommandStats> entry : stats.entrySet()) {
+      CommandStats command = entry.getValue();
+      report.printf("%-12s %10d %12.1f %10.1f %10.1f%n", entry.getKey(), command.count, command.totalNanos / 1e6,
+          command.totalNanos / 1e3 / command.count, command.maxNanos / 1e3);
+    }
+    report.flush();
+  }
+
   private void processInput(String inputLine) {
     String[] inputParts = inputLine.split("\\s+");
     if (inputParts.length == 0)
       return;
 
     String command = inputParts[0].toLowerCase();
+    if (mount != null && WRITE_COMMANDS.contains(command)) {
+      out.println("Error: Snapshot '" + mount.getSnapshot().getName()
+          + "' is mounted read-only. Use 'snapshot unmount' first.");
+      return;
+    }
     switch (command) {
       case "ls":
-        currentDirectory.listContents();
+        printListing(mount != null ? mount.list(mountDirectory).getValue() : fileSystem.list(currentDirectory));
         break;
       case "cd":
         String directoryName = inputParts.length > 1 ? inputParts[1] : ""; // Provide empty if no argument
@@ -50,128 +163,861 @@ public class FileSystemCLI {
         break;
       case "mkfile":
         if (inputParts.length < 3) {
-          System.out.println("Usage: mkfile <name> <size>");
+          out.println("Usage: mkfile <name> <size>");
           return;
         }
-        currentDirectory.createFile(inputParts[1], Integer.parseInt(inputParts[2]));
+        int size = Integer.parseInt(inputParts[2]);
+        FsResult<FileInfo> created = fileSystem.createFile(currentDirectory, inputParts[1], size);
+        if (created.isOk()) {
+          out.println("File '" + inputParts[1] + "' created with size " + size + "KB.");
+        } else {
+          printError(created.getError(), inputParts[1], currentDirectory.getName());
+        }
         break;
       case "rmfile":
         if (inputParts.length < 2) {
-          System.out.println("Usage: rmfile <name>");
+          out.println("Usage: rmfile <name>");
           return;
         }
-        currentDirectory.deleteFile(inputParts[1]);
+        if (fileSystem.deleteFile(currentDirectory, inputParts[1]).isOk()) {
+          out.println("File '" + inputParts[1] + "' deleted.");
+        } else {
+          out.println("Error: Could not delete file '" + inputParts[1] + "'. File may not exist.");
+        }
         break;
       case "mkdir":
         if (inputParts.length < 2) {
-          System.out.println("Usage: mkdir <name>");
+          out.println("Usage: mkdir <name>");
           return;
         }
-        currentDirectory.createDirectory(inputParts[1]);
+        FsResult<Directory> made = fileSystem.createDirectory(currentDirectory, inputParts[1]);
+        if (made.isOk()) {
+          out.println("Directory '" + inputParts[1] + "' created.");
+        } else if (made.getError() == FsError.DIRECTORY_EXISTS) {
+          out.println("Error: Directory '" + inputParts[1] + "' already exists.");
+        } else {
+          out.println("Error: Directory '" + currentDirectory.getName() + "' no longer exists.");
+        }
         break;
       case "rmdir":
         if (inputParts.length < 2) {
-          System.out.println("Usage: rmdir <name>");
+          out.println("Usage: rmdir <name>");
           return;
         }
-        currentDirectory.deleteDirectory(inputParts[1]);
+        if (fileSystem.deleteDirectory(currentDirectory, inputParts[1]).isOk()) {
+          out.println("Directory '" + inputParts[1] + "' deleted.");
+        } else {
+          out.println("Error: Directory '" + inputParts[1] + "' does not exist.");
+        }
         break;
       case "cpfile":
         if (inputParts.length < 3) {
-          System.out.println("Usage: cpfile <source> <destination>");
+          out.println("Usage: cpfile <source> <destination>");
           return;
         }
-        currentDirectory.copyFile(inputParts[1], inputParts[2], disk); // Pass the disk object
+        FsResult<FileInfo> copied = fileSystem.copyFile(currentDirectory, inputParts[1], inputParts[2]);
+        if (copied.isOk()) {
+          out.println("File '" + inputParts[1] + "' copied to '" + copied.getValue().getName() + "' in directory '"
+              + inputParts[2] + "'.");
+        } else if (copied.getError() == FsError.DIRECTORY_NOT_FOUND) {
+          out.println("Destination directory does not exist.");
+        } else if (copied.getError() == FsError.FILE_NOT_FOUND) {
+          out.println("Source file '" + inputParts[1] + "' does not exist.");
+        } else {
+          out.println("Error: Could not copy '" + inputParts[1] + "': " + copied.getError().getMessage() + ".");
+        }
         break;
       case "mvfile":
         if (inputParts.length < 4) {
-          System.out.println("Usage: mvfile <source> <destinationDirName> <newName>");
+          out.println("Usage: mvfile <source> <destinationDirName> <newName>");
           return;
         }
-        currentDirectory.moveFile(inputParts[1], inputParts[2], inputParts[3], disk.getRootDirectory(),
-            currentDirectory);
+        FsResult<FileInfo> moved = fileSystem.moveFile(currentDirectory, inputParts[1], inputParts[2], inputParts[3]);
+        if (moved.isOk()) {
+          out.println("File '" + inputParts[1] + "' moved to '" + inputParts[3] + "' in directory '" + inputParts[2]
+              + "'.");
+        } else if (moved.getError() == FsError.DIRECTORY_NOT_FOUND) {
+          out.println("Source or destination directory does not exist.");
+        } else if (moved.getError() == FsError.FILE_NOT_FOUND) {
+          out.println("Source file does not exist: " + inputParts[1]);
+        } else {
+          printError(moved.getError(), inputParts[3], inputParts[2]);
+        }
         break;
       case "diskinfo":
-        disk.displayDiskInfo();
+        printDiskInfo();
+        break;
+      case "cacheinfo":
+        printCacheInfo();
+        break;
+      case "stats":
+        stats(inputParts.length < 2 ? "show" : inputParts[1].toLowerCase());
+        break;
+      case "defrag":
+        defrag(inputParts.length < 2 ? "status" : inputParts[1].toLowerCase());
+        break;
+      case "snapshot":
+        snapshot(inputParts.length < 2 ? "list" : inputParts[1].toLowerCase(),
+            inputParts.length < 3 ? null : inputParts[2]);
+        break;
+      case "du":
+      case "find":
+        if (mount != null) {
+          out.println("Error: " + command + " works on the live tree only. Use 'snapshot unmount' first.");
+        } else if (command.equals("du")) {
+          diskUsage(inputParts);
+        } else {
+          find(inputParts);
+        }
         break;
       case "fileinfo":
         if (inputParts.length < 2) {
-          System.out.println("Usage: fileinfo <file>");
+          out.println("Usage: fileinfo <file>");
           return;
         }
-        disk.printFileInfo(inputParts[1]);
+        printFileInfo(inputParts[1]);
         break;
       case "help":
         printHelp();
         break;
       case "showsystem":
-        disk.listFileSystem();
+        out.println(disk.listFileSystem());
+        break;
+      case "sync":
+        sync();
         break;
       case "writefile":
-        if (inputParts.length < 4) {
-          System.out.println("Usage: writefile <-a|-r> <filename> <size>");
+        if (inputParts.length != 4) {
+          out.println("Usage: writefile <-a|-r> <filename> <size>");
+          return;
+        }
+        if (!writeFile(inputParts[1], inputParts[2], Integer.parseInt(inputParts[3]))) {
+          out.println("Failed to modify file size.");
+        }
+        break;
+      case "writetext":
+        String[] writeParts = inputLine.trim().split("\\s+", 4);
+        if (writeParts.length < 4) {
+          out.println("Usage: writetext <filename> <offset> <text>");
           return;
         }
-        if (!disk.writeFile(inputLine)) {
-          System.out.println("Failed to modify file size.");
+        writeText(writeParts[1], Long.parseLong(writeParts[2]), writeParts[3]);
+        break;
+      case "readtext":
+        if (inputParts.length < 2) {
+          out.println("Usage: readtext <filename>");
+          return;
         }
+        readText(inputParts[1]);
+        break;
+      default:
+        out.println("Unknown command. Type 'help' for a list of commands.");
+    }
+  }
+
+  // Renders the errors a file can fail to be created or renamed with
+  private void printError(FsError error, String fileName, String directoryName) {
+    switch (error) {
+      case FILE_EXISTS:
+        out.println("Error: File '" + fileName + "' already exists in " + directoryName + ".");
+        break;
+      case NAME_TOO_LONG:
+        out.println("Error: File name exceeds " + Inode.MAX_NAME_LENGTH + " characters limit.");
+        break;
+      case FILE_TOO_LARGE:
+        out.println("Error: File size cannot exceed " + disk.getGeometry().getMaxFileBytes() / 1024 + " KB.");
+        break;
+      case DIRECTORY_NOT_FOUND:
+        out.println("Error: Directory '" + directoryName + "' no longer exists.");
         break;
       default:
-        System.out.println("Unknown command. Type 'help' for a list of commands.");
+        out.println("Error: Could not create file '" + fileName + "': " + error.getMessage() + ".");
+    }
+  }
+
+  private void printListing(DirectoryListing listing) {
+    out.println("Contents of directory '" + listing.getName() + "':");
+    for (String dirName : listing.getSubDirectories()) {
+      out.println("[Dir] " + dirName);
+    }
+    out.println("Files in directory '" + listing.getName() + "':");
+    if (listing.getFiles().isEmpty()) {
+      out.println("No files found in this directory.");
+      return;
+    }
+    for (FileInfo file : listing.getFiles()) {
+      // Size is stored in bytes and shown in KB
+      out.println("Name: " + file.getName() + ", Size: " + file.getSize() / 1024 + "KB, Last Modified: "
+          + FsClock.format(file.getModifyTime()));
+    }
+  }
+
+  private boolean writeFile(String option, String fileName, int sizeChangeKB) {
+    int deltaKB;
+    if (option.equals("-a")) {
+      deltaKB = sizeChangeKB;
+    } else if (option.equals("-r")) {
+      deltaKB = -sizeChangeKB;
+    } else {
+      out.println("Error: Invalid option. Use '-a' to append or '-r' to reduce.");
+      return false;
+    }
+
+    FsResult<Integer> resized = fileSystem.resizeFile(currentDirectory, fileName, deltaKB);
+    if (!resized.isOk()) {
+      switch (resized.getError()) {
+        case FILE_TOO_LARGE:
+          out.println("Error: File size cannot exceed " + disk.getGeometry().getMaxFileBytes() / 1024 + " KB.");
+          break;
+        case NEGATIVE_SIZE:
+          out.println("Error: File size cannot be negative.");
+          break;
+        case NO_SPACE:
+          out.println("Error: Insufficient free blocks.");
+          break;
+        default:
+          out.println("Error: File not found.");
+      }
+      return false;
+    }
+
+    if (deltaKB == 0) {
+      out.println("File size unchanged.");
+    } else if (resized.getValue() == 0) {
+      out.println("File size updated without reallocating blocks.");
+    } else {
+      boolean delayed = disk.getSuperBlock().getDelayedAllocation().isEnabled();
+      out.println("File '" + fileName + "' updated: " + sizeChangeKB + " KB "
+          + (deltaKB < 0 ? "deallocated." : delayed ? "reserved, allocated on sync." : "allocated."));
+    }
+    return true;
+  }
+
+  // du [path] [depth]: every directory down to depth below path, deepest first, as du prints them
+  private void diskUsage(String[] inputParts) {
+    String path = inputParts.length < 2 ? "." : inputParts[1];
+    int depth;
+    try {
+      depth = inputParts.length < 3 ? Integer.MAX_VALUE : Integer.parseInt(inputParts[2]);
+    } catch (NumberFormatException e) {
+      out.println("Usage: du [path] [depth]");
+      return;
+    }
+    FsResult<DiskUsage> usage = fileSystem.diskUsage(currentDirectory, path);
+    if (!usage.isOk()) {
+      out.println("Directory not found: " + path);
+      return;
+    }
+    printUsage(usage.getValue(), depth);
+  }
+
+  private void printUsage(DiskUsage usage, int depth) {
+    if (depth > 0) {
+      for (DiskUsage child : usage.getChildren()) {
+        printUsage(child, depth - 1);
+      }
+    }
+    long kilobytes = usage.getBlocks() * disk.getGeometry().getBlockSize() / 1024;
+    out.println(String.format(Locale.ROOT, "%10d KB %8d files %12d bytes  %s", kilobytes, usage.getFiles(),
+        usage.getBytes(), usage.getPath()));
+  }
+
+  // find [path] [-name pattern] [-size +KB|-KB] [-mmin +minutes|-minutes]: -size +N is larger than
+  // N KB and -N smaller; -mmin -N was modified in the last N minutes and +N longer ago
+  private void find(String[] inputParts) {
+    String usage = "Usage: find [path] [-name pattern] [-size +KB|-KB] [-mmin +minutes|-minutes]";
+    int next = 1;
+    String path = ".";
+    if (inputParts.length > 1 && !inputParts[1].startsWith("-")) {
+      path = inputParts[1];
+      next = 2;
+    }
+    FileQuery query = new FileQuery();
+    try {
+      for (; next < inputParts.length; next += 2) {
+        if (next + 1 >= inputParts.length) {
+          out.println(usage);
+          return;
+        }
+        String value = inputParts[next + 1];
+        boolean more = value.startsWith("+");
+        boolean less = value.startsWith("-");
+        long amount = more || less ? Long.parseLong(value.substring(1)) : -1;
+        switch (inputParts[next]) {
+          case "-name":
+            query.setNamePattern(value);
+            break;
+          case "-size":
+            if (more) {
+              query.setMinSize(amount * 1024 + 1);
+            } else if (less) {
+              query.setMaxSize(amount * 1024 - 1);
+            } else {
+              out.println(usage);
+              return;
+            }
+            break;
+          case "-mmin":
+            long boundary = FsClock.now() - amount * 60_000_000_000L;
+            if (more) {
+              query.setModifiedBefore(boundary);
+            } else if (less) {
+              query.setModifiedAfter(boundary);
+            } else {
+              out.println(usage);
+              return;
+            }
+            break;
+          default:
+            out.println(usage);
+            return;
+        }
+      }
+    } catch (NumberFormatException e) {
+      out.println(usage);
+      return;
+    }
+    FsResult<SortedMap<String, FileInfo>> found = fileSystem.find(currentDirectory, path, query);
+    if (!found.isOk()) {
+      out.println("Directory not found: " + path);
+      return;
+    }
+    for (Map.Entry<String, FileInfo> entry : found.getValue().entrySet()) {
+      out.println(String.format(Locale.ROOT, "%12d bytes  %s  %s", entry.getValue().getSize(),
+          FsClock.format(entry.getValue().getModifyTime()), entry.getKey()));
+    }
+    out.println(found.getValue().size() + " files found.");
+  }
+
+  private void printFileInfo(String fileName) {
+    FsResult<FileInfo> result = mount != null ? mount.stat(mountDirectory, fileName)
+        : fileSystem.stat(currentDirectory, fileName);
+    if (!result.isOk()) {
+      out.println("File information not found for: " + fileName);
+      return;
+    }
+    FileInfo file = result.getValue();
+    out.println("File Information for '" + fileName + "':");
+    out.println("File size: " + file.getSize() + " bytes");
+    out.println("Blocks used: " + Arrays.toString(file.getBlocks()));
+    out.println("Extents: " + file.getExtentCount());
+    int delayedBlocks = disk.getGeometry().blocksForBytes(file.getSize()) - file.getBlocksAllocated();
+    if (file.isInline()) {
+      out.println("Inline data: " + file.getSize() + " bytes (kept in the inode)");
+    } else if (delayedBlocks > 0) {
+      out.println("Delayed blocks: " + delayedBlocks + " (allocated on sync)");
+    }
+    if (!file.getIndirectBlocks().isEmpty()) {
+      out.println("Indirect blocks: " + file.getIndirectBlocks());
+    }
+    out.println("Last Modified Time: " + FsClock.format(file.getModifyTime()));
+    out.println("Last Access Time: " + FsClock.format(file.getAccessTime()));
+    out.println("Last Change Time: " + FsClock.format(file.getChangeTime()));
+    out.println("Used: Yes");
+  }
+
+  // Gives delayed growth its blocks and forces everything to the image
+  private void sync() {
+    int files = disk.getSuperBlock().getDelayedAllocation().countFiles();
+    disk.flush();
+    int left = disk.getSuperBlock().getDelayedAllocation().countFiles();
+    if (left > 0) {
+      out.println("Error: No space for the extents of " + left + " files, their growth stays buffered.");
+    } else {
+      out.println("Disk synced, blocks allocated for " + files + " growing files.");
+    }
+  }
+
+  private void printDiskInfo() {
+    DiskGeometry geometry = disk.getGeometry();
+    SuperBlock superBlock = disk.getSuperBlock();
+    int totalBlocks = geometry.getTotalBlocks();
+    int freeBlocks = superBlock.countFreeBlocks();
+    int usedBlocks = totalBlocks - freeBlocks;
+    long usedBytes = (long) usedBlocks * geometry.getBlockSize();
+
+    out.println("Disk Information:");
+    out.println("Total Disk Space: " + geometry.getDiskSizeBytes() + " Bytes");
+    out.println("Used Disk Space: " + usedBytes + " Bytes");
+    out.println("Remaining Disk Space: " + (geometry.getDiskSizeBytes() - usedBytes) + " Bytes");
+    out.println("Block Size: " + geometry.getBlockSize() + " Bytes");
+    out.println("Total Blocks: " + totalBlocks);
+    out.println("Free Blocks: " + freeBlocks);
+    out.println("Used Blocks: " + usedBlocks);
+    out.println("Largest Free Run: " + superBlock.largestFreeRun() + " Blocks");
+    out.println("Shared Blocks: " + superBlock.getRefCounts().countSharedBlocks() + " (copies and snapshots)");
+    DelayedAllocation delayed = superBlock.getDelayedAllocation();
+    out.println("Delayed Allocation: " + (delayed.isEnabled() ? superBlock.countReservedBlocks()
+        + " Blocks reserved for " + delayed.countFiles() + " files, " + delayed.getBufferedBytes() / 1024 + " of "
+        + delayed.getBudgetBytes() / 1024 + " KB buffered" : "off"));
+    out.println("Inline Data: " + (geometry.getInlineDataBytes() > 0 ? superBlock.countInlineFiles()
+        + " files of up to " + geometry.getInlineDataBytes() + " Bytes kept in their inodes" : "off"));
+    SnapshotManager snapshots = superBlock.getSnapshots();
+    out.println("Snapshots: " + snapshots.list().size() + " (" + snapshots.countPendingRecords()
+        + " records of deleted snapshots to reclaim)");
+
+    int usedInodes = superBlock.countUsedInodes();
+    out.println("Total Inodes: " + geometry.getMaxFiles());
+    out.println("Used Inodes: " + usedInodes);
+    out.println("Free Inodes: " + (geometry.getMaxFiles() - usedInodes));
+
+    Journal journal = disk.getJournal();
+    if (journal != null) {
+      out.println("Journal Size: " + journal.size() + " Bytes");
+      out.println("Journal Records: " + journal.getRecords() + " (" + journal.getSyncs() + " syncs)");
+      out.println("Checkpoints: " + journal.getCheckpoints());
+      out.println("Recovered Records: " + journal.getRecoveredRecords());
+    }
+  }
+
+  private void printCacheInfo() {
+    BufferCache cache = disk.getCache();
+    long lookups = cache.getHits() + cache.getMisses();
+    out.println("Buffer Cache Information:");
+    out.println("Policy: " + cache.getPolicy());
+    out.println("Capacity: " + cache.getCapacity() + " Blocks");
+    out.println("Resident Blocks: " + cache.getResidentBlocks());
+    out.println("Dirty Blocks: " + cache.getDirtyBlocks());
+    out.println("Hits: " + cache.getHits());
+    out.println("Misses: " + cache.getMisses());
+    out.println("Hit Ratio: " + (lookups == 0 ? 0 : cache.getHits() * 100 / lookups) + "%");
+    out.println("Evictions: " + cache.getEvictions());
+    out.println("Write-backs: " + cache.getWriteBacks());
+
+    DentryCache dentries = disk.getSuperBlock().getDentryCache();
+    out.println("Path Cache Entries: " + dentries.size());
+    out.println("Path Cache Hits: " + dentries.getHits());
+    out.println("Path Cache Misses: " + dentries.getMisses());
+  }
+
+  private void stats(String action) {
+    FsMetrics metrics = disk.getSuperBlock().getMetrics();
+    switch (action) {
+      case "show":
+        printStats(metrics);
+        break;
+      case "reset":
+        metrics.reset();
+        out.println("Statistics reset.");
+        break;
+      case "on":
+      case "off":
+        metrics.setEnabled(action.equals("on"));
+        out.println("Statistics collection turned " + action + ".");
+        break;
+      default:
+        out.println("Usage: stats <show|reset|on|off>");
+    }
+  }
+
+  // Latencies cover the timed calls only: every call, or one in the sample period for lookups and
+  // path resolution. An operation with no timed calls shows dashes rather than zero latencies.
+  private void printStats(FsMetrics metrics) {
+    out.println("Operation Statistics (" + (metrics.isEnabled() ? "collecting" : "off") + ", times in microseconds):");
+    out.println(String.format(Locale.ROOT, "%-13s %9s %7s %9s %7s %10s %10s %10s %10s %10s %10s", "Operation",
+        "Count", "Failed", "Timed", "Sample", "Mean", "p50", "p90", "p99", "p99.9", "Max"));
+    for (OperationStats stats : metrics.getOperations()) {
+      String sample = stats.getSamplePeriod() == 1 ? "all" : "1/" + stats.getSamplePeriod();
+      if (stats.getTimedCount() == 0) {
+        out.println(String.format(Locale.ROOT, "%-13s %9d %7d %9d %7s %10s %10s %10s %10s %10s %10s",
+            stats.getName(), stats.getCount(), stats.getFailures(), 0, sample, "-", "-", "-", "-", "-", "-"));
+        continue;
+      }
+      out.println(String.format(Locale.ROOT, "%-13s %9d %7d %9d %7s %10.3f %10.3f %10.3f %10.3f %10.3f %10.3f",
+          stats.getName(), stats.getCount(), stats.getFailures(), stats.getTimedCount(), sample,
+          stats.getMeanMicros(), stats.getP50Micros(), stats.getP90Micros(), stats.getP99Micros(),
+          stats.getP999Micros(), stats.getMaxMicros()));
+    }
+    out.println("Allocator Searches: " + metrics.getAllocatorSearches() + " (examined per search: mean "
+        + String.format(Locale.ROOT, "%.1f", metrics.getAllocatorScanMean()) + ", p99 "
+        + metrics.getAllocatorScanP99() + ", max " + metrics.getAllocatorScanMax() + ")");
+    out.println("Free Blocks: " + metrics.getFreeBlocks() + " in " + metrics.getFreeRuns() + " runs, largest "
+        + metrics.getLargestFreeRun());
+    out.println("Free Space Fragmentation: " + metrics.getFreeSpaceFragmentationPercent() + "%");
+  }
+
+  private void defrag(String action) {
+    Defragmenter defragmenter = disk.getDefragmenter();
+    switch (action) {
+      case "start":
+        defragmenter.start();
+        out.println("Defragmenter started.");
+        break;
+      case "stop":
+        defragmenter.stop();
+        out.println("Defragmenter stopped.");
+        break;
+      case "run":
+        int moved = defragmenter.runPass(false);
+        out.println("Defragmentation pass moved " + moved + " blocks.");
+        printDefragInfo(defragmenter);
+        break;
+      case "status":
+        printDefragInfo(defragmenter);
+        break;
+      default:
+        out.println("Usage: defrag <start|stop|status|run>");
+    }
+  }
+
+  private void printDefragInfo(Defragmenter defragmenter) {
+    Defragmenter.Report report = defragmenter.measure();
+    out.println("Defragmenter Information:");
+    out.println("State: " + (!defragmenter.isRunning() ? "stopped" : defragmenter.getPassFiles() == 0 ? "idle"
+        : "running, file " + defragmenter.getPosition() + " of " + defragmenter.getPassFiles()));
+    out.println("Budget: " + (defragmenter.getBudgetKB() == 0 ? "unlimited" : defragmenter.getBudgetKB() + " KB/s"));
+    out.println("Passes: " + defragmenter.getPasses());
+    out.println("Files Moved: " + defragmenter.getFilesMoved());
+    out.println("Blocks Moved: " + defragmenter.getBlocksMoved());
+    out.println("Busy Skips: " + defragmenter.getBusySkips());
+    out.println("Free Blocks: " + report.getFreeBlocks());
+    out.println("Free Runs: " + report.getFreeRuns());
+    out.println("Largest Free Run: " + report.getLargestFreeRun() + " Blocks");
+    out.println("Free Space Fragmentation: " + report.getFreeSpaceFragmentationPercent() + "%");
+    out.println("Fragmented Files: " + report.getFragmentedFiles() + " of " + report.getFiles());
+    out.println("Average Extents per File: " + String.format("%.2f", report.getAverageExtents()));
+  }
+
+  private void snapshot(String action, String name) {
+    if (name == null && (action.equals("create") || action.equals("delete") || action.equals("mount"))) {
+      out.println("Usage: snapshot " + action + " <name>");
+      return;
+    }
+    switch (action) {
+      case "create":
+        FsResult<Snapshot> created = fileSystem.createSnapshot(name);
+        if (created.isOk()) {
+          out.println("Snapshot '" + name + "' created.");
+        } else {
+          out.println("Error: Could not create snapshot '" + name + "': " + created.getError().getMessage() + ".");
+        }
+        break;
+      case "delete":
+        FsResult<Void> deleted = fileSystem.deleteSnapshot(name);
+        if (deleted.isOk()) {
+          out.println("Snapshot '" + name + "' deleted, its space is reclaimed in the background.");
+        } else if (deleted.getError() == FsError.SNAPSHOT_MOUNTED) {
+          out.println("Error: Snapshot '" + name + "' is mounted. Use 'snapshot unmount' first.");
+        } else {
+          out.println("Error: Snapshot '" + name + "' does not exist.");
+        }
+        break;
+      case "list":
+        List<Snapshot> snapshots = fileSystem.listSnapshots();
+        if (snapshots.isEmpty()) {
+          out.println("No snapshots.");
+        }
+        SnapshotManager manager = disk.getSuperBlock().getSnapshots();
+        for (Snapshot snapshot : snapshots) {
+          out.println(snapshot.getName() + ", Created: " + FsClock.format(snapshot.getCreatedTime()) + ", Changed Since: "
+              + manager.countRecords(snapshot) + " inodes and directories"
+              + (manager.isMounted(snapshot) ? ", mounted" : ""));
+        }
+        break;
+      case "mount":
+        if (mount != null) {
+          out.println("Error: Snapshot '" + mount.getSnapshot().getName()
+              + "' is already mounted. Use 'snapshot unmount' first.");
+          return;
+        }
+        FsResult<SnapshotMount> mounted = fileSystem.mountSnapshot(name);
+        if (!mounted.isOk()) {
+          out.println("Error: Snapshot '" + name + "' does not exist.");
+          return;
+        }
+        mount = mounted.getValue();
+        mountDirectory = "/";
+        out.println("Snapshot '" + name + "' mounted read-only. ls, cd, pwd, fileinfo and readtext now show it.");
+        break;
+      case "unmount":
+        if (mount == null) {
+          out.println("Error: No snapshot is mounted.");
+          return;
+        }
+        mount.unmount();
+        out.println("Snapshot '" + mount.getSnapshot().getName() + "' unmounted.");
+        mount = null;
+        break;
+      default:
+        out.println("Usage: snapshot <create|delete|mount> <name> | snapshot <list|unmount>");
+    }
+  }
+
+  private void writeText(String fileName, long offset, String text) {
+    FsResult<FileHandle> opened = fileSystem.open(currentDirectory, fileName);
+    if (!opened.isOk()) {
+      out.println("Error: File not found.");
+      return;
+    }
+    FileHandle file = opened.getValue();
+    try {
+      int written = file.write(ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)), offset);
+      out.println("Wrote " + written + " bytes to '" + fileName + "' at offset " + offset + ".");
+    } catch (IOException e) {
+      out.println("Error: " + e.getMessage());
+    } finally {
+      file.close();
+    }
+  }
+
+  private void readText(String fileName) {
+    if (mount != null) {
+      FsResult<FileInfo> file = mount.stat(mountDirectory, fileName);
+      if (!file.isOk()) {
+        out.println("Error: File not found.");
+        return;
+      }
+      ByteBuffer contents = ByteBuffer.allocate(file.getValue().getSize());
+      mount.read(file.getValue(), contents, 0);
+      printText(contents);
+      return;
+    }
+    FsResult<FileHandle> opened = fileSystem.open(currentDirectory, fileName);
+    if (!opened.isOk()) {
+      out.println("Error: File not found.");
+      return;
+    }
+    FileHandle file = opened.getValue();
+    ByteBuffer contents = ByteBuffer.allocate((int) file.size());
+    file.read(contents, 0);
+    file.close();
+    printText(contents);
+  }
+
+  private void printText(ByteBuffer contents) {
+    contents.flip();
+    StringBuilder text = new StringBuilder();
+    while (contents.hasRemaining()) {
+      char c = (char) (contents.get() & 0xFF);
+      text.append(c == '\n' || (c >= 32 && c < 127) ? c : '.'); // Unwritten and binary bytes show as dots
+    }
+    out.println(text);
+  }
+
+  private void closeDisk() {
+    if (mount != null) {
+      mount.unmount();
+      mount = null;
+    }
+    try {
+      disk.close();
+    } catch (IOException e) {
+      out.println("Error: Could not flush disk image: " + e.getMessage());
     }
   }
 
   private void changeDirectory(String directoryName) {
+    if (mount != null) {
+      if (directoryName.trim().isEmpty()) {
+        mountDirectory = "/";
+        out.println("Returned to root directory.");
+        return;
+      }
+      FsResult<String> newDir = mount.resolveDirectory(mountDirectory, directoryName);
+      if (newDir.isOk()) {
+        mountDirectory = newDir.getValue();
+      } else {
+        out.println("Directory not found: " + directoryName);
+      }
+      return;
+    }
     if (directoryName == null || directoryName.trim().isEmpty()) {
       // Reset to root directory if no directory name is provided or if it is an empty
       // string
       currentDirectory = disk.getRootDirectory();
-      path.clear();
-      path.add(currentDirectory.getName());
-      System.out.println("Returned to root directory.");
+      out.println("Returned to root directory.");
     } else {
-      Directory newDir = currentDirectory.findDirectory(directoryName, disk.getRootDirectory(), currentDirectory);
-      if (newDir != null) {
-        currentDirectory = newDir;
-        if (directoryName.equals("..")) {
-          if (path.size() > 1)
-            path.remove(path.size() - 1);
-        } else {
-          path.add(directoryName);
-        }
+      FsResult<Directory> newDir = fileSystem.resolveDirectory(currentDirectory, directoryName);
+      if (newDir.isOk()) {
+        currentDirectory = newDir.getValue();
       } else {
-        System.out.println("Directory not found: " + directoryName);
+        out.println("Directory not found: " + directoryName);
       }
     }
   }
 
   private void printWorkingDirectory() {
-    System.out.println("/" + String.join("/", path));
+    // Shown under the root directory's name, as in "/root/docs"
+    String root = "/" + disk.getRootDirectory().getName();
+    String path = mount != null ? mountDirectory : currentDirectory.getPath();
+    String prefix = mount != null ? "snapshot " + mount.getSnapshot().getName() + ": " : "";
+    out.println(prefix + (path.length() == 1 ? root : root + path));
   }
 
   private void printHelp() {
-    System.out.println("Available commands:");
-    System.out.println("ls - List directory contents");
-    System.out.println("cd <directoryName> - Change directory");
-    System.out.println("pwd - Print working directory");
-    System.out.println("mkfile <name> <size> - Create a new file");
-    System.out.println("rmfile <name> - Remove a file");
-    System.out.println("mkdir <name> - Create a new directory");
-    System.out.println("rmdir <name> - Remove a directory and its contents");
-    System.out.println(
+    out.println("Available commands:");
+    out.println("ls - List directory contents");
+    out.println("cd <directoryName> - Change directory");
+    out.println("pwd - Print working directory");
+    out.println("mkfile <name> <size> - Create a new file");
+    out.println("rmfile <name> - Remove a file");
+    out.println("mkdir <name> - Create a new directory");
+    out.println("rmdir <name> - Remove a directory and its contents");
+    out.println("du [path] [depth] - Show the space used below a directory, per subdirectory");
+    out.println("find [path] [-name pattern] [-size +KB|-KB] [-mmin +minutes|-minutes] - Search for files below a directory");
+    out.println(
         "cpfile <source> <destination> - Copy a file to a specified destination. Example: cpfile myfile /destinationFolder");
-    System.out
-        .println(
+    out.println(
             "mvfile <source> <destinationDirName> <newName> - Move a file to another directory and optionally rename it. Example: mvfile myfile /destinationFolder newfile");
-    System.out.println("diskinfo - Display disk information");
-    System.out.println("fileinfo <file> - Display information about a file");
-    System.out.println("showsystem - Show the file system's block allocation as an array");
-    System.out.println(
+    out.println("diskinfo - Display disk information");
+    out.println("fileinfo <file> - Display information about a file");
+    out.println("defrag <start|stop|status|run> - Control the background defragmenter or run one pass now");
+    out.println("snapshot <create|delete|mount> <name> - Take, delete or mount (read-only) a snapshot of the whole tree");
+    out.println("snapshot <list|unmount> - List the snapshots or return to the live tree");
+    out.println("cacheinfo - Display buffer cache statistics");
+    out.println("stats [show|reset|on|off] - Display, clear or switch operation latency statistics");
+    out.println("showsystem - Show the file system's block allocation as an array");
+    out.println("sync - Allocate the blocks of files grown since their last sync and flush the disk");
+    out.println(
         "writefile <-a (append) | -r (reduce)> <filename> <sizeChange> - Modify the size of a file by appending or reducing its size");
-    System.out.println("exit - Exit the simulator");
+    out.println("writetext <filename> <offset> <text> - Write text into a file at a byte offset, growing it if needed");
+    out.println("readtext <filename> - Print the contents of a file");
+    out.println("exit - Exit the simulator");
   }
 
+  // Usage: java FileSystemCLI [imageFile] [--block-size N] [--blocks N] [--inodes N] [--max-file-blocks N]
+  // [--inline-bytes N] [--alloc first-fit|best-fit|next-fit] [--cache-kb N] [--cache-policy lru|clock|arc]
+  // [--journal-kb N] [--defrag-kb N] [--delalloc-kb N] [--batch script [--out file] | --serve port]
+  // With an image file the disk blocks are memory-mapped from that file instead of the heap.
+  // The geometry options apply to in-memory disks and to images that do not exist yet.
+  // With --batch the commands are read from the script instead of the console, and their output
+  // goes to the --out file (or the console) followed by a timing report.
+  // With --serve the disk is served to network clients (see FileServer) instead of the console.
   public static void main(String[] args) {
-    new FileSystemCLI().start();
+    String imagePath = null;
+    String batchPath = null;
+    int servePort = -1;
+    String outputPath = null;
+    int blockSize = DiskGeometry.DEFAULT_BLOCK_SIZE;
+    int totalBlocks = DiskGeometry.DEFAULT_TOTAL_BLOCKS;
+    int maxFiles = DiskGeometry.DEFAULT_MAX_FILES;
+    int maxFileBlocks = DiskGeometry.DEFAULT_MAX_FILE_BLOCKS;
+    int inlineDataBytes = DiskGeometry.DEFAULT_INLINE_DATA_BYTES;
+    DiskOptions options = new DiskOptions();
+    try {
+      for (int i = 0; i < args.length; i++) {
+        switch (args[i]) {
+          case "--block-size":
+            blockSize = Integer.parseInt(args[++i]);
+            break;
+          case "--blocks":
+            totalBlocks = Integer.parseInt(args[++i]);
+            break;
+          case "--inodes":
+            maxFiles = Integer.parseInt(args[++i]);
+            break;
+          case "--max-file-blocks":
+            maxFileBlocks = Integer.parseInt(args[++i]);
+            break;
+          case "--inline-bytes":
+            inlineDataBytes = Integer.parseInt(args[++i]);
+            break;
+          case "--alloc":
+            options.setAllocationPolicy(AllocationPolicy.parse(args[++i]));
+            break;
+          case "--cache-kb":
+            options.setCacheBytes(Long.parseLong(args[++i]) * 1024);
+            break;
+          case "--cache-policy":
+            options.setCachePolicy(CachePolicy.parse(args[++i]));
+            break;
+          case "--journal-kb":
+            options.setJournalLimit(Long.parseLong(args[++i]) * 1024);
+            break;
+          case "--defrag-kb":
+            options.setDefragBudgetKB(Long.parseLong(args[++i]));
+            break;
+          case "--delalloc-kb":
+            options.setDelayedAllocationBytes(Long.parseLong(args[++i]) * 1024);
+            break;
+          case "--batch":
+            batchPath = args[++i];
+            break;
+          case "--out":
+            outputPath = args[++i];
+            break;
+          case "--serve":
+            servePort = Integer.parseInt(args[++i]);
+            break;
+          default:
+            imagePath = args[i];
+        }
+      }
+    } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+      System.out.println("Usage: java FileSystemCLI [imageFile] [--block-size N] [--blocks N] [--inodes N]"
+          + " [--max-file-blocks N] [--inline-bytes N] [--alloc first-fit|best-fit|next-fit] [--cache-kb N]"
+          + " [--cache-policy lru|clock|arc] [--journal-kb N] [--defrag-kb N] [--delalloc-kb N] [--batch script [--out file]"
+          + " | --serve port]");
+      return;
+    }
+
+    try {
+      DiskGeometry geometry = new DiskGeometry(blockSize, totalBlocks, maxFiles, maxFileBlocks, inlineDataBytes);
+      Disk disk;
+      if (imagePath == null) {
+        disk = new Disk(geometry, options);
+      } else if (new File(imagePath).exists()) {
+        disk = Disk.open(imagePath, options);
+      } else {
+        disk = Disk.format(imagePath, geometry, options);
+      }
+      if (servePort >= 0) {
+        serve(new FileSystemCLI(disk), servePort);
+      } else if (batchPath == null) {
+        new FileSystemCLI(disk).start();
+      } else {
+        runBatchFile(new FileSystemCLI(disk), batchPath, outputPath);
+      }
+    } catch (IllegalArgumentException e) {
+      System.out.println("Error: " + e.getMessage());
+    } catch (IOException e) {
+      System.out.println("Error: Could not open disk image '" + imagePath + "': " + e.getMessage());
+    }
+  }
+
+  // Serves the disk until 'exit' is typed. Without a console (standard input at its end) it serves
+  // until the process is stopped; the journal covers the metadata then.
+  private static void serve(FileSystemCLI cli, int port) {
+    FileServer server = new FileServer(cli.fileSystem, new InetSocketAddress(port));
+    try {
+      server.start();
+      System.out.println("Serving on port " + server.getPort() + " with "
+          + (server.usesVirtualThreads() ? "virtual threads" : "a thread pool") + ". Type 'exit' to stop.");
+      BufferedReader console = new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8));
+      String line;
+      while ((line = console.readLine()) != null && !line.trim().equalsIgnoreCase("exit")) {
+        System.out.println(server.getOpenConnections() + " connections open, " + server.getRequests()
+            + " requests served.");
+      }
+      if (line == null) {
+        new CountDownLatch(1).await();
+      }
+      server.close();
+      System.out.println("Server stopped after " + server.getRequests() + " requests on "
+          + server.getAcceptedConnections() + " connections.");
+    } catch (IOException e) {
+      System.out.println("Error: Could not serve on port " + port + ": " + e.getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      cli.closeDisk();
+    }
+  }
+
+  private static void runBatchFile(FileSystemCLI cli, String batchPath, String outputPath) {
+    PrintStream out = null;
+    try (BufferedReader script = Files.newBufferedReader(Paths.get(batchPath), StandardCharsets.UTF_8)) {
+      // Without --out the results share the console, whose descriptor must stay open afterwards
+      out = new PrintStream(new BufferedOutputStream(outputPath == null ? new FileOutputStream(FileDescriptor.out)
+          : new FileOutputStream(outputPath), BATCH_OUTPUT_BUFFER), false, "UTF-8");
+      cli.runBatch(script, out, System.out);
+    } catch (IOException e) {
+      System.out.println("Error: Batch run failed: " + e.getMessage());
+    } finally {
+      if (out != null && outputPath != null) {
+        out.close();
+      }
+      cli.closeDisk();
+    }
   }
 }
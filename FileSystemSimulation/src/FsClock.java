@@ -0,0 +1,24 @@
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+// Timestamps for inodes. Times are kept as epoch nanoseconds: taking one costs a nanoTime call and
+// allocates nothing, and they are only turned into text when displayed.
+public final class FsClock {
+  private static final DateTimeFormatter FORMAT = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss")
+      .withZone(ZoneId.systemDefault());
+  private static final long EPOCH_OFFSET = System.currentTimeMillis() * 1_000_000L - System.nanoTime();
+
+  private FsClock() {
+  }
+
+  // Current time in nanoseconds since the epoch. Derived from nanoTime, so it never goes backwards.
+  public static long now() {
+    return EPOCH_OFFSET + System.nanoTime();
+  }
+
+  // Formats a timestamp for display; 0 means the time was never set
+  public static String format(long epochNanos) {
+    return epochNanos == 0 ? "-" : FORMAT.format(Instant.ofEpochSecond(0, epochNanos));
+  }
+}
@@ -0,0 +1,26 @@
+// Why a filesystem operation failed. The message is a default description; front ends may word
+// their own using the names involved.
+public enum FsError {
+  FILE_NOT_FOUND("File not found"),
+  FILE_EXISTS("File already exists"),
+  DIRECTORY_NOT_FOUND("Directory not found"),
+  DIRECTORY_EXISTS("Directory already exists"),
+  NAME_TOO_LONG("File name exceeds " + Inode.MAX_NAME_LENGTH + " characters limit"),
+  FILE_TOO_LARGE("File size limit exceeded"),
+  NEGATIVE_SIZE("File size cannot be negative"),
+  NO_SPACE("Not enough space on disk"),
+  NO_INODES("Maximum file count reached"),
+  SNAPSHOT_NOT_FOUND("Snapshot not found"),
+  SNAPSHOT_EXISTS("Snapshot already exists"),
+  SNAPSHOT_MOUNTED("Snapshot is mounted");
+
+  private final String message;
+
+  FsError(String message) {
+    this.message = message;
+  }
+
+  public String getMessage() {
+    return message;
+  }
+}
@@ -0,0 +1,203 @@
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+// Counters and latency histograms for the core operations of one disk, plus how far the allocator
+// searches and how fragmented free space is. Each instrumented method takes start(operation) on
+// entry and hands it to record() on the way out. Every call is counted; reading the clock costs
+// more than a cached lookup or path walk, so those two are only timed one call in SAMPLE_PERIOD,
+// picked at random, which leaves their percentiles unbiased. While disabled, start() returns a
+// marker and record() does nothing.
+//
+// The same figures are published over JMX once register() is called, under
+// FileSystemSimulation:type=FsMetrics,disk=N.
+public class FsMetrics implements FsMetricsMXBean {
+  private static final long DISABLED = Long.MIN_VALUE;
+  private static final long UNTIMED = Long.MIN_VALUE + 1; // Counted but not timed
+  private static final int SAMPLE_PERIOD = 16; // Power of two
+  private static final AtomicInteger nextDisk = new AtomicInteger();
+
+  public enum Operation {
+    CREATE("create", false),
+    DELETE("delete", false),
+    WRITE("write", false),
+    RESIZE("resize", false),
+    LOOKUP("lookup", true),
+    PATH_RESOLVE("path resolve", true),
+    ALLOCATE("allocate", false);
+
+    private final String label;
+    private final boolean sampled; // Timed one call in SAMPLE_PERIOD
+
+    Operation(String label, boolean sampled) {
+      this.label = label;
+      this.sampled = sampled;
+    }
+
+    public String getLabel() {
+      return label;
+    }
+  }
+
+  private final SuperBlock superBlock; // Source of the free-space gauges
+  private final Histogram[] latencies = new Histogram[Operation.values().length]; // Nanoseconds, by ordinal
+  private final LongAdder[] counts = new LongAdder[latencies.length];
+  private final LongAdder[] failures = new LongAdder[latencies.length];
+  private final Histogram scanLengths = new Histogram(); // Bitmap words or free extents examined per search
+  private volatile boolean enabled = true;
+  private ObjectName registeredName;
+
+  public FsMetrics(SuperBlock superBlock) {
+    this.superBlock = superBlock;
+    for (int i = 0; i < latencies.length; i++) {
+      latencies[i] = new Histogram();
+      counts[i] = new LongAdder();
+      failures[i] = new LongAdder();
+    }
+  }
+
+  public long start(Operation operation) {
+    if (!enabled) {
+      return DISABLED;
+    }
+    if (operation.sampled && (ThreadLocalRandom.current().nextInt() & (SAMPLE_PERIOD - 1)) != 0) {
+      return UNTIMED;
+    }
+    return System.nanoTime();
+  }
+
+  public void record(Operation operation, long start) {
+    record(operation, start, true);
+  }
+
+  // A failed operation counts towards the latencies as well, failing can be the slow part
+  public void record(Operation operation, long start, boolean succeeded) {
+    if (start == DISABLED) {
+      return;
+    }
+    int index = operation.ordinal();
+    counts[index].increment();
+    if (start != UNTIMED) {
+      latencies[index].record(System.nanoTime() - start);
+    }
+    if (!succeeded) {
+      failures[index].increment();
+    }
+  }
+
+  // Called by the allocator, under its lock, after each search for free space
+  public void recordScan(int length) {
+    if (enabled) {
+      scanLengths.record(length);
+    }
+  }
+
+  @Override
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Override
+  public void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  @Override
+  public void reset() {
+    for (int i = 0; i < latencies.length; i++) {
+      latencies[i].reset();
+      counts[i].reset();
+      failures[i].reset();
+    }
+    scanLengths.reset();
+  }
+
+  public OperationStats getStats(Operation operation) {
+    int index = operation.ordinal();
+    Histogram histogram = latencies[index];
+    long[] percentiles = histogram.getPercentiles(0.5, 0.9, 0.99, 0.999);
+    return new OperationStats(operation.getLabel(), counts[index].sum(), failures[index].sum(),
+        histogram.getCount(), operation.sampled ? SAMPLE_PERIOD : 1, histogram.getMean() / 1000, percentiles[0] / 1000.0, percentiles[1] / 1000.0, percentiles[2] / 1000.0,
+        percentiles[3] / 1000.0, histogram.getMax() / 1000.0);
+  }
+
+  @Override
+  public List<OperationStats> getOperations() {
+    List<OperationStats> stats = new ArrayList<>();
+    for (Operation operation : Operation.values()) {
+      stats.add(getStats(operation));
+    }
+    return stats;
+  }
+
+  @Override
+  public long getAllocatorSearches() {
+    return scanLengths.getCount();
+  }
+
+  @Override
+  public double getAllocatorScanMean() {
+    return scanLengths.getMean();
+  }
+
+  @Override
+  public long getAllocatorScanP99() {
+    return scanLengths.getPercentiles(0.99)[0];
+  }
+
+  @Override
+  public long getAllocatorScanMax() {
+    return scanLengths.getMax();
+  }
+
+  @Override
+  public int getFreeBlocks() {
+    return superBlock.countFreeBlocks();
+  }
+
+  @Override
+  public int getFreeRuns() {
+    return superBlock.countFreeRuns();
+  }
+
+  @Override
+  public int getLargestFreeRun() {
+    return superBlock.largestFreeRun();
+  }
+
+  // Share of the free space outside the largest free run, as the defragmenter reports it
+  @Override
+  public int getFreeSpaceFragmentationPercent() {
+    int free = getFreeBlocks();
+    return free == 0 ? 0 : (int) (100 - 100L * Math.min(getLargestFreeRun(), free) / free);
+  }
+
+  // Publishes this object on the platform MBean server. Returns the name it was registered under.
+  public synchronized ObjectName register() throws JMException {
+    if (registeredName == null) {
+      ObjectName name = new ObjectName("FileSystemSimulation:type=FsMetrics,disk=" + nextDisk.getAndIncrement());
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+      registeredName = name;
+    }
+    return registeredName;
+  }
+
+  public synchronized void unregister() {
+    if (registeredName == null) {
+      return;
+    }
+    MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+    try {
+      server.unregisterMBean(registeredName);
+    } catch (JMException e) {
+      // Already gone
+    }
+    registeredName = null;
+  }
+}
@@ -0,0 +1,29 @@
+import java.util.List;
+
+// Management interface of FsMetrics, as seen from JConsole or any other JMX client. Times are in
+// microseconds, scan lengths in bitmap words or free extents examined.
+public interface FsMetricsMXBean {
+  boolean isEnabled();
+
+  void setEnabled(boolean enabled);
+
+  void reset();
+
+  List<OperationStats> getOperations();
+
+  long getAllocatorSearches();
+
+  double getAllocatorScanMean();
+
+  long getAllocatorScanP99();
+
+  long getAllocatorScanMax();
+
+  int getFreeBlocks();
+
+  int getFreeRuns();
+
+  int getLargestFreeRun();
+
+  int getFreeSpaceFragmentationPercent();
+}
@@ -0,0 +1,53 @@
+// Outcome of a filesystem operation: either a value or the error that prevented it. Failed results
+// are shared, one per error code, so reporting an error allocates nothing.
+public final class FsResult<T> {
+  private static final FsResult<Void> OK = new FsResult<>(null, null);
+  private static final FsResult<?>[] ERRORS = new FsResult<?>[FsError.values().length];
+
+  static {
+    for (FsError error : FsError.values()) {
+      ERRORS[error.ordinal()] = new FsResult<>(null, error);
+    }
+  }
+
+  private final T value;
+  private final FsError error; // Null on success
+
+  private FsResult(T value, FsError error) {
+    this.value = value;
+    this.error = error;
+  }
+
+  public static FsResult<Void> ok() {
+    return OK;
+  }
+
+  public static <T> FsResult<T> ok(T value) {
+    return new FsResult<>(value, null);
+  }
+
+  @SuppressWarnings("unchecked")
+  public static <T> FsResult<T> error(FsError error) {
+    return (FsResult<T>) ERRORS[error.ordinal()];
+  }
+
+  public boolean isOk() {
+    return error == null;
+  }
+
+  public FsError getError() {
+    return error;
+  }
+
+  public T getValue() {
+    if (error != null) {
+      throw new IllegalStateException("Operation failed: " + error);
+    }
+    return value;
+  }
+
+  @Override
+  public String toString() {
+    return error == null ? "OK(" + value + ")" : error.toString();
+  }
+}
@@ -0,0 +1,429 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Makes the free-space map safe to share between threads without one lock for the whole disk. The
+// blocks are split into groups of GROUP_BLOCKS (more if a file can be larger), each with its own
+// allocator of the disk's policy and its own lock, so threads allocating or freeing in different
+// groups never wait for each other. A thread starts its searches in the group it last allocated
+// from and passes over groups another thread holds, so concurrent writers spread out over the
+// groups while a single thread fills them in order. The lock is only held for the bitmap or tree
+// update itself, never while block contents are read or written. The length of every search for
+// free space is reported to the disk's FsMetrics.
+//
+// A contiguous run is always taken inside one group, which is why a group holds at least a whole
+// file. allocateAt, free and markUsed may span groups; they lock the groups in ascending order.
+//
+// Blocks can also be reserved: a reservation is not any particular blocks, it only lowers the number
+// that allocations may take, so the holder is sure to find them later (see DelayedAllocation). That
+// number is one atomic counter shared by all groups; free counts leave reserved blocks out. The
+// holder allocates its blocks by drawing on the reservation (drawReserved) while it takes them.
+public class GroupedAllocator implements BlockAllocator {
+  public static final int GROUP_BLOCKS = 4096;
+
+  private final Group[] groups;
+  private final int groupBlocks;
+  private final int totalBlocks;
+  private final FsMetrics metrics;
+  private final AtomicInteger available; // Free blocks not reserved; every allocation takes its blocks from here first
+  private final AtomicInteger reserved = new AtomicInteger();
+  // { group the thread starts its searches in, length of its last search }, kept per thread so
+  // allocations in different groups share no field that changes
+  private final ThreadLocal<int[]> threads = ThreadLocal.withInitial(() -> new int[2]);
+  private final ThreadLocal<int[]> draws = new ThreadLocal<>(); // { left, drawn } while a thread draws on a reservation
+
+  private static final class Group {
+    final int first; // First block of the group
+    final BlockAllocator allocator; // Numbers blocks from 0
+    final ReentrantLock lock = new ReentrantLock();
+
+    Group(int first, BlockAllocator allocator) {
+      this.first = first;
+      this.allocator = allocator;
+    }
+  }
+
+  // One search of a group's allocator; returns the first block found, relative to the group, or -1
+  private interface Search {
+    int run(BlockAllocator allocator);
+  }
+
+  public GroupedAllocator(AllocationPolicy policy, int totalBlocks, int maxFileBlocks, FsMetrics metrics) {
+    this.totalBlocks = totalBlocks;
+    this.groupBlocks = Math.max(GROUP_BLOCKS, maxFileBlocks);
+    this.metrics = metrics;
+    this.groups = new Group[(totalBlocks + groupBlocks - 1) / groupBlocks];
+    for (int i = 0; i < groups.length; i++) {
+      int first = i * groupBlocks;
+      groups[i] = new Group(first, policy.create(Math.min(groupBlocks, totalBlocks - first)));
+    }
+    this.available = new AtomicInteger(totalBlocks);
+  }
+
+  public int getGroupCount() {
+    return groups.length;
+  }
+
+  @Override
+  public int getTotalBlocks() {
+    return totalBlocks;
+  }
+
+  @Override
+  public int countFree() {
+    return available.get();
+  }
+
+  // Sets aside count free blocks. Returns false, reserving nothing, if fewer are free.
+  public boolean reserve(int count) {
+    if (!takeAvailable(count)) {
+      return false;
+    }
+    reserved.addAndGet(count);
+    return true;
+  }
+
+  public void unreserve(int count) {
+    reserved.addAndGet(-count);
+    available.addAndGet(count);
+  }
+
+  public int countReserved() {
+    return reserved.get();
+  }
+
+  // Lets the calling thread's allocations take up to count reserved blocks, until endDraw. Blocks
+  // the thread frees meanwhile go back to the draw, so they must be blocks it took during it.
+  public void drawReserved(int count) {
+    reserved.addAndGet(-count);
+    draws.set(new int[] { count, count });
+  }
+
+  // Ends the calling thread's draw. With keep, the reservation is restored as it was before the
+  // draw, which the blocks taken and not freed meanwhile come out of; otherwise what is left of the
+  // draw is free for anyone.
+  public void endDraw(boolean keep) {
+    int[] draw = draws.get();
+    draws.remove();
+    if (keep) {
+      reserved.addAndGet(draw[1]);
+      available.addAndGet(draw[0] - draw[1]);
+    } else {
+      available.addAndGet(draw[0]);
+    }
+  }
+
+  @Override
+  public boolean isUsed(int block) {
+    Group group = groups[block / groupBlocks];
+    group.lock.lock();
+    try {
+      return group.allocator.isUsed(block - group.first);
+    } finally {
+      group.lock.unlock();
+    }
+  }
+
+  @Override
+  public int allocate() {
+    return search(1, allocator -> allocator.allocate());
+  }
+
+  @Override
+  public int allocate(int count) {
+    return search(count, allocator -> allocator.allocate(count));
+  }
+
+  // Allocates a run of up to max blocks: max of them if a group has that many in a row, otherwise
+  // the longest run any group has. Returns { start, length }, or null when no block is free.
+  public int[] allocateUpTo(int max) {
+    int start = allocate(max);
+    if (start >= 0) {
+      return new int[] { start, max };
+    }
+    while (true) {
+      Group best = null;
+      int bestLength = 0;
+      for (Group group : groups) {
+        int length = longestRun(group, max);
+        if (length > bestLength) {
+          best = group;
+          bestLength = length;
+        }
+      }
+      if (best == null) {
+        return null;
+      }
+      best.lock.lock();
+      try {
+        int length = Math.min(max, best.allocator.largestFreeRun()); // May have changed since
+        if (length == 0) {
+          continue;
+        }
+        if (!take(length)) {
+          return null;
+        }
+        start = best.allocator.allocate(length);
+        record(best);
+        return new int[] { best.first + start, length };
+      } finally {
+        best.lock.unlock();
+      }
+    }
+  }
+
+  // The lowest run of all, so groups are searched in order whoever holds them
+  @Override
+  public int allocateLowest(int count) {
+    if (!take(count)) {
+      return -1;
+    }
+    for (Group group : groups) {
+      group.lock.lock();
+      try {
+        int start = group.allocator.allocateLowest(count);
+        record(group);
+        if (start >= 0) {
+          return group.first + start;
+        }
+      } finally {
+        group.lock.unlock();
+      }
+    }
+    give(count);
+    return -1;
+  }
+
+  @Override
+  public boolean allocateAt(int start, int count) {
+    if (count <= 0 || start < 0 || start + count > totalBlocks || !take(count)) {
+      return false;
+    }
+    int firstGroup = start / groupBlocks;
+    int lastGroup = (start + count - 1) / groupBlocks;
+    lockGroups(firstGroup, lastGroup);
+    try {
+      for (int i = firstGroup; i <= lastGroup; i++) {
+        Group group = groups[i];
+        int from = Math.max(start, group.first);
+        boolean allocated = group.allocator.allocateAt(from - group.first, end(group, start + count) - from);
+        record(group);
+        if (!allocated) {
+          for (int j = firstGroup; j < i; j++) {
+            Group taken = groups[j];
+            int takenFrom = Math.max(start, taken.first);
+            taken.allocator.free(takenFrom - taken.first, end(taken, start + count) - takenFrom);
+          }
+          give(count);
+          return false;
+        }
+      }
+      return true;
+    } finally {
+      unlockGroups(firstGroup, lastGroup);
+    }
+  }
+
+  @Override
+  public void free(int start, int count) {
+    give(update(start, count, false));
+  }
+
+  // Marks a known range as used, e.g. when rebuilding the map from inodes. Blocks already in use
+  // are left as they are.
+  @Override
+  public void markUsed(int start, int count) {
+    available.addAndGet(-update(start, count, true));
+  }
+
+  // Length of the longest free run, runs crossing from one group into the next included
+  @Override
+  public int largestFreeRun() {
+    int best = 0;
+    int open = 0; // Free run reaching the end of the groups seen so far
+    for (Group group : groups) {
+      int size = group.allocator.getTotalBlocks();
+      int largest;
+      int head;
+      int tail;
+      group.lock.lock();
+      try {
+        largest = group.allocator.largestFreeRun();
+        head = largest == size ? size : freeRunLength(group.allocator, 0, 1);
+        tail = largest == size ? size : freeRunLength(group.allocator, size - 1, -1);
+      } finally {
+        group.lock.unlock();
+      }
+      if (head == size) {
+        open += size;
+      } else {
+        best = Math.max(best, Math.max(largest, open + head));
+        open = tail;
+      }
+      best = Math.max(best, open);
+    }
+    return best;
+  }
+
+  // Runs crossing from one group into the next count once
+  @Override
+  public int countFreeRuns() {
+    int runs = 0;
+    boolean previousEndFree = false;
+    for (Group group : groups) {
+      group.lock.lock();
+      try {
+        runs += group.allocator.countFreeRuns();
+        if (previousEndFree && !group.allocator.isUsed(0)) {
+          runs--;
+        }
+        previousEndFree = !group.allocator.isUsed(group.allocator.getTotalBlocks() - 1);
+      } finally {
+        group.lock.unlock();
+      }
+    }
+    return runs;
+  }
+
+  // Of the calling thread's last search
+  @Override
+  public int lastScanLength() {
+    return threads.get()[1];
+  }
+
+  // Runs search on the groups in turn, starting with the calling thread's home group, until it
+  // finds blocks. The first round passes over groups another thread holds, the second waits for
+  // them. Returns the first block found or -1.
+  private int search(int count, Search search) {
+    if (!take(count)) {
+      return -1;
+    }
+    int[] thread = threads.get();
+    for (int round = 0; round < 2; round++) {
+      for (int i = 0; i < groups.length; i++) {
+        int index = (thread[0] + i) % groups.length;
+        Group group = groups[index];
+        if (round == 0) {
+          if (!group.lock.tryLock()) {
+            continue;
+          }
+        } else {
+          group.lock.lock();
+        }
+        try {
+          int start = search.run(group.allocator);
+          record(group);
+          if (start >= 0) {
+            thread[0] = index;
+            return group.first + start;
+          }
+        } finally {
+          group.lock.unlock();
+        }
+      }
+    }
+    give(count);
+    return -1;
+  }
+
+  // Frees or marks used the range, a group at a time. Returns how many blocks changed state.
+  private int update(int start, int count, boolean used) {
+    if (count <= 0) {
+      return 0;
+    }
+    int firstGroup = start / groupBlocks;
+    int lastGroup = (start + count - 1) / groupBlocks;
+    int changed = 0;
+    lockGroups(firstGroup, lastGroup);
+    try {
+      for (int i = firstGroup; i <= lastGroup; i++) {
+        Group group = groups[i];
+        int from = Math.max(start, group.first);
+        int to = end(group, start + count);
+        int before = group.allocator.countFree();
+        if (used) {
+          group.allocator.markUsed(from - group.first, to - from);
+        } else {
+          group.allocator.free(from - group.first, to - from);
+        }
+        changed += Math.abs(group.allocator.countFree() - before);
+      }
+    } finally {
+      unlockGroups(firstGroup, lastGroup);
+    }
+    return changed;
+  }
+
+  // Where the part of a range ending at end that lies in the group ends
+  private static int end(Group group, int end) {
+    return Math.min(end, group.first + group.allocator.getTotalBlocks());
+  }
+
+  private int longestRun(Group group, int max) {
+    group.lock.lock();
+    try {
+      return Math.min(max, group.allocator.largestFreeRun());
+    } finally {
+      group.lock.unlock();
+    }
+  }
+
+  // Free blocks in a row starting at from and going in direction step
+  private static int freeRunLength(BlockAllocator allocator, int from, int step) {
+    int length = 0;
+    for (int block = from; block >= 0 && block < allocator.getTotalBlocks() && !allocator.isUsed(block); block += step) {
+      length++;
+    }
+    return length;
+  }
+
+  private void lockGroups(int first, int last) {
+    for (int i = first; i <= last; i++) {
+      groups[i].lock.lock();
+    }
+  }
+
+  private void unlockGroups(int first, int last) {
+    for (int i = last; i >= first; i--) {
+      groups[i].lock.unlock();
+    }
+  }
+
+  private void record(Group group) {
+    int length = group.allocator.lastScanLength();
+    threads.get()[1] = length;
+    metrics.recordScan(length);
+  }
+
+  // Takes count blocks from the calling thread's draw if it has them, otherwise from the blocks no
+  // one has reserved. Returns false, taking nothing, if there are not enough.
+  private boolean take(int count) {
+    int[] draw = draws.get();
+    if (draw != null && draw[0] >= count) {
+      draw[0] -= count;
+      return true;
+    }
+    return takeAvailable(count);
+  }
+
+  private boolean takeAvailable(int count) {
+    while (true) {
+      int free = available.get();
+      if (free < count) {
+        return false;
+      }
+      if (available.compareAndSet(free, free - count)) {
+        return true;
+      }
+    }
+  }
+
+  // Gives back blocks that were taken or freed, to the calling thread's draw if it has one
+  private void give(int count) {
+    int[] draw = draws.get();
+    if (draw != null) {
+      draw[0] += count;
+    } else {
+      available.addAndGet(count);
+    }
+  }
+}
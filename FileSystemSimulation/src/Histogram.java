@@ -0,0 +1,113 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Log-linear histogram of non-negative values, in the style of HdrHistogram: values below 16 get a
+// bucket each, and every power of two above that is split into 16 buckets, so any recorded value is
+// known to within 1/16 (6.25%) whatever its magnitude. Values above 2^40 (18 minutes in nanoseconds)
+// land in the top bucket.
+//
+// Recording is a bucket index computed from the leading zeros and two atomic adds, to the bucket and
+// to the running sum. The buckets and sum are kept in a few stripes and each thread adds to the
+// stripe its hash picks, so threads rarely share a cache line. Readers add the stripes up, so a
+// report taken while values are recorded may miss the latest ones.
+public class Histogram {
+  private static final int SUB_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BITS;
+  private static final int MAX_EXPONENT = 40;
+  private static final long MAX_VALUE = (1L << (MAX_EXPONENT + 1)) - 1;
+  private static final int BUCKETS = (MAX_EXPONENT - SUB_BITS + 2) * SUB_BUCKETS;
+  private static final int STRIPES = 4; // Power of two
+  private static final int STRIPE_LENGTH = BUCKETS + 1; // The buckets, then the sum of the values
+
+  private final AtomicLongArray counts = new AtomicLongArray(STRIPES * STRIPE_LENGTH);
+  private final AtomicLong max = new AtomicLong();
+
+  public void record(long value) {
+    long clamped = Math.min(Math.max(value, 0), MAX_VALUE);
+    int hash = Thread.currentThread().hashCode();
+    int stripe = ((hash ^ (hash >>> 16)) & (STRIPES - 1)) * STRIPE_LENGTH;
+    counts.getAndIncrement(stripe + bucketOf(clamped));
+    counts.getAndAdd(stripe + BUCKETS, clamped);
+    if (clamped > max.get()) { // Rarely true once the histogram has warmed up
+      max.accumulateAndGet(clamped, Math::max);
+    }
+  }
+
+  public long getCount() {
+    long count = 0;
+    for (int stripe = 0; stripe < STRIPES; stripe++) {
+      for (int bucket = 0; bucket < BUCKETS; bucket++) {
+        count += counts.get(stripe * STRIPE_LENGTH + bucket);
+      }
+    }
+    return count;
+  }
+
+  public long getMax() {
+    return max.get();
+  }
+
+  public double getMean() {
+    long count = getCount();
+    long total = 0;
+    for (int stripe = 0; stripe < STRIPES; stripe++) {
+      total += counts.get(stripe * STRIPE_LENGTH + BUCKETS);
+    }
+    return count == 0 ? 0 : total / (double) count;
+  }
+
+  // Values at the given fractions (0.5 for the median), read from one pass over the buckets. Each
+  // is the highest value of its bucket, capped at the largest value recorded.
+  public long[] getPercentiles(double... fractions) {
+    long[] merged = new long[BUCKETS];
+    long count = 0;
+    for (int stripe = 0; stripe < STRIPES; stripe++) {
+      for (int bucket = 0; bucket < BUCKETS; bucket++) {
+        long n = counts.get(stripe * STRIPE_LENGTH + bucket);
+        merged[bucket] += n;
+        count += n;
+      }
+    }
+    long highest = getMax();
+    long[] values = new long[fractions.length];
+    for (int i = 0; i < fractions.length; i++) {
+      if (count == 0) {
+        continue;
+      }
+      long rank = Math.max(1, (long) Math.ceil(fractions[i] * count));
+      long seen = 0;
+      int bucket = 0;
+      while (bucket < BUCKETS - 1 && (seen += merged[bucket]) < rank) {
+        bucket++;
+      }
+      values[i] = Math.min(lowestOf(bucket + 1) - 1, highest);
+    }
+    return values;
+  }
+
+  public void reset() {
+    for (int i = 0; i < counts.length(); i++) {
+      counts.set(i, 0);
+    }
+    max.set(0);
+  }
+
+  private static int bucketOf(long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int mantissa = (int) (value >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BITS + 1) * SUB_BUCKETS + mantissa;
+  }
+
+  // Smallest value that falls in the bucket
+  private static long lowestOf(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+    long mantissa = bucket % SUB_BUCKETS;
+    return (SUB_BUCKETS + mantissa) << (exponent - SUB_BITS);
+  }
+}
@@ -1,98 +1,275 @@
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
-public class Inode {
-  public static final int MAX_BLOCKS = 8; // Maximum number of blocks a single file can occupy
-  private String name; // File name
-  private int size; // File size in bytes
-  private int startingBlock = -1; // Starting block of the file's data
-  private int blocksAllocated = 0; // Number of blocks allocated to the file
-  private String lastModifiedTime; // Last modification time as a string
-  private boolean used; // Indicates whether the inode is in use
-  private String directoryName; // The directory in which this inode is placed
+// A view of one record of the InodeTable. Every field lives in the record, so views are created on
+// demand and two views of the same inode number are interchangeable (they compare equal).
+// The fields are guarded by the inode's lock in the SuperBlock, as before.
+public final class Inode {
+  public static final int MAX_NAME_LENGTH = 10;
+  public static final int INLINE_EXTENTS = 4; // Extents held in the inode itself, the rest go to indirect blocks
+  private final InodeTable table;
+  private final ByteBuffer record; // Buffer holding the record
+  private final int base; // Offset of the record in that buffer
+  private final int number; // Position of this inode in the inode table
 
-  public Inode() {
-    this.name = "";
-    this.size = 0;
-    this.lastModifiedTime = getCurrentTime(); // Initialize with the current time
-    this.used = false;
-    this.directoryName = ""; // Default to empty, indicating not placed in any specific directory initially
+  Inode(InodeTable table, int number) {
+    this.table = table;
+    this.record = table.chunkFor(number);
+    this.base = table.baseOf(number);
+    this.number = number;
   }
 
-  // Utility method to get the current time as a string
-  private String getCurrentTime() {
-    DateTimeFormatter dtf = DateTimeFormatter.ofPattern("yyyy/MM/dd HH:mm:ss");
-    return dtf.format(LocalDateTime.now());
+  // Adds blocks to the end of the file, merging with the last extent when they are adjacent
+  public void appendExtent(int startBlock, int length) {
+    int extentCount = getExtentCount();
+    if (extentCount > 0 && getExtentStart(extentCount - 1) + getExtentLength(extentCount - 1) == startBlock) {
+      setExtentLength(extentCount - 1, getExtentLength(extentCount - 1) + length);
+    } else {
+      if (extentCount < INLINE_EXTENTS) {
+        record.putInt(base + InodeTable.EXTENTS + 8 * extentCount, startBlock);
+        record.putInt(base + InodeTable.EXTENTS + 8 * extentCount + 4, length);
+      } else {
+        int index = 2 * (extentCount - INLINE_EXTENTS);
+        int[] overflow = table.getOverflowExtents(number);
+        if (overflow == null) {
+          overflow = new int[2 * INLINE_EXTENTS];
+        } else if (index == overflow.length) {
+          overflow = Arrays.copyOf(overflow, overflow.length * 2);
+        }
+        overflow[index] = startBlock;
+        overflow[index + 1] = length;
+        table.setOverflowExtents(number, overflow);
+      }
+      record.putInt(base + InodeTable.EXTENT_COUNT, extentCount + 1);
+    }
+    record.putInt(base + InodeTable.BLOCKS_ALLOCATED, getBlocksAllocated() + length);
   }
 
-  // Method to allocate blocks to this inode
-  public void allocateBlocks(int startingBlock, int blocksAllocated) {
-    this.startingBlock = startingBlock;
-    this.blocksAllocated = blocksAllocated;
-    updateModifiedTime();
+  // Drops blocks from the end of the file, the caller frees them on disk first
+  public void truncateBlocks(int newBlockCount) {
+    int extentCount = getExtentCount();
+    int blocksAllocated = getBlocksAllocated();
+    while (blocksAllocated > newBlockCount) {
+      int last = extentCount - 1;
+      int excess = blocksAllocated - newBlockCount;
+      int length = getExtentLength(last);
+      if (length <= excess) {
+        extentCount--;
+        blocksAllocated -= length;
+      } else {
+        setExtentLength(last, length - excess);
+        blocksAllocated = newBlockCount;
+      }
+    }
+    record.putInt(base + InodeTable.EXTENT_COUNT, extentCount);
+    record.putInt(base + InodeTable.BLOCKS_ALLOCATED, blocksAllocated);
+    if (extentCount <= INLINE_EXTENTS) {
+      table.setOverflowExtents(number, null);
+    }
   }
 
-  // Method to clear the block allocation when a file is deleted
+  // Method to clear the block allocation when a file is deleted. Inline data goes as well.
   public void clearBlockAllocation() {
-    this.startingBlock = -1;
-    this.blocksAllocated = 0;
-    updateModifiedTime();
+    setInline(false);
+    record.putInt(base + InodeTable.EXTENT_COUNT, 0);
+    record.putInt(base + InodeTable.BLOCKS_ALLOCATED, 0);
+    record.putInt(base + InodeTable.INDIRECT_BLOCK, -1);
+    table.setOverflowExtents(number, null);
+  }
+
+  // Translates a block index within the file to a disk block, or -1 past the end of the file
+  public int mapBlock(int fileBlock) {
+    int extentCount = getExtentCount();
+    int inline = Math.min(extentCount, INLINE_EXTENTS);
+    for (int i = 0; i < inline; i++) {
+      int length = record.getInt(base + InodeTable.EXTENTS + 8 * i + 4);
+      if (fileBlock < length) {
+        return record.getInt(base + InodeTable.EXTENTS + 8 * i) + fileBlock;
+      }
+      fileBlock -= length;
+    }
+    if (extentCount > INLINE_EXTENTS) {
+      int[] overflow = table.getOverflowExtents(number);
+      for (int i = 0; i < 2 * (extentCount - INLINE_EXTENTS); i += 2) {
+        if (fileBlock < overflow[i + 1]) {
+          return overflow[i] + fileBlock;
+        }
+        fileBlock -= overflow[i + 1];
+      }
+    }
+    return -1;
+  }
+
+  // A file with inline data keeps it in the record where the extents would be, and has no blocks.
+  // Data past the file's size is kept zero, so growing the file reads zeros there.
+  public boolean isInline() {
+    return (record.getInt(base + InodeTable.FLAGS) & 2) != 0;
+  }
+
+  // Makes the file an inline one holding zeros, or ends that once its data has moved to blocks
+  public void setInline(boolean inline) {
+    int flags = record.getInt(base + InodeTable.FLAGS);
+    if (inline && (flags & 2) == 0) {
+      zeroInline(0, table.getInlineBytes());
+    }
+    record.putInt(base + InodeTable.FLAGS, inline ? flags | 2 : flags & ~2);
+  }
+
+  public void readInline(int offset, ByteBuffer dst, int length) {
+    for (int i = base + InodeTable.EXTENTS + offset; i < base + InodeTable.EXTENTS + offset + length; i++) {
+      dst.put(record.get(i));
+    }
+  }
+
+  public void writeInline(int offset, ByteBuffer src, int length) {
+    if (offset + length > table.getInlineBytes()) {
+      throw new IllegalArgumentException("Inline data exceeds " + table.getInlineBytes() + " bytes.");
+    }
+    for (int i = base + InodeTable.EXTENTS + offset; i < base + InodeTable.EXTENTS + offset + length; i++) {
+      record.put(i, src.get());
+    }
+  }
+
+  // Zeroes inline data from offset up to end, e.g. the bytes cut off when the file shrinks
+  public void zeroInline(int offset, int end) {
+    for (int i = base + InodeTable.EXTENTS + offset; i < base + InodeTable.EXTENTS + end; i++) {
+      record.put(i, (byte) 0);
+    }
+  }
+
+  // Records a change to the file's contents or size
+  public void markModified(long now) {
+    record.putLong(base + InodeTable.MODIFY_TIME, now);
+    record.putLong(base + InodeTable.CHANGE_TIME, now);
+  }
+
+  // Records a metadata-only change such as a rename
+  public void markChanged(long now) {
+    record.putLong(base + InodeTable.CHANGE_TIME, now);
+  }
+
+  // Called by readers holding only the read lock. Concurrent readers may race, but each stores a
+  // whole current time, so whichever lands last is a valid access time.
+  public void markAccessed(long now) {
+    record.putLong(base + InodeTable.ACCESS_TIME, now);
   }
 
-  // Update the last modified time to the current time
-  private void updateModifiedTime() {
-    this.lastModifiedTime = getCurrentTime();
+  // Sets all three times, for a new file and when replaying the journal
+  public void setTimes(long accessTime, long modifyTime, long changeTime) {
+    record.putLong(base + InodeTable.ACCESS_TIME, accessTime);
+    record.putLong(base + InodeTable.MODIFY_TIME, modifyTime);
+    record.putLong(base + InodeTable.CHANGE_TIME, changeTime);
   }
 
   // Getters and setters
   public String getName() {
-    return name;
+    return table.getNames().get(record.getInt(base + InodeTable.NAME_OFFSET));
   }
 
   public void setName(String name) {
-    if (name.length() <= 10) {
-      this.name = name;
-      updateModifiedTime();
-    } else {
-      System.out.println("Error: File name exceeds 10 characters limit.");
+    if (name.length() > MAX_NAME_LENGTH) {
+      throw new IllegalArgumentException("File name exceeds " + MAX_NAME_LENGTH + " characters limit.");
     }
+    NameHeap names = table.getNames();
+    int oldOffset = record.getInt(base + InodeTable.NAME_OFFSET);
+    record.putInt(base + InodeTable.NAME_OFFSET, names.add(name));
+    names.free(oldOffset);
   }
 
   public int getSize() {
-    return size;
+    return record.getInt(base + InodeTable.SIZE);
   }
 
   public void setSize(int size) {
-    this.size = size;
-    updateModifiedTime();
+    record.putInt(base + InodeTable.SIZE, size);
+  }
+
+  public int getExtentCount() {
+    return record.getInt(base + InodeTable.EXTENT_COUNT);
+  }
+
+  public int getExtentStart(int extent) {
+    if (extent < INLINE_EXTENTS) {
+      return record.getInt(base + InodeTable.EXTENTS + 8 * extent);
+    }
+    return table.getOverflowExtents(number)[2 * (extent - INLINE_EXTENTS)];
+  }
+
+  public int getExtentLength(int extent) {
+    if (extent < INLINE_EXTENTS) {
+      return record.getInt(base + InodeTable.EXTENTS + 8 * extent + 4);
+    }
+    return table.getOverflowExtents(number)[2 * (extent - INLINE_EXTENTS) + 1];
   }
 
-  public int getStartingBlock() {
-    return startingBlock;
+  private void setExtentLength(int extent, int length) {
+    if (extent < INLINE_EXTENTS) {
+      record.putInt(base + InodeTable.EXTENTS + 8 * extent + 4, length);
+    } else {
+      table.getOverflowExtents(number)[2 * (extent - INLINE_EXTENTS) + 1] = length;
+    }
   }
 
   public int getBlocksAllocated() {
-    return blocksAllocated;
+    return record.getInt(base + InodeTable.BLOCKS_ALLOCATED);
+  }
+
+  public int getIndirectBlock() {
+    return record.getInt(base + InodeTable.INDIRECT_BLOCK);
+  }
+
+  public void setIndirectBlock(int indirectBlock) {
+    record.putInt(base + InodeTable.INDIRECT_BLOCK, indirectBlock);
+  }
+
+  public long getAccessTime() {
+    return record.getLong(base + InodeTable.ACCESS_TIME);
   }
 
-  public String getLastModifiedTime() {
-    return lastModifiedTime;
+  public long getModifyTime() {
+    return record.getLong(base + InodeTable.MODIFY_TIME);
+  }
+
+  public long getChangeTime() {
+    return record.getLong(base + InodeTable.CHANGE_TIME);
   }
 
   public boolean isUsed() {
-    return used;
+    return (record.getInt(base + InodeTable.FLAGS) & 1) != 0;
   }
 
   public void setUsed(boolean used) {
-    this.used = used;
-    updateModifiedTime();
+    if (used && !isUsed()) {
+      // Bumped each time the inode is handed to a new file, so stale handles can tell
+      record.putInt(base + InodeTable.GENERATION, getGeneration() + 1);
+    }
+    int flags = record.getInt(base + InodeTable.FLAGS);
+    record.putInt(base + InodeTable.FLAGS, used ? flags | 1 : flags & ~1);
+  }
+
+  public int getGeneration() {
+    return record.getInt(base + InodeTable.GENERATION);
+  }
+
+  public int getNumber() {
+    return number;
+  }
+
+  public int getDirectoryId() {
+    return record.getInt(base + InodeTable.DIRECTORY_ID);
+  }
+
+  public void setDirectoryId(int directoryId) {
+    record.putInt(base + InodeTable.DIRECTORY_ID, directoryId);
   }
 
-  public String getDirectoryName() {
-    return directoryName;
+  @Override
+  public boolean equals(Object other) {
+    return other instanceof Inode && ((Inode) other).table == table && ((Inode) other).number == number;
   }
 
-  public void setDirectoryName(String directoryName) {
-    this.directoryName = directoryName;
+  @Override
+  public int hashCode() {
+    return number;
   }
 }
@@ -0,0 +1,109 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The inode table as fixed-width records in direct buffers, so a million inodes cost 120MB (with the
+// default inline data size) outside the Java heap instead of millions of small objects for the
+// collector to trace. Names live in a separate NameHeap and each record holds its name's offset.
+// Inode is a flyweight over one record.
+//
+// Record layout (bytes):
+//   0 flags (bit 0: used, bit 1: data inline)    4 generation     8 directory id    12 size
+//  16 blocks allocated      20 extent count   24 indirect block  28 name offset
+//  32 access time           40 modify time    48 change time (epoch nanoseconds)
+//  56 the first INLINE_EXTENTS extents as (start, length) int pairs, or the data of an inline file;
+//     the area is as long as the larger of the two
+//
+// Extents past the inline ones are kept on disk in the indirect blocks. An in-memory copy of them
+// is held here for the few files that have so many, so mapping a block never reads the chain back.
+public class InodeTable {
+  static final int FLAGS = 0;
+  static final int GENERATION = 4;
+  static final int DIRECTORY_ID = 8;
+  static final int SIZE = 12;
+  static final int BLOCKS_ALLOCATED = 16;
+  static final int EXTENT_COUNT = 20;
+  static final int INDIRECT_BLOCK = 24;
+  static final int NAME_OFFSET = 28;
+  static final int ACCESS_TIME = 32;
+  static final int MODIFY_TIME = 40;
+  static final int CHANGE_TIME = 48;
+  static final int EXTENTS = 56; // Also where inline data starts
+
+  private static final int CHUNK_SHIFT = 16; // Records per buffer, keeps each buffer well under 2GB
+  private static final int CHUNK_RECORDS = 1 << CHUNK_SHIFT;
+
+  private final ByteBuffer[] chunks;
+  private final int count;
+  private final int inlineBytes; // Largest file kept in its record
+  private final int recordBytes;
+  private final NameHeap names = new NameHeap();
+  private final ConcurrentHashMap<Integer, int[]> overflowExtents = new ConcurrentHashMap<>();
+
+  public InodeTable(int count) {
+    this(count, 0);
+  }
+
+  public InodeTable(int count, int inlineBytes) {
+    this.count = count;
+    this.inlineBytes = inlineBytes;
+    this.recordBytes = EXTENTS + Math.max(8 * Inode.INLINE_EXTENTS, inlineBytes);
+    this.chunks = new ByteBuffer[(count + CHUNK_RECORDS - 1) >>> CHUNK_SHIFT];
+    for (int i = 0; i < chunks.length; i++) {
+      int records = Math.min(CHUNK_RECORDS, count - (i << CHUNK_SHIFT));
+      chunks[i] = ByteBuffer.allocateDirect(records * recordBytes);
+    }
+    for (int number = 0; number < count; number++) {
+      ByteBuffer chunk = chunkFor(number);
+      int base = baseOf(number);
+      chunk.putInt(base + DIRECTORY_ID, -1); // Not placed in any directory initially
+      chunk.putInt(base + INDIRECT_BLOCK, -1);
+      chunk.putInt(base + NAME_OFFSET, -1);
+    }
+  }
+
+  public int size() {
+    return count;
+  }
+
+  // A view of the record. Views are cheap and not cached; two views of one record are equal.
+  public Inode get(int number) {
+    if (number < 0 || number >= count) {
+      throw new IndexOutOfBoundsException("Inode " + number + " of " + count);
+    }
+    return new Inode(this, number);
+  }
+
+  ByteBuffer chunkFor(int number) {
+    return chunks[number >>> CHUNK_SHIFT];
+  }
+
+  int baseOf(int number) {
+    return (number & (CHUNK_RECORDS - 1)) * recordBytes;
+  }
+
+  public int getInlineBytes() {
+    return inlineBytes;
+  }
+
+  NameHeap getNames() {
+    return names;
+  }
+
+  // Extents past the inline ones as (start, length) pairs, or null if the file has none
+  int[] getOverflowExtents(int number) {
+    return overflowExtents.get(number);
+  }
+
+  void setOverflowExtents(int number, int[] extents) {
+    if (extents == null) {
+      overflowExtents.remove(number);
+    } else {
+      overflowExtents.put(number, extents);
+    }
+  }
+
+  // Bytes of off-heap memory used by the records and names
+  public long offHeapBytes() {
+    return (long) count * recordBytes + names.capacity();
+  }
+}
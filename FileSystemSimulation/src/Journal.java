@@ -0,0 +1,453 @@
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+// Write-ahead log of metadata changes for an image-backed disk. The data blocks live in the image;
+// the inodes, directories and free-space map live in memory and are made durable here.
+//
+// Every record holds the complete new state of one inode or directory, so replaying a record twice
+// or on top of a newer state is harmless; an inline file's data is part of its inode's record. The
+// free-space map and lookup indexes are never logged, they are rebuilt from the inodes after replay.
+// Data is not logged either. Blocks a file is given are forced to the image, zeroed or holding
+// their new data, before the record pointing at them is appended (see BufferCache.sync), so a
+// replayed file never reads what a freed block held for another file.
+//
+// Records are appended in memory while the changed object is still locked, which keeps them in the
+// same order as the changes. commit() makes everything appended so far durable: the first thread to
+// arrive writes and fsyncs the whole batch, threads arriving meanwhile wait and are covered by the
+// next fsync (group commit).
+//
+// When the log outgrows its limit, a checkpoint writes the full metadata to <image>.checkpoint
+// (through a temporary file and an atomic rename) and empties <image>.journal. Both files carry an
+// epoch number; a journal whose epoch does not match the checkpoint is left over from a crash during
+// checkpointing and is ignored.
+public class Journal {
+  private static final long JOURNAL_MAGIC = 0x46534A524E4C3032L; // "FSJRNL02"
+  private static final long CHECKPOINT_MAGIC = 0x4653434B50543032L; // "FSCKPT02"
+  private static final int HEADER_BYTES = 16; // Magic and epoch
+  private static final int FRAME_HEADER_BYTES = 8; // Payload length and CRC-32
+
+  private static final byte INODE = 1;
+  private static final byte INODE_FREE = 2;
+  private static final byte DIRECTORY = 3;
+  private static final byte DIRECTORY_DELETE = 4;
+  private static final byte INODE_INLINE = 5; // An inode with its data instead of extents
+
+  private final SuperBlock superBlock;
+  private final Path journalPath;
+  private final Path checkpointPath;
+  private final FileChannel channel;
+  private final long limitBytes; // Log size that triggers a checkpoint
+
+  // Metadata changes hold this shared while they change state and append the record; a checkpoint
+  // holds it exclusively so it sees a state that matches the end of the log
+  private final ReentrantReadWriteLock updateLock = new ReentrantReadWriteLock();
+  private final Object appendLock = new Object(); // Guards pending and the counters below
+  private final Object syncLock = new Object(); // Held by the thread writing a batch, or by a checkpoint
+  private final ByteArrayOutputStream pending = new ByteArrayOutputStream(); // Framed records not yet written
+  private long appendedBytes; // Total bytes ever appended, doubles as the log sequence number
+  private long checkpointedBytes; // appendedBytes at the last checkpoint
+  private volatile long durableBytes; // Everything up to here is on stable storage
+  private long epoch;
+
+  private long records;
+  private long syncs;
+  private long checkpoints;
+  private int recoveredRecords;
+
+  private Journal(SuperBlock superBlock, String imagePath, long limitBytes) throws IOException {
+    this.superBlock = superBlock;
+    this.journalPath = Paths.get(imagePath + ".journal");
+    this.checkpointPath = Paths.get(imagePath + ".checkpoint");
+    this.limitBytes = limitBytes;
+    this.channel = FileChannel.open(journalPath, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+  }
+
+  // Starts an empty log for a freshly formatted image, discarding any left from an older one
+  public static Journal create(String imagePath, SuperBlock superBlock, long limitBytes) throws IOException {
+    Journal journal = new Journal(superBlock, imagePath, limitBytes);
+    Files.deleteIfExists(journal.checkpointPath);
+    journal.reset(0);
+    return journal;
+  }
+
+  // Rebuilds the superblock's metadata from the last checkpoint and the log written after it.
+  // A record cut short by a crash (or failing its checksum) ends the replay and is cut off the log.
+  public static Journal recover(String imagePath, SuperBlock superBlock, long limitBytes) throws IOException {
+    Journal journal = new Journal(superBlock, imagePath, limitBytes);
+    try {
+      long checkpointEpoch = 0;
+      if (Files.exists(journal.checkpointPath)) {
+        ByteBuffer checkpoint = ByteBuffer.wrap(Files.readAllBytes(journal.checkpointPath));
+        checkpointEpoch = readHeader(checkpoint, CHECKPOINT_MAGIC, journal.checkpointPath);
+        journal.replay(checkpoint);
+      }
+      ByteBuffer log = ByteBuffer.wrap(Files.readAllBytes(journal.journalPath));
+      if (log.remaining() >= HEADER_BYTES && log.getLong(0) == JOURNAL_MAGIC && log.getLong(8) == checkpointEpoch) {
+        log.position(HEADER_BYTES);
+        journal.recoveredRecords = journal.replay(log);
+        journal.epoch = checkpointEpoch;
+        journal.appendedBytes = log.position() - HEADER_BYTES; // Counts towards the next checkpoint
+        journal.durableBytes = journal.appendedBytes;
+        journal.channel.truncate(log.position()); // Drop a torn tail so new records follow valid ones
+        journal.channel.position(log.position());
+      } else {
+        journal.reset(checkpointEpoch);
+      }
+      superBlock.finishRestore();
+      return journal;
+    } catch (IOException | RuntimeException e) {
+      journal.channel.close();
+      throw e instanceof IOException ? (IOException) e
+          : new IOException("Corrupt metadata in " + imagePath + ": " + e.getMessage(), e);
+    }
+  }
+
+  private static long readHeader(ByteBuffer file, long magic, Path path) throws IOException {
+    if (file.remaining() < HEADER_BYTES || file.getLong() != magic) {
+      throw new IOException("Not a metadata file: " + path);
+    }
+    return file.getLong();
+  }
+
+  // Applies every intact record from the buffer's position on, leaving the position after the last one
+  private int replay(ByteBuffer file) throws IOException {
+    int applied = 0;
+    CRC32 crc = new CRC32();
+    while (file.remaining() >= FRAME_HEADER_BYTES) {
+      int start = file.position();
+      int length = file.getInt();
+      int checksum = file.getInt();
+      if (length <= 0 || length > file.remaining()) {
+        file.position(start);
+        break;
+      }
+      crc.reset();
+      crc.update(file.array(), file.position(), length);
+      if ((int) crc.getValue() != checksum) {
+        file.position(start);
+        break;
+      }
+      apply(new DataInputStream(new ByteArrayInputStream(file.array(), file.position(), length)));
+      file.position(file.position() + length);
+      applied++;
+    }
+    return applied;
+  }
+
+  private void apply(DataInputStream in) throws IOException {
+    byte type = in.readByte();
+    switch (type) {
+      case INODE: {
+        int number = in.readInt();
+        int directoryId = in.readInt();
+        String name = in.readUTF();
+        int size = in.readInt();
+        long[] times = { in.readLong(), in.readLong(), in.readLong() }; // Access, modify, change
+        int[] extents = new int[2 * in.readInt()];
+        for (int i = 0; i < extents.length; i++) {
+          extents[i] = in.readInt();
+        }
+        int[] chain = new int[in.readInt()];
+        for (int i = 0; i < chain.length; i++) {
+          chain[i] = in.readInt();
+        }
+        superBlock.restoreInode(number, directoryId, name, size, times, extents, chain, null);
+        break;
+      }
+      case INODE_INLINE: {
+        int number = in.readInt();
+        int directoryId = in.readInt();
+        String name = in.readUTF();
+        int size = in.readInt();
+        long[] times = { in.readLong(), in.readLong(), in.readLong() };
+        byte[] data = new byte[size];
+        in.readFully(data);
+        superBlock.restoreInode(number, directoryId, name, size, times, new int[0], new int[0], data);
+        break;
+      }
+      case INODE_FREE:
+        superBlock.restoreFreeInode(in.readInt());
+        break;
+      case DIRECTORY: {
+        int id = in.readInt();
+        int parentId = in.readInt();
+        superBlock.restoreDirectory(id, parentId, in.readUTF());
+        break;
+      }
+      case DIRECTORY_DELETE:
+        superBlock.restoreDirectoryDelete(in.readInt());
+        break;
+      default:
+        throw new IOException("Unknown journal record type " + type);
+    }
+  }
+
+  // Brackets a metadata change; see updateLock
+  public void beginUpdate() {
+    updateLock.readLock().lock();
+  }
+
+  public void endUpdate() {
+    updateLock.readLock().unlock();
+  }
+
+  // Logs the complete state of an inode, including the blocks holding its extra extents. Growth not
+  // yet given blocks is left out (see DelayedAllocation).
+  public void logInode(Inode inode, List<Integer> indirectBlocks) {
+    append(encodeInode(inode, superBlock.durableSize(inode), indirectBlocks));
+  }
+
+  public void logInodeFree(int number) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(8);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(INODE_FREE);
+      out.writeInt(number);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    append(bytes.toByteArray());
+  }
+
+  // The id is passed separately because the directory is still being constructed when it is logged
+  public void logDirectory(int id, Directory directory) {
+    append(encodeDirectory(id, directory));
+  }
+
+  public void logDirectoryDelete(int id) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(8);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(DIRECTORY_DELETE);
+      out.writeInt(id);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    append(bytes.toByteArray());
+  }
+
+  private static byte[] encodeInode(Inode inode, int size, List<Integer> indirectBlocks) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + 8 * inode.getExtentCount());
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(inode.isInline() ? INODE_INLINE : INODE);
+      out.writeInt(inode.getNumber());
+      out.writeInt(inode.getDirectoryId());
+      out.writeUTF(inode.getName());
+      out.writeInt(size);
+      out.writeLong(inode.getAccessTime());
+      out.writeLong(inode.getModifyTime());
+      out.writeLong(inode.getChangeTime());
+      if (inode.isInline()) {
+        ByteBuffer data = ByteBuffer.allocate(size);
+        inode.readInline(0, data, size);
+        out.write(data.array());
+      } else {
+        out.writeInt(inode.getExtentCount());
+        for (int i = 0; i < inode.getExtentCount(); i++) {
+          out.writeInt(inode.getExtentStart(i));
+          out.writeInt(inode.getExtentLength(i));
+        }
+        out.writeInt(indirectBlocks.size());
+        for (int block : indirectBlocks) {
+          out.writeInt(block);
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  private static byte[] encodeDirectory(int id, Directory directory) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeByte(DIRECTORY);
+      out.writeInt(id);
+      out.writeInt(directory.getParentDirectory().getId());
+      out.writeUTF(directory.getName());
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return bytes.toByteArray();
+  }
+
+  // Frames the payload with its length and checksum
+  private static void writeFrame(OutputStream out, byte[] payload) throws IOException {
+    CRC32 crc = new CRC32();
+    crc.update(payload, 0, payload.length);
+    ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_BYTES);
+    header.putInt(payload.length).putInt((int) crc.getValue());
+    out.write(header.array());
+    out.write(payload);
+  }
+
+  private void append(byte[] payload) {
+    synchronized (appendLock) {
+      try {
+        writeFrame(pending, payload);
+      } catch (IOException e) {
+        throw new UncheckedIOException(e); // ByteArrayOutputStream does not actually throw
+      }
+      appendedBytes += FRAME_HEADER_BYTES + payload.length;
+      records++;
+    }
+  }
+
+  // Makes every record appended so far durable, then checkpoints if the log has grown past its limit
+  public void commit() {
+    long target;
+    synchronized (appendLock) {
+      target = appendedBytes;
+    }
+    sync(target);
+    if (size() >= limitBytes) {
+      checkpoint(false);
+    }
+  }
+
+  private void sync(long target) {
+    if (durableBytes >= target) {
+      return;
+    }
+    synchronized (syncLock) {
+      if (durableBytes >= target) {
+        return; // Another thread's fsync covered this commit while we waited
+      }
+      byte[] batch;
+      long end;
+      synchronized (appendLock) {
+        batch = pending.toByteArray();
+        pending.reset();
+        end = appendedBytes;
+      }
+      try {
+        ByteBuffer buffer = ByteBuffer.wrap(batch);
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+        channel.force(false);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Journal write failed", e);
+      }
+      syncs++;
+      durableBytes = end;
+    }
+  }
+
+  // Writes the complete metadata to the checkpoint file and empties the log
+  public void checkpoint() {
+    checkpoint(true);
+  }
+
+  private void checkpoint(boolean always) {
+    updateLock.writeLock().lock();
+    try {
+      synchronized (syncLock) {
+        if (!always && size() < limitBytes) {
+          return; // Another thread checkpointed first
+        }
+        long nextEpoch = epoch + 1;
+        writeCheckpoint(nextEpoch);
+        synchronized (appendLock) {
+          pending.reset(); // Already part of the checkpoint
+          checkpointedBytes = appendedBytes;
+          durableBytes = appendedBytes;
+        }
+        reset(nextEpoch);
+        checkpoints++;
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException("Checkpoint failed", e);
+    } finally {
+      updateLock.writeLock().unlock();
+    }
+  }
+
+  // Directories come first, parents before children, so replay can attach each to its parent
+  private void writeCheckpoint(long nextEpoch) throws IOException {
+    Path temporary = Paths.get(checkpointPath + ".tmp");
+    try (FileChannel file = FileChannel.open(temporary, StandardOpenOption.CREATE,
+        StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+      OutputStream out = new BufferedOutputStream(Channels.newOutputStream(file), 64 * 1024);
+      DataOutputStream header = new DataOutputStream(out);
+      header.writeLong(CHECKPOINT_MAGIC);
+      header.writeLong(nextEpoch);
+      for (Directory directory : superBlock.getDirectories()) {
+        if (directory.getParentDirectory() != null) {
+          writeFrame(out, encodeDirectory(directory.getId(), directory));
+        }
+      }
+      for (int number = 0; number < superBlock.getMaxFiles(); number++) {
+        Inode inode = superBlock.getInode(number);
+        if (inode.isUsed()) {
+          writeFrame(out, encodeInode(inode, superBlock.durableSize(inode), superBlock.getIndirectBlocks(inode)));
+        }
+      }
+      out.flush();
+      file.force(true);
+    }
+    Files.move(temporary, checkpointPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  // Empties the log file and stamps it with the epoch of the checkpoint it follows
+  private void reset(long newEpoch) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+    header.putLong(JOURNAL_MAGIC).putLong(newEpoch).flip();
+    channel.truncate(0);
+    channel.position(0);
+    while (header.hasRemaining()) {
+      channel.write(header);
+    }
+    channel.force(false);
+    epoch = newEpoch;
+  }
+
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  // Bytes logged since the last checkpoint
+  public long size() {
+    synchronized (appendLock) {
+      return appendedBytes - checkpointedBytes;
+    }
+  }
+
+  public long getRecords() {
+    synchronized (appendLock) {
+      return records;
+    }
+  }
+
+  public long getSyncs() {
+    synchronized (syncLock) {
+      return syncs;
+    }
+  }
+
+  public long getCheckpoints() {
+    synchronized (syncLock) {
+      return checkpoints;
+    }
+  }
+
+  public int getRecoveredRecords() {
+    return recoveredRecords;
+  }
+}
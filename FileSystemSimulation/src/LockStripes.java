@@ -0,0 +1,26 @@
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+// A fixed set of read/write locks shared by many objects. An object's lock is picked by its number,
+// so inodes get per-file locking without one lock object per inode. Two objects may share a stripe,
+// which is why a thread never holds more than one stripe at a time.
+public class LockStripes {
+  private final ReentrantReadWriteLock[] locks;
+  private final int mask;
+
+  public LockStripes(int minimumStripes) {
+    int stripes = Integer.highestOneBit(Math.max(1, minimumStripes - 1)) << 1; // Next power of two
+    this.locks = new ReentrantReadWriteLock[stripes];
+    for (int i = 0; i < stripes; i++) {
+      locks[i] = new ReentrantReadWriteLock();
+    }
+    this.mask = stripes - 1;
+  }
+
+  public ReentrantReadWriteLock forKey(int key) {
+    return locks[key & mask];
+  }
+
+  public int getStripeCount() {
+    return locks.length;
+  }
+}
@@ -0,0 +1,29 @@
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+public class LruPolicy implements EvictionPolicy {
+  private final LinkedHashSet<Integer> order = new LinkedHashSet<>(); // Least recently used first
+
+  @Override
+  public void onHit(int block) {
+    order.remove(block);
+    order.add(block);
+  }
+
+  @Override
+  public int onMiss(int block, boolean cacheFull) {
+    int victim = -1;
+    if (cacheFull) {
+      Iterator<Integer> eldest = order.iterator();
+      victim = eldest.next();
+      eldest.remove();
+    }
+    order.add(block);
+    return victim;
+  }
+
+  @Override
+  public void onRemove(int block) {
+    order.remove(block);
+  }
+}
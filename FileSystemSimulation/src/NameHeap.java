@@ -0,0 +1,101 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+// Off-heap storage for the file names the inode records point to. A name is a length byte followed
+// by its UTF-8 bytes, stored in a 16 or 32 byte slot (ten characters take at most 30 bytes). Freed
+// slots are reused by the next name of the same slot size.
+//
+// Slots live in fixed 64KB direct buffers that never move, so reading a name takes no lock: the
+// slot was written before its offset was stored in the inode record, and readers hold the inode's
+// lock. Allocating and freeing slots synchronize on the heap.
+public class NameHeap {
+  private static final int CHUNK_SHIFT = 16;
+  private static final int CHUNK_BYTES = 1 << CHUNK_SHIFT;
+  private static final int[] SLOT_BYTES = { 16, 32 };
+
+  private volatile ByteBuffer[] chunks = new ByteBuffer[0];
+  private int used = CHUNK_BYTES; // Bytes handed out from the last chunk; starts "full" so the first slot adds one
+  private final int[][] freeSlots = new int[SLOT_BYTES.length][];
+  private final int[] freeCounts = new int[SLOT_BYTES.length];
+
+  public NameHeap() {
+    for (int i = 0; i < SLOT_BYTES.length; i++) {
+      freeSlots[i] = new int[16];
+    }
+  }
+
+  // Stores the name and returns its offset, or -1 for the empty name, which takes no space
+  public int add(String name) {
+    if (name.isEmpty()) {
+      return -1;
+    }
+    byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+    if (bytes.length >= SLOT_BYTES[SLOT_BYTES.length - 1]) {
+      throw new IllegalArgumentException("File name is too long to store: " + name);
+    }
+    int slotClass = slotClass(bytes.length);
+    int offset;
+    synchronized (this) {
+      offset = freeCounts[slotClass] > 0 ? freeSlots[slotClass][--freeCounts[slotClass]]
+          : newSlot(SLOT_BYTES[slotClass]);
+    }
+    ByteBuffer chunk = chunks[offset >>> CHUNK_SHIFT];
+    int position = offset & (CHUNK_BYTES - 1);
+    chunk.put(position, (byte) bytes.length);
+    for (int i = 0; i < bytes.length; i++) {
+      chunk.put(position + 1 + i, bytes[i]);
+    }
+    return offset;
+  }
+
+  public String get(int offset) {
+    if (offset < 0) {
+      return "";
+    }
+    ByteBuffer chunk = chunks[offset >>> CHUNK_SHIFT];
+    int position = offset & (CHUNK_BYTES - 1);
+    byte[] bytes = new byte[chunk.get(position)];
+    for (int i = 0; i < bytes.length; i++) {
+      bytes[i] = chunk.get(position + 1 + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  // Returns the slot of a name that is no longer referenced
+  public void free(int offset) {
+    if (offset < 0) {
+      return;
+    }
+    int length = chunks[offset >>> CHUNK_SHIFT].get(offset & (CHUNK_BYTES - 1));
+    int slotClass = slotClass(length);
+    synchronized (this) {
+      if (freeCounts[slotClass] == freeSlots[slotClass].length) {
+        freeSlots[slotClass] = Arrays.copyOf(freeSlots[slotClass], freeCounts[slotClass] * 2);
+      }
+      freeSlots[slotClass][freeCounts[slotClass]++] = offset;
+    }
+  }
+
+  // Bytes of off-heap memory reserved for names
+  public long capacity() {
+    return (long) chunks.length * CHUNK_BYTES;
+  }
+
+  private static int slotClass(int length) {
+    return length < SLOT_BYTES[0] ? 0 : 1;
+  }
+
+  // Called with the heap's monitor held. Slot sizes divide the chunk size, so a slot never spans chunks.
+  private int newSlot(int slotBytes) {
+    if (used + slotBytes > CHUNK_BYTES) {
+      ByteBuffer[] grown = Arrays.copyOf(chunks, chunks.length + 1);
+      grown[chunks.length] = ByteBuffer.allocateDirect(CHUNK_BYTES);
+      chunks = grown;
+      used = 0;
+    }
+    int offset = ((chunks.length - 1) << CHUNK_SHIFT) | used;
+    used += slotBytes;
+    return offset;
+  }
+}
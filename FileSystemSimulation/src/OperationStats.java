@@ -0,0 +1,79 @@
+// Counts and latencies of one kind of operation at one point in time, in microseconds. Taken from
+// FsMetrics; JMX shows it as a composite value with one item per getter. The count is exact, the
+// latencies of lookups and path resolution come from a sample of the calls: one in samplePeriod is
+// timed, and the latencies describe the timedCount calls that were. With none timed yet they are 0.
+public class OperationStats {
+  private final String name;
+  private final long count;
+  private final long failures;
+  private final long timedCount;
+  private final int samplePeriod;
+  private final double meanMicros;
+  private final double p50Micros;
+  private final double p90Micros;
+  private final double p99Micros;
+  private final double p999Micros;
+  private final double maxMicros;
+
+  public OperationStats(String name, long count, long failures, long timedCount, int samplePeriod,
+      double meanMicros, double p50Micros, double p90Micros, double p99Micros, double p999Micros, double maxMicros) {
+    this.name = name;
+    this.count = count;
+    this.failures = failures;
+    this.timedCount = timedCount;
+    this.samplePeriod = samplePeriod;
+    this.meanMicros = meanMicros;
+    this.p50Micros = p50Micros;
+    this.p90Micros = p90Micros;
+    this.p99Micros = p99Micros;
+    this.p999Micros = p999Micros;
+    this.maxMicros = maxMicros;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  // Failed or, for lookups and path resolution, not found
+  public long getFailures() {
+    return failures;
+  }
+
+  // Calls the latencies were measured on
+  public long getTimedCount() {
+    return timedCount;
+  }
+
+  // 1 when every call is timed, otherwise one call in this many
+  public int getSamplePeriod() {
+    return samplePeriod;
+  }
+
+  public double getMeanMicros() {
+    return meanMicros;
+  }
+
+  public double getP50Micros() {
+    return p50Micros;
+  }
+
+  public double getP90Micros() {
+    return p90Micros;
+  }
+
+  public double getP99Micros() {
+    return p99Micros;
+  }
+
+  public double getP999Micros() {
+    return p999Micros;
+  }
+
+  public double getMaxMicros() {
+    return maxMicros;
+  }
+}
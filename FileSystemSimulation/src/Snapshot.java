@@ -0,0 +1,79 @@
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+// A point-in-time image of the whole tree. Taking one copies nothing: the snapshot starts out empty
+// and only records the state an inode or directory had when it is first changed after the snapshot
+// was taken (see SnapshotManager). Anything not recorded here or in a later snapshot is unchanged.
+// The recorded inodes keep their data blocks through the SuperBlock's BlockRefCounts, so changing or
+// deleting the live file copies or keeps the blocks instead of overwriting or freeing them.
+public class Snapshot {
+  private final String name;
+  private final long createdTime; // Epoch nanoseconds, see FsClock
+
+  // Guarded by the SnapshotManager's monitor
+  final Map<Integer, InodeImage> inodes = new HashMap<>(); // Inode number -> state when the snapshot was taken
+  final Map<Integer, DirectoryImage> directories = new HashMap<>(); // Directory id -> state when taken
+  boolean deleted; // Waiting for the reclaimer
+  int mounts;
+
+  Snapshot(String name, long createdTime) {
+    this.name = name;
+    this.createdTime = createdTime;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public long getCreatedTime() {
+    return createdTime;
+  }
+
+  // State of an inode as the snapshot sees it. Extents are (start, length) pairs; an inline file has
+  // none and its data is copied instead.
+  static final class InodeImage {
+    final boolean used;
+    final String name;
+    final int directoryId;
+    final int size;
+    final long accessTime;
+    final long modifyTime;
+    final long changeTime;
+    final int[] extents;
+    final byte[] inlineData; // Null unless the file keeps its data in the inode
+
+    // The caller holds the inode's lock
+    InodeImage(Inode inode) {
+      this.used = inode.isUsed();
+      this.name = inode.getName();
+      this.directoryId = inode.getDirectoryId();
+      this.size = inode.getSize();
+      this.accessTime = inode.getAccessTime();
+      this.modifyTime = inode.getModifyTime();
+      this.changeTime = inode.getChangeTime();
+      this.extents = new int[used ? 2 * inode.getExtentCount() : 0];
+      for (int i = 0; i < extents.length / 2; i++) {
+        extents[2 * i] = inode.getExtentStart(i);
+        extents[2 * i + 1] = inode.getExtentLength(i);
+      }
+      this.inlineData = used && inode.isInline() ? new byte[size] : null;
+      if (inlineData != null) {
+        inode.readInline(0, ByteBuffer.wrap(inlineData), size);
+      }
+    }
+  }
+
+  // State of a directory as the snapshot sees it; a directory created after the snapshot is absent
+  static final class DirectoryImage {
+    static final DirectoryImage ABSENT = new DirectoryImage(null, -1);
+
+    final String name;
+    final int parentId;
+
+    DirectoryImage(String name, int parentId) {
+      this.name = name;
+      this.parentId = parentId;
+    }
+  }
+}
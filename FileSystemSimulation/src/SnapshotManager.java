@@ -0,0 +1,300 @@
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Keeps the snapshots of one disk, oldest first. Changes to inodes and directories call the
+// preserve methods first, under the lock that guards the object, and the first change after the
+// newest snapshot was taken records the old state in it. A snapshot's view of an object is then
+// the first state recorded for it in that snapshot or any later one, or the live object if none
+// has a record, since it has not changed since.
+//
+// Deleting a snapshot only marks it; a background thread later merges its records into the next
+// older snapshot (which sees the same states unless it recorded its own) or, when there is none
+// or the older one has its own record, drops them and releases their blocks. The work is done a
+// batch at a time, so foreground changes are never held up for long.
+//
+// Snapshots live in memory: they do not survive closing the disk, and the blocks only they hold
+// are free again when the image is next opened.
+public class SnapshotManager {
+  private static final int RECLAIM_BATCH = 256; // Records merged or dropped per hold of the monitor
+
+  private final SuperBlock superBlock;
+  private final List<Snapshot> snapshots = new ArrayList<>(); // Oldest first, guarded by this
+  private volatile int liveSnapshots; // Snapshots not deleted; changes skip preserving when there are none
+  private Thread reclaimer; // Started by the first delete, guarded by this
+  private boolean running = true; // Guarded by this
+  private long reclaimedRecords; // Guarded by this
+
+  public SnapshotManager(SuperBlock superBlock) {
+    this.superBlock = superBlock;
+  }
+
+  // Called by the SuperBlock with every change held off, so the snapshot falls between changes
+  synchronized FsResult<Snapshot> create(String name) {
+    if (find(name) != null) {
+      return FsResult.error(FsError.SNAPSHOT_EXISTS);
+    }
+    Snapshot snapshot = new Snapshot(name, FsClock.now());
+    snapshots.add(snapshot);
+    liveSnapshots++;
+    return FsResult.ok(snapshot);
+  }
+
+  // Marks the snapshot deleted and leaves its records to the reclaimer
+  public synchronized FsResult<Void> delete(String name) {
+    Snapshot snapshot = find(name);
+    if (snapshot == null) {
+      return FsResult.error(FsError.SNAPSHOT_NOT_FOUND);
+    }
+    if (snapshot.mounts > 0) {
+      return FsResult.error(FsError.SNAPSHOT_MOUNTED);
+    }
+    snapshot.deleted = true;
+    liveSnapshots--;
+    if (reclaimer == null && running) {
+      reclaimer = new Thread(this::reclaimLoop, "snapshot-reclaimer");
+      reclaimer.setDaemon(true);
+      reclaimer.start();
+    }
+    notifyAll();
+    return FsResult.ok();
+  }
+
+  // Snapshots that have not been deleted, oldest first
+  public synchronized List<Snapshot> list() {
+    List<Snapshot> live = new ArrayList<>();
+    for (Snapshot snapshot : snapshots) {
+      if (!snapshot.deleted) {
+        live.add(snapshot);
+      }
+    }
+    return live;
+  }
+
+  // Inodes and directories recorded by the snapshot so far, i.e. changed since it was taken
+  public synchronized int countRecords(Snapshot snapshot) {
+    return snapshot.inodes.size() + snapshot.directories.size();
+  }
+
+  public synchronized boolean isMounted(Snapshot snapshot) {
+    return snapshot.mounts > 0;
+  }
+
+  // Records of deleted snapshots still waiting to be merged or dropped
+  public synchronized long countPendingRecords() {
+    long pending = 0;
+    for (Snapshot snapshot : snapshots) {
+      if (snapshot.deleted) {
+        pending += snapshot.inodes.size() + snapshot.directories.size();
+      }
+    }
+    return pending;
+  }
+
+  public synchronized long getReclaimedRecords() {
+    return reclaimedRecords;
+  }
+
+  // Builds a read-only view of the snapshot. It stays mounted, and cannot be deleted, until the
+  // view is unmounted.
+  public FsResult<SnapshotMount> mount(String name) {
+    Snapshot snapshot;
+    synchronized (this) {
+      snapshot = find(name);
+      if (snapshot == null) {
+        return FsResult.error(FsError.SNAPSHOT_NOT_FOUND);
+      }
+      snapshot.mounts++;
+    }
+    return FsResult.ok(new SnapshotMount(superBlock, this, snapshot));
+  }
+
+  synchronized void unmount(Snapshot snapshot) {
+    snapshot.mounts--;
+  }
+
+  // Records the inode's current state in the newest snapshot unless it already holds one. The
+  // caller holds the inode's write lock and is about to change it.
+  public void preserveInode(Inode inode) {
+    if (liveSnapshots == 0) {
+      return;
+    }
+    synchronized (this) {
+      if (liveSnapshots == 0) {
+        return; // The last one was deleted meanwhile
+      }
+      // The newest snapshot may be a deleted one; its records still serve the older ones
+      Snapshot newest = snapshots.get(snapshots.size() - 1);
+      if (newest.inodes.containsKey(inode.getNumber())) {
+        return;
+      }
+      Snapshot.InodeImage image = new Snapshot.InodeImage(inode);
+      for (int i = 0; i < image.extents.length; i += 2) {
+        superBlock.getRefCounts().share(image.extents[i], image.extents[i + 1]); // The snapshot owns them too
+      }
+      newest.inodes.put(inode.getNumber(), image);
+    }
+  }
+
+  // Records the directory's current state in the newest snapshot unless it already holds one. A
+  // directory about to be created is recorded as absent.
+  public void preserveDirectory(int id, Directory directory) {
+    if (liveSnapshots == 0) {
+      return;
+    }
+    synchronized (this) {
+      if (liveSnapshots == 0) {
+        return;
+      }
+      Snapshot newest = snapshots.get(snapshots.size() - 1);
+      if (!newest.directories.containsKey(id)) {
+        newest.directories.put(id, directory == null ? Snapshot.DirectoryImage.ABSENT
+            : new Snapshot.DirectoryImage(directory.getName(), directory.getParentDirectory().getId()));
+      }
+    }
+  }
+
+  // True if some snapshot sees the live inode as it is, so its blocks must stay where they are.
+  // The caller holds the inode's lock.
+  public boolean isReferenced(Inode inode) {
+    if (liveSnapshots == 0) {
+      return false;
+    }
+    synchronized (this) {
+      return liveSnapshots > 0 && !snapshots.get(snapshots.size() - 1).inodes.containsKey(inode.getNumber());
+    }
+  }
+
+  // The snapshot's view of an inode, or null if that is the live inode. Called with the monitor held.
+  Snapshot.InodeImage resolveInode(Snapshot snapshot, int number) {
+    for (int i = snapshots.indexOf(snapshot); i < snapshots.size(); i++) {
+      Snapshot.InodeImage image = snapshots.get(i).inodes.get(number);
+      if (image != null) {
+        return image;
+      }
+    }
+    return null;
+  }
+
+  // The snapshot's view of a directory, or null if that is the live directory. Called with the monitor held.
+  Snapshot.DirectoryImage resolveDirectory(Snapshot snapshot, int id) {
+    for (int i = snapshots.indexOf(snapshot); i < snapshots.size(); i++) {
+      Snapshot.DirectoryImage image = snapshots.get(i).directories.get(id);
+      if (image != null) {
+        return image;
+      }
+    }
+    return null;
+  }
+
+  // Ids of the directories recorded by the snapshot or a later one. Called with the monitor held.
+  Set<Integer> recordedDirectoryIds(Snapshot snapshot) {
+    Set<Integer> ids = new HashSet<>();
+    for (int i = snapshots.indexOf(snapshot); i < snapshots.size(); i++) {
+      ids.addAll(snapshots.get(i).directories.keySet());
+    }
+    return ids;
+  }
+
+  // Stops the reclaimer after its current batch. Deleted snapshots left over need no cleanup: their
+  // blocks are free again when the disk is next opened.
+  public void close() {
+    Thread stopping;
+    synchronized (this) {
+      running = false;
+      notifyAll();
+      stopping = reclaimer;
+    }
+    if (stopping != null) {
+      boolean interrupted = false;
+      while (true) {
+        try {
+          stopping.join();
+          break;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private void reclaimLoop() {
+    while (true) {
+      synchronized (this) {
+        Snapshot deleted = oldestDeleted();
+        while (running && deleted == null) {
+          try {
+            wait();
+          } catch (InterruptedException e) {
+            return;
+          }
+          deleted = oldestDeleted();
+        }
+        if (!running) {
+          return;
+        }
+        reclaimBatch(deleted);
+      }
+      Thread.yield(); // Let waiting changes have the monitor between batches
+    }
+  }
+
+  // Merges or drops up to RECLAIM_BATCH records of a deleted snapshot, and forgets the snapshot once
+  // it has none left. Called with the monitor held.
+  private void reclaimBatch(Snapshot deleted) {
+    int index = snapshots.indexOf(deleted);
+    Snapshot older = index > 0 ? snapshots.get(index - 1) : null;
+    int done = 0;
+    Iterator<Map.Entry<Integer, Snapshot.InodeImage>> inodes = deleted.inodes.entrySet().iterator();
+    while (inodes.hasNext() && done < RECLAIM_BATCH) {
+      Map.Entry<Integer, Snapshot.InodeImage> record = inodes.next();
+      inodes.remove();
+      done++;
+      if (older != null && !older.inodes.containsKey(record.getKey())) {
+        older.inodes.put(record.getKey(), record.getValue()); // The older snapshot saw the same state
+      } else {
+        int[] extents = record.getValue().extents;
+        for (int i = 0; i < extents.length; i += 2) {
+          superBlock.releaseBlocks(extents[i], extents[i + 1]);
+        }
+      }
+    }
+    Iterator<Map.Entry<Integer, Snapshot.DirectoryImage>> directories = deleted.directories.entrySet().iterator();
+    while (directories.hasNext() && done < RECLAIM_BATCH) {
+      Map.Entry<Integer, Snapshot.DirectoryImage> record = directories.next();
+      directories.remove();
+      done++;
+      if (older != null) {
+        older.directories.putIfAbsent(record.getKey(), record.getValue());
+      }
+    }
+    reclaimedRecords += done;
+    if (deleted.inodes.isEmpty() && deleted.directories.isEmpty()) {
+      snapshots.remove(index);
+    }
+  }
+
+  private Snapshot oldestDeleted() {
+    for (Snapshot snapshot : snapshots) {
+      if (snapshot.deleted) {
+        return snapshot;
+      }
+    }
+    return null;
+  }
+
+  private Snapshot find(String name) {
+    for (Snapshot snapshot : snapshots) {
+      if (!snapshot.deleted && snapshot.getName().equals(name)) {
+        return snapshot;
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,191 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+import java.util.concurrent.locks.Lock;
+
+// Read-only view of a snapshot, built when it is mounted: the directory tree and file metadata are
+// resolved once (see SnapshotManager), and file data is read from the blocks the snapshot holds.
+// Those blocks never change while the snapshot exists, since the live files copy a block before
+// writing it, so reads take no locks. Paths are absolute or relative to a directory of the mount,
+// as for the live tree. Files of a directory are listed in inode order.
+public class SnapshotMount {
+  private final SnapshotManager manager;
+  private final Snapshot snapshot;
+  private final BufferCache cache;
+  private final int blockSize;
+  private final Map<Integer, Node> nodes = new HashMap<>(); // Directory id -> directory as the snapshot sees it
+  private volatile boolean mounted = true;
+
+  // A directory of the snapshot
+  private static final class Node {
+    final String name;
+    final String path;
+    final Node parent;
+    final Map<String, Node> subDirectories = new LinkedHashMap<>();
+    final List<FileInfo> files = new ArrayList<>();
+
+    Node(String name, Node parent) {
+      this.name = name;
+      this.parent = parent;
+      this.path = parent == null ? "/" : parent.parent == null ? "/" + name : parent.path + "/" + name;
+    }
+  }
+
+  SnapshotMount(SuperBlock superBlock, SnapshotManager manager, Snapshot snapshot) {
+    this.manager = manager;
+    this.snapshot = snapshot;
+    this.cache = superBlock.getCache();
+    this.blockSize = superBlock.getGeometry().getBlockSize();
+
+    // Directories: the live ones plus those deleted since, each as the snapshot sees it. Ids grow
+    // from parent to child, so parents are built first.
+    synchronized (manager) {
+      TreeSet<Integer> ids = new TreeSet<>(manager.recordedDirectoryIds(snapshot));
+      Map<Integer, Directory> live = new HashMap<>();
+      for (Directory directory : superBlock.getDirectories()) {
+        live.put(directory.getId(), directory);
+        ids.add(directory.getId());
+      }
+      for (int id : ids) {
+        Snapshot.DirectoryImage image = manager.resolveDirectory(snapshot, id);
+        if (image == Snapshot.DirectoryImage.ABSENT) {
+          continue; // Created after the snapshot
+        }
+        String name = image != null ? image.name : live.get(id).getName();
+        Directory liveParent = image != null ? null : live.get(id).getParentDirectory();
+        int parentId = image != null ? image.parentId : liveParent == null ? -1 : liveParent.getId();
+        Node parent = nodes.get(parentId);
+        if (parentId >= 0 && parent == null) {
+          continue;
+        }
+        Node node = new Node(name, parent);
+        nodes.put(id, node);
+        if (parent != null) {
+          parent.subDirectories.put(name, node);
+        }
+      }
+    }
+
+    // Files: an inode the snapshot has no record of is unchanged since, so its live state is read
+    // under its lock, which also keeps it from changing between the check and the read
+    for (int number = 0; number < superBlock.getMaxFiles(); number++) {
+      Inode inode = superBlock.getInode(number);
+      Snapshot.InodeImage image;
+      Lock lock = superBlock.inodeLock(inode).readLock();
+      lock.lock();
+      try {
+        synchronized (manager) {
+          image = manager.resolveInode(snapshot, number);
+        }
+        if (image == null) {
+          image = new Snapshot.InodeImage(inode);
+        }
+      } finally {
+        lock.unlock();
+      }
+      Node directory = nodes.get(image.directoryId);
+      if (image.used && directory != null) {
+        directory.files.add(FileInfo.of(number, image));
+      }
+    }
+  }
+
+  public Snapshot getSnapshot() {
+    return snapshot;
+  }
+
+  // Absolute path of the directory the path leads to from the current directory (a path of the mount)
+  public FsResult<String> resolveDirectory(String currentPath, String path) {
+    Node node = find(currentPath, path);
+    return node == null ? FsResult.<String>error(FsError.DIRECTORY_NOT_FOUND) : FsResult.ok(node.path);
+  }
+
+  public FsResult<DirectoryListing> list(String path) {
+    Node node = find("/", path);
+    if (node == null) {
+      return FsResult.error(FsError.DIRECTORY_NOT_FOUND);
+    }
+    return FsResult.ok(new DirectoryListing(node.name, new ArrayList<>(node.subDirectories.keySet()), node.files));
+  }
+
+  public FsResult<FileInfo> stat(String directoryPath, String fileName) {
+    Node node = find("/", directoryPath);
+    if (node == null) {
+      return FsResult.error(FsError.DIRECTORY_NOT_FOUND);
+    }
+    for (FileInfo file : node.files) {
+      if (file.getName().equals(fileName)) {
+        return FsResult.ok(file);
+      }
+    }
+    return FsResult.error(FsError.FILE_NOT_FOUND);
+  }
+
+  // Reads into dst starting at the given offset of a file of this mount. Returns the number of bytes
+  // read, or -1 if the position is at or past the end of the file.
+  public int read(FileInfo file, ByteBuffer dst, long position) {
+    if (!mounted) {
+      throw new IllegalStateException("Snapshot is not mounted.");
+    }
+    if (position >= file.getSize()) {
+      return -1;
+    }
+    int toRead = (int) Math.min(dst.remaining(), file.getSize() - position);
+    if (file.isInline()) {
+      file.readInline((int) position, dst, toRead);
+      return toRead;
+    }
+    int done = 0;
+    int extent = 0;
+    long extentOffset = 0; // File offset of the extent's first byte
+    while (done < toRead) {
+      long offset = position + done;
+      while (offset >= extentOffset + (long) file.getExtentLength(extent) * blockSize) {
+        extentOffset += (long) file.getExtentLength(extent) * blockSize;
+        extent++;
+      }
+      int inBlock = (int) (offset % blockSize);
+      int chunk = Math.min(toRead - done, blockSize - inBlock);
+      cache.read(file.getExtentStart(extent) + (int) ((offset - extentOffset) / blockSize), inBlock, dst, chunk);
+      done += chunk;
+    }
+    return done;
+  }
+
+  // Lets the snapshot be deleted again. The view must not be read afterwards, its blocks may be reused.
+  public void unmount() {
+    if (mounted) {
+      mounted = false;
+      manager.unmount(snapshot);
+    }
+  }
+
+  public boolean isMounted() {
+    return mounted;
+  }
+
+  // Walks the path from the root if it starts with '/', otherwise from the current directory.
+  // Handles "." and "..", as DentryCache does for the live tree.
+  private Node find(String currentPath, String path) {
+    Node node = nodes.get(0);
+    String full = path.startsWith("/") ? path : currentPath + "/" + path;
+    for (String part : full.split("/")) {
+      if (part.isEmpty() || part.equals(".")) {
+        continue;
+      }
+      if (part.equals("..")) {
+        node = node.parent == null ? node : node.parent;
+      } else {
+        node = node.subDirectories.get(part);
+        if (node == null) {
+          return null;
+        }
+      }
+    }
+    return node;
+  }
+}
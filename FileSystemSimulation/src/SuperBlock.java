@@ -1,171 +1,1357 @@
-import java.util.Arrays;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+// Owns the inode table, the free-space allocator and the directory registry. Safe for concurrent use:
+// - lookups go through concurrent maps and take no lock;
+// - each directory has a read/write lock guarding its children (see Directory);
+// - each inode's fields are guarded by a striped read/write lock (inodeLock), and a thread holds at
+//   most one inode lock at a time;
+// - every change holds the snapshot gate's read lock (see updateGate), which taking a snapshot
+//   holds exclusively;
+// - the allocator, the block reference counts, the free-inode stack and the buffer cache segments
+//   have short internal locks.
+// Locks are always taken in that order: directories (lowest id first), then an inode, then the
+// snapshot gate, then the internal ones.
+//
+// On image-backed disks every metadata change is also logged to a Journal, inside the same locks
+// as the change itself; the top-level operation calls commit() once it is done.
 public class SuperBlock {
-  private boolean[] blockUsage; // Tracks whether each block is free or in use
-  private static final int TOTAL_BLOCKS = 128; // Filesystem size in MB
-  protected static final int MAX_FILES = 16;
+  private static final int INODE_LOCK_STRIPES = 256;
 
-  private static final int BLOCK_SIZE = 1024; // Block size in bytes
-  private Inode[] inodes; // Array of inodes for file metadata
+  private final DiskGeometry geometry; // Block size, block count and inode count chosen at format time
+  private GroupedAllocator blockUsage; // The disk's single free-space manager
+  private BufferCache cache; // Where indirect extent blocks are read and written
+  private final InodeTable inodes; // Fixed-width inode records outside the Java heap
+  private final DentryCache dentryCache = new DentryCache(DentryCache.DEFAULT_CAPACITY); // Resolved directory paths
+  private final BlockRefCounts refCounts = new BlockRefCounts(); // Data blocks shared by copies and snapshots
+  private final SnapshotManager snapshots = new SnapshotManager(this);
+  private final FsMetrics metrics = new FsMetrics(this); // Operation latencies, see getMetrics
+  private final ReentrantReadWriteLock snapshotGate = new ReentrantReadWriteLock(); // See updateGate
+  private final int[] freeInodes; // Stack of unused inode numbers, guarded by its own monitor
+  private volatile int freeInodeCount;
+  private final LockStripes inodeLocks;
+  private Map<InodeKey, Inode> inodeIndex; // (directory id, file name) -> inode, for every used inode
+  private Map<Integer, Directory> directories; // Live directories by id
+  private final AtomicInteger nextDirectoryId;
+  private Journal journal; // Null for in-memory disks
+  private Map<Integer, int[]> restoredChains; // Indirect blocks of replayed inodes, only set during recovery
+  private final ThreadLocal<List<int[]>> deferredFrees = new ThreadLocal<>(); // Runs freed by releaseInodes
+  private final DelayedAllocation delayed; // File growth not yet given blocks
+  private final AtomicInteger snapshotsStarting = new AtomicInteger(); // Growth is allocated at once while > 0
+  private final AtomicInteger inlineFiles = new AtomicInteger(); // Files keeping their data in the inode
+
+  // Index key for a file: the directory that holds it and its name within that directory
+  private static final class InodeKey {
+    private final int directoryId;
+    private final String fileName;
+
+    InodeKey(int directoryId, String fileName) {
+      this.directoryId = directoryId;
+      this.fileName = fileName;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof InodeKey)) {
+        return false;
+      }
+      InodeKey key = (InodeKey) other;
+      return directoryId == key.directoryId && fileName.equals(key.fileName);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * directoryId + fileName.hashCode();
+    }
+  }
 
   public SuperBlock() {
-    this.blockUsage = new boolean[TOTAL_BLOCKS]; // Initialize based on total disk blocks
-    Arrays.fill(this.blockUsage, false); // Assume all blocks are initially free
-    this.inodes = new Inode[MAX_FILES]; // Initialize inodes array
-    for (int i = 0; i < MAX_FILES; i++) {
-      this.inodes[i] = new Inode(); // Initialize each inode
+    this(DiskGeometry.DEFAULT);
+  }
+
+  public SuperBlock(DiskGeometry geometry) {
+    this(geometry, AllocationPolicy.BEST_FIT, new BufferCache(new BlockStore(geometry), 0, CachePolicy.LRU));
+  }
+
+  public SuperBlock(DiskGeometry geometry, AllocationPolicy policy, BufferCache cache) {
+    this(geometry, policy, cache, 0);
+  }
+
+  // delayedBytes is the memory for data of files grown past their blocks, 0 allocates on growth
+  public SuperBlock(DiskGeometry geometry, AllocationPolicy policy, BufferCache cache, long delayedBytes) {
+    this.geometry = geometry;
+    this.cache = cache;
+    this.delayed = new DelayedAllocation(geometry.getBlockSize(), delayedBytes);
+    // All blocks start out free
+    this.blockUsage = new GroupedAllocator(policy, geometry.getTotalBlocks(), geometry.getMaxFileBlocks(), metrics);
+    int maxFiles = geometry.getMaxFiles();
+    this.inodes = new InodeTable(maxFiles, geometry.getInlineDataBytes());
+    this.freeInodes = new int[maxFiles];
+    for (int i = 0; i < maxFiles; i++) {
+      this.freeInodes[i] = maxFiles - 1 - i; // Lowest numbers are handed out first
     }
+    this.freeInodeCount = maxFiles;
+    this.inodeLocks = new LockStripes(Math.min(maxFiles, INODE_LOCK_STRIPES));
+    this.inodeIndex = new ConcurrentHashMap<>();
+    this.directories = new ConcurrentHashMap<>();
+    this.nextDirectoryId = new AtomicInteger();
   }
 
-  public int getTotalBlocks() {
-    return TOTAL_BLOCKS;
+  // Hands out a unique id for a new directory, the root directory gets 0. Ids only grow, so a
+  // directory always has a higher id than its parent.
+  public int registerDirectory(Directory directory) {
+    int id = nextDirectoryId.getAndIncrement();
+    beginUpdate();
+    try {
+      snapshots.preserveDirectory(id, null); // Absent from the snapshots taken so far
+      directories.put(id, directory);
+      if (journal != null && directory.getParentDirectory() != null) {
+        journal.logDirectory(id, directory);
+      }
+    } finally {
+      endUpdate();
+    }
+    return id;
   }
 
-  public int allocateBlock() {
-    for (int i = 0; i < this.blockUsage.length; i++) {
-      if (!this.blockUsage[i]) { // Free block found
-        this.blockUsage[i] = true; // Mark as in use
-        return i;
+  // Registers a directory recreated during recovery under the id it had before
+  public int registerDirectory(Directory directory, int id) {
+    directories.put(id, directory);
+    nextDirectoryId.accumulateAndGet(id + 1, Math::max);
+    return id;
+  }
+
+  public void unregisterDirectory(Directory directory) {
+    beginUpdate();
+    try {
+      snapshots.preserveDirectory(directory.getId(), directory);
+      directories.remove(directory.getId());
+      if (journal != null) {
+        journal.logDirectoryDelete(directory.getId());
+      }
+    } finally {
+      endUpdate();
+    }
+  }
+
+  // Live directories in id order, which puts every parent before its children
+  public List<Directory> getDirectories() {
+    return new ArrayList<>(new TreeMap<>(directories).values());
+  }
+
+  public Directory getDirectory(int directoryId) {
+    return directories.get(directoryId);
+  }
+
+  public DentryCache getDentryCache() {
+    return dentryCache;
+  }
+
+  public BlockRefCounts getRefCounts() {
+    return refCounts;
+  }
+
+  public SnapshotManager getSnapshots() {
+    return snapshots;
+  }
+
+  public FsMetrics getMetrics() {
+    return metrics;
+  }
+
+  public BufferCache getCache() {
+    return cache;
+  }
+
+  public DelayedAllocation getDelayedAllocation() {
+    return delayed;
+  }
+
+  // Blocks set aside for delayed growth
+  public int countReservedBlocks() {
+    return blockUsage.countReserved();
+  }
+
+  // The file's size without its delayed growth, the size the journal records. The caller holds the
+  // inode's lock, or the journal's update lock exclusively.
+  public int durableSize(Inode inode) {
+    DelayedAllocation.Growth growth = delayed.get(inode);
+    return growth == null ? inode.getSize() : growth.committedSize;
+  }
+
+  // Takes a snapshot of the whole tree. It waits for the changes in progress to finish and holds off
+  // new ones meanwhile, but copies nothing, so it takes the same time whatever is on the disk. The
+  // caller holds no directory or inode lock.
+  //
+  // Delayed growth is allocated first, since snapshots record blocks and not buffered data. New
+  // growth is allocated straight away until the snapshot is taken, so at most one retry is needed
+  // for growth that started before that took effect.
+  public FsResult<Snapshot> createSnapshot(String name) {
+    if (name.length() > Inode.MAX_NAME_LENGTH) {
+      return FsResult.error(FsError.NAME_TOO_LONG);
+    }
+    snapshotsStarting.incrementAndGet();
+    try {
+      while (true) {
+        if (!allocateDelayed()) {
+          return FsResult.error(FsError.NO_SPACE);
+        }
+        Lock lock = snapshotGate.writeLock();
+        lock.lock();
+        try {
+          if (delayed.isEmpty()) { // Growth only starts with the gate held shared
+            return snapshots.create(name);
+          }
+        } finally {
+          lock.unlock();
+        }
       }
+    } finally {
+      snapshotsStarting.decrementAndGet();
+    }
+  }
+
+  // Held (shared) around every change, so that a snapshot is taken between changes and never sees
+  // half of one. beginUpdate takes it for metadata changes; a change that also writes file data,
+  // like FileHandle.write, holds it from before the data is preserved until the data is written.
+  // Taken after the inode's lock.
+  public Lock updateGate() {
+    return snapshotGate.readLock();
+  }
+
+  public Inode getInode(int inodeNumber) {
+    return inodes.get(inodeNumber);
+  }
+
+  // Guards the fields of the inode: readers take the read lock, anything that changes the file
+  // (size, extents, name, release) takes the write lock
+  public ReentrantReadWriteLock inodeLock(Inode inode) {
+    return inodeLocks.forKey(inode.getNumber());
+  }
+
+  // Starts logging metadata changes, called once recovery has finished
+  public void attachJournal(Journal journal) {
+    this.journal = journal;
+  }
+
+  public Journal getJournal() {
+    return journal;
+  }
+
+  // Makes the changes logged so far durable. Called by each top-level operation after it has
+  // released its locks.
+  public void commit() {
+    if (journal != null) {
+      journal.commit();
+    }
+  }
+
+  private void beginUpdate() {
+    snapshotGate.readLock().lock();
+    if (journal != null) {
+      journal.beginUpdate();
+    }
+  }
+
+  private void endUpdate() {
+    if (journal != null) {
+      journal.endUpdate();
     }
-    return -1; // No free blocks available
+    snapshotGate.readLock().unlock();
+  }
+
+  private void logInode(Inode inode) {
+    if (journal != null) {
+      journal.logInode(inode, getIndirectBlocks(inode));
+    }
+  }
+
+  public DiskGeometry getGeometry() {
+    return geometry;
+  }
+
+  public BlockAllocator getAllocator() {
+    return blockUsage;
+  }
+
+  public int getTotalBlocks() {
+    return blockUsage.getTotalBlocks();
+  }
+
+  public int getMaxFiles() {
+    return inodes.size();
+  }
+
+  public int allocateBlock() {
+    return blockUsage.allocate(); // -1 when no free blocks are available
   }
 
   public boolean freeBlock(int blockNumber) {
-    if (blockNumber >= 0 && blockNumber < this.blockUsage.length && this.blockUsage[blockNumber]) {
-      this.blockUsage[blockNumber] = false; // Mark as free
+    if (blockNumber >= 0 && blockNumber < blockUsage.getTotalBlocks() && blockUsage.isUsed(blockNumber)) {
+      List<int[]> deferred = deferredFrees.get();
+      if (deferred != null) {
+        deferred.add(new int[] { blockNumber, 1 });
+        return true;
+      }
+      cache.discard(blockNumber); // Before freeing, so the drop cannot hit another file's new copy
+      blockUsage.free(blockNumber, 1); // Mark as free
       return true;
     }
     return false; // Block number is invalid or already free
   }
 
-  public Inode findInode(String fileName) {
-    for (Inode inode : this.inodes) {
-      if (inode.isUsed() && inode.getName().equals(fileName)) {
-        return inode;
-      }
-    }
-    return null;
+  public Inode findInode(int directoryId, String fileName) {
+    long start = metrics.start(FsMetrics.Operation.LOOKUP);
+    Inode inode = inodeIndex.get(new InodeKey(directoryId, fileName));
+    metrics.record(FsMetrics.Operation.LOOKUP, start, inode != null);
+    return inode;
   }
 
-  public void listInodes(String directoryName) {
-    System.out.println("Files in directory '" + directoryName + "':");
-    boolean found = false;
-    for (Inode inode : inodes) {
-      if (inode.isUsed() && inode.getDirectoryName().equals(directoryName)) {
-        int sizeInKB = inode.getSize() / 1024; // Assume size is stored in bytes and we convert to KB for display
-        System.out.println(
-            "Name: " + inode.getName() + ", Size: " + sizeInKB + "KB, Last Modified: " + inode.getLastModifiedTime());
-        found = true;
+  // Snapshots of the directory's files in creation order. The caller holds the directory's read lock.
+  public List<FileInfo> listFiles(Directory directory) {
+    List<FileInfo> files = new ArrayList<>(directory.getFileInodes().size());
+    for (int inodeNumber : directory.getFileInodes()) {
+      Inode inode = inodes.get(inodeNumber);
+      ReentrantReadWriteLock.ReadLock lock = inodeLock(inode).readLock();
+      lock.lock();
+      try {
+        files.add(FileInfo.of(this, inode));
+      } finally {
+        lock.unlock();
       }
     }
-    if (!found) {
-      System.out.println("No files found in this directory.");
-    }
+    return files;
   }
 
-  public Inode allocateInode(String fileName, int fileSizeInKB) {
+  // Creates a file in the directory. The caller holds the directory's write lock.
+  public FsResult<Inode> allocateInode(int directoryId, String fileName, int fileSizeInKB) {
+    long start = metrics.start(FsMetrics.Operation.CREATE);
+    FsResult<Inode> result = createInode(directoryId, fileName, fileSizeInKB);
+    metrics.record(FsMetrics.Operation.CREATE, start, result.isOk());
+    return result;
+  }
+
+  private FsResult<Inode> createInode(int directoryId, String fileName, int fileSizeInKB) {
+    if (fileName.length() > Inode.MAX_NAME_LENGTH) {
+      return FsResult.error(FsError.NAME_TOO_LONG);
+    }
+
     // Calculate the number of blocks needed for the file size
-    int requiredBlocks = (int) Math.ceil(fileSizeInKB / (BLOCK_SIZE / 1024.0));
+    long fileSizeInBytes = fileSizeInKB * 1024L;
+    if (fileSizeInBytes < 0) {
+      return FsResult.error(FsError.NEGATIVE_SIZE);
+    }
+    if (fileSizeInBytes > geometry.getMaxFileBytes()) {
+      return FsResult.error(FsError.FILE_TOO_LARGE);
+    }
+    boolean inline = fitsInline(fileSizeInBytes);
+    int requiredBlocks = inline ? 0 : geometry.blocksForBytes(fileSizeInBytes);
 
     // Check if enough blocks are available before attempting to allocate
     if (requiredBlocks > countFreeBlocks()) {
-      System.out.println("Error: Not enough space on disk to create file.");
-      return null;
+      return FsResult.error(FsError.NO_SPACE);
     }
 
-    for (Inode inode : this.inodes) {
-      if (!inode.isUsed()) {
-        inode.setName(fileName);
-        inode.setSize(fileSizeInKB * 1024); // Convert size back to bytes for storage
-
-        int startingBlock = allocateBlocks(requiredBlocks);
-        if (startingBlock != -1) {
-          inode.allocateBlocks(startingBlock, requiredBlocks);
-          inode.setUsed(true);
-          return inode;
-        } else {
-          System.out.println("Error: Not enough space on disk after all.");
-          return null;
+    Inode inode = takeFreeInode();
+    if (inode == null) {
+      return FsResult.error(FsError.NO_INODES); // No unused inodes available
+    }
+
+    // Nobody can reach the inode yet, the lock only stops a stale handle from seeing it half set up
+    ReentrantReadWriteLock.WriteLock lock = inodeLock(inode).writeLock();
+    lock.lock();
+    beginUpdate();
+    try {
+      snapshots.preserveInode(inode); // As unused, for snapshots taken before the file existed
+      if (!growInode(inode, requiredBlocks)) {
+        returnFreeInode(inode);
+        return FsResult.error(FsError.NO_SPACE); // Another thread took the space first
+      }
+      inode.setInline(inline);
+      inode.setName(fileName);
+      inode.setDirectoryId(directoryId);
+      inode.setSize((int) fileSizeInBytes);
+      inode.setUsed(true);
+      long now = FsClock.now();
+      inode.setTimes(now, now, now);
+      logInode(inode);
+    } finally {
+      endUpdate();
+      lock.unlock();
+    }
+    if (inline) {
+      inlineFiles.incrementAndGet();
+    }
+    inodeIndex.put(new InodeKey(directoryId, fileName), inode);
+    directories.get(directoryId).addFile(inode.getNumber());
+    return FsResult.ok(inode);
+  }
+
+  // True if a file of this size keeps its data in the inode instead of in blocks
+  private boolean fitsInline(long size) {
+    return geometry.getInlineDataBytes() > 0 && size <= geometry.getInlineDataBytes();
+  }
+
+  // Creates a copy of the source file that shares all of its data blocks, so copying takes the same
+  // time and space whatever the file's size. Only the copy's indirect blocks, if it needs any, are
+  // new. A shared block is duplicated when either file first writes it (see unshareBlocks). Inline
+  // data is simply copied. The caller holds the destination directory's write lock.
+  public FsResult<Inode> cloneInode(Inode source, int directoryId, String fileName) {
+    long start = metrics.start(FsMetrics.Operation.CREATE);
+    FsResult<Inode> result = copyInode(source, directoryId, fileName);
+    metrics.record(FsMetrics.Operation.CREATE, start, result.isOk());
+    return result;
+  }
+
+  private FsResult<Inode> copyInode(Inode source, int directoryId, String fileName) {
+    if (fileName.length() > Inode.MAX_NAME_LENGTH) {
+      return FsResult.error(FsError.NAME_TOO_LONG);
+    }
+    Inode inode = takeFreeInode();
+    if (inode == null) {
+      return FsResult.error(FsError.NO_INODES);
+    }
+
+    // The blocks gain their new owner while the source cannot change. From then on the copy owns
+    // them too, so if the source rewrites or frees them before the copy is set up, they stay. The
+    // source's delayed growth is allocated first, as only blocks can be shared.
+    int size;
+    int[] extents;
+    byte[] inlineData = null;
+    ReentrantReadWriteLock.WriteLock sourceLock = inodeLock(source).writeLock();
+    sourceLock.lock();
+    try {
+      if (!source.isUsed()) {
+        returnFreeInode(inode);
+        return FsResult.error(FsError.FILE_NOT_FOUND);
+      }
+      if (!allocateDelayed(source)) {
+        returnFreeInode(inode);
+        return FsResult.error(FsError.NO_SPACE);
+      }
+      size = source.getSize();
+      if (source.isInline()) {
+        inlineData = new byte[size];
+        source.readInline(0, ByteBuffer.wrap(inlineData), size);
+      }
+      extents = new int[2 * source.getExtentCount()];
+      for (int i = 0; i < source.getExtentCount(); i++) {
+        extents[2 * i] = source.getExtentStart(i);
+        extents[2 * i + 1] = source.getExtentLength(i);
+        refCounts.share(extents[2 * i], extents[2 * i + 1]);
+      }
+    } finally {
+      sourceLock.unlock();
+    }
+
+    ReentrantReadWriteLock.WriteLock lock = inodeLock(inode).writeLock();
+    lock.lock();
+    beginUpdate();
+    try {
+      snapshots.preserveInode(inode);
+      if (inlineData != null) {
+        inode.setInline(true);
+        inode.writeInline(0, ByteBuffer.wrap(inlineData), size);
+      }
+      for (int i = 0; i < extents.length; i += 2) {
+        inode.appendExtent(extents[i], extents[i + 1]);
+      }
+      if (!syncIndirectBlocks(inode)) {
+        inode.clearBlockAllocation();
+        for (int i = 0; i < extents.length; i += 2) {
+          releaseBlocks(extents[i], extents[i + 1]);
+        }
+        returnFreeInode(inode);
+        return FsResult.error(FsError.NO_SPACE); // No room for the copy's extent pointers
+      }
+      inode.setName(fileName);
+      inode.setDirectoryId(directoryId);
+      inode.setSize(size);
+      inode.setUsed(true);
+      long now = FsClock.now();
+      inode.setTimes(now, now, now);
+      logInode(inode);
+    } finally {
+      endUpdate();
+      lock.unlock();
+    }
+    if (inlineData != null) {
+      inlineFiles.incrementAndGet();
+    }
+    inodeIndex.put(new InodeKey(directoryId, fileName), inode);
+    directories.get(directoryId).addFile(inode.getNumber());
+    return FsResult.ok(inode);
+  }
+
+  // Gives the file its own copy of any block among count file blocks from firstBlock that it still
+  // shares with a copy, so those blocks can be written. Returns false, with nothing changed, if the
+  // disk has no room for the new blocks. The caller holds the inode's write lock.
+  public boolean unshareBlocks(Inode inode, int firstBlock, int count) {
+    int end = Math.min(firstBlock + count, inode.getBlocksAllocated());
+    List<int[]> extents = new ArrayList<>(); // The file's extents after the copy
+    List<int[]> copied = new ArrayList<>(); // Shared runs the file is giving up
+    List<int[]> allocated = new ArrayList<>(); // Runs holding the new copies, freed again on failure
+    int fileBlock = 0;
+    for (int i = 0; i < inode.getExtentCount(); i++) {
+      int start = inode.getExtentStart(i);
+      int length = inode.getExtentLength(i);
+      int from = Math.max(firstBlock, fileBlock) - fileBlock;
+      int to = Math.min(end, fileBlock + length) - fileBlock;
+      fileBlock += length;
+      if (from >= to || !refCounts.isShared(start + from, to - from)) {
+        extents.add(new int[] { start, length });
+        continue;
+      }
+      int cursor = start;
+      for (int[] shared : refCounts.sharedRuns(start + from, to - from)) {
+        if (shared[0] > cursor) {
+          extents.add(new int[] { cursor, shared[0] - cursor });
+        }
+        if (!copyBlocks(shared[0], shared[1], extents, allocated)) {
+          for (int[] run : allocated) {
+            freeBlocks(run[0], run[1]);
+          }
+          return false;
+        }
+        copied.add(shared);
+        cursor = shared[0] + shared[1];
+      }
+      if (cursor < start + length) {
+        extents.add(new int[] { cursor, start + length - cursor });
+      }
+    }
+    if (copied.isEmpty()) {
+      return true;
+    }
+
+    int[] oldExtents = new int[2 * inode.getExtentCount()];
+    for (int i = 0; i < inode.getExtentCount(); i++) {
+      oldExtents[2 * i] = inode.getExtentStart(i);
+      oldExtents[2 * i + 1] = inode.getExtentLength(i);
+    }
+    int indirectBlock = inode.getIndirectBlock();
+    beginUpdate();
+    try {
+      inode.clearBlockAllocation();
+      for (int[] extent : extents) {
+        inode.appendExtent(extent[0], extent[1]);
+      }
+      inode.setIndirectBlock(indirectBlock);
+      if (!syncIndirectBlocks(inode)) { // The split extents may need another indirect block
+        inode.clearBlockAllocation();
+        for (int i = 0; i < oldExtents.length; i += 2) {
+          inode.appendExtent(oldExtents[i], oldExtents[i + 1]);
+        }
+        inode.setIndirectBlock(indirectBlock);
+        for (int[] run : allocated) {
+          freeBlocks(run[0], run[1]);
         }
+        return false;
       }
+      logInode(inode);
+      for (int[] run : copied) {
+        releaseBlocks(run[0], run[1]); // Freed here if the other owners let go in the meantime
+      }
+    } finally {
+      endUpdate();
+    }
+    return true;
+  }
+
+  // Copies a run of blocks into newly allocated blocks, adding the new runs to extents and allocated.
+  // Returns false if the disk fills up part way.
+  private boolean copyBlocks(int start, int count, List<int[]> extents, List<int[]> allocated) {
+    ByteBuffer data = ByteBuffer.allocate(geometry.getBlockSize());
+    int done = 0;
+    while (done < count) {
+      int[] run = blockUsage.allocateUpTo(count - done);
+      if (run == null) {
+        return false;
+      }
+      allocated.add(run);
+      int target = run[0];
+      int length = run[1];
+      for (int i = 0; i < length; i++) {
+        data.clear();
+        cache.read(start + done + i, 0, data, data.capacity());
+        data.flip();
+        cache.write(target + i, 0, data, data.capacity());
+        cache.evict(target + i);
+      }
+      cache.sync(target, length); // Durable before the inode points at it
+      extents.add(new int[] { target, length });
+      done += length;
+    }
+    return true;
+  }
+
+  private Inode takeFreeInode() {
+    synchronized (freeInodes) {
+      return freeInodeCount == 0 ? null : inodes.get(freeInodes[--freeInodeCount]);
+    }
+  }
+
+  private void returnFreeInode(Inode inode) {
+    synchronized (freeInodes) {
+      freeInodes[freeInodeCount++] = inode.getNumber();
     }
+  }
 
-    System.out.println("Error: Maximum file count reached.");
-    return null; // No unused inodes available
+  public boolean releaseInode(int directoryId, String fileName) {
+    Inode inode = findInode(directoryId, fileName);
+    if (inode == null) {
+      return false; // File not found
+    }
+    releaseInode(inode);
+    return true;
   }
 
-  public boolean releaseInode(String fileName) {
-    Inode inode = findInode(fileName);
-    if (inode != null && inode.isUsed()) {
-      freeBlocks(inode.getStartingBlock(), inode.getBlocksAllocated()); // Free sequential blocks
+  // Deletes the file. The caller holds the write lock of the directory that contains it.
+  public void releaseInode(Inode inode) {
+    long start = metrics.start(FsMetrics.Operation.DELETE);
+    ReentrantReadWriteLock.WriteLock lock = inodeLock(inode).writeLock();
+    lock.lock();
+    beginUpdate();
+    try {
+      snapshots.preserveInode(inode); // Snapshots keep the blocks the file is about to give up
+      inodeIndex.remove(new InodeKey(inode.getDirectoryId(), inode.getName()));
+      Directory directory = directories.get(inode.getDirectoryId());
+      if (directory != null) {
+        directory.removeFile(inode.getNumber());
+      }
+      dropGrowth(inode);
+      if (inode.isInline()) {
+        inlineFiles.decrementAndGet();
+      }
+      shrinkInode(inode, 0); // Free every extent and indirect block
       inode.setUsed(false); // Mark inode as unused
       inode.clearBlockAllocation(); // Reset block allocation info
       inode.setName("");
+      inode.setDirectoryId(-1);
       inode.setSize(0);
-      return true;
+      if (journal != null) {
+        journal.logInodeFree(inode.getNumber());
+      }
+    } finally {
+      endUpdate();
+      lock.unlock();
     }
-    return false; // File not found
+    returnFreeInode(inode);
+    metrics.record(FsMetrics.Operation.DELETE, start);
   }
 
-  public int allocateBlocks(int requiredBlocks) {
-    int firstFreeBlock = -1;
-    int consecutiveFree = 0;
-    for (int i = 0; i < blockUsage.length; i++) {
-      if (!blockUsage[i]) {
-        if (firstFreeBlock == -1)
-          firstFreeBlock = i;
-        if (++consecutiveFree == requiredBlocks) {
-          for (int j = firstFreeBlock; j < firstFreeBlock + requiredBlocks; j++) {
-            blockUsage[j] = true;
-          }
-          return firstFreeBlock;
-        }
+  // Deletes a batch of files of one directory. Their blocks go back to the allocator together at
+  // the end: sorted, merged where they touch and freed under one allocator lock, instead of one
+  // allocator call per extent. The caller holds the directory's write lock.
+  public void releaseInodes(List<Inode> batch) {
+    List<int[]> freed = new ArrayList<>();
+    deferredFrees.set(freed);
+    try {
+      for (Inode inode : batch) {
+        releaseInode(inode);
+      }
+    } finally {
+      deferredFrees.remove();
+      freeRuns(freed);
+    }
+  }
+
+  private void freeRuns(List<int[]> runs) {
+    if (runs.isEmpty()) {
+      return;
+    }
+    runs.sort(Comparator.comparingInt(run -> run[0]));
+    List<int[]> merged = new ArrayList<>();
+    int[] last = null;
+    for (int[] run : runs) {
+      if (last != null && last[0] + last[1] == run[0]) {
+        last[1] += run[1];
       } else {
-        firstFreeBlock = -1;
-        consecutiveFree = 0;
+        last = run;
+        merged.add(run);
       }
     }
-    return -1;
+    for (int[] run : merged) {
+      cache.discard(run[0], run[1]); // Still ours, as in freeBlocks
+    }
+    for (int[] run : merged) {
+      blockUsage.free(run[0], run[1]);
+    }
+  }
+
+  public int allocateBlocks(int requiredBlocks) {
+    long start = metrics.start(FsMetrics.Operation.ALLOCATE);
+    int first = blockUsage.allocate(requiredBlocks);
+    metrics.record(FsMetrics.Operation.ALLOCATE, start, first >= 0);
+    return first;
   }
 
   public void freeBlocks(int startingBlock, int numberOfBlocks) {
-    for (int i = startingBlock; i < startingBlock + numberOfBlocks; i++) {
-      blockUsage[i] = false;
+    if (numberOfBlocks <= 0) {
+      return;
     }
+    List<int[]> deferred = deferredFrees.get();
+    if (deferred != null) {
+      deferred.add(new int[] { startingBlock, numberOfBlocks }); // Freed with the rest of the batch
+      return;
+    }
+    // Freed contents never need writing back. They are dropped while the blocks are still ours: once
+    // freed, another thread may allocate them and cache new contents that must survive.
+    cache.discard(startingBlock, numberOfBlocks);
+    blockUsage.free(startingBlock, numberOfBlocks);
+  }
+
+  // Adds data blocks to the end of a file. The blocks right after the file's last extent are taken
+  // when free, so appends stay contiguous; otherwise the file gets new extents, using the largest
+  // free runs when no single run is big enough. Returns false (with nothing changed) when the disk
+  // cannot hold the extra blocks. The caller holds the inode's write lock, as for every method that
+  // changes a file's blocks or size.
+  public boolean growInode(Inode inode, int blocks) {
+    long start = metrics.start(FsMetrics.Operation.ALLOCATE);
+    boolean grown = appendBlocks(inode, blocks);
+    metrics.record(FsMetrics.Operation.ALLOCATE, start, grown);
+    return grown;
+  }
+
+  private boolean appendBlocks(Inode inode, int blocks) {
+    if (blocks <= 0) {
+      return true;
+    }
+    if (blocks > countFreeBlocks()) {
+      return false;
+    }
+    int originalBlocks = inode.getBlocksAllocated();
+    List<int[]> runs = takeRuns(inode, blocks);
+    if (runs == null) {
+      return false;
+    }
+    for (int[] run : runs) {
+      clearBlocks(run[0], run[1]); // Freed blocks keep old contents, a new file must read back zeros
+      inode.appendExtent(run[0], run[1]);
+    }
+    if (!syncIndirectBlocks(inode)) {
+      shrinkInode(inode, originalBlocks); // No room left for the extra extent pointers
+      return false;
+    }
+    return true;
+  }
+
+  // Allocates count blocks to follow the file's last extent: the blocks right after it when they are
+  // free, otherwise the largest free runs. Returns the runs in file order, or null with nothing
+  // allocated when the disk cannot hold them.
+  private List<int[]> takeRuns(Inode inode, int count) {
+    List<int[]> runs = new ArrayList<>();
+    int extents = inode.getExtentCount();
+    int next = extents == 0 ? -1 : inode.getExtentStart(extents - 1) + inode.getExtentLength(extents - 1);
+    int remaining = count;
+    while (remaining > 0) {
+      if (next >= 0 && next + remaining <= getTotalBlocks() && blockUsage.allocateAt(next, remaining)) {
+        runs.add(new int[] { next, remaining });
+        break;
+      }
+      int[] run = blockUsage.allocateUpTo(remaining);
+      if (run == null) {
+        for (int[] taken : runs) {
+          blockUsage.free(taken[0], taken[1]); // Never written, so nothing is cached for them
+        }
+        return null;
+      }
+      runs.add(run);
+      next = run[0] + run[1];
+      remaining -= run[1];
+    }
+    return runs;
+  }
+
+  // Zeroes newly allocated blocks and forces the zeros to the store before the caller logs the inode
+  // that points at them; zeros still in the cache at a crash would let the file read back whatever
+  // the blocks held before they were freed.
+  private void clearBlocks(int start, int count) {
+    for (int block = start; block < start + count; block++) {
+      cache.zero(block);
+    }
+    cache.sync(start, count);
+  }
+
+  // Sets the file size in bytes, allocating or freeing only the blocks that make up the difference.
+  // With delayed allocation on, growth past the allocated blocks only reserves them (see
+  // DelayedAllocation). An inline file stays inline while it fits and moves to blocks once it grows
+  // past that. Returns false when the size exceeds the file cap or the disk is full.
+  public boolean resizeInode(Inode inode, long newSize) {
+    if (newSize < 0 || newSize > geometry.getMaxFileBytes()) {
+      return false;
+    }
+    long start = metrics.start(FsMetrics.Operation.RESIZE);
+    boolean resized = false;
+    beginUpdate();
+    try {
+      snapshots.preserveInode(inode);
+      if (resizeBlocks(inode, newSize)) {
+        inode.markModified(FsClock.now());
+        if (delayed.get(inode) == null) { // Delayed growth is logged once it has blocks
+          logInode(inode);
+        }
+        resized = true;
+      }
+    } finally {
+      endUpdate();
+    }
+    metrics.record(FsMetrics.Operation.RESIZE, start, resized);
+    return resized;
+  }
+
+  private boolean resizeBlocks(Inode inode, long newSize) {
+    byte[] inlineData = null; // Set when an inline file is moved to blocks
+    if (inode.isInline()) {
+      if (fitsInline(newSize)) {
+        inode.zeroInline((int) newSize, inode.getSize()); // Cut-off bytes read as zeros again
+        inode.setSize((int) newSize);
+        return true;
+      }
+      inlineData = promoteInline(inode);
+      if (inlineData == null) {
+        return false;
+      }
+    }
+    int newBlocks = geometry.blocksForBytes(newSize);
+    DelayedAllocation.Growth growth = delayed.get(inode);
+    if (newBlocks > inode.getBlocksAllocated()
+        && (growth != null || delayed.isEnabled() && snapshotsStarting.get() == 0)) {
+      if (!delayGrowth(inode, growth, newBlocks - inode.getBlocksAllocated(), newSize)) {
+        restoreInline(inode, inlineData);
+        return false;
+      }
+    } else if (newBlocks > inode.getBlocksAllocated()) {
+      if (!growInode(inode, newBlocks - inode.getBlocksAllocated())) {
+        restoreInline(inode, inlineData);
+        return false;
+      }
+    } else {
+      int tail = (int) (newSize % geometry.getBlockSize());
+      boolean zeroTail = newSize < inode.getSize() && tail != 0;
+      if (zeroTail && !unshareBlocks(inode, newBlocks - 1, 1)) {
+        return false; // The last block is shared and there is no room for the file's own copy
+      }
+      dropGrowth(inode); // The file ends within its allocated blocks again
+      if (newBlocks < inode.getBlocksAllocated()) {
+        shrinkInode(inode, newBlocks);
+      }
+      if (zeroTail) {
+        // Zero the cut-off bytes of the last block so growing the file again reads zeros
+        int cutOff = geometry.getBlockSize() - tail;
+        int last = inode.mapBlock(newBlocks - 1);
+        cache.write(last, tail, ByteBuffer.allocate(cutOff), cutOff);
+        cache.sync(last, 1); // Before the smaller size is logged, as a crash would lose the zeros
+      }
+    }
+    inode.setSize((int) newSize);
+    return true;
+  }
+
+  // Moves an inline file's data to a block of its own, the first step of growing it past the inode;
+  // the rest of the growth then takes the usual path. The block is allocated at once even with
+  // delayed allocation on, as the size the journal knows must always be backed by blocks. Returns
+  // the data, for restoreInline should the rest of the growth fail, or null with the file still
+  // inline if the disk is full.
+  private byte[] promoteInline(Inode inode) {
+    int size = inode.getSize();
+    byte[] data = new byte[size];
+    inode.readInline(0, ByteBuffer.wrap(data), size);
+    inode.setInline(false); // The extents take the place of the data
+    inlineFiles.decrementAndGet();
+    if (!growInode(inode, geometry.blocksForBytes(size))) {
+      restoreInline(inode, data);
+      return null;
+    }
+    if (size > 0) {
+      cache.write(inode.mapBlock(0), 0, ByteBuffer.wrap(data), size);
+      cache.sync(inode.mapBlock(0), 1); // The inode is logged without its inline data from now on
+    }
+    return data;
+  }
+
+  // Makes a file promoted by promoteInline inline again, with the given data. Nothing is done for
+  // null, a file that was not inline.
+  private void restoreInline(Inode inode, byte[] data) {
+    if (data != null) {
+      shrinkInode(inode, 0);
+      inode.setInline(true);
+      inode.writeInline(0, ByteBuffer.wrap(data), data.length);
+      inlineFiles.incrementAndGet();
+    }
+  }
+
+  // Writes into an inline file. Its data is part of the inode, so the inode is logged with it. The
+  // caller holds the inode's write lock and has already resized the file to cover the write.
+  public void writeInline(Inode inode, int offset, ByteBuffer src, int length) {
+    beginUpdate();
+    try {
+      inode.writeInline(offset, src, length);
+      logInode(inode);
+    } finally {
+      endUpdate();
+    }
+  }
+
+  // Makes the file's delayed growth blocks long, reserving the blocks it did not have yet. The file
+  // keeps its allocated blocks. Returns false, with nothing changed, if the disk cannot hold them.
+  private boolean delayGrowth(Inode inode, DelayedAllocation.Growth growth, int blocks, long newSize) {
+    boolean started = growth == null;
+    if (started) {
+      growth = delayed.start(inode);
+    }
+    int extra = started ? blocks + DelayedAllocation.INDIRECT_SLACK : blocks - growth.blocks;
+    if (extra > 0 && !blockUsage.reserve(extra)) {
+      if (started) {
+        delayed.remove(inode, false);
+      }
+      return false;
+    }
+    if (extra < 0) {
+      blockUsage.unreserve(-extra);
+    }
+    delayed.resize(growth, blocks);
+    int tail = (int) (newSize % geometry.getBlockSize());
+    if (newSize < inode.getSize() && tail != 0) {
+      delayed.zero(growth, blocks - 1, tail); // As for allocated blocks, growing again reads zeros
+    }
+    return true;
+  }
+
+  // Forgets the file's delayed growth, if any, and gives back its reservation. The caller holds the
+  // inode's write lock and the snapshot gate.
+  private void dropGrowth(Inode inode) {
+    DelayedAllocation.Growth growth = delayed.get(inode);
+    if (growth != null) {
+      blockUsage.unreserve(growth.reserved());
+      delayed.remove(inode, false);
+    }
+  }
+
+  // Gives the file blocks for its delayed growth and writes the buffered data to them. The reserved
+  // blocks are allocated in one go, right after the file's last extent when they are free, along
+  // with any indirect blocks the new extents need; one of those is reserved too. Returns true if
+  // the file has no delayed growth left; false if a full disk has no room for more indirect blocks,
+  // in which case the growth stays buffered. The caller holds the inode's write lock.
+  public boolean allocateDelayed(Inode inode) {
+    DelayedAllocation.Growth growth = delayed.get(inode);
+    if (growth == null) {
+      return true;
+    }
+    long start = metrics.start(FsMetrics.Operation.ALLOCATE);
+    List<int[]> runs = null;
+    List<Integer> chain = getIndirectBlocks(inode);
+    blockUsage.drawReserved(growth.reserved()); // The blocks are taken out of the reservation
+    try {
+      runs = takeRuns(inode, growth.blocks);
+      if (runs != null && !takeIndirectBlocks(inode, runs, chain)) {
+        for (int[] run : runs) {
+          blockUsage.free(run[0], run[1]);
+        }
+        runs = null;
+      }
+    } finally {
+      blockUsage.endDraw(runs == null); // Nothing was taken if it failed, so the reservation stays whole
+    }
+    if (runs == null) {
+      metrics.record(FsMetrics.Operation.ALLOCATE, start, false);
+      return false;
+    }
+
+    // Data first, so the inode never points at blocks that do not hold it yet
+    int index = 0;
+    for (int[] run : runs) {
+      for (int block = run[0]; block < run[0] + run[1]; block++, index++) {
+        byte[] page = delayed.page(growth, index);
+        if (page == null) {
+          cache.zero(block);
+        } else {
+          cache.write(block, 0, ByteBuffer.wrap(page), page.length);
+        }
+      }
+      cache.sync(run[0], run[1]); // On stable storage before the inode that points at it is logged
+    }
+    beginUpdate();
+    try {
+      for (int[] run : runs) {
+        inode.appendExtent(run[0], run[1]);
+      }
+      writeIndirectBlocks(inode, chain);
+      delayed.remove(inode, true);
+      logInode(inode); // Now with the full size
+    } finally {
+      endUpdate();
+    }
+    metrics.record(FsMetrics.Operation.ALLOCATE, start);
+    return true;
+  }
+
+  // Adds to chain the indirect blocks the file needs once runs are appended to it. Called while
+  // drawing on the file's reservation; returns false, with chain as it was, if the disk is full.
+  private boolean takeIndirectBlocks(Inode inode, List<int[]> runs, List<Integer> chain) {
+    int extents = inode.getExtentCount();
+    int next = extents == 0 ? -1 : inode.getExtentStart(extents - 1) + inode.getExtentLength(extents - 1);
+    for (int[] run : runs) {
+      if (run[0] != next) {
+        extents++; // Runs that follow on from the previous one merge with it
+      }
+      next = run[0] + run[1];
+    }
+    int perBlock = extentsPerIndirectBlock();
+    int needed = (Math.max(0, extents - Inode.INLINE_EXTENTS) + perBlock - 1) / perBlock;
+    int existing = chain.size();
+    while (chain.size() < needed) {
+      int block = blockUsage.allocate();
+      if (block < 0) {
+        while (chain.size() > existing) {
+          blockUsage.free(chain.remove(chain.size() - 1), 1);
+        }
+        return false;
+      }
+      chain.add(block);
+    }
+    return true;
+  }
+
+  // Allocates the delayed growth of every file, e.g. before the disk is flushed. Returns false if
+  // some file's growth had to stay buffered. The caller holds no inode lock.
+  public boolean allocateDelayed() {
+    boolean allocated = true;
+    for (int number : delayed.inodeNumbers()) {
+      Inode inode = inodes.get(number);
+      Lock lock = inodeLock(inode).writeLock();
+      lock.lock();
+      try {
+        allocated &= allocateDelayed(inode);
+      } finally {
+        lock.unlock();
+      }
+    }
+    commit();
+    return allocated;
+  }
+
+  // Drops data blocks from the end of a file until it holds newBlockCount blocks. Blocks shared with
+  // a copy stay allocated for the copy.
+  public void shrinkInode(Inode inode, int newBlockCount) {
+    int excess = inode.getBlocksAllocated() - newBlockCount;
+    for (int i = inode.getExtentCount() - 1; i >= 0 && excess > 0; i--) {
+      int length = inode.getExtentLength(i);
+      int freed = Math.min(length, excess);
+      releaseBlocks(inode.getExtentStart(i) + length - freed, freed);
+      excess -= freed;
+    }
+    inode.truncateBlocks(newBlockCount);
+    syncIndirectBlocks(inode);
+  }
+
+  // Gives up one owner's share of a run of data blocks, freeing the parts no other file or snapshot
+  // holds
+  public void releaseBlocks(int start, int count) {
+    for (int[] run : refCounts.release(start, count)) {
+      freeBlocks(run[0], run[1]);
+    }
+  }
+
+  // Number of extents one indirect block can hold after its next-pointer and count header
+  private int extentsPerIndirectBlock() {
+    return (geometry.getBlockSize() - 8) / 8;
+  }
+
+  // Writes the extents that do not fit in the inode to its chain of indirect blocks, growing or
+  // shrinking the chain as needed. Each block holds: next block, extent count, (start, length) pairs.
+  private boolean syncIndirectBlocks(Inode inode) {
+    int overflow = Math.max(0, inode.getExtentCount() - Inode.INLINE_EXTENTS);
+    int perBlock = extentsPerIndirectBlock();
+    int needed = (overflow + perBlock - 1) / perBlock;
+
+    List<Integer> chain = getIndirectBlocks(inode);
+    int existing = chain.size();
+    while (chain.size() < needed) {
+      int block = blockUsage.allocate();
+      if (block < 0) {
+        for (int i = existing; i < chain.size(); i++) {
+          freeBlock(chain.get(i));
+        }
+        return false;
+      }
+      chain.add(block);
+    }
+    while (chain.size() > needed) {
+      freeBlock(chain.remove(chain.size() - 1));
+    }
+    writeIndirectBlocks(inode, chain);
+    return true;
+  }
+
+  // Stores the extents past INLINE_EXTENTS in the given chain of blocks
+  private void writeIndirectBlocks(Inode inode, List<Integer> chain) {
+    int perBlock = extentsPerIndirectBlock();
+    int extent = Inode.INLINE_EXTENTS;
+    ByteBuffer data = ByteBuffer.allocate(geometry.getBlockSize());
+    for (int i = 0; i < chain.size(); i++) {
+      int count = Math.min(perBlock, inode.getExtentCount() - extent);
+      data.clear();
+      data.putInt(i + 1 < chain.size() ? chain.get(i + 1) : -1);
+      data.putInt(count);
+      for (int j = 0; j < count; j++, extent++) {
+        data.putInt(inode.getExtentStart(extent));
+        data.putInt(inode.getExtentLength(extent));
+      }
+      data.clear();
+      cache.write(chain.get(i), 0, data, data.capacity());
+    }
+    inode.setIndirectBlock(chain.isEmpty() ? -1 : chain.get(0));
+  }
+
+  // Indirect blocks currently used by a file, in chain order
+  public List<Integer> getIndirectBlocks(Inode inode) {
+    List<Integer> chain = new ArrayList<>();
+    for (int block = inode.getIndirectBlock(); block != -1; block = cache.readInt(block, 0)) {
+      chain.add(block);
+    }
+    return chain;
+  }
+
+  public int largestFreeRun() {
+    return blockUsage.largestFreeRun();
+  }
+
+  public int countFreeRuns() {
+    return blockUsage.countFreeRuns();
+  }
+
+  // True if the file shares any data block with a copy
+  private boolean isShared(Inode inode) {
+    for (int i = 0; i < inode.getExtentCount(); i++) {
+      if (refCounts.isShared(inode.getExtentStart(i), inode.getExtentLength(i))) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  // Moves the whole file into the lowest free run that can hold it, used by the Defragmenter to
+  // pack files toward the start of the disk and merge the free space behind them. A file already
+  // in one extent only moves down; a file in several extents moves wherever it fits in one piece.
+  // Returns the number of blocks moved, 0 if the file stayed put. The caller holds the inode's
+  // write lock, so readers and writers of the file wait and then see only the new location.
+  // A file a snapshot still sees as it is stays put too; the gate keeps a snapshot from being taken
+  // while the file is half moved.
+  //
+  // The old blocks are freed only once the record pointing the file at its new blocks is durable:
+  // freed earlier, they could be given to another file and zeroed on the image while a replay would
+  // still find this file there.
+  public int relocateInode(Inode inode) {
+    List<int[]> oldRuns = new ArrayList<>();
+    int moved;
+    Lock gate = snapshotGate.readLock();
+    gate.lock();
+    try {
+      moved = snapshots.isReferenced(inode) ? 0 : relocateBlocks(inode, oldRuns);
+    } finally {
+      gate.unlock();
+    }
+    if (moved > 0) {
+      commit();
+      freeRuns(oldRuns);
+    }
+    return moved;
+  }
+
+  // Moves the file and adds the runs it no longer uses to oldRuns, which the caller frees
+  private int relocateBlocks(Inode inode, List<int[]> oldRuns) {
+    int blocks = inode.getBlocksAllocated();
+    if (blocks == 0 || isShared(inode)) {
+      return 0; // A file sharing blocks with a copy stays put, moving it would end the sharing
+    }
+    int start = blockUsage.allocateLowest(blocks);
+    if (start < 0) {
+      return 0;
+    }
+    int extents = inode.getExtentCount();
+    if (extents == 1 && start >= inode.getExtentStart(0)) {
+      blockUsage.free(start, blocks); // Nothing was written to the run, so nothing is cached for it
+      return 0;
+    }
+
+    // Data first: the new copy is on stable storage before the inode points at it
+    int[] oldExtents = new int[2 * extents];
+    ByteBuffer data = ByteBuffer.allocate(geometry.getBlockSize());
+    int target = start;
+    for (int i = 0; i < extents; i++) {
+      oldExtents[2 * i] = inode.getExtentStart(i);
+      oldExtents[2 * i + 1] = inode.getExtentLength(i);
+      for (int block = oldExtents[2 * i]; block < oldExtents[2 * i] + oldExtents[2 * i + 1]; block++, target++) {
+        data.clear();
+        cache.read(block, 0, data, data.capacity());
+        data.flip();
+        cache.write(target, 0, data, data.capacity());
+        cache.evict(target);
+      }
+    }
+    cache.sync(start, blocks);
+
+    for (int i = 0; i < oldExtents.length; i += 2) {
+      oldRuns.add(new int[] { oldExtents[i], oldExtents[i + 1] });
+    }
+    for (int block : getIndirectBlocks(inode)) {
+      oldRuns.add(new int[] { block, 1 });
+    }
+    beginUpdate();
+    try {
+      inode.clearBlockAllocation(); // One extent fits in the inode, so the indirect chain goes too
+      inode.appendExtent(start, blocks);
+      logInode(inode);
+    } finally {
+      endUpdate();
+    }
+    return blocks;
+  }
+
+  // Journal replay. Records are applied one by one to the inode table and directory tree; once
+  // they are all in, finishRestore derives the state that is never logged.
+  public void restoreInode(int number, int directoryId, String fileName, int size, long[] times, int[] extents,
+      int[] indirectBlocks, byte[] inlineData) {
+    Inode inode = inodes.get(number);
+    inode.clearBlockAllocation();
+    if (inlineData != null) {
+      inode.setInline(true);
+      inode.writeInline(0, ByteBuffer.wrap(inlineData), inlineData.length);
+    }
+    for (int i = 0; i < extents.length; i += 2) {
+      inode.appendExtent(extents[i], extents[i + 1]);
+    }
+    inode.setIndirectBlock(indirectBlocks.length == 0 ? -1 : indirectBlocks[0]);
+    inode.setName(fileName);
+    inode.setDirectoryId(directoryId);
+    inode.setSize(size);
+    inode.setUsed(true);
+    inode.setTimes(times[0], times[1], times[2]);
+    restoredChains().put(number, indirectBlocks);
+  }
+
+  public void restoreFreeInode(int number) {
+    Inode inode = inodes.get(number);
+    inode.setUsed(false);
+    inode.clearBlockAllocation();
+    inode.setName("");
+    inode.setDirectoryId(-1);
+    inode.setSize(0);
+    restoredChains().remove(number);
+  }
+
+  public void restoreDirectory(int id, int parentId, String name) {
+    if (directories.containsKey(id)) {
+      return; // Already replayed
+    }
+    Directory parent = directories.get(parentId);
+    if (parent == null) {
+      throw new IllegalStateException("Directory " + id + " has no parent " + parentId);
+    }
+    parent.getSubDirectories().put(name, new Directory(name, this, parent, id));
+  }
+
+  public void restoreDirectoryDelete(int id) {
+    Directory directory = directories.remove(id);
+    if (directory != null) {
+      directory.getParentDirectory().getSubDirectories().remove(directory.getName());
+    }
+  }
+
+  private Map<Integer, int[]> restoredChains() {
+    if (restoredChains == null) {
+      restoredChains = new HashMap<>();
+    }
+    return restoredChains;
+  }
+
+  // Rebuilds the allocator, free-inode stack, lookup index and directory file lists from the
+  // replayed inodes, and rewrites their indirect blocks in case the image holds older copies
+  public void finishRestore() {
+    Map<Integer, int[]> chains = restoredChains();
+    synchronized (freeInodes) {
+      freeInodeCount = 0;
+      for (int i = inodes.size() - 1; i >= 0; i--) {
+        Inode inode = inodes.get(i);
+        if (inode.isUsed() && directories.get(inode.getDirectoryId()) == null) {
+          restoreFreeInode(i); // Its directory is gone, which only a damaged log can cause
+        }
+        if (!inode.isUsed()) {
+          freeInodes[freeInodeCount++] = i;
+        }
+      }
+    }
+    inodeIndex.clear();
+    int inline = 0;
+    for (int number = 0; number < inodes.size(); number++) {
+      Inode inode = inodes.get(number);
+      if (!inode.isUsed()) {
+        continue;
+      }
+      if (inode.isInline()) {
+        inline++;
+      }
+      for (int i = 0; i < inode.getExtentCount(); i++) {
+        blockUsage.markUsed(inode.getExtentStart(i), inode.getExtentLength(i));
+      }
+      List<Integer> chain = new ArrayList<>();
+      for (int block : chains.getOrDefault(inode.getNumber(), new int[0])) {
+        blockUsage.markUsed(block, 1);
+        chain.add(block);
+      }
+      writeIndirectBlocks(inode, chain);
+      inodeIndex.put(new InodeKey(inode.getDirectoryId(), inode.getName()), inode);
+      directories.get(inode.getDirectoryId()).addFile(inode.getNumber());
+    }
+    List<int[]> extents = new ArrayList<>();
+    for (int number = 0; number < inodes.size(); number++) {
+      Inode inode = inodes.get(number);
+      for (int i = 0; inode.isUsed() && i < inode.getExtentCount(); i++) {
+        extents.add(new int[] { inode.getExtentStart(i), inode.getExtentLength(i) });
+      }
+    }
+    refCounts.restore(extents); // Copies show up as files whose extents overlap
+    inlineFiles.set(inline);
+    restoredChains = null;
+    dentryCache.clear();
   }
 
   // Utility methods
-  public Inode[] getInodes() {
+  public InodeTable getInodeTable() {
     return inodes;
   }
 
   public int countFreeBlocks() {
-    int count = 0;
-    for (boolean used : blockUsage) {
-      if (!used)
-        count++;
-    }
-    return count;
+    return blockUsage.countFree();
   }
 
   public int countUsedInodes() {
-    int count = 0;
-    for (Inode inode : inodes) {
-      if (inode.isUsed())
-        count++;
-    }
-    return count;
+    return inodes.size() - freeInodeCount;
+  }
+
+  public int countInlineFiles() {
+    return inlineFiles.get();
   }
 
   public String listFileSystem() {
     StringBuilder representation = new StringBuilder("[");
-    for (int i = 0; i < blockUsage.length; i++) {
+    int totalBlocks = blockUsage.getTotalBlocks();
+    for (int i = 0; i < totalBlocks; i++) {
       if (i > 0 && i % 16 == 0) { // Insert a new line after every 16 blocks
         representation.append("\n ");
       }
-      representation.append(blockUsage[i] ? "1" : "0");
-      if (i < blockUsage.length - 1) {
+      representation.append(blockUsage.isUsed(i) ? "1" : "0");
+      if (i < totalBlocks - 1) {
         representation.append(" "); // Add space between block indicators
       }
     }
@@ -173,11 +1359,35 @@ public class SuperBlock {
     return representation.toString();
   }
 
-  public void moveInode(Inode inode, String newFileName, String newDirectoryName) {
+  // Renames the file and/or moves it to another directory. The caller holds the write locks of
+  // both directories.
+  public FsResult<Inode> moveInode(Inode inode, String newFileName, int newDirectoryId) {
+    if (newFileName.length() > Inode.MAX_NAME_LENGTH) {
+      return FsResult.error(FsError.NAME_TOO_LONG);
+    }
+    Inode existing = findInode(newDirectoryId, newFileName);
+    if (existing != null && !existing.equals(inode)) {
+      return FsResult.error(FsError.FILE_EXISTS);
+    }
     // Directly update inode details without altering block allocation
-    inode.setName(newFileName);
-    inode.setDirectoryName(newDirectoryName);
-    System.out.println("File moved successfully: " + newFileName + " to " + newDirectoryName);
+    inodeIndex.remove(new InodeKey(inode.getDirectoryId(), inode.getName()));
+    directories.get(inode.getDirectoryId()).removeFile(inode.getNumber());
+    ReentrantReadWriteLock.WriteLock lock = inodeLock(inode).writeLock();
+    lock.lock();
+    beginUpdate();
+    try {
+      snapshots.preserveInode(inode);
+      inode.setName(newFileName);
+      inode.setDirectoryId(newDirectoryId);
+      inode.markChanged(FsClock.now());
+      logInode(inode);
+    } finally {
+      endUpdate();
+      lock.unlock();
+    }
+    inodeIndex.put(new InodeKey(newDirectoryId, newFileName), inode);
+    directories.get(newDirectoryId).addFile(inode.getNumber());
+    return FsResult.ok(inode);
   }
 
 }
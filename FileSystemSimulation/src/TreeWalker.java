@@ -0,0 +1,241 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.Lock;
+
+// Parallel walks over a directory tree on a fork/join pool: recursive delete, disk usage and find.
+// Each directory is a task that forks one task per subdirectory, so separate subtrees are worked on
+// by separate cores and idle workers steal whole subtrees. Usage and find also split a directory's
+// files into chunks of FILE_CHUNK, so one huge directory is spread out as well.
+//
+// A task holds its directory's lock only while it reads (or, when deleting, empties) that one
+// directory, never while it waits for its subtasks. The walks therefore take locks in no new order
+// and cannot block each other through the pool. Usage and find see each directory as it was when
+// they reached it, like du and find on a live system.
+public final class TreeWalker {
+  private static final int FILE_CHUNK = 1024; // Files one task reads before it splits them
+  private static final int DELETE_BATCH = 256; // Files whose blocks are freed together
+  private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+  private TreeWalker() {
+  }
+
+  // Deletes the directory and everything below it. The caller has already detached it from its
+  // parent. Each directory is unregistered after its subdirectories, as journal replay expects.
+  public static void delete(Directory directory) {
+    POOL.invoke(new DeleteTask(directory));
+  }
+
+  public static DiskUsage usage(Directory directory) {
+    return POOL.invoke(new UsageTask(directory));
+  }
+
+  // The matching files by absolute path
+  public static SortedMap<String, FileInfo> find(Directory directory, FileQuery query) {
+    SortedMap<String, FileInfo> found = new ConcurrentSkipListMap<>();
+    POOL.invoke(new FindTask(directory, query, found));
+    return found;
+  }
+
+  // What a directory holds at one moment: subdirectories by name and file inode numbers
+  private static final class Contents {
+    final List<Directory> subDirectories;
+    final int[] files;
+
+    Contents(Directory directory) {
+      Lock lock = directory.getLock().readLock();
+      lock.lock();
+      try {
+        subDirectories = new ArrayList<>(new TreeMap<>(directory.getSubDirectories()).values());
+        files = new int[directory.getFileInodes().size()];
+        int i = 0;
+        for (int inodeNumber : directory.getFileInodes()) {
+          files[i++] = inodeNumber;
+        }
+      } finally {
+        lock.unlock();
+      }
+    }
+  }
+
+  private static String childPath(Directory directory, String name) {
+    return directory.getPath().equals("/") ? "/" + name : directory.getPath() + "/" + name;
+  }
+
+  private static final class DeleteTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final Directory directory;
+
+    DeleteTask(Directory directory) {
+      this.directory = directory;
+    }
+
+    @Override
+    protected void compute() {
+      List<DeleteTask> subtasks = new ArrayList<>();
+      for (Directory child : directory.deleteFiles(DELETE_BATCH)) {
+        subtasks.add(new DeleteTask(child));
+      }
+      ForkJoinTask.invokeAll(subtasks);
+      directory.finishDelete();
+    }
+  }
+
+  private static final class UsageTask extends RecursiveTask<DiskUsage> {
+    private static final long serialVersionUID = 1L;
+    private final Directory directory;
+
+    UsageTask(Directory directory) {
+      this.directory = directory;
+    }
+
+    @Override
+    protected DiskUsage compute() {
+      Contents contents = new Contents(directory);
+      List<UsageTask> subtasks = new ArrayList<>();
+      for (Directory child : contents.subDirectories) {
+        UsageTask subtask = new UsageTask(child);
+        subtask.fork();
+        subtasks.add(subtask);
+      }
+      long[] sums = new FileSums(directory, contents.files, 0, contents.files.length).invoke();
+      long files = sums[0];
+      long directories = subtasks.size();
+      long bytes = sums[1];
+      long blocks = sums[2];
+      List<DiskUsage> children = new ArrayList<>(subtasks.size());
+      for (UsageTask subtask : subtasks) {
+        DiskUsage child = subtask.join();
+        files += child.getFiles();
+        directories += child.getDirectories();
+        bytes += child.getBytes();
+        blocks += child.getBlocks();
+        children.add(child);
+      }
+      return new DiskUsage(directory.getPath(), files, directories, bytes, blocks, children);
+    }
+  }
+
+  // File count, bytes and blocks of a range of a directory's files. Files deleted or moved away
+  // since the directory was read are skipped.
+  private static final class FileSums extends RecursiveTask<long[]> {
+    private static final long serialVersionUID = 1L;
+    private final Directory directory;
+    private final int[] files;
+    private final int from;
+    private final int to;
+
+    FileSums(Directory directory, int[] files, int from, int to) {
+      this.directory = directory;
+      this.files = files;
+      this.from = from;
+      this.to = to;
+    }
+
+    @Override
+    protected long[] compute() {
+      if (to - from > FILE_CHUNK) {
+        int middle = (from + to) >>> 1;
+        FileSums first = new FileSums(directory, files, from, middle);
+        first.fork();
+        long[] sums = new FileSums(directory, files, middle, to).compute();
+        long[] other = first.join();
+        for (int i = 0; i < sums.length; i++) {
+          sums[i] += other[i];
+        }
+        return sums;
+      }
+      SuperBlock superBlock = directory.getSuperBlock();
+      long[] sums = new long[3];
+      for (int i = from; i < to; i++) {
+        Inode inode = superBlock.getInode(files[i]);
+        Lock lock = superBlock.inodeLock(inode).readLock();
+        lock.lock();
+        try {
+          if (inode.isUsed() && inode.getDirectoryId() == directory.getId()) {
+            sums[0]++;
+            sums[1] += inode.getSize();
+            sums[2] += inode.getBlocksAllocated();
+          }
+        } finally {
+          lock.unlock();
+        }
+      }
+      return sums;
+    }
+  }
+
+  private static final class FindTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final Directory directory;
+    private final FileQuery query;
+    private final Map<String, FileInfo> found;
+
+    FindTask(Directory directory, FileQuery query, Map<String, FileInfo> found) {
+      this.directory = directory;
+      this.query = query;
+      this.found = found;
+    }
+
+    @Override
+    protected void compute() {
+      Contents contents = new Contents(directory);
+      List<RecursiveAction> subtasks = new ArrayList<>();
+      for (Directory child : contents.subDirectories) {
+        subtasks.add(new FindTask(child, query, found));
+      }
+      subtasks.add(new FileMatches(directory, contents.files, 0, contents.files.length, query, found));
+      ForkJoinTask.invokeAll(subtasks);
+    }
+  }
+
+  private static final class FileMatches extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+    private final Directory directory;
+    private final int[] files;
+    private final int from;
+    private final int to;
+    private final FileQuery query;
+    private final Map<String, FileInfo> found;
+
+    FileMatches(Directory directory, int[] files, int from, int to, FileQuery query, Map<String, FileInfo> found) {
+      this.directory = directory;
+      this.files = files;
+      this.from = from;
+      this.to = to;
+      this.query = query;
+      this.found = found;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from > FILE_CHUNK) {
+        int middle = (from + to) >>> 1;
+        ForkJoinTask.invokeAll(new FileMatches(directory, files, from, middle, query, found),
+            new FileMatches(directory, files, middle, to, query, found));
+        return;
+      }
+      SuperBlock superBlock = directory.getSuperBlock();
+      for (int i = from; i < to; i++) {
+        Inode inode = superBlock.getInode(files[i]);
+        Lock lock = superBlock.inodeLock(inode).readLock();
+        lock.lock();
+        try {
+          if (inode.isUsed() && inode.getDirectoryId() == directory.getId()
+              && query.matches(inode.getName(), inode.getSize(), inode.getModifyTime())) {
+            found.put(childPath(directory, inode.getName()), FileInfo.of(superBlock, inode));
+          }
+        } finally {
+          lock.unlock();
+        }
+      }
+    }
+  }
+}
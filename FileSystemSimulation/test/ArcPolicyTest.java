@@ -0,0 +1,101 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+// The policies driven without a BufferCache: a set of resident blocks stands in for the frames
+class ArcPolicyTest {
+  private static final int CAPACITY = 100;
+
+  private static final class Cache {
+    final EvictionPolicy policy;
+    final Set<Integer> resident = new HashSet<>();
+    int hits;
+
+    Cache(EvictionPolicy policy) {
+      this.policy = policy;
+    }
+
+    // Accesses each block in [from, to) once and returns how many were hits
+    int access(int from, int to) {
+      int before = hits;
+      for (int block = from; block < to; block++) {
+        if (resident.contains(block)) {
+          policy.onHit(block);
+          hits++;
+          continue;
+        }
+        int victim = policy.onMiss(block, resident.size() == CAPACITY);
+        if (victim >= 0) {
+          assertTrue(resident.remove(victim), "evicted block " + victim + " was not resident");
+        }
+        resident.add(block);
+        assertTrue(resident.size() <= CAPACITY);
+      }
+      return hits - before;
+    }
+  }
+
+  // A working set used twice, then a scan of blocks used once, then the working set again: ARC
+  // keeps the working set in T2 and lets the scan pass through T1, LRU lets the scan push it out
+  @Test
+  void scanDoesNotEvictTheFrequentlyUsedSet() {
+    Cache arc = new Cache(new ArcPolicy(CAPACITY));
+    Cache lru = new Cache(new LruPolicy());
+    for (Cache cache : new Cache[] { arc, lru }) {
+      cache.access(0, 60);
+      cache.access(0, 60);
+      cache.access(1000, 1500);
+    }
+    assertEquals(60, arc.access(0, 60));
+    assertEquals(0, lru.access(0, 60));
+  }
+
+  // Hits in B1 (blocks T1 evicted too early) raise the target size of T1; hits in B2 lower it
+  @Test
+  void ghostHitsMoveTheTarget() {
+    ArcPolicy policy = new ArcPolicy(CAPACITY);
+    Cache arc = new Cache(policy);
+    arc.access(0, 50);
+    arc.access(0, 50); // All in T2
+    assertEquals(0, policy.getTarget());
+
+    // A loop of 80 blocks seen once each does not fit next to T2, so its blocks miss through B1
+    arc.access(1000, 1080);
+    arc.access(1000, 1080);
+    int raised = policy.getTarget();
+    assertTrue(raised > 0, "target after B1 hits: " + raised);
+    for (int loop = 0; loop < 3; loop++) {
+      arc.access(1000, 1080);
+    }
+    assertEquals(80, arc.access(1000, 1080)); // The loop now stays resident
+
+    // The first working set was pushed out to B2; coming back, it lowers the target again
+    int before = policy.getTarget();
+    assertEquals(0, arc.access(0, 50));
+    int lowered = policy.getTarget();
+    assertTrue(lowered < before, "target after B2 hits: " + lowered + ", before: " + before);
+    assertEquals(50, arc.access(0, 50));
+  }
+
+  // Ghosts are forgotten with the block, so a freed block coming back is a plain miss
+  @Test
+  void removedBlocksLeaveNoGhost() {
+    ArcPolicy policy = new ArcPolicy(CAPACITY);
+    Cache arc = new Cache(policy);
+    arc.access(0, 50);
+    arc.access(0, 50);
+    arc.access(1000, 1100); // Pushes T1's blocks, 1000 first, into B1
+    for (int block = 1000; block < 1100; block++) {
+      if (!arc.resident.remove(block)) {
+        policy.onRemove(block);
+      }
+    }
+    int target = policy.getTarget();
+    arc.access(1000, 1010);
+    assertEquals(target, policy.getTarget());
+  }
+}
@@ -0,0 +1,160 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+// The bitmap against a boolean[] with first-fit scans, the block map it replaced
+class BlockBitmapTest {
+  // Reference first-fit allocator, one flag per block
+  private static final class Model {
+    final boolean[] used;
+
+    Model(int totalBlocks) {
+      used = new boolean[totalBlocks];
+    }
+
+    int findRun(int count) {
+      int run = 0;
+      for (int block = 0; block < used.length; block++) {
+        run = used[block] ? 0 : run + 1;
+        if (run == count) {
+          return block - count + 1;
+        }
+      }
+      return -1;
+    }
+
+    boolean isFree(int start, int count) {
+      for (int block = start; block < start + count; block++) {
+        if (used[block]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    void set(int start, int count, boolean value) {
+      for (int block = start; block < start + count; block++) {
+        used[block] = value;
+      }
+    }
+
+    int countFree() {
+      int free = 0;
+      for (boolean value : used) {
+        free += value ? 0 : 1;
+      }
+      return free;
+    }
+
+    int countFreeRuns() {
+      int runs = 0;
+      for (int block = 0; block < used.length; block++) {
+        if (!used[block] && (block == 0 || used[block - 1])) {
+          runs++;
+        }
+      }
+      return runs;
+    }
+
+    int largestFreeRun() {
+      int best = 0;
+      int run = 0;
+      for (boolean value : used) {
+        run = value ? 0 : run + 1;
+        best = Math.max(best, run);
+      }
+      return best;
+    }
+  }
+
+  // Sizes around word and summary-word boundaries (64 blocks a word, 64 words a summary word)
+  @ParameterizedTest
+  @ValueSource(ints = { 1, 63, 64, 65, 200, 4095, 4096, 4097, 10000 })
+  void matchesModelOnRandomOperations(int totalBlocks) {
+    Random random = new Random(totalBlocks);
+    BlockBitmap bitmap = new BlockBitmap(totalBlocks);
+    Model model = new Model(totalBlocks);
+    for (int step = 0; step < 20000; step++) {
+      int count = 1 + random.nextInt(random.nextInt(4) == 0 ? 150 : 8); // Some runs span several words
+      switch (random.nextInt(5)) {
+        case 0: {
+          int expected = model.findRun(1);
+          assertEquals(expected, bitmap.allocate());
+          if (expected >= 0) {
+            model.set(expected, 1, true);
+          }
+          break;
+        }
+        case 1: {
+          int expected = model.findRun(count);
+          assertEquals(expected, bitmap.allocate(count), "allocate(" + count + ")");
+          if (expected >= 0) {
+            model.set(expected, count, true);
+          }
+          break;
+        }
+        case 2: {
+          int start = random.nextInt(totalBlocks);
+          boolean fits = start + count <= totalBlocks && model.isFree(start, count);
+          assertEquals(fits, bitmap.allocateAt(start, count), "allocateAt(" + start + ", " + count + ")");
+          if (fits) {
+            model.set(start, count, true);
+          }
+          break;
+        }
+        default: {
+          int start = random.nextInt(totalBlocks);
+          int length = Math.min(count, totalBlocks - start);
+          bitmap.free(start, length);
+          model.set(start, length, false);
+        }
+      }
+      assertEquals(model.countFree(), bitmap.countFree());
+      if (step % 100 == 0) {
+        assertSameState(model, bitmap);
+      }
+    }
+    assertSameState(model, bitmap);
+  }
+
+  @Test
+  void findsRunsAcrossWordBoundaries() {
+    BlockBitmap bitmap = new BlockBitmap(256);
+    bitmap.markUsed(0, 60);
+    bitmap.markUsed(70, 186); // Free: 60..69, across the first word boundary
+    assertEquals(60, bitmap.findRun(10));
+    assertEquals(-1, bitmap.findRun(11));
+    bitmap.free(128, 128); // Free: the last two words whole
+    assertEquals(128, bitmap.allocate(100));
+    assertEquals(60, bitmap.allocateLowest(5));
+    assertEquals(2, bitmap.countFreeRuns()); // 65..69 and 228..255
+    assertEquals(28, bitmap.largestFreeRun());
+  }
+
+  @Test
+  void blocksPastTheEndAreNeverHandedOut() {
+    BlockBitmap bitmap = new BlockBitmap(70);
+    assertEquals(0, bitmap.allocate(70));
+    assertEquals(-1, bitmap.allocate());
+    assertEquals(0, bitmap.countFree());
+    bitmap.free(60, 10);
+    assertEquals(-1, bitmap.allocate(11));
+    assertFalse(bitmap.allocateAt(65, 6));
+    assertTrue(bitmap.allocateAt(65, 5));
+    assertEquals(5, bitmap.largestFreeRun());
+  }
+
+  private static void assertSameState(Model model, BlockBitmap bitmap) {
+    for (int block = 0; block < model.used.length; block++) {
+      assertEquals(model.used[block], bitmap.isUsed(block), "block " + block);
+    }
+    assertEquals(model.countFreeRuns(), bitmap.countFreeRuns());
+    assertEquals(model.largestFreeRun(), bitmap.largestFreeRun());
+  }
+}
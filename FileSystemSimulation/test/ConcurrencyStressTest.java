@@ -0,0 +1,123 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+// Threads create, write, resize, copy and delete files in their own directories and their
+// neighbour's, then the free-space map must match the blocks the surviving files hold.
+class ConcurrencyStressTest {
+  private static final int THREADS = 8;
+  private static final int OPERATIONS = 5000; // Per thread
+  private static final DiskGeometry GEOMETRY = new DiskGeometry(512, 20000, 4000, 64);
+
+  @Test
+  void freeBlocksMatchFilesAfterConcurrentChanges() throws Exception {
+    FileSystem fs = new FileSystem(new Disk(GEOMETRY, new DiskOptions().setCacheBytes(1 << 20)));
+    Directory root = fs.getRootDirectory();
+    for (int t = 0; t < THREADS; t++) {
+      assertTrue(fs.createDirectory(root, "d" + t).isOk());
+    }
+    ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+    try {
+      List<Future<?>> workers = new ArrayList<>();
+      for (int t = 0; t < THREADS; t++) {
+        int id = t;
+        workers.add(pool.submit(() -> {
+          work(fs, id);
+          return null;
+        }));
+      }
+      for (Future<?> worker : workers) {
+        worker.get();
+      }
+    } finally {
+      pool.shutdown();
+    }
+
+    SuperBlock superBlock = fs.getDisk().getSuperBlock();
+    assertTrue(superBlock.allocateDelayed());
+    assertEquals(countUsedBlocks(superBlock), GEOMETRY.getTotalBlocks() - superBlock.countFreeBlocks());
+
+    for (FileInfo file : fs.listFiles()) {
+      Directory directory = superBlock.getDirectory(file.getDirectoryId());
+      assertTrue(fs.deleteFile(directory, file.getName()).isOk());
+    }
+    assertEquals(0, superBlock.countUsedInodes());
+    assertEquals(GEOMETRY.getTotalBlocks(), superBlock.countFreeBlocks());
+  }
+
+  private static void work(FileSystem fs, int id) {
+    Random random = new Random(id);
+    Directory root = fs.getRootDirectory();
+    Directory own = root.getSubDirectories().get("d" + id);
+    String next = "/d" + (id + 1) % THREADS;
+    for (int i = 0; i < OPERATIONS; i++) {
+      String name = "f" + random.nextInt(40);
+      switch (random.nextInt(8)) {
+        case 0:
+          fs.createFile(own, name, random.nextInt(8));
+          break;
+        case 1:
+          fs.deleteFile(own, name);
+          break;
+        case 2:
+          fs.resizeFile(own, name, random.nextInt(6));
+          break;
+        case 3:
+          fs.resizeFile(own, name, -random.nextInt(6));
+          break;
+        case 4:
+          fs.copyFile(own, name, next);
+          break;
+        case 5:
+          fs.deleteFile(fs.resolveDirectory(root, next).getValue(), name + "(1)");
+          break;
+        default:
+          FsResult<FileHandle> opened = fs.open(own, name);
+          if (opened.isOk()) {
+            byte[] data = new byte[random.nextInt(3000)];
+            Arrays.fill(data, (byte) id);
+            try {
+              opened.getValue().write(ByteBuffer.wrap(data), random.nextInt(4000));
+              opened.getValue().read(ByteBuffer.allocate(2000), random.nextInt(4000));
+            } catch (IOException | IllegalStateException e) {
+              // Full disk, or the file was deleted after it was opened
+            }
+          }
+      }
+    }
+  }
+
+  // Blocks held by live files, data and indirect, counting a shared block once
+  private static int countUsedBlocks(SuperBlock superBlock) {
+    BitSet seen = new BitSet();
+    for (int number = 0; number < superBlock.getMaxFiles(); number++) {
+      Inode inode = superBlock.getInode(number);
+      if (!inode.isUsed()) {
+        continue;
+      }
+      List<Integer> blocks = new ArrayList<>(superBlock.getIndirectBlocks(inode));
+      for (int i = 0; i < inode.getBlocksAllocated(); i++) {
+        blocks.add(inode.mapBlock(i));
+      }
+      for (int block : blocks) {
+        assertTrue(superBlock.getAllocator().isUsed(block), "block " + block + " is not marked used");
+        assertTrue(!seen.get(block) || superBlock.getRefCounts().isShared(block, 1),
+            "block " + block + " has two owners but is not counted shared");
+        seen.set(block);
+      }
+    }
+    return seen.cardinality();
+  }
+}
@@ -0,0 +1,103 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// A copy shares the source's blocks; the first write to a shared block gives the writer its own.
+class CopyOnWriteTest {
+  private static final int BLOCK_SIZE = 1024;
+  private static final int FILE_BLOCKS = 4;
+
+  private FileSystem fs;
+  private SuperBlock superBlock;
+  private Directory root;
+  private byte[] original;
+
+  @BeforeEach
+  void createSource() throws IOException {
+    DiskOptions options = new DiskOptions().setDelayedAllocationBytes(0).setDefragBudgetKB(0);
+    fs = new FileSystem(new Disk(new DiskGeometry(BLOCK_SIZE, 128, 16, 16), options));
+    superBlock = fs.getDisk().getSuperBlock();
+    root = fs.getRootDirectory();
+    original = new byte[FILE_BLOCKS * BLOCK_SIZE];
+    new Random(7).nextBytes(original);
+    assertTrue(fs.createFile(root, "source", FILE_BLOCKS).isOk());
+    write("source", original, 0);
+  }
+
+  @Test
+  void copySharesBlocks() {
+    int free = superBlock.countFreeBlocks();
+    FileInfo copy = fs.copyFile(root, "source", "/").getValue();
+    assertEquals(free, superBlock.countFreeBlocks());
+    assertArrayEquals(fs.stat(root, "source").getValue().getBlocks(), copy.getBlocks());
+    for (int block : copy.getBlocks()) {
+      assertTrue(superBlock.getRefCounts().isShared(block, 1));
+    }
+    assertArrayEquals(original, read(copy.getName()));
+  }
+
+  @Test
+  void writingTheCopyLeavesTheSourceUnchanged() throws IOException {
+    String copy = fs.copyFile(root, "source", "/").getValue().getName();
+    int free = superBlock.countFreeBlocks();
+    byte[] patch = new byte[100];
+    Arrays.fill(patch, (byte) 0x5a);
+    write(copy, patch, BLOCK_SIZE + 10); // Inside the second block only
+
+    assertEquals(free - 1, superBlock.countFreeBlocks());
+    assertArrayEquals(original, read("source"));
+    byte[] expected = original.clone();
+    System.arraycopy(patch, 0, expected, BLOCK_SIZE + 10, patch.length);
+    assertArrayEquals(expected, read(copy));
+    int[] sourceBlocks = fs.stat(root, "source").getValue().getBlocks();
+    int[] copyBlocks = fs.stat(root, copy).getValue().getBlocks();
+    assertEquals(sourceBlocks[0], copyBlocks[0]);
+    assertFalse(sourceBlocks[1] == copyBlocks[1]);
+    assertFalse(superBlock.getRefCounts().isShared(sourceBlocks[1], 1));
+  }
+
+  @Test
+  void writingTheSourceLeavesTheCopyUnchanged() throws IOException {
+    String copy = fs.copyFile(root, "source", "/").getValue().getName();
+    byte[] overwrite = new byte[original.length];
+    new Random(8).nextBytes(overwrite);
+    write("source", overwrite, 0);
+
+    assertArrayEquals(overwrite, read("source"));
+    assertArrayEquals(original, read(copy));
+  }
+
+  @Test
+  void deletingOneSideKeepsTheOtherAndFreesNothingShared() {
+    String copy = fs.copyFile(root, "source", "/").getValue().getName();
+    int free = superBlock.countFreeBlocks();
+    assertTrue(fs.deleteFile(root, "source").isOk());
+    assertEquals(free, superBlock.countFreeBlocks());
+    assertArrayEquals(original, read(copy));
+
+    assertTrue(fs.deleteFile(root, copy).isOk());
+    assertEquals(free + FILE_BLOCKS, superBlock.countFreeBlocks());
+  }
+
+  private void write(String name, byte[] data, long position) throws IOException {
+    FileHandle handle = fs.open(root, name).getValue();
+    handle.write(ByteBuffer.wrap(data), position);
+    handle.close();
+  }
+
+  private byte[] read(String name) {
+    FileHandle handle = fs.open(root, name).getValue();
+    ByteBuffer buffer = ByteBuffer.allocate((int) handle.size());
+    handle.read(buffer, 0);
+    return buffer.array();
+  }
+}
@@ -0,0 +1,93 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+// Resolution through the SuperBlock's cache, with the tree changed through the file system
+class DentryCacheTest {
+  @TempDir
+  Path dir;
+
+  private FileSystem fs;
+  private DentryCache cache;
+  private Directory root;
+  private Directory a;
+  private Directory b;
+
+  // /a/b and /c
+  @BeforeEach
+  void format() throws IOException {
+    fs = new FileSystem(Disk.format(dir.resolve("disk.img").toString(), new DiskGeometry(256, 16, 16, 16), new DiskOptions()));
+    cache = fs.getDisk().getSuperBlock().getDentryCache();
+    root = fs.getRootDirectory();
+    a = fs.createDirectory(root, "a").getValue();
+    b = fs.createDirectory(a, "b").getValue();
+    fs.createDirectory(root, "c");
+  }
+
+  @Test
+  void equivalentPathsShareOneEntry() {
+    assertSame(b, cache.resolve("/a/b", root, root));
+    assertSame(root, cache.resolve("/", root, root));
+    long misses = cache.getMisses();
+    assertSame(b, cache.resolve("a/b", root, root));
+    assertSame(b, cache.resolve("//a/./b/", root, root));
+    assertSame(b, cache.resolve("b", root, a));
+    assertSame(b, cache.resolve("../a/b", root, a));
+    assertSame(b, cache.resolve("/../../a/b", root, b)); // ".." above the root stays there
+    assertSame(root, cache.resolve("../..", root, b));
+    assertEquals(misses, cache.getMisses());
+  }
+
+  @Test
+  void dotDotAfterAMissingComponentFails() {
+    assertNull(cache.resolve("missing/../c", root, root));
+    assertNull(cache.resolve("/a/missing/../b", root, b));
+    assertSame(b, cache.resolve("b/../b", root, a)); // Every component exists
+    fs.createDirectory(root, "missing");
+    assertSame(b, cache.resolve("/missing/../a/b", root, root));
+  }
+
+  @Test
+  void missesAreCachedUntilTheDirectoryIsCreated() {
+    assertNull(cache.resolve("/a/x", root, root));
+    assertNull(cache.resolve("/a/x/y", root, root));
+    long misses = cache.getMisses();
+    assertNull(cache.resolve("x", root, a));
+    assertEquals(misses, cache.getMisses());
+
+    int size = cache.size();
+    Directory x = fs.createDirectory(a, "x").getValue();
+    assertEquals(size - 1, cache.size()); // Only /a/x: /a/x/y is still missing
+    assertSame(x, cache.resolve("/a/x", root, root));
+    assertNull(cache.resolve("/a/x/y", root, root));
+    assertEquals(misses + 1, cache.getMisses());
+  }
+
+  @Test
+  void deletingADirectoryDropsItsSubtree() {
+    assertSame(b, cache.resolve("/a/b", root, root));
+    assertSame(a, cache.resolve("/a", root, root));
+    assertNull(cache.resolve("/a/b/z", root, root));
+    Directory c = cache.resolve("/c", root, root);
+    int size = cache.size();
+
+    assertTrue(fs.deleteDirectory(root, "a").isOk());
+    assertEquals(size - 3, cache.size());
+    assertNull(cache.resolve("/a/b", root, root));
+    assertNull(cache.resolve("/a", root, root));
+    assertSame(c, cache.resolve("/c", root, root));
+
+    Directory again = fs.createDirectory(root, "a").getValue();
+    assertFalse(again == a);
+    assertSame(again, cache.resolve("/a", root, root));
+  }
+}
@@ -0,0 +1,172 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+class ExtentAllocatorTest {
+  // Free: 10..14 (5), 20..22 (3), 30..37 (8), 40..99 (60)
+  private static ExtentAllocator fragmented(AllocationPolicy policy) {
+    ExtentAllocator allocator = new ExtentAllocator(100, policy);
+    allocator.markUsed(0, 10);
+    allocator.markUsed(15, 5);
+    allocator.markUsed(23, 7);
+    allocator.markUsed(38, 2);
+    return allocator;
+  }
+
+  @Test
+  void bestFitTakesTheSmallestExtentThatFits() {
+    ExtentAllocator allocator = fragmented(AllocationPolicy.BEST_FIT);
+    assertEquals(20, allocator.allocate(3)); // Exactly fits, the extent goes
+    assertEquals(10, allocator.allocate(4)); // 5 is the smallest left that holds 4
+    assertEquals(30, allocator.allocate(6));
+    assertEquals(40, allocator.allocate(9));
+    assertEquals(14, allocator.allocate()); // The single blocks left over come first
+    assertEquals(36, allocator.allocate(2));
+    assertEquals(1, allocator.countFreeExtents());
+    assertEquals(51, allocator.largestFreeRun());
+  }
+
+  @Test
+  void nextFitResumesAfterThePreviousAllocationAndWraps() {
+    ExtentAllocator allocator = fragmented(AllocationPolicy.NEXT_FIT);
+    assertEquals(10, allocator.allocate(4));
+    assertEquals(20, allocator.allocate(3)); // Not 14, which is behind the cursor
+    assertEquals(30, allocator.allocate(8));
+    assertEquals(40, allocator.allocate(50));
+    assertEquals(90, allocator.allocate(1)); // The rest of the extent starts at the cursor
+    assertEquals(91, allocator.allocate(9));
+    assertEquals(14, allocator.allocate(1)); // Nothing after the cursor, so the search wraps
+    assertEquals(-1, allocator.allocate(2));
+  }
+
+  @ParameterizedTest
+  @EnumSource(value = AllocationPolicy.class, names = { "BEST_FIT", "NEXT_FIT" })
+  void freeMergesWithNeighbours(AllocationPolicy policy) {
+    ExtentAllocator allocator = new ExtentAllocator(100, policy);
+    allocator.markUsed(0, 100);
+
+    allocator.free(50, 10); // No free neighbour
+    assertEquals(1, allocator.countFreeExtents());
+    allocator.free(40, 10); // Right neighbour
+    assertEquals(1, allocator.countFreeExtents());
+    assertEquals(20, allocator.largestFreeRun());
+    allocator.free(60, 5); // Left neighbour
+    assertEquals(1, allocator.countFreeExtents());
+    assertEquals(25, allocator.largestFreeRun());
+    allocator.free(70, 10);
+    assertEquals(2, allocator.countFreeExtents());
+    allocator.free(65, 5); // Both
+    assertEquals(1, allocator.countFreeExtents());
+    assertEquals(40, allocator.largestFreeRun());
+    assertEquals(40, allocator.countFree());
+
+    // The merged extent is found by length too, as one extent
+    assertEquals(40, allocator.allocate(40));
+    assertEquals(0, allocator.countFree());
+    assertEquals(0, allocator.countFreeExtents());
+  }
+
+  @Test
+  void freeingAFreeBlockFails() {
+    ExtentAllocator allocator = fragmented(AllocationPolicy.BEST_FIT);
+    assertThrows(IllegalStateException.class, () -> allocator.free(12, 1));
+    assertThrows(IllegalStateException.class, () -> allocator.free(5, 6)); // Runs into 10..14
+  }
+
+  @Test
+  void allocateAtNeedsTheWholeRangeFree() {
+    ExtentAllocator allocator = fragmented(AllocationPolicy.BEST_FIT);
+    assertFalse(allocator.allocateAt(12, 4));
+    assertTrue(allocator.allocateAt(11, 3)); // Splits 10..14 into 10 and 14
+    assertTrue(allocator.isUsed(11) && allocator.isUsed(13));
+    assertFalse(allocator.isUsed(10) || allocator.isUsed(14));
+    assertEquals(5, allocator.countFreeExtents());
+    assertEquals(10, allocator.allocateLowest(1));
+    assertEquals(30, allocator.allocateLowest(5));
+  }
+
+  // The start index and the length index must always describe the same extents: the model's
+  // runs are compared with the extents by start, and best-fit answers come from the length index
+  @ParameterizedTest
+  @EnumSource(value = AllocationPolicy.class, names = { "BEST_FIT", "NEXT_FIT" })
+  void matchesModelOnRandomOperations(AllocationPolicy policy) {
+    int totalBlocks = 500;
+    Random random = new Random(policy.ordinal());
+    ExtentAllocator allocator = new ExtentAllocator(totalBlocks, policy);
+    boolean[] used = new boolean[totalBlocks];
+    List<int[]> held = new ArrayList<>();
+    for (int step = 0; step < 20000; step++) {
+      if (held.isEmpty() || random.nextInt(5) < 3) {
+        int count = 1 + random.nextInt(12);
+        int start = allocator.allocate(count);
+        List<int[]> runs = runs(used);
+        if (start < 0) {
+          for (int[] run : runs) {
+            assertTrue(run[1] < count, "a run of " + run[1] + " was free for " + count);
+          }
+          continue;
+        }
+        if (policy == AllocationPolicy.BEST_FIT) {
+          assertEquals(bestFit(runs, count), start);
+        }
+        for (int block = start; block < start + count; block++) {
+          assertFalse(used[block], "block " + block + " allocated twice");
+          used[block] = true;
+        }
+        held.add(new int[] { start, count });
+      } else {
+        int[] run = held.remove(random.nextInt(held.size()));
+        allocator.free(run[0], run[1]);
+        for (int block = run[0]; block < run[0] + run[1]; block++) {
+          used[block] = false;
+        }
+      }
+      List<int[]> runs = runs(used);
+      assertEquals(runs.size(), allocator.countFreeExtents());
+      int free = 0;
+      int largest = 0;
+      for (int[] run : runs) {
+        free += run[1];
+        largest = Math.max(largest, run[1]);
+        assertFalse(allocator.isUsed(run[0]));
+        assertTrue(run[0] == 0 || allocator.isUsed(run[0] - 1));
+      }
+      assertEquals(free, allocator.countFree());
+      assertEquals(largest, allocator.largestFreeRun());
+    }
+  }
+
+  // Free runs as { start, length }, lowest first
+  private static List<int[]> runs(boolean[] used) {
+    List<int[]> runs = new ArrayList<>();
+    for (int block = 0; block < used.length; block++) {
+      if (!used[block]) {
+        int start = block;
+        while (block < used.length && !used[block]) {
+          block++;
+        }
+        runs.add(new int[] { start, block - start });
+      }
+    }
+    return runs;
+  }
+
+  private static int bestFit(List<int[]> runs, int count) {
+    int[] best = null;
+    for (int[] run : runs) {
+      if (run[1] >= count && (best == null || run[1] < best[1])) {
+        best = run;
+      }
+    }
+    return best == null ? -1 : best[0];
+  }
+}
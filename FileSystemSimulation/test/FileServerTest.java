@@ -0,0 +1,127 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+// A server on a loopback port of an in-memory disk, talked to through FileClient
+class FileServerTest {
+  private static final byte[] DATA = "hello over the wire".getBytes(StandardCharsets.US_ASCII);
+
+  private FileSystem fs;
+  private FileServer server;
+  private FileClient client;
+
+  @BeforeEach
+  void start() throws IOException {
+    fs = new FileSystem(new Disk(new DiskGeometry(1024, 256, 32, 64)));
+    server = new FileServer(fs, new InetSocketAddress("127.0.0.1", 0));
+    server.start();
+    client = new FileClient("127.0.0.1", server.getPort());
+  }
+
+  @AfterEach
+  void stop() throws IOException {
+    client.close();
+    server.close();
+    fs.close();
+  }
+
+  @Test
+  void requestsRoundTrip() throws IOException {
+    assertTrue(client.call(client.sendMkdir("/docs")).isOk());
+    FileClient.Response opened = client.call(client.sendOpen("/docs/a", true));
+    assertTrue(opened.isOk(), opened.getMessage());
+    int handle = opened.getPayload().getInt();
+    assertEquals(0, opened.getPayload().getLong());
+
+    // Pipelined: all three go out together and come back in order
+    int write = client.sendWrite(handle, 0, ByteBuffer.wrap(DATA));
+    int read = client.sendRead(handle, 6, 100);
+    int stat = client.sendStat("/docs/a");
+    FileClient.Response response = client.receive();
+    assertEquals(write, response.getId());
+    assertEquals(DATA.length, response.getPayload().getInt());
+    response = client.receive();
+    assertEquals(read, response.getId());
+    int count = response.getPayload().getInt();
+    assertEquals(DATA.length - 6, count);
+    byte[] data = new byte[count];
+    response.getPayload().get(data);
+    assertArrayEquals("over the wire".getBytes(StandardCharsets.US_ASCII), data);
+    response = client.receive();
+    assertEquals(stat, response.getId());
+    assertEquals(DATA.length, response.getPayload().getLong());
+
+    assertEquals(-1, client.call(client.sendRead(handle, DATA.length, 10)).getPayload().getInt());
+    assertTrue(client.call(client.sendClose(handle)).isOk());
+    assertTrue(client.call(client.sendRename("/docs/a", "/b")).isOk());
+    ByteBuffer listing = client.call(client.sendList("/")).getPayload();
+    assertEquals(1, listing.getInt());
+    assertEquals("docs", FileProtocol.getString(listing));
+    assertEquals(1, listing.getInt());
+    assertEquals("b", FileProtocol.getString(listing));
+    assertEquals(DATA.length, listing.getLong());
+    assertEquals(DATA.length, fs.stat(fs.getRootDirectory(), "b").getValue().getSize());
+  }
+
+  // Errors are answered in place; the connection carries on
+  @Test
+  void failedRequestsGetErrorReplies() throws IOException {
+    FileClient.Response missing = client.call(client.sendOpen("/nothing", false));
+    assertEquals(FileProtocol.FS_ERROR, missing.getStatus());
+    assertEquals(FsError.FILE_NOT_FOUND, missing.getError());
+    assertEquals(FsError.DIRECTORY_NOT_FOUND, client.call(client.sendStat("/no/file")).getError());
+    assertEquals(FsError.FILE_NOT_FOUND, client.call(client.sendRead(42, 0, 10)).getError());
+    assertTrue(client.call(client.sendMkdir("/d")).isOk());
+    assertEquals(FsError.DIRECTORY_EXISTS, client.call(client.sendMkdir("/d")).getError());
+    FileClient.Response bad = client.call(client.sendOpen("/d/", true));
+    assertEquals(FileProtocol.BAD_REQUEST, bad.getStatus());
+    assertFalse(bad.getMessage().isEmpty());
+    assertEquals(FileProtocol.BAD_REQUEST, client.call(client.sendStat("/")).getStatus());
+
+    // An opcode the server does not know, sent as a raw frame
+    try (SocketChannel raw = SocketChannel.open(new InetSocketAddress("127.0.0.1", server.getPort()))) {
+      ByteBuffer frame = ByteBuffer.allocate(FileProtocol.HEADER_BYTES);
+      frame.putInt(FileProtocol.HEADER_BYTES - 4).putInt(7).put((byte) 99).flip();
+      raw.write(frame);
+      ByteBuffer reply = ByteBuffer.allocate(64);
+      while (reply.position() < 4 || reply.position() < 4 + reply.getInt(0)) {
+        assertTrue(raw.read(reply) >= 0);
+      }
+      reply.flip();
+      reply.getInt();
+      assertEquals(7, reply.getInt());
+      assertEquals(FileProtocol.BAD_REQUEST, reply.get());
+      assertEquals("Unknown opcode 99", FileProtocol.getString(reply));
+    }
+    assertTrue(client.call(client.sendOpen("/d/a", true)).isOk());
+  }
+
+  // close() ends every connection and frees the port; what was written stays written
+  @Test
+  void closeEndsConnections() throws IOException {
+    int handle = client.call(client.sendOpen("/a", true)).getPayload().getInt();
+    assertTrue(client.call(client.sendWrite(handle, 0, ByteBuffer.wrap(DATA))).isOk());
+    assertEquals(1, server.getOpenConnections());
+    assertEquals(1, server.getAcceptedConnections());
+    int port = server.getPort();
+
+    server.close();
+    assertEquals(0, server.getOpenConnections());
+    assertThrows(IOException.class, () -> client.call(client.sendStat("/a"))); // End of stream or a reset
+    assertThrows(IOException.class, () -> new FileClient("127.0.0.1", port).close());
+    server.close(); // Already stopped: nothing to do
+    assertEquals(DATA.length, fs.stat(fs.getRootDirectory(), "a").getValue().getSize());
+  }
+}
@@ -0,0 +1,145 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+class GroupedAllocatorTest {
+  private static final int GROUP = GroupedAllocator.GROUP_BLOCKS;
+
+  private static GroupedAllocator allocator(int totalBlocks) {
+    return new GroupedAllocator(AllocationPolicy.BEST_FIT, totalBlocks, 64, new FsMetrics(null)); // Search lengths only
+  }
+
+  @Test
+  void splitsTheDiskIntoGroups() {
+    assertEquals(1, allocator(GROUP).getGroupCount());
+    assertEquals(3, allocator(2 * GROUP + 1).getGroupCount());
+    assertEquals(1, new GroupedAllocator(AllocationPolicy.BEST_FIT, 3 * GROUP, 4 * GROUP, new FsMetrics(null)).getGroupCount());
+  }
+
+  @Test
+  void rangesMayCrossGroups() {
+    GroupedAllocator allocator = allocator(3 * GROUP);
+    int start = GROUP - 10;
+    assertTrue(allocator.allocateAt(start, GROUP + 20)); // Ends 10 blocks into the third group
+    assertTrue(allocator.isUsed(start));
+    assertTrue(allocator.isUsed(2 * GROUP + 9));
+    assertFalse(allocator.isUsed(2 * GROUP + 10));
+    assertEquals(3 * GROUP - (GROUP + 20), allocator.countFree());
+
+    assertFalse(allocator.allocateAt(2 * GROUP, 20)); // Partly taken: nothing changes
+    assertFalse(allocator.isUsed(2 * GROUP + 10));
+    assertEquals(3 * GROUP - (GROUP + 20), allocator.countFree());
+
+    allocator.free(start, GROUP + 20);
+    assertEquals(3 * GROUP, allocator.countFree());
+    assertEquals(1, allocator.countFreeRuns());
+    assertEquals(3 * GROUP, allocator.largestFreeRun());
+  }
+
+  @Test
+  void freeRunsAcrossGroupBoundariesCountOnce() {
+    GroupedAllocator allocator = allocator(3 * GROUP);
+    assertTrue(allocator.allocateAt(0, 100));
+    assertTrue(allocator.allocateAt(2 * GROUP + 100, 100));
+    // Free: [100, 2 * GROUP + 100) across three groups, then the rest of the last group
+    assertEquals(2, allocator.countFreeRuns());
+    assertEquals(2 * GROUP, allocator.largestFreeRun());
+  }
+
+  @Test
+  void runsStayInsideOneGroup() {
+    GroupedAllocator allocator = allocator(2 * GROUP);
+    assertTrue(allocator.allocateAt(50, GROUP - 100)); // Leaves 50 free at each end of the first group
+    assertTrue(allocator.allocateAt(GROUP + 30, GROUP - 30));
+    int[] run = allocator.allocateUpTo(80); // 80 free in a row only across the boundary
+    assertEquals(50, run[1]);
+    assertTrue(run[0] == 0 || run[0] == GROUP - 50);
+    assertEquals(-1, allocator.allocate(60));
+  }
+
+  @Test
+  void reservedBlocksAreKeptForTheirHolder() {
+    GroupedAllocator allocator = allocator(GROUP);
+    assertTrue(allocator.reserve(GROUP - 10));
+    assertEquals(10, allocator.countFree());
+    assertEquals(-1, allocator.allocate(11));
+    assertTrue(allocator.allocate(10) >= 0);
+    assertEquals(-1, allocator.allocate());
+    assertFalse(allocator.reserve(1));
+
+    allocator.drawReserved(GROUP - 10);
+    int[] run = allocator.allocateUpTo(GROUP - 20);
+    assertEquals(GROUP - 20, run[1]);
+    allocator.free(run[0], run[1]); // Back to the draw, not to other threads
+    assertEquals(0, allocator.countFree());
+    allocator.endDraw(true);
+    assertEquals(GROUP - 10, allocator.countReserved());
+    assertEquals(0, allocator.countFree());
+
+    allocator.drawReserved(GROUP - 10);
+    assertTrue(allocator.allocate(GROUP - 20) >= 0);
+    allocator.endDraw(false);
+    assertEquals(0, allocator.countReserved());
+    assertEquals(10, allocator.countFree());
+  }
+
+  @Test
+  void fullDiskReturnsNothing() {
+    GroupedAllocator allocator = allocator(GROUP + 10);
+    assertTrue(allocator.allocateAt(0, GROUP + 10));
+    assertEquals(-1, allocator.allocate());
+    assertEquals(-1, allocator.allocateLowest(1));
+    assertNull(allocator.allocateUpTo(5));
+    assertEquals(0, allocator.countFree());
+  }
+
+  @Test
+  void concurrentAllocationsNeverHandOutABlockTwice() throws Exception {
+    int threads = 8;
+    int total = 4 * GROUP;
+    GroupedAllocator allocator = allocator(total);
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    List<Future<List<Integer>>> results = new ArrayList<>();
+    try {
+      for (int t = 0; t < threads; t++) {
+        results.add(pool.submit(() -> {
+          List<Integer> held = new ArrayList<>();
+          for (int i = 0; i < 20000; i++) {
+            if (held.size() > 100 && i % 3 == 0) {
+              allocator.free(held.remove(held.size() - 1), 1);
+            } else {
+              int block = allocator.allocate();
+              if (block >= 0) {
+                held.add(block);
+              }
+            }
+          }
+          return held;
+        }));
+      }
+      BitSet seen = new BitSet();
+      int held = 0;
+      for (Future<List<Integer>> result : results) {
+        for (int block : result.get()) {
+          assertFalse(seen.get(block), "block " + block + " handed out twice");
+          assertTrue(allocator.isUsed(block));
+          seen.set(block);
+          held++;
+        }
+      }
+      assertEquals(total - held, allocator.countFree());
+    } finally {
+      pool.shutdown();
+    }
+  }
+}
@@ -0,0 +1,183 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+// Files of up to INLINE bytes keep their data in the inode; past that it moves to blocks
+class InlineDataTest {
+  private static final int INLINE = 100;
+  private static final DiskGeometry GEOMETRY = new DiskGeometry(1024, 64, 32, 16, INLINE);
+
+  @TempDir
+  Path dir;
+
+  private String image() {
+    return dir.resolve("disk.img").toString();
+  }
+
+  @ParameterizedTest
+  @ValueSource(longs = { 0, 512 * 1024 })
+  void writingPastTheThresholdMovesTheDataToBlocks(long delayedAllocationBytes) throws IOException {
+    FileSystem fs = new FileSystem(Disk.format(image(), GEOMETRY, new DiskOptions().setDelayedAllocationBytes(delayedAllocationBytes)));
+    SuperBlock superBlock = fs.getDisk().getSuperBlock();
+    Directory root = fs.getRootDirectory();
+    int free = superBlock.countFreeBlocks();
+    assertTrue(fs.createFile(root, "a", 0).getValue().isInline());
+    FileHandle handle = fs.open(root, "a").getValue();
+    byte[] head = bytes(INLINE, 1);
+    handle.write(ByteBuffer.wrap(head), 0); // Exactly fills the inode
+    assertTrue(fs.stat(root, "a").getValue().isInline());
+    assertEquals(free, superBlock.countFreeBlocks());
+
+    byte[] tail = bytes(2000, 2);
+    handle.write(ByteBuffer.wrap(tail), INLINE);
+    handle.close();
+    FileInfo info = fs.stat(root, "a").getValue();
+    assertFalse(info.isInline());
+    assertEquals(3, info.getBlocksAllocated());
+    assertEquals(0, superBlock.countInlineFiles());
+    assertArrayEquals(concat(head, tail), read(fs, root, "a"));
+    fs.close();
+  }
+
+  // A file that fits again keeps its block rather than moving back into the inode
+  @Test
+  void truncatingBelowTheThresholdKeepsTheBlock() throws IOException {
+    FileSystem fs = new FileSystem(Disk.format(image(), GEOMETRY, new DiskOptions()));
+    Directory root = fs.getRootDirectory();
+    assertTrue(fs.createFile(root, "small", 0).isOk());
+    assertTrue(fs.createFile(root, "big", 0).isOk());
+    byte[] data = bytes(500, 3);
+    FileHandle small = fs.open(root, "small").getValue();
+    small.write(ByteBuffer.wrap(data, 0, 80), 0);
+    FileHandle big = fs.open(root, "big").getValue();
+    big.write(ByteBuffer.wrap(data), 0);
+
+    small.truncate(10);
+    small.truncate(80); // The cut-off bytes read as zeros
+    big.truncate(10);
+    big.truncate(80);
+    small.close();
+    big.close(); // Delayed growth gets its block
+    byte[] expected = new byte[80];
+    System.arraycopy(data, 0, expected, 0, 10);
+    assertArrayEquals(expected, read(fs, root, "small"));
+    assertArrayEquals(expected, read(fs, root, "big"));
+    assertTrue(fs.stat(root, "small").getValue().isInline());
+    FileInfo info = fs.stat(root, "big").getValue();
+    assertFalse(info.isInline());
+    assertEquals(1, info.getBlocksAllocated());
+    fs.close();
+  }
+
+  // With no block free, the growth fails and the file stays inline with its data
+  @Test
+  void failedGrowthLeavesTheFileInline() throws IOException {
+    FileSystem fs = new FileSystem(Disk.format(image(), GEOMETRY, new DiskOptions().setDelayedAllocationBytes(0)));
+    SuperBlock superBlock = fs.getDisk().getSuperBlock();
+    Directory root = fs.getRootDirectory();
+    assertTrue(fs.createFile(root, "a", 0).isOk());
+    FileHandle handle = fs.open(root, "a").getValue();
+    byte[] data = bytes(50, 4);
+    handle.write(ByteBuffer.wrap(data), 0);
+    for (int i = 0; superBlock.countFreeBlocks() > 0; i++) {
+      assertTrue(fs.createFile(root, "fill" + i, Math.min(16, superBlock.countFreeBlocks())).isOk());
+    }
+
+    assertThrows(IOException.class, () -> handle.write(ByteBuffer.wrap(bytes(INLINE, 5)), 50));
+    assertTrue(fs.stat(root, "a").getValue().isInline());
+    assertEquals(1, superBlock.countInlineFiles());
+    assertArrayEquals(data, read(fs, root, "a"));
+    handle.write(ByteBuffer.wrap(new byte[] { 7 }), 0); // Still writable in place
+    data[0] = 7;
+    assertArrayEquals(data, read(fs, root, "a"));
+    fs.close();
+  }
+
+  @Test
+  void copiesOfInlineFilesHaveTheirOwnData() throws IOException {
+    FileSystem fs = new FileSystem(Disk.format(image(), GEOMETRY, new DiskOptions()));
+    SuperBlock superBlock = fs.getDisk().getSuperBlock();
+    Directory root = fs.getRootDirectory();
+    assertTrue(fs.createFile(root, "source", 0).isOk());
+    byte[] data = bytes(60, 6);
+    fs.open(root, "source").getValue().write(ByteBuffer.wrap(data), 0);
+    int free = superBlock.countFreeBlocks();
+
+    FileInfo copy = fs.copyFile(root, "source", "/").getValue();
+    assertTrue(copy.isInline());
+    assertEquals(free, superBlock.countFreeBlocks());
+    assertEquals(2, superBlock.countInlineFiles());
+    assertArrayEquals(data, read(fs, root, copy.getName()));
+
+    FileHandle handle = fs.open(root, copy.getName()).getValue();
+    handle.write(ByteBuffer.wrap(new byte[] { 9, 9, 9 }), 0);
+    handle.write(ByteBuffer.wrap(bytes(1500, 7)), 60); // The copy moves to blocks, the source stays
+    assertArrayEquals(data, read(fs, root, "source"));
+    assertTrue(fs.stat(root, "source").getValue().isInline());
+    assertFalse(fs.stat(root, copy.getName()).getValue().isInline());
+    fs.close();
+  }
+
+  // Inline data is logged with the inode, so a halt right after a write loses nothing
+  @ParameterizedTest
+  @ValueSource(longs = { 0, 512 * 1024 })
+  void journalReplayRestoresInlineData(long delayedAllocationBytes) throws IOException {
+    DiskOptions options = new DiskOptions().setDelayedAllocationBytes(delayedAllocationBytes);
+    FileSystem fs = new FileSystem(Disk.format(image(), GEOMETRY, options));
+    Directory root = fs.getRootDirectory();
+    assertTrue(fs.createFile(root, "kept", 0).isOk());
+    assertTrue(fs.createFile(root, "grown", 0).isOk());
+    byte[] kept = bytes(70, 8);
+    byte[] grown = bytes(90, 9);
+    FileHandle handle = fs.open(root, "kept").getValue();
+    handle.write(ByteBuffer.wrap(kept), 0);
+    handle.write(ByteBuffer.wrap(new byte[] { 1, 2 }), 40); // Over data already there
+    kept[40] = 1;
+    kept[41] = 2;
+    FileHandle promoted = fs.open(root, "grown").getValue();
+    promoted.write(ByteBuffer.wrap(grown), 0);
+    promoted.truncate(INLINE + 1); // Moves to a block; the grown part is zeros
+    promoted.sync();
+
+    FileSystem recovered = new FileSystem(Disk.open(image(), options));
+    Directory recoveredRoot = recovered.getRootDirectory();
+    assertTrue(recovered.stat(recoveredRoot, "kept").getValue().isInline());
+    assertArrayEquals(kept, read(recovered, recoveredRoot, "kept"));
+    assertFalse(recovered.stat(recoveredRoot, "grown").getValue().isInline());
+    assertArrayEquals(Arrays.copyOf(grown, INLINE + 1), read(recovered, recoveredRoot, "grown"));
+    assertEquals(1, recovered.getDisk().getSuperBlock().countInlineFiles());
+    recovered.close();
+  }
+
+  private static byte[] bytes(int length, int seed) {
+    byte[] bytes = new byte[length];
+    new Random(seed).nextBytes(bytes);
+    return bytes;
+  }
+
+  private static byte[] concat(byte[] first, byte[] second) {
+    byte[] both = Arrays.copyOf(first, first.length + second.length);
+    System.arraycopy(second, 0, both, first.length, second.length);
+    return both;
+  }
+
+  private static byte[] read(FileSystem fs, Directory directory, String name) {
+    FileHandle handle = fs.open(directory, name).getValue();
+    ByteBuffer buffer = ByteBuffer.allocate((int) handle.size());
+    handle.read(buffer, 0);
+    return buffer.array();
+  }
+}
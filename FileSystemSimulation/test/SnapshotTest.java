@@ -0,0 +1,94 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class SnapshotTest {
+  private static final int BLOCK_SIZE = 1024;
+  private static final long RECLAIM_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  private FileSystem fs;
+  private SuperBlock superBlock;
+  private Directory root;
+  private byte[] before;
+
+  @BeforeEach
+  void createFiles() throws IOException {
+    DiskOptions options = new DiskOptions().setDelayedAllocationBytes(0).setDefragBudgetKB(0);
+    fs = new FileSystem(new Disk(new DiskGeometry(BLOCK_SIZE, 256, 16, 16), options));
+    superBlock = fs.getDisk().getSuperBlock();
+    root = fs.getRootDirectory();
+    before = new byte[4 * BLOCK_SIZE];
+    new Random(1).nextBytes(before);
+    assertTrue(fs.createFile(root, "changed", 4).isOk());
+    write("changed", before);
+    assertTrue(fs.createFile(root, "deleted", 3).isOk());
+  }
+
+  @AfterEach
+  void close() throws IOException {
+    fs.close();
+  }
+
+  @Test
+  void mountShowsTheTreeAsItWas() throws IOException {
+    assertTrue(fs.createSnapshot("s").isOk());
+    byte[] after = new byte[before.length];
+    new Random(2).nextBytes(after);
+    write("changed", after);
+    assertTrue(fs.deleteFile(root, "deleted").isOk());
+    assertTrue(fs.createFile(root, "created", 1).isOk());
+
+    SnapshotMount mount = fs.mountSnapshot("s").getValue();
+    FileInfo changed = mount.stat("/", "changed").getValue();
+    ByteBuffer buffer = ByteBuffer.allocate(changed.getSize());
+    assertEquals(before.length, mount.read(changed, buffer, 0));
+    assertArrayEquals(before, buffer.array());
+    assertEquals(3 * BLOCK_SIZE, mount.stat("/", "deleted").getValue().getSize());
+    assertFalse(mount.stat("/", "created").isOk());
+    mount.unmount();
+
+    assertArrayEquals(after, read("changed"));
+    assertFalse(fs.stat(root, "deleted").isOk());
+  }
+
+  @Test
+  void deletingTheSnapshotFreesWhatOnlyItHeld() throws IOException, InterruptedException {
+    int free = superBlock.countFreeBlocks();
+    assertTrue(fs.createSnapshot("s").isOk());
+    write("changed", new byte[before.length]); // Every block is rewritten, so each gets a copy
+    assertTrue(fs.deleteFile(root, "deleted").isOk());
+    assertEquals(free - 4, superBlock.countFreeBlocks());
+
+    assertTrue(fs.deleteSnapshot("s").isOk());
+    long deadline = System.nanoTime() + RECLAIM_TIMEOUT_NANOS;
+    while (superBlock.getSnapshots().countPendingRecords() > 0 && System.nanoTime() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(0, superBlock.getSnapshots().countPendingRecords());
+    assertEquals(free + 3, superBlock.countFreeBlocks());
+    assertTrue(fs.listSnapshots().isEmpty());
+  }
+
+  private void write(String name, byte[] data) throws IOException {
+    FileHandle handle = fs.open(root, name).getValue();
+    handle.write(ByteBuffer.wrap(data), 0);
+    handle.close();
+  }
+
+  private byte[] read(String name) {
+    FileHandle handle = fs.open(root, name).getValue();
+    ByteBuffer buffer = ByteBuffer.allocate((int) handle.size());
+    handle.read(buffer, 0);
+    return buffer.array();
+  }
+}